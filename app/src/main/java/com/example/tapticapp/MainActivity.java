@@ -38,6 +38,7 @@ import com.google.android.material.tabs.TabLayoutMediator;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -84,6 +85,12 @@ public class MainActivity extends AppCompatActivity {
     private CheckboxListFragment notifyFragment;
     private boolean isMonitoredNotifyExpanded = false;
 
+    // Labels shown in the Monitored/Notify lists
+    private List<String> monitoredLabels = new ArrayList<>();
+
+    // Class indices shown as rows in the dashboard heatmap
+    private int[] heatmapRows;
+
     // Flash overlay
     private View flashOverlay;
     private ObjectAnimator flashAnimator;
@@ -116,8 +123,8 @@ public class MainActivity extends AppCompatActivity {
             audioService.setCallback(new AudioClassificationService.ServiceCallback() {
                 @Override
                 public void onAudioUpdate(List<com.example.tapticapp.core.Interpreter.DetectionResult> top3,
-                        double level) {
-                    runOnUiThread(() -> updateHomeFragment(top3, level));
+                        float[] scores, double level) {
+                    runOnUiThread(() -> updateHomeFragment(top3, scores, level));
                 }
 
                 @Override
@@ -217,8 +224,10 @@ public class MainActivity extends AppCompatActivity {
         new TabLayoutMediator(mainTabLayout, mainViewPager, (tab, position) -> {
             if (position == 0) {
                 tab.setText("Sound dashboard");
-            } else {
+            } else if (position == 1) {
                 tab.setText("Text (live captions)");
+            } else {
+                tab.setText("Devices");
             }
         }).attach();
 
@@ -334,6 +343,18 @@ public class MainActivity extends AppCompatActivity {
         }
         interesting.sort(String.CASE_INSENSITIVE_ORDER);
 
+        // Heatmap rows follow the same sorted list
+        Map<String, Integer> indexByLabel = new HashMap<>();
+        for (int i = 0; i < allLabels.length; i++) {
+            indexByLabel.put(allLabels[i], i);
+        }
+        int[] rows = new int[interesting.size()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = indexByLabel.get(interesting.get(i));
+        }
+        heatmapRows = rows;
+        monitoredLabels = interesting;
+
         // Populate both fragments
         if (monitoredFragment != null) {
             monitoredFragment.populateCheckboxes(interesting);
@@ -361,6 +382,21 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Re-sync the checkboxes with the active profile (it may have been
+     * switched in Settings).
+     */
+    private void refreshMonitoredChecks() {
+        for (String label : monitoredLabels) {
+            if (monitoredFragment != null) {
+                monitoredFragment.setChecked(label, config.isMonitoredEnabled(label));
+            }
+            if (notifyFragment != null) {
+                notifyFragment.setChecked(label, config.isNotifyEnabled(label));
+            }
+        }
+    }
+
     /**
      * Check if a label is "interesting" - matches desktop logic exactly.
      */
@@ -597,18 +633,28 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void updateHomeFragment(java.util.List<com.example.tapticapp.core.Interpreter.DetectionResult> top3,
-            double level) {
+            float[] scores, double level) {
         // Get the Home fragment and update it
         if (pagerAdapter != null) {
             Fragment fragment = getSupportFragmentManager()
                     .findFragmentByTag("f" + 0); // ViewPager2 tags fragments as "f" + position
 
             if (fragment instanceof HomeFragment) {
-                ((HomeFragment) fragment).updateDetections(top3, level);
+                HomeFragment home = (HomeFragment) fragment;
+                if (heatmapRows != null) {
+                    home.setHeatmapRows(heatmapRows);
+                }
+                home.updateDetections(top3, scores, level);
             }
         }
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refreshMonitoredChecks();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
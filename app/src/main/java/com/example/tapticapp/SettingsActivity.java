@@ -5,16 +5,21 @@ import android.os.Bundle;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.AdapterView;
 import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.SeekBar;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.example.tapticapp.config.AppConfig;
+import com.example.tapticapp.config.NetworkSettings;
+import com.example.tapticapp.network.PeerTransport;
 import com.google.android.material.chip.Chip;
 
 import java.util.ArrayList;
@@ -24,14 +29,22 @@ import java.util.Set;
 /**
  * Settings activity matching desktop's SettingsController exactly.
  * Provides comprehensive configuration for:
+ * - Profiles (switch, create, delete)
  * - Notification behavior (sounds, emoji, flash, sensitivity)
  * - Emergency sound classifications
+ * - Network transport (multicast group, interface, TTL, inference offload)
+ * - History retention and audio clips
  */
 public class SettingsActivity extends AppCompatActivity {
 
+    private static final String AUTO_INTERFACE = "Automatic";
+
     private AppConfig config;
 
     // UI Components
+    private Spinner profileSpinner;
+    private Button newProfileButton;
+    private Button deleteProfileButton;
     private CheckBox playSoundCheckbox;
     private CheckBox flashCheckbox;
     private Spinner notificationSoundSpinner;
@@ -39,12 +52,38 @@ public class SettingsActivity extends AppCompatActivity {
     private Spinner notificationEmojiSpinner;
     private SeekBar sensitivitySlider;
     private TextView sensitivityValue;
+    private SeekBar cooldownSlider;
+    private TextView cooldownValue;
 
     // Emergency sounds
     private Spinner emergencyLabelSpinner;
     private Button addEmergencyButton;
     private LinearLayout emergencyChipsContainer;
 
+    // Network
+    private CheckBox multicastCheckbox;
+    private EditText multicastGroupInput;
+    private Spinner networkInterfaceSpinner;
+    private SeekBar multicastTtlSlider;
+    private TextView multicastTtlValue;
+    private Spinner inferenceRoleSpinner;
+
+    // History
+    private Spinner historyMaxRowsSpinner;
+    private Spinner historyMaxAgeSpinner;
+    private int[] historyMaxRowsValues;
+    private int[] historyMaxAgeValues;
+
+    // Audio clips
+    private Spinner clipBudgetSpinner;
+    private Spinner clipLengthSpinner;
+    private Spinner clipLabelSpinner;
+    private Button addClipLabelButton;
+    private LinearLayout clipChipsContainer;
+    private int[] clipBudgetValues;
+    private int[] clipPreValues;
+    private int[] clipPostValues;
+
     private Button saveButton;
 
     // All possible sound labels (will be populated from Interpreter)
@@ -64,6 +103,9 @@ public class SettingsActivity extends AppCompatActivity {
     }
 
     private void initializeViews() {
+        profileSpinner = findViewById(R.id.profileSpinner);
+        newProfileButton = findViewById(R.id.newProfileButton);
+        deleteProfileButton = findViewById(R.id.deleteProfileButton);
         playSoundCheckbox = findViewById(R.id.playSoundCheckbox);
         flashCheckbox = findViewById(R.id.flashCheckbox);
         notificationSoundSpinner = findViewById(R.id.notificationSoundSpinner);
@@ -71,9 +113,24 @@ public class SettingsActivity extends AppCompatActivity {
         notificationEmojiSpinner = findViewById(R.id.notificationEmojiSpinner);
         sensitivitySlider = findViewById(R.id.sensitivitySlider);
         sensitivityValue = findViewById(R.id.sensitivityValue);
+        cooldownSlider = findViewById(R.id.cooldownSlider);
+        cooldownValue = findViewById(R.id.cooldownValue);
         emergencyLabelSpinner = findViewById(R.id.emergencyLabelSpinner);
         addEmergencyButton = findViewById(R.id.addEmergencyButton);
         emergencyChipsContainer = findViewById(R.id.emergencyChipsContainer);
+        multicastCheckbox = findViewById(R.id.multicastCheckbox);
+        multicastGroupInput = findViewById(R.id.multicastGroupInput);
+        networkInterfaceSpinner = findViewById(R.id.networkInterfaceSpinner);
+        multicastTtlSlider = findViewById(R.id.multicastTtlSlider);
+        multicastTtlValue = findViewById(R.id.multicastTtlValue);
+        inferenceRoleSpinner = findViewById(R.id.inferenceRoleSpinner);
+        historyMaxRowsSpinner = findViewById(R.id.historyMaxRowsSpinner);
+        historyMaxAgeSpinner = findViewById(R.id.historyMaxAgeSpinner);
+        clipBudgetSpinner = findViewById(R.id.clipBudgetSpinner);
+        clipLengthSpinner = findViewById(R.id.clipLengthSpinner);
+        clipLabelSpinner = findViewById(R.id.clipLabelSpinner);
+        addClipLabelButton = findViewById(R.id.addClipLabelButton);
+        clipChipsContainer = findViewById(R.id.clipChipsContainer);
         saveButton = findViewById(R.id.saveButton);
     }
 
@@ -96,8 +153,68 @@ public class SettingsActivity extends AppCompatActivity {
         emojiAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         notificationEmojiSpinner.setAdapter(emojiAdapter);
 
+        // Inference Role Spinner, in NetworkSettings.ROLE_ order
+        ArrayAdapter<CharSequence> inferenceRoleAdapter = ArrayAdapter.createFromResource(
+                this, R.array.inference_roles, R.layout.spinner_item);
+        inferenceRoleAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        inferenceRoleSpinner.setAdapter(inferenceRoleAdapter);
+
+        // History Retention Spinners, values in R.array.history_max_*
+        ArrayAdapter<CharSequence> maxRowsAdapter = ArrayAdapter.createFromResource(
+                this, R.array.history_max_rows_labels, R.layout.spinner_item);
+        maxRowsAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        historyMaxRowsSpinner.setAdapter(maxRowsAdapter);
+        historyMaxRowsValues = getResources().getIntArray(R.array.history_max_rows);
+
+        ArrayAdapter<CharSequence> maxAgeAdapter = ArrayAdapter.createFromResource(
+                this, R.array.history_max_age_labels, R.layout.spinner_item);
+        maxAgeAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        historyMaxAgeSpinner.setAdapter(maxAgeAdapter);
+        historyMaxAgeValues = getResources().getIntArray(R.array.history_max_age_days);
+
+        // Audio Clip Spinners, values in R.array.clip_*
+        ArrayAdapter<CharSequence> clipBudgetAdapter = ArrayAdapter.createFromResource(
+                this, R.array.clip_budget_labels, R.layout.spinner_item);
+        clipBudgetAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        clipBudgetSpinner.setAdapter(clipBudgetAdapter);
+        clipBudgetValues = getResources().getIntArray(R.array.clip_budget_mb);
+
+        ArrayAdapter<CharSequence> clipLengthAdapter = ArrayAdapter.createFromResource(
+                this, R.array.clip_length_labels, R.layout.spinner_item);
+        clipLengthAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        clipLengthSpinner.setAdapter(clipLengthAdapter);
+        clipPreValues = getResources().getIntArray(R.array.clip_pre_seconds);
+        clipPostValues = getResources().getIntArray(R.array.clip_post_seconds);
+
         // Emergency Label Spinner (will be populated with common sounds)
         populateEmergencyLabelSpinner();
+
+        populateProfileSpinner();
+
+        populateInterfaceSpinner();
+    }
+
+    private void populateInterfaceSpinner() {
+        List<String> names = new ArrayList<>();
+        names.add(AUTO_INTERFACE);
+        names.addAll(PeerTransport.listMulticastInterfaces());
+        // Keep a configured interface selectable even while it is down
+        String configured = config.getNetworkSettings().interfaceName;
+        if (!configured.isEmpty() && !names.contains(configured)) {
+            names.add(configured);
+        }
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(this, R.layout.spinner_item, names);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        networkInterfaceSpinner.setAdapter(adapter);
+    }
+
+    private void populateProfileSpinner() {
+        List<String> names = config.getProfileNames();
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(this, R.layout.spinner_item, names);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        profileSpinner.setAdapter(adapter);
+        profileSpinner.setSelection(Math.max(0, names.indexOf(config.getActiveProfileName())), false);
+        deleteProfileButton.setEnabled(names.size() > 1);
     }
 
     private void populateEmergencyLabelSpinner() {
@@ -123,6 +240,7 @@ public class SettingsActivity extends AppCompatActivity {
                 this, R.layout.spinner_item, allSoundLabels);
         adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         emergencyLabelSpinner.setAdapter(adapter);
+        clipLabelSpinner.setAdapter(adapter);
     }
 
     private void loadSettings() {
@@ -148,8 +266,37 @@ public class SettingsActivity extends AppCompatActivity {
         sensitivitySlider.setProgress(progress);
         sensitivityValue.setText(String.format("%.2f", threshold));
 
+        // Load cooldown
+        int cooldownSeconds = (int) (config.getCooldownMs() / 1000);
+        cooldownSlider.setProgress(cooldownSeconds);
+        cooldownValue.setText(cooldownSeconds + " s");
+
+        // Load network settings
+        NetworkSettings network = config.getNetworkSettings();
+        multicastCheckbox.setChecked(network.multicastEnabled);
+        multicastGroupInput.setText(network.multicastGroup);
+        setSpinnerValue(networkInterfaceSpinner,
+                network.interfaceName.isEmpty() ? AUTO_INTERFACE : network.interfaceName);
+        multicastTtlSlider.setProgress(network.multicastTtl);
+        multicastTtlValue.setText(String.valueOf(network.multicastTtl));
+        inferenceRoleSpinner.setSelection(network.inferenceRole);
+
+        // Load history retention
+        historyMaxRowsSpinner.setSelection(indexOf(historyMaxRowsValues, config.getHistoryMaxRows()));
+        historyMaxAgeSpinner.setSelection(indexOf(historyMaxAgeValues, config.getHistoryMaxAgeDays()));
+
+        // Load audio clips
+        clipBudgetSpinner.setSelection(indexOf(clipBudgetValues, config.getClipBudgetMb()));
+        int clipLength = 0;
+        for (int i = 0; i < clipPreValues.length; i++) {
+            if (clipPreValues[i] == config.getClipPreSeconds() && clipPostValues[i] == config.getClipPostSeconds())
+                clipLength = i;
+        }
+        clipLengthSpinner.setSelection(clipLength);
+
         // Load emergency sounds chips
         refreshEmergencyChips();
+        refreshClipChips();
     }
 
     private void setSpinnerValue(Spinner spinner, String value) {
@@ -162,7 +309,73 @@ public class SettingsActivity extends AppCompatActivity {
         }
     }
 
+    private static int indexOf(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value)
+                return i;
+        }
+        return 0;
+    }
+
     private void setupListeners() {
+        // Profile switching takes effect immediately
+        profileSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                String name = parent.getItemAtPosition(position).toString();
+                if (!name.equals(config.getActiveProfileName())) {
+                    config.switchProfile(name);
+                    loadSettings();
+                }
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+
+        newProfileButton.setOnClickListener(v -> showNewProfileDialog());
+
+        deleteProfileButton.setOnClickListener(v -> {
+            String name = config.getActiveProfileName();
+            config.deleteProfile(name);
+            populateProfileSpinner();
+            loadSettings();
+            Toast.makeText(this, "Deleted profile: " + name, Toast.LENGTH_SHORT).show();
+        });
+
+        // Cooldown slider
+        cooldownSlider.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                cooldownValue.setText(progress + " s");
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        });
+
+        // Multicast TTL slider
+        multicastTtlSlider.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                multicastTtlValue.setText(String.valueOf(progress));
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        });
+
         // Sensitivity slider
         sensitivitySlider.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
@@ -190,10 +403,44 @@ public class SettingsActivity extends AppCompatActivity {
             }
         });
 
+        // Add clip sound button
+        addClipLabelButton.setOnClickListener(v -> {
+            String label = clipLabelSpinner.getSelectedItem().toString();
+            if (!label.isEmpty()) {
+                config.setClipLabel(label, true);
+                refreshClipChips();
+                Toast.makeText(this, "Added: " + label, Toast.LENGTH_SHORT).show();
+            }
+        });
+
         // Save button
         saveButton.setOnClickListener(v -> saveSettings());
     }
 
+    private void showNewProfileDialog() {
+        EditText input = new EditText(this);
+        input.setHint("Profile name");
+        new AlertDialog.Builder(this)
+                .setTitle("New profile")
+                .setMessage("The new profile starts as a copy of \"" + config.getActiveProfileName() + "\".")
+                .setView(input)
+                .setPositiveButton("Create", (dialog, which) -> {
+                    String name = input.getText().toString().trim();
+                    if (name.isEmpty()) {
+                        return;
+                    }
+                    if (!config.createProfile(name)) {
+                        Toast.makeText(this, "A profile named \"" + name + "\" already exists",
+                                Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    populateProfileSpinner();
+                    loadSettings();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
     private void refreshEmergencyChips() {
         emergencyChipsContainer.removeAllViews();
 
@@ -213,19 +460,54 @@ public class SettingsActivity extends AppCompatActivity {
         }
     }
 
-    private void saveSettings() {
-        // Save notification behavior
-        config.setPlaySound(playSoundCheckbox.isChecked());
-        config.setFlashEmergency(flashCheckbox.isChecked());
+    private void refreshClipChips() {
+        clipChipsContainer.removeAllViews();
 
-        // Save sounds and emoji
-        config.setNotificationSound(notificationSoundSpinner.getSelectedItem().toString());
-        config.setEmergencySound(emergencySoundSpinner.getSelectedItem().toString());
-        config.setNotificationEmoji(notificationEmojiSpinner.getSelectedItem().toString());
+        for (String label : config.getClipLabels()) {
+            Chip chip = new Chip(this);
+            chip.setText(label);
+            chip.setCloseIconVisible(true);
+            chip.setChipBackgroundColor(android.content.res.ColorStateList.valueOf(Color.parseColor("#00BCD4")));
+            chip.setTextColor(Color.WHITE);
+            chip.setOnCloseIconClickListener(v -> {
+                config.setClipLabel(label, false);
+                refreshClipChips();
+                Toast.makeText(this, "Removed: " + label, Toast.LENGTH_SHORT).show();
+            });
+            clipChipsContainer.addView(chip);
+        }
+    }
 
-        // Save sensitivity
+    private void saveSettings() {
         double threshold = sensitivitySlider.getProgress() / 100.0;
-        config.setNotifyThreshold(threshold);
+
+        String group = multicastGroupInput.getText().toString().trim();
+        if (!NetworkSettings.isValidGroup(group)) {
+            multicastGroupInput.setError("Enter an address from 224.0.0.0 to 239.255.255.255");
+            return;
+        }
+        String networkInterface = networkInterfaceSpinner.getSelectedItem().toString();
+
+        // All fields are saved as one transaction (one file write)
+        config.edit()
+                .setPlaySound(playSoundCheckbox.isChecked())
+                .setFlashEmergency(flashCheckbox.isChecked())
+                .setNotificationSound(notificationSoundSpinner.getSelectedItem().toString())
+                .setEmergencySound(emergencySoundSpinner.getSelectedItem().toString())
+                .setNotificationEmoji(notificationEmojiSpinner.getSelectedItem().toString())
+                .setNotifyThreshold(threshold)
+                .setCooldownMs(cooldownSlider.getProgress() * 1000L)
+                .setMulticastEnabled(multicastCheckbox.isChecked())
+                .setMulticastGroup(group)
+                .setMulticastTtl(multicastTtlSlider.getProgress())
+                .setNetworkInterface(AUTO_INTERFACE.equals(networkInterface) ? "" : networkInterface)
+                .setInferenceRole(inferenceRoleSpinner.getSelectedItemPosition())
+                .setHistoryRetention(historyMaxRowsValues[historyMaxRowsSpinner.getSelectedItemPosition()],
+                        historyMaxAgeValues[historyMaxAgeSpinner.getSelectedItemPosition()])
+                .setClips(clipBudgetValues[clipBudgetSpinner.getSelectedItemPosition()],
+                        clipPreValues[clipLengthSpinner.getSelectedItemPosition()],
+                        clipPostValues[clipLengthSpinner.getSelectedItemPosition()])
+                .commit();
 
         Toast.makeText(this, "Settings saved", Toast.LENGTH_SHORT).show();
         finish();
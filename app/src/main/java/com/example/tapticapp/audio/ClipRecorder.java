@@ -0,0 +1,369 @@
+package com.example.tapticapp.audio;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Saves audio clips around detections so an alert can be checked by ear.
+ *
+ * The capture thread copies every hop of 16-bit PCM into a {@link PcmRing}
+ * ({@link #onPcm}), which always holds the last seconds heard. A detection
+ * ({@link #capture}) only notes where in the ring its clip starts and ends
+ * and names the file; once the audio after it has been captured, the
+ * clip's own thread copies the range out, encodes it as mu-law
+ * ({@link MuLaw}, half the size of PCM) and writes it as a WAV file. The
+ * capture thread never touches the disk or waits.
+ *
+ * Clips share a disk budget. Before a clip is written the least recently
+ * used ones, by file time, are deleted until it fits alongside the rest,
+ * so the clips never take more than the budget; a clip larger than the
+ * whole budget is not saved. Playing a clip ({@link #openClip}) counts as
+ * a use. A detection during the clip of an earlier one shares that clip.
+ */
+public class ClipRecorder {
+
+    private static final String TAG = "ClipRecorder";
+    public static final String CLIP_DIR = "clips";
+    public static final int MAX_PRE_SECONDS = 30;
+    public static final int MAX_POST_SECONDS = 15;
+    // Time for the last hop of a clip to be captured, a hop and some
+    static final long SLACK_MS = 1000;
+    static final int WAV_HEADER_BYTES = 58;
+    private static final int CHUNK_BYTES = 16 * 1024;
+    private static final String SUFFIX = ".wav";
+
+    private final File dir;
+    private final PcmRing ring;
+    private final int sampleRate;
+    private final int bytesPerSecond;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    private volatile int preRollBytes;
+    private volatile int postRollBytes;
+    private volatile long budgetBytes;
+
+    // Guarded by this: the clip waiting for its audio, which later
+    // detections join
+    private String pendingName;
+    private long pendingEnd;
+
+    // Executor thread only
+    private final byte[] pcm = new byte[CHUNK_BYTES];
+    private final byte[] encoded = new byte[CHUNK_BYTES / 2];
+
+    private final AtomicLong clipsWritten = new AtomicLong();
+    private final AtomicLong clipsEvicted = new AtomicLong();
+    private final AtomicLong clipsLost = new AtomicLong();
+    private final AtomicLong totalWriteNanos = new AtomicLong();
+    private final AtomicLong maxWriteNanos = new AtomicLong();
+
+    /**
+     * Clips of 16-bit mono PCM at {@code sampleRate}, from {@code ring},
+     * into {@code dir}. The ring should hold at least
+     * {@link #ringCapacity} bytes. Saves nothing until {@link #setLimits}.
+     */
+    public ClipRecorder(File dir, PcmRing ring, int sampleRate) {
+        this.dir = dir;
+        this.ring = ring;
+        this.sampleRate = sampleRate;
+        this.bytesPerSecond = sampleRate * 2;
+        executor.execute(this::removePartialClips);
+    }
+
+    /**
+     * Bytes of PCM the ring needs for the longest clips.
+     */
+    public static int ringCapacity(int sampleRate) {
+        return (int) ((MAX_PRE_SECONDS + MAX_POST_SECONDS) * sampleRate * 2L
+                + SLACK_MS * 2 * sampleRate * 2 / 1000);
+    }
+
+    public static File clipDir(Context context) {
+        return new File(context.getFilesDir(), CLIP_DIR);
+    }
+
+    /**
+     * The clip file of a detection, marked as just used; null if there is
+     * none or it was evicted.
+     */
+    public static File openClip(Context context, String name) {
+        if (name == null)
+            return null;
+        File clip = new File(clipDir(context), name);
+        if (!clip.isFile())
+            return null;
+        clip.setLastModified(System.currentTimeMillis());
+        return clip;
+    }
+
+    /**
+     * Clip length around each detection, capped at {@link #MAX_PRE_SECONDS}
+     * and {@link #MAX_POST_SECONDS}, and the disk budget for all clips; a
+     * budget of 0 saves none. A smaller budget evicts clips right away.
+     */
+    public void setLimits(int preSeconds, int postSeconds, long budgetBytes) {
+        this.preRollBytes = Math.min(Math.max(0, preSeconds), MAX_PRE_SECONDS) * bytesPerSecond;
+        this.postRollBytes = Math.min(Math.max(0, postSeconds), MAX_POST_SECONDS) * bytesPerSecond;
+        this.budgetBytes = budgetBytes;
+        executor.execute(() -> evict(budgetBytes));
+    }
+
+    /**
+     * A hop of little-endian 16-bit PCM. Capture thread only.
+     */
+    public void onPcm(byte[] hop, int length) {
+        ring.write(hop, 0, length);
+    }
+
+    /**
+     * Save a clip around now for a detection made at {@code timestamp}.
+     * Returns the clip's file name, to be kept with the detection, or null
+     * if clips are off or one would not fit in the budget. The file
+     * appears once the audio after the detection is in. Cheap enough for
+     * the capture thread.
+     */
+    public String capture(long timestamp) {
+        long budget = budgetBytes;
+        int pre = preRollBytes;
+        int post = postRollBytes;
+        if (budget <= 0 || pre + post == 0)
+            return null;
+        long now = ring.position();
+        synchronized (this) {
+            if (pendingName != null && now < pendingEnd)
+                return pendingName;
+            long start = Math.max(ring.oldest(), now - pre);
+            long end = now + post;
+            if (clipBytes(start, end) > budget)
+                return null;
+            String name = "clip-" + timestamp + SUFFIX;
+            pendingName = name;
+            pendingEnd = end;
+            long delayMs = post * 1000L / bytesPerSecond + SLACK_MS;
+            executor.schedule(() -> saveClip(name, start, end), delayMs, TimeUnit.MILLISECONDS);
+            return name;
+        }
+    }
+
+    /**
+     * Stop. Clips still waiting for their audio are written when due, with
+     * what was captured.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    // Stats
+
+    public long getClipsWritten() {
+        return clipsWritten.get();
+    }
+
+    public long getClipsEvicted() {
+        return clipsEvicted.get();
+    }
+
+    /**
+     * Clips whose audio had been overwritten or could not be written.
+     */
+    public long getClipsLost() {
+        return clipsLost.get();
+    }
+
+    public double getAverageWriteMs() {
+        long count = clipsWritten.get();
+        return count == 0 ? 0 : totalWriteNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxWriteMs() {
+        return maxWriteNanos.get() / 1e6;
+    }
+
+    /**
+     * Wait for the clip thread to catch up.
+     */
+    void sync() throws InterruptedException, ExecutionException {
+        executor.submit(() -> {
+        }).get();
+    }
+
+    /**
+     * Most bytes the clip of [start, end) of the ring takes on disk.
+     */
+    static long clipBytes(long start, long end) {
+        long samples = (end - start) / 2;
+        return WAV_HEADER_BYTES + samples + (samples & 1);
+    }
+
+    /**
+     * Make room for the clip of [start, end) within the budget, then write
+     * it. Executor thread only.
+     */
+    void saveClip(String name, long start, long end) {
+        long size = clipBytes(start, end);
+        long budget = budgetBytes;
+        if (size > budget) {
+            // The budget shrank since the detection
+            clipsLost.incrementAndGet();
+            return;
+        }
+        evict(budget - size);
+        writeClip(name, start, end);
+    }
+
+    /**
+     * Copy [start, end) of the ring, or as much of it as was captured and
+     * is still held, into a clip file. Written to a temporary file and
+     * renamed, so a clip is either whole or absent. Returns the samples
+     * written, 0 if none. Executor thread only.
+     */
+    int writeClip(String name, long start, long end) {
+        long begin = System.nanoTime();
+        long stop = Math.min(end, ring.position());
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Cannot create " + dir);
+            clipsLost.incrementAndGet();
+            return 0;
+        }
+        File partial = new File(dir, name + ".part");
+        int samples = 0;
+        try (RandomAccessFile out = new RandomAccessFile(partial, "rw")) {
+            out.setLength(0);
+            out.write(wavHeader(0));
+            long at = start;
+            while (at < stop) {
+                int length = (int) Math.min(Math.min(CHUNK_BYTES, ring.capacity()), stop - at);
+                int lost = ring.read(at, pcm, 0, length);
+                if (lost > 0) {
+                    // Overwritten before we got to it: start later, or end
+                    // here if the writer lapped us midway
+                    if (samples > 0)
+                        break;
+                    at += (lost + 1) & ~1;
+                    continue;
+                }
+                int count = length / 2;
+                for (int i = 0; i < count; i++) {
+                    short sample = (short) ((pcm[2 * i] & 0xFF) | (pcm[2 * i + 1] << 8));
+                    encoded[i] = MuLaw.encode(sample / 32768f);
+                }
+                out.write(encoded, 0, count);
+                samples += count;
+                at += length;
+            }
+            // Chunks are padded to an even length
+            if ((samples & 1) != 0)
+                out.write(0);
+            out.seek(0);
+            out.write(wavHeader(samples));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + name, e);
+        }
+        File clip = new File(dir, name);
+        if (samples == 0 || !partial.renameTo(clip)) {
+            partial.delete();
+            clipsLost.incrementAndGet();
+            return 0;
+        }
+        long elapsed = System.nanoTime() - begin;
+        clipsWritten.incrementAndGet();
+        totalWriteNanos.addAndGet(elapsed);
+        maxWriteNanos.accumulateAndGet(elapsed, Math::max);
+        return samples;
+    }
+
+    /**
+     * Delete the least recently used clips until the rest fit in
+     * {@code budget} bytes. Executor thread only.
+     */
+    void evict(long budget) {
+        File[] clips = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (clips == null)
+            return;
+        long total = 0;
+        for (File clip : clips) {
+            total += clip.length();
+        }
+        if (total <= budget)
+            return;
+        long[] used = new long[clips.length];
+        Integer[] order = new Integer[clips.length];
+        for (int i = 0; i < clips.length; i++) {
+            used[i] = clips[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(used[a], used[b]));
+        for (int i = 0; i < order.length && total > budget; i++) {
+            File clip = clips[order[i]];
+            long length = clip.length();
+            if (clip.delete()) {
+                total -= length;
+                clipsEvicted.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Clips cut short by the process dying while writing.
+     */
+    private void removePartialClips() {
+        File[] partial = dir.listFiles((d, name) -> name.endsWith(".part"));
+        if (partial == null)
+            return;
+        for (File file : partial) {
+            file.delete();
+        }
+    }
+
+    /**
+     * RIFF header for mono 8-bit mu-law (format 7) with {@code samples}
+     * samples, with the fact chunk non-PCM formats carry.
+     */
+    byte[] wavHeader(int samples) {
+        byte[] header = new byte[WAV_HEADER_BYTES];
+        putAscii(header, 0, "RIFF");
+        putInt(header, 4, WAV_HEADER_BYTES - 8 + samples + (samples & 1));
+        putAscii(header, 8, "WAVE");
+        putAscii(header, 12, "fmt ");
+        putInt(header, 16, 18);
+        putShort(header, 20, 7); // mu-law
+        putShort(header, 22, 1); // channels
+        putInt(header, 24, sampleRate);
+        putInt(header, 28, sampleRate); // bytes per second
+        putShort(header, 32, 1); // block align
+        putShort(header, 34, 8); // bits per sample
+        putShort(header, 36, 0); // no extension
+        putAscii(header, 38, "fact");
+        putInt(header, 42, 4);
+        putInt(header, 46, samples);
+        putAscii(header, 50, "data");
+        putInt(header, 54, samples);
+        return header;
+    }
+
+    private static void putAscii(byte[] out, int at, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            out[at + i] = (byte) text.charAt(i);
+        }
+    }
+
+    private static void putShort(byte[] out, int at, int value) {
+        out[at] = (byte) value;
+        out[at + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt(byte[] out, int at, int value) {
+        putShort(out, at, value);
+        putShort(out, at + 2, value >> 16);
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.tapticapp.audio;
+
+/**
+ * G.711 mu-law companding: 16-bit samples in 8 bits, with quantization
+ * steps that grow with amplitude so quiet sounds keep their detail. Halves
+ * the bandwidth of raw PCM for a few operations per sample; the error is
+ * small next to the microphone's own noise.
+ */
+public final class MuLaw {
+
+    private static final int BIAS = 0x84;
+    private static final int CLIP = 32635;
+    private static final float[] DECODE = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            DECODE[i] = decode16((byte) i) / 32768f;
+        }
+    }
+
+    private MuLaw() {
+    }
+
+    /**
+     * Encode a sample in [-1, 1].
+     */
+    public static byte encode(float sample) {
+        int pcm = Math.round(sample * 32768f);
+        int sign = 0;
+        if (pcm < 0) {
+            pcm = -pcm;
+            sign = 0x80;
+        }
+        if (pcm > CLIP)
+            pcm = CLIP;
+        pcm += BIAS;
+        int exponent = 7;
+        for (int mask = 0x4000; (pcm & mask) == 0 && exponent > 0; mask >>= 1) {
+            exponent--;
+        }
+        int mantissa = (pcm >> (exponent + 3)) & 0x0F;
+        return (byte) ~(sign | (exponent << 4) | mantissa);
+    }
+
+    /**
+     * Decode to a sample in [-1, 1].
+     */
+    public static float decode(byte encoded) {
+        return DECODE[encoded & 0xFF];
+    }
+
+    public static void encode(float[] samples, int count, byte[] out) {
+        for (int i = 0; i < count; i++) {
+            out[i] = encode(samples[i]);
+        }
+    }
+
+    public static void decode(byte[] encoded, int count, float[] out, int offset) {
+        for (int i = 0; i < count; i++) {
+            out[offset + i] = DECODE[encoded[i] & 0xFF];
+        }
+    }
+
+    private static int decode16(byte encoded) {
+        int value = ~encoded & 0xFF;
+        int exponent = (value >> 4) & 0x07;
+        int mantissa = value & 0x0F;
+        int magnitude = (((mantissa << 3) + BIAS) << exponent) - BIAS;
+        return (value & 0x80) != 0 ? -magnitude : magnitude;
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.tapticapp.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The last few seconds of captured PCM, in a buffer allocated once: on
+ * the heap, or in a memory-mapped file ({@link #mapped}) so it stays out
+ * of the Java heap and its pages can be reclaimed from the file.
+ *
+ * One thread writes, the capture thread, with a copy and no allocation or
+ * lock. One other thread may read ranges back while it does. Positions
+ * are bytes written since the ring was created, so a range stays
+ * addressable as the ring wraps; it is readable until it is overwritten,
+ * {@link #capacity()} bytes later.
+ */
+public final class PcmRing {
+
+    private final ByteBuffer writeView;
+    private final ByteBuffer readView;
+    private final int capacity;
+    private volatile long position;
+    // Longest write so far: how far ahead of position a write in progress reaches
+    private volatile int maxWrite;
+
+    /**
+     * A ring on the heap.
+     */
+    public PcmRing(int capacity) {
+        this(ByteBuffer.allocate(capacity));
+    }
+
+    private PcmRing(ByteBuffer buffer) {
+        writeView = buffer;
+        readView = buffer.duplicate();
+        capacity = buffer.capacity();
+    }
+
+    /**
+     * A ring backed by {@code file}, created or resized to
+     * {@code capacity} bytes. The mapping outlives the channel.
+     */
+    public static PcmRing mapped(File file, int capacity) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(capacity);
+            return new PcmRing(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Bytes written so far: the position just after the newest byte.
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Position of the oldest byte still held.
+     */
+    public long oldest() {
+        return Math.max(0, position - capacity);
+    }
+
+    /**
+     * Append bytes, overwriting the oldest. Writer thread only.
+     */
+    public void write(byte[] src, int offset, int length) {
+        if (length > capacity) {
+            offset += length - capacity;
+            position += length - capacity;
+            length = capacity;
+        }
+        if (length > maxWrite)
+            maxWrite = length;
+        int at = (int) (position % capacity);
+        int first = Math.min(length, capacity - at);
+        writeView.position(at);
+        writeView.put(src, offset, first);
+        if (first < length) {
+            writeView.position(0);
+            writeView.put(src, offset + first, length - first);
+        }
+        position += length;
+    }
+
+    /**
+     * Copy {@code length} bytes starting at position {@code from} into
+     * {@code dst}. Returns how many of the leading bytes copied may have
+     * been overwritten by the writer meanwhile, and are not to be used;
+     * 0 if all are good. Reader thread only; {@code from + length} must
+     * not be past {@link #position()}.
+     */
+    public int read(long from, byte[] dst, int offset, int length) {
+        int at = (int) (from % capacity);
+        int first = Math.min(length, capacity - at);
+        readView.position(at);
+        readView.get(dst, offset, first);
+        if (first < length) {
+            readView.position(0);
+            readView.get(dst, offset + first, length - first);
+        }
+        // Bytes overwritten since, or possibly being overwritten by a write
+        // that has not moved the position yet
+        long lost = position + maxWrite - capacity - from;
+        return lost <= 0 ? 0 : (int) Math.min(lost, length);
+    }
+}
@@ -7,6 +7,8 @@ import android.media.AudioRecord;
 import android.media.MediaRecorder;
 import android.util.Log;
 
+import com.example.tapticapp.network.OffloadClient;
+
 import org.tensorflow.lite.Interpreter;
 
 import java.io.BufferedReader;
@@ -27,25 +29,37 @@ import java.util.List;
 public class YamnetAudioClassifier {
 
     private static final String TAG = "YamnetClassifier";
-    private static final int SAMPLE_RATE = 16000;
-    private static final int WINDOW_SAMPLES = 15600;
-    private static final int HOP_SAMPLES = 7800;
-    private static final int NUM_CLASSES = 521;
+    public static final int SAMPLE_RATE = 16000;
+    public static final int WINDOW_SAMPLES = 15600;
+    public static final int HOP_SAMPLES = 7800;
+    public static final int NUM_CLASSES = 521;
 
     private final Context context;
     private Interpreter interpreter;
     private String[] labels;
 
     private AudioRecord audioRecord;
-    private boolean isRecording = false;
+    private volatile boolean isRecording = false;
     private final float[] audioBuffer = new float[WINDOW_SAMPLES];
     private int bufferFill = 0;
     private Thread recordingThread;
+    private volatile OffloadClient offloadClient;
+    private volatile PcmListener pcmListener;
+    private volatile AudioClassificationCallback callback;
+    private final Object callbackLock = new Object();
 
     public interface AudioClassificationCallback {
         void onResult(float[] scores, String[] labels, double level);
     }
 
+    /**
+     * Raw audio as captured, on the capture thread; must not block. The
+     * buffer is reused for the next hop.
+     */
+    public interface PcmListener {
+        void onPcm(byte[] pcm, int length);
+    }
+
     public YamnetAudioClassifier(Context context) {
         this.context = context;
         try {
@@ -63,6 +77,39 @@ public class YamnetAudioClassifier {
         return labels;
     }
 
+    /**
+     * Send audio to a hub peer for classification whenever the client is
+     * connected to one, instead of running the model here. Null to always
+     * run it here.
+     */
+    public void setOffloadClient(OffloadClient client) {
+        OffloadClient previous = offloadClient;
+        if (previous != null) {
+            previous.setResultCallback(null);
+        }
+        if (client != null) {
+            client.setResultCallback(this::deliver);
+        }
+        offloadClient = client;
+    }
+
+    /**
+     * Receive each hop of 16-bit little-endian PCM, e.g. for a
+     * {@link ClipRecorder}. Null to stop.
+     */
+    public void setPcmListener(PcmListener listener) {
+        pcmListener = listener;
+    }
+
+    /**
+     * Classify one window of {@link #WINDOW_SAMPLES} samples in [-1, 1].
+     * Shares the interpreter with the capture thread, so hub requests and
+     * our own audio take turns.
+     */
+    public synchronized float[] classify(float[] window) {
+        return runInference(window);
+    }
+
     public void startListening(AudioClassificationCallback callback) {
         if (isRecording)
             return;
@@ -83,8 +130,9 @@ public class YamnetAudioClassifier {
             audioRecord.startRecording();
             isRecording = true;
             bufferFill = 0;
+            this.callback = callback;
 
-            recordingThread = new Thread(() -> processAudio(callback));
+            recordingThread = new Thread(this::processAudio);
             recordingThread.start();
             Log.d(TAG, "Audio recording started");
 
@@ -113,13 +161,16 @@ public class YamnetAudioClassifier {
         Log.d(TAG, "Audio recording stopped");
     }
 
-    private void processAudio(AudioClassificationCallback callback) {
+    private void processAudio() {
         byte[] hopBytes = new byte[HOP_SAMPLES * 2]; // 16-bit PCM
 
         while (isRecording && audioRecord != null) {
             int bytesRead = audioRecord.read(hopBytes, 0, hopBytes.length);
             if (bytesRead != hopBytes.length)
                 continue;
+            PcmListener listener = pcmListener;
+            if (listener != null)
+                listener.onPcm(hopBytes, bytesRead);
 
             // Convert bytes to floats
             ByteBuffer byteBuffer = ByteBuffer.wrap(hopBytes).order(ByteOrder.LITTLE_ENDIAN);
@@ -149,9 +200,25 @@ public class YamnetAudioClassifier {
             double rms = Math.sqrt(sumSquares / WINDOW_SAMPLES);
             double boostedLevel = Math.min(1.0, Math.max(0.02, Math.pow(rms * 16.0, 0.65)));
 
-            // Run inference
-            float[] scores = runInference(audioBuffer);
-            callback.onResult(scores, labels, boostedLevel);
+            // Let the hub classify it if we have one, else run inference
+            OffloadClient offload = offloadClient;
+            if (offload != null && offload.submitHop(hopFloats, boostedLevel))
+                continue;
+            float[] scores = classify(audioBuffer);
+            deliver(scores, boostedLevel);
+        }
+    }
+
+    /**
+     * Results from the capture thread and from the hub arrive on different
+     * threads; hand them over one at a time.
+     */
+    private void deliver(float[] scores, double level) {
+        synchronized (callbackLock) {
+            AudioClassificationCallback current = callback;
+            if (current != null && isRecording) {
+                current.onResult(scores, labels, level);
+            }
         }
     }
 
@@ -199,9 +266,11 @@ public class YamnetAudioClassifier {
 
     public void close() {
         stopListening();
-        if (interpreter != null) {
-            interpreter.close();
-            interpreter = null;
+        synchronized (this) {
+            if (interpreter != null) {
+                interpreter.close();
+                interpreter = null;
+            }
         }
     }
 }
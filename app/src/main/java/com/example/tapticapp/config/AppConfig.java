@@ -1,40 +1,39 @@
 package com.example.tapticapp.config;
 
 import android.content.Context;
-import android.content.SharedPreferences;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.Arrays;
 
 /**
- * Application configuration and settings storage using SharedPreferences.
+ * Application configuration backed by {@link SettingsStore}.
  * Stores all user preferences including:
  * - Notification behavior (sound, flash, threshold)
  * - Emergency sound classifications
  * - Per-sound notification colors
  * - Network broadcast settings
+ *
+ * Single-field setters commit immediately. For several changes at once use
+ * {@link #edit()} so they are saved as one transaction.
  */
 public class AppConfig {
 
-    private static final String PREF_NAME = "taptic_settings";
     private static AppConfig instance;
-    private final SharedPreferences prefs;
-
-    // Keys
-    private static final String KEY_PLAY_SOUND = "play_sound";
-    private static final String KEY_FLASH_EMERGENCY = "flash_emergency";
-    private static final String KEY_NOTIFY_THRESHOLD = "notify_threshold";
-    private static final String KEY_NOTIFICATION_SOUND = "notification_sound";
-    private static final String KEY_EMERGENCY_SOUND = "emergency_sound";
-    private static final String KEY_NOTIFICATION_EMOJI = "notification_emoji";
-    private static final String KEY_EMERGENCY_LABELS = "emergency_labels";
-    private static final String KEY_BROADCAST_SEND_LABELS = "broadcast_send_labels";
-    private static final String KEY_BROADCAST_LISTEN_LABELS = "broadcast_listen_labels";
-    private static final String KEY_NOTIFICATION_COLORS = "notification_colors";
+    private final SettingsStore store;
+
+    // Hot-path view of the active profile, replaced (never mutated) on every change
+    private volatile ConfigSnapshot snapshot = ConfigSnapshot.EMPTY;
+    private String[] classLabels = new String[0];
+
+    // Every profile precompiled, so switching is a single reference swap
+    private Map<String, ConfigSnapshot> compiledProfiles = new HashMap<>();
+    private Map<String, Profile> compiledFrom = new HashMap<>();
 
     private AppConfig(Context context) {
-        prefs = context.getApplicationContext().getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
-        initializeDefaults();
+        store = new SettingsStore(context);
+        store.addListener(settings -> rebuildSnapshot());
     }
 
     public static synchronized AppConfig getInstance(Context context) {
@@ -44,93 +43,232 @@ public class AppConfig {
         return instance;
     }
 
-    private void initializeDefaults() {
-        if (!prefs.contains(KEY_EMERGENCY_LABELS)) {
-            Set<String> defaults = new HashSet<>(Arrays.asList(
-                    "fire", "smoke alarm", "fire alarm", "siren", "emergency vehicle",
-                    "glass breaking", "gunshot", "explosion", "smoke detector"));
-            prefs.edit().putStringSet(KEY_EMERGENCY_LABELS, defaults).apply();
+    // Snapshot
+
+    /**
+     * Current immutable settings snapshot. Cheap enough to call once per
+     * audio frame.
+     */
+    public ConfigSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Set the model's class labels so the snapshot can index settings by
+     * class. Called once the classifier has loaded.
+     */
+    public void setClassLabels(String[] labels) {
+        synchronized (this) {
+            classLabels = labels != null ? labels.clone() : new String[0];
+            // Labels changed: every profile needs recompiling
+            compiledFrom = new HashMap<>();
         }
+        rebuildSnapshot();
+    }
+
+    /**
+     * Recompile only the profiles whose Profile instance changed, then
+     * publish the active one. A pure profile switch compiles nothing.
+     */
+    private synchronized void rebuildSnapshot() {
+        Settings settings = store.get();
+        Map<String, ConfigSnapshot> compiled = new HashMap<>();
+        Map<String, Profile> sources = new HashMap<>();
+        for (String name : settings.getProfileNames()) {
+            Profile profile = settings.getProfile(name);
+            ConfigSnapshot existing = compiledFrom.get(name) == profile ? compiledProfiles.get(name) : null;
+            compiled.put(name, existing != null
+                    ? existing
+                    : ConfigSnapshot.build(classLabels, profile, this::isEmergencyHeuristic));
+            sources.put(name, profile);
+        }
+        compiledProfiles = compiled;
+        compiledFrom = sources;
+        snapshot = compiled.get(settings.activeProfileName);
+    }
+
+    /**
+     * Be told about every committed change. Listeners run on the committing
+     * thread.
+     */
+    public void addOnSettingsChangedListener(SettingsStore.OnSettingsChangedListener listener) {
+        store.addListener(listener);
+    }
+
+    public void removeOnSettingsChangedListener(SettingsStore.OnSettingsChangedListener listener) {
+        store.removeListener(listener);
+    }
+
+    /**
+     * Start a transaction for several settings at once.
+     */
+    public SettingsStore.Editor edit() {
+        return store.edit();
     }
 
     // Getters and Setters
 
     public boolean isPlaySound() {
-        return prefs.getBoolean(KEY_PLAY_SOUND, true);
+        return store.get().playSound;
     }
 
     public void setPlaySound(boolean enabled) {
-        prefs.edit().putBoolean(KEY_PLAY_SOUND, enabled).apply();
+        store.edit().setPlaySound(enabled).commit();
     }
 
     public boolean isFlashEmergency() {
-        return prefs.getBoolean(KEY_FLASH_EMERGENCY, true);
+        return store.get().flashEmergency;
     }
 
     public void setFlashEmergency(boolean enabled) {
-        prefs.edit().putBoolean(KEY_FLASH_EMERGENCY, enabled).apply();
+        store.edit().setFlashEmergency(enabled).commit();
     }
 
     public double getNotifyThreshold() {
-        // SharedPreferences doesn't support double, store as float
-        return prefs.getFloat(KEY_NOTIFY_THRESHOLD, 0.20f);
+        return store.get().getActiveProfile().notifyThreshold;
     }
 
     public void setNotifyThreshold(double threshold) {
-        prefs.edit().putFloat(KEY_NOTIFY_THRESHOLD, (float) threshold).apply();
+        store.edit().setNotifyThreshold(threshold).commit();
+    }
+
+    public long getCooldownMs() {
+        return store.get().getActiveProfile().cooldownMs;
+    }
+
+    public void setCooldownMs(long cooldownMs) {
+        store.edit().setCooldownMs(cooldownMs).commit();
     }
 
     public String getNotificationSound() {
-        return prefs.getString(KEY_NOTIFICATION_SOUND, "Default");
+        return store.get().notificationSound;
     }
 
     public void setNotificationSound(String sound) {
-        prefs.edit().putString(KEY_NOTIFICATION_SOUND, sound).apply();
+        store.edit().setNotificationSound(sound).commit();
     }
 
     public String getEmergencySound() {
-        return prefs.getString(KEY_EMERGENCY_SOUND, "Emergency");
+        return store.get().emergencySound;
     }
 
     public void setEmergencySound(String sound) {
-        prefs.edit().putString(KEY_EMERGENCY_SOUND, sound).apply();
+        store.edit().setEmergencySound(sound).commit();
     }
 
     public String getNotificationEmoji() {
-        return prefs.getString(KEY_NOTIFICATION_EMOJI, "🔵");
+        return store.get().notificationEmoji;
     }
 
     public void setNotificationEmoji(String emoji) {
-        prefs.edit().putString(KEY_NOTIFICATION_EMOJI, emoji).apply();
+        store.edit().setNotificationEmoji(emoji).commit();
+    }
+
+    // Network
+
+    /**
+     * Peer transport settings. The instance only changes when one of them
+     * is edited, so callers can compare by reference.
+     */
+    public NetworkSettings getNetworkSettings() {
+        return store.get().network;
+    }
+
+    // History
+
+    public int getHistoryMaxRows() {
+        return store.get().historyMaxRows;
+    }
+
+    /**
+     * 0 when history is kept regardless of age.
+     */
+    public int getHistoryMaxAgeDays() {
+        return store.get().historyMaxAgeDays;
+    }
+
+    // Audio Clips
+
+    /**
+     * 0 when no clips are saved.
+     */
+    public int getClipBudgetMb() {
+        return store.get().clipBudgetMb;
+    }
+
+    public int getClipPreSeconds() {
+        return store.get().clipPreSeconds;
+    }
+
+    public int getClipPostSeconds() {
+        return store.get().clipPostSeconds;
+    }
+
+    /**
+     * Sounds saved as clips besides emergencies.
+     */
+    public Set<String> getClipLabels() {
+        return labelsWithFlag(Settings.FLAG_RECORD_CLIP);
+    }
+
+    public void setClipLabel(String label, boolean enabled) {
+        store.edit().setLabelFlag(label, Settings.FLAG_RECORD_CLIP, enabled).commit();
+    }
+
+    public boolean isClipLabel(String label) {
+        return store.get().hasFlag(label, Settings.FLAG_RECORD_CLIP);
+    }
+
+    // Profiles
+
+    public List<String> getProfileNames() {
+        return store.get().getProfileNames();
+    }
+
+    public String getActiveProfileName() {
+        return store.get().activeProfileName;
+    }
+
+    /**
+     * Make another profile active. The classification thread picks it up on
+     * its next frame; nothing is restarted.
+     */
+    public void switchProfile(String name) {
+        store.edit().setActiveProfile(name).commit();
+    }
+
+    /**
+     * Create a new profile from the active one and switch to it. Returns
+     * false, changing nothing, if the name is taken.
+     */
+    public boolean createProfile(String name) {
+        if (getProfileNames().contains(name)) {
+            return false;
+        }
+        store.edit().createProfile(name, getActiveProfileName()).setActiveProfile(name).commit();
+        return true;
+    }
+
+    public void deleteProfile(String name) {
+        store.edit().deleteProfile(name).commit();
     }
 
     // Emergency Labels
 
     public Set<String> getEmergencyLabels() {
-        return prefs.getStringSet(KEY_EMERGENCY_LABELS, new HashSet<>());
+        return labelsWithFlag(Settings.FLAG_EMERGENCY);
     }
 
     public void setEmergencyLabel(String label, boolean isEmergency) {
-        String normalized = normalizeLabel(label);
-        if (normalized == null)
-            return;
-
-        Set<String> current = new HashSet<>(getEmergencyLabels());
-        if (isEmergency) {
-            current.add(normalized);
-        } else {
-            current.remove(normalized);
-        }
-        prefs.edit().putStringSet(KEY_EMERGENCY_LABELS, current).apply();
+        store.edit().setLabelFlag(label, Settings.FLAG_EMERGENCY, isEmergency).commit();
     }
 
     public boolean isEmergencyLabel(String label) {
-        String normalized = normalizeLabel(label);
+        String normalized = Settings.normalizeLabel(label);
         if (normalized == null)
             return false;
 
-        Set<String> emergencySet = getEmergencyLabels();
-        if (emergencySet.contains(normalized)) {
+        if (store.get().hasFlag(normalized, Settings.FLAG_EMERGENCY)) {
             return true;
         }
 
@@ -140,153 +278,83 @@ public class AppConfig {
     // Broadcast Settings
 
     public Set<String> getBroadcastSendLabels() {
-        return prefs.getStringSet(KEY_BROADCAST_SEND_LABELS, new HashSet<>());
+        return labelsWithFlag(Settings.FLAG_BROADCAST_SEND);
     }
 
     public void setBroadcastSendEnabled(String label, boolean enabled) {
-        Set<String> current = new HashSet<>(getBroadcastSendLabels());
-        if (enabled) {
-            current.add(label);
-        } else {
-            current.remove(label);
-        }
-        prefs.edit().putStringSet(KEY_BROADCAST_SEND_LABELS, current).apply();
+        store.edit().setLabelFlag(label, Settings.FLAG_BROADCAST_SEND, enabled).commit();
     }
 
     public boolean isBroadcastSendEnabled(String label) {
-        return getBroadcastSendLabels().contains(label);
+        return store.get().hasFlag(label, Settings.FLAG_BROADCAST_SEND);
     }
 
     public Set<String> getBroadcastListenLabels() {
-        return prefs.getStringSet(KEY_BROADCAST_LISTEN_LABELS, new HashSet<>());
+        return labelsWithFlag(Settings.FLAG_BROADCAST_LISTEN);
     }
 
     public void setBroadcastListenEnabled(String label, boolean enabled) {
-        Set<String> current = new HashSet<>(getBroadcastListenLabels());
-        if (enabled) {
-            current.add(label);
-        } else {
-            current.remove(label);
-        }
-        prefs.edit().putStringSet(KEY_BROADCAST_LISTEN_LABELS, current).apply();
+        store.edit().setLabelFlag(label, Settings.FLAG_BROADCAST_LISTEN, enabled).commit();
     }
 
     public boolean isBroadcastListenEnabled(String label) {
-        return getBroadcastListenLabels().contains(label);
+        return store.get().hasFlag(label, Settings.FLAG_BROADCAST_LISTEN);
     }
 
-    // Monitored & Notify Lists (Stored as DISABLED sets since default is enabled)
-    private static final String KEY_DISABLED_MONITORED = "disabled_monitored";
-    private static final String KEY_DISABLED_NOTIFY = "disabled_notify";
+    // Monitored & Notify Lists (Stored as DISABLED flags since default is enabled)
 
     public Set<String> getDisabledMonitoredLabels() {
-        return prefs.getStringSet(KEY_DISABLED_MONITORED, new HashSet<>());
+        return labelsWithFlag(Settings.FLAG_MONITOR_DISABLED);
     }
 
     public void setMonitoredEnabled(String label, boolean enabled) {
-        Set<String> current = new HashSet<>(getDisabledMonitoredLabels());
-        if (enabled) {
-            current.remove(label);
-        } else {
-            current.add(label);
-        }
-        prefs.edit().putStringSet(KEY_DISABLED_MONITORED, current).apply();
+        store.edit().setLabelFlag(label, Settings.FLAG_MONITOR_DISABLED, !enabled).commit();
     }
 
     public boolean isMonitoredEnabled(String label) {
-        return !getDisabledMonitoredLabels().contains(label);
+        return !store.get().hasFlag(label, Settings.FLAG_MONITOR_DISABLED);
     }
 
     public Set<String> getDisabledNotifyLabels() {
-        return prefs.getStringSet(KEY_DISABLED_NOTIFY, new HashSet<>());
+        return labelsWithFlag(Settings.FLAG_NOTIFY_DISABLED);
     }
 
     public void setNotifyEnabled(String label, boolean enabled) {
-        Set<String> current = new HashSet<>(getDisabledNotifyLabels());
-        if (enabled) {
-            current.remove(label);
-        } else {
-            current.add(label);
-        }
-        prefs.edit().putStringSet(KEY_DISABLED_NOTIFY, current).apply();
+        store.edit().setLabelFlag(label, Settings.FLAG_NOTIFY_DISABLED, !enabled).commit();
     }
 
     public boolean isNotifyEnabled(String label) {
-        return !getDisabledNotifyLabels().contains(label);
+        return !store.get().hasFlag(label, Settings.FLAG_NOTIFY_DISABLED);
     }
 
     // Colors
 
     public String getNotificationColor(String label) {
-        String normalized = normalizeLabel(label);
-        if (normalized == null)
+        if (Settings.normalizeLabel(label) == null)
             return "#8AB4FF";
 
-        // Simple storage format: "label1:color1,label2:color2"
-        String colorsStr = prefs.getString(KEY_NOTIFICATION_COLORS, "");
-        for (String pair : colorsStr.split(",")) {
-            String[] parts = pair.split(":");
-            if (parts.length == 2 && parts[0].equals(normalized)) {
-                return parts[1];
-            }
+        String color = store.get().getColor(label);
+        if (color != null) {
+            return color;
         }
 
         return isEmergencyLabel(label) ? "#FF5252" : "#8AB4FF";
     }
 
     public void setNotificationColor(String label, String colorHex) {
-        String normalized = normalizeLabel(label);
-        if (normalized == null) {
-            return;
-        }
-
-        // Load existing colors
-        String colorsStr = prefs.getString(KEY_NOTIFICATION_COLORS, "");
-        StringBuilder newColorsStr = new StringBuilder();
-        boolean found = false;
-
-        // Update or keep existing entries
-        for (String pair : colorsStr.split(",")) {
-            if (pair.trim().isEmpty()) {
-                continue;
-            }
-            String[] parts = pair.split(":");
-            if (parts.length == 2) {
-                if (parts[0].equals(normalized)) {
-                    // Update this entry
-                    if (newColorsStr.length() > 0) {
-                        newColorsStr.append(",");
-                    }
-                    newColorsStr.append(normalized).append(":").append(colorHex);
-                    found = true;
-                } else {
-                    // Keep other entries
-                    if (newColorsStr.length() > 0) {
-                        newColorsStr.append(",");
-                    }
-                    newColorsStr.append(pair);
-                }
-            }
-        }
-
-        // Add new entry if not found
-        if (!found) {
-            if (newColorsStr.length() > 0) {
-                newColorsStr.append(",");
-            }
-            newColorsStr.append(normalized).append(":").append(colorHex);
-        }
-
-        prefs.edit().putString(KEY_NOTIFICATION_COLORS, newColorsStr.toString()).apply();
+        store.edit().setColor(label, colorHex).commit();
     }
 
     // Helpers
 
-    private String normalizeLabel(String label) {
-        if (label == null)
-            return null;
-        String trimmed = label.trim();
-        return trimmed.isEmpty() ? null : trimmed.toLowerCase();
+    private Set<String> labelsWithFlag(int flag) {
+        Set<String> labels = new HashSet<>();
+        for (Map.Entry<String, Integer> entry : store.get().getActiveProfile().getLabelFlags().entrySet()) {
+            if ((entry.getValue() & flag) != 0) {
+                labels.add(entry.getKey());
+            }
+        }
+        return labels;
     }
 
     private boolean isEmergencyHeuristic(String normalizedLabel) {
@@ -0,0 +1,140 @@
+package com.example.tapticapp.config;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable, precompiled view of the settings for the classification thread.
+ *
+ * Per-class flags are stored as bitsets indexed by YAMNet class index, so the
+ * hot path is one volatile read (in AppConfig) followed by array lookups.
+ * A new snapshot is built whenever the settings change; it is never mutated.
+ */
+public final class ConfigSnapshot {
+
+    static final ConfigSnapshot EMPTY = new ConfigSnapshot(Profile.DEFAULT_NAME, new String[0], 0.20,
+            Profile.DEFAULT_COOLDOWN_MS, new long[0], new long[0], new long[0], new long[0], new long[0]);
+
+    private final String profileName;
+    private final double notifyThreshold;
+    private final long cooldownMs;
+    private final String[] labels;
+    private final Map<String, Integer> classByLabel;
+    private final long[] monitored;
+    private final long[] notify;
+    private final long[] broadcastSend;
+    private final long[] broadcastListen;
+    private final long[] emergency;
+
+    private ConfigSnapshot(String profileName, String[] labels, double notifyThreshold, long cooldownMs,
+            long[] monitored, long[] notify, long[] broadcastSend, long[] broadcastListen, long[] emergency) {
+        this.profileName = profileName;
+        this.labels = labels;
+        this.notifyThreshold = notifyThreshold;
+        this.cooldownMs = cooldownMs;
+        this.monitored = monitored;
+        this.notify = notify;
+        this.broadcastSend = broadcastSend;
+        this.broadcastListen = broadcastListen;
+        this.emergency = emergency;
+
+        Map<String, Integer> byLabel = new HashMap<>(labels.length * 2);
+        for (int i = 0; i < labels.length; i++) {
+            byLabel.put(labels[i], i);
+        }
+        this.classByLabel = Collections.unmodifiableMap(byLabel);
+    }
+
+    /**
+     * Compile a snapshot of a profile for the given class labels.
+     */
+    static ConfigSnapshot build(String[] labels, Profile profile, EmergencyTest emergencyHeuristic) {
+        int words = (labels.length + 63) >>> 6;
+        long[] monitored = new long[words];
+        long[] notify = new long[words];
+        long[] send = new long[words];
+        long[] listen = new long[words];
+        long[] emergency = new long[words];
+
+        for (int i = 0; i < labels.length; i++) {
+            String normalized = Settings.normalizeLabel(labels[i]);
+            int flags = profile.getFlags(normalized);
+            if ((flags & Settings.FLAG_MONITOR_DISABLED) == 0)
+                set(monitored, i);
+            if ((flags & Settings.FLAG_NOTIFY_DISABLED) == 0)
+                set(notify, i);
+            if ((flags & Settings.FLAG_BROADCAST_SEND) != 0)
+                set(send, i);
+            if ((flags & Settings.FLAG_BROADCAST_LISTEN) != 0)
+                set(listen, i);
+            if ((flags & Settings.FLAG_EMERGENCY) != 0
+                    || (normalized != null && emergencyHeuristic.isEmergency(normalized)))
+                set(emergency, i);
+        }
+
+        return new ConfigSnapshot(profile.name, labels, profile.notifyThreshold, profile.cooldownMs,
+                monitored, notify, send, listen, emergency);
+    }
+
+    interface EmergencyTest {
+        boolean isEmergency(String normalizedLabel);
+    }
+
+    public String getProfileName() {
+        return profileName;
+    }
+
+    public double getNotifyThreshold() {
+        return notifyThreshold;
+    }
+
+    public long getCooldownMs() {
+        return cooldownMs;
+    }
+
+    public int getClassCount() {
+        return labels.length;
+    }
+
+    public String getLabel(int classIndex) {
+        return labels[classIndex];
+    }
+
+    /**
+     * Class index for a label, or -1 if the label is not a known class.
+     */
+    public int classIndexOf(String label) {
+        Integer index = label != null ? classByLabel.get(label) : null;
+        return index != null ? index : -1;
+    }
+
+    public boolean isMonitored(int classIndex) {
+        return test(monitored, classIndex);
+    }
+
+    public boolean isNotify(int classIndex) {
+        return test(notify, classIndex);
+    }
+
+    public boolean isBroadcastSend(int classIndex) {
+        return test(broadcastSend, classIndex);
+    }
+
+    public boolean isBroadcastListen(int classIndex) {
+        return test(broadcastListen, classIndex);
+    }
+
+    public boolean isEmergency(int classIndex) {
+        return test(emergency, classIndex);
+    }
+
+    private static void set(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private static boolean test(long[] bits, int index) {
+        int word = index >>> 6;
+        return index >= 0 && word < bits.length && (bits[word] & (1L << index)) != 0;
+    }
+}
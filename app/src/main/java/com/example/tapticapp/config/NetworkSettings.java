@@ -0,0 +1,106 @@
+package com.example.tapticapp.config;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Immutable peer transport settings: whether to use IP multicast (with
+ * broadcast as the fallback), the group, its TTL and the interface to join
+ * on. An empty interface name means "pick automatically".
+ *
+ * Also this device's inference role: run the model itself, offload it to a
+ * hub peer, or be a hub for others.
+ */
+public final class NetworkSettings {
+
+    public static final String DEFAULT_GROUP = "239.255.42.99";
+    public static final int DEFAULT_TTL = 1;
+    public static final int MAX_TTL = 32;
+
+    public static final int ROLE_LOCAL = 0;
+    public static final int ROLE_OFFLOAD = 1;
+    public static final int ROLE_HUB = 2;
+
+    static final NetworkSettings DEFAULT = new NetworkSettings(true, DEFAULT_GROUP, DEFAULT_TTL, "", ROLE_LOCAL);
+
+    public final boolean multicastEnabled;
+    public final String multicastGroup;
+    public final int multicastTtl;
+    public final String interfaceName;
+    public final int inferenceRole;
+
+    NetworkSettings(boolean multicastEnabled, String multicastGroup, int multicastTtl, String interfaceName,
+            int inferenceRole) {
+        this.multicastEnabled = multicastEnabled;
+        this.multicastGroup = isValidGroup(multicastGroup) ? multicastGroup : DEFAULT_GROUP;
+        this.multicastTtl = Math.max(1, Math.min(MAX_TTL, multicastTtl));
+        this.interfaceName = interfaceName != null ? interfaceName : "";
+        this.inferenceRole = inferenceRole >= ROLE_LOCAL && inferenceRole <= ROLE_HUB ? inferenceRole : ROLE_LOCAL;
+    }
+
+    /**
+     * True for a dotted-quad IPv4 address in 224.0.0.0/4. Checked without
+     * InetAddress so a typo never turns into a DNS lookup.
+     */
+    public static boolean isValidGroup(String group) {
+        if (group == null)
+            return false;
+        String[] parts = group.trim().split("\\.", -1);
+        if (parts.length != 4)
+            return false;
+        for (int i = 0; i < 4; i++) {
+            if (parts[i].isEmpty() || parts[i].length() > 3)
+                return false;
+            int value;
+            try {
+                value = Integer.parseInt(parts[i]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (value < 0 || value > 255 || (i == 0 && (value < 224 || value > 239)))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof NetworkSettings))
+            return false;
+        NetworkSettings other = (NetworkSettings) o;
+        return multicastEnabled == other.multicastEnabled
+                && multicastTtl == other.multicastTtl
+                && inferenceRole == other.inferenceRole
+                && multicastGroup.equals(other.multicastGroup)
+                && interfaceName.equals(other.interfaceName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(multicastEnabled, multicastGroup, multicastTtl, interfaceName, inferenceRole);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeBoolean(multicastEnabled);
+        out.writeUTF(multicastGroup);
+        out.writeByte(multicastTtl);
+        out.writeUTF(interfaceName);
+        out.writeByte(inferenceRole);
+    }
+
+    /**
+     * Settings files before version 4 have no inference role.
+     */
+    static NetworkSettings readFrom(DataInputStream in, int version) throws IOException {
+        boolean enabled = in.readBoolean();
+        String group = in.readUTF();
+        int ttl = in.readUnsignedByte();
+        String interfaceName = in.readUTF();
+        int role = version >= 4 ? in.readUnsignedByte() : ROLE_LOCAL;
+        return new NetworkSettings(enabled, group, ttl, interfaceName, role);
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.tapticapp.config;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A named, immutable bundle of detection settings: per-label flags
+ * (monitored, notify, broadcast, emergency), the notification threshold and
+ * the per-label cooldown. Exactly one profile is active at a time.
+ */
+public final class Profile {
+
+    public static final String DEFAULT_NAME = "Default";
+    public static final long DEFAULT_COOLDOWN_MS = 5000;
+
+    public final String name;
+    public final double notifyThreshold;
+    public final long cooldownMs;
+
+    private final Map<String, Integer> labelFlags;
+
+    Profile(String name, double notifyThreshold, long cooldownMs, Map<String, Integer> labelFlags) {
+        this.name = name;
+        this.notifyThreshold = notifyThreshold;
+        this.cooldownMs = cooldownMs;
+        this.labelFlags = Collections.unmodifiableMap(labelFlags);
+    }
+
+    /**
+     * Flags for a label (any case); 0 if the label has no entry.
+     */
+    public int getFlags(String label) {
+        String normalized = Settings.normalizeLabel(label);
+        if (normalized == null)
+            return 0;
+        Integer flags = labelFlags.get(normalized);
+        return flags != null ? flags : 0;
+    }
+
+    public boolean hasFlag(String label, int flag) {
+        return (getFlags(label) & flag) != 0;
+    }
+
+    Map<String, Integer> getLabelFlags() {
+        return labelFlags;
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.tapticapp.config;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable set of user settings as stored by {@link SettingsStore}.
+ *
+ * Global settings (notification sound, emoji, colors, ...) live here
+ * directly; detection settings live in named {@link Profile}s, one of which
+ * is active. Per-sound settings are kept as a bitmask per normalized label,
+ * so a label that is e.g. both disabled for notifications and marked as
+ * emergency is a single entry. Instances are never mutated; edits go through
+ * {@link SettingsStore.Editor} and produce a new instance.
+ */
+public final class Settings {
+
+    // Per-label flags
+    public static final int FLAG_MONITOR_DISABLED = 1;
+    public static final int FLAG_NOTIFY_DISABLED = 1 << 1;
+    public static final int FLAG_BROADCAST_SEND = 1 << 2;
+    public static final int FLAG_BROADCAST_LISTEN = 1 << 3;
+    public static final int FLAG_EMERGENCY = 1 << 4;
+    public static final int FLAG_RECORD_CLIP = 1 << 5;
+
+    static final int FILE_MAGIC = 0x54505453; // "TPTS"
+    static final int FILE_VERSION = 6;
+
+    public static final int DEFAULT_HISTORY_MAX_ROWS = 10000;
+    public static final int DEFAULT_HISTORY_MAX_AGE_DAYS = 30;
+    public static final int DEFAULT_CLIP_PRE_SECONDS = 10;
+    public static final int DEFAULT_CLIP_POST_SECONDS = 5;
+
+    public final boolean playSound;
+    public final boolean flashEmergency;
+    public final String notificationSound;
+    public final String emergencySound;
+    public final String notificationEmoji;
+    public final String activeProfileName;
+    public final NetworkSettings network;
+    /** Detection history keeps at most this many rows. */
+    public final int historyMaxRows;
+    /** Detection history older than this is deleted; 0 keeps it regardless of age. */
+    public final int historyMaxAgeDays;
+    /** Disk space for audio clips of detections; 0 saves none. */
+    public final int clipBudgetMb;
+    /** Audio kept from before a detection, for its clip. */
+    public final int clipPreSeconds;
+    /** Audio recorded after a detection, for its clip. */
+    public final int clipPostSeconds;
+
+    private final Map<String, String> labelColors;
+    private final Map<String, Profile> profiles;
+
+    Settings(boolean playSound, boolean flashEmergency, String notificationSound, String emergencySound,
+            String notificationEmoji, Map<String, String> labelColors, Map<String, Profile> profiles,
+            String activeProfileName, NetworkSettings network, int historyMaxRows, int historyMaxAgeDays,
+            int clipBudgetMb, int clipPreSeconds, int clipPostSeconds) {
+        this.playSound = playSound;
+        this.flashEmergency = flashEmergency;
+        this.notificationSound = notificationSound;
+        this.emergencySound = emergencySound;
+        this.notificationEmoji = notificationEmoji;
+        this.labelColors = Collections.unmodifiableMap(labelColors);
+        this.profiles = Collections.unmodifiableMap(profiles);
+        this.activeProfileName = profiles.containsKey(activeProfileName)
+                ? activeProfileName
+                : profiles.keySet().iterator().next();
+        this.network = network;
+        this.historyMaxRows = historyMaxRows;
+        this.historyMaxAgeDays = historyMaxAgeDays;
+        this.clipBudgetMb = clipBudgetMb;
+        this.clipPreSeconds = clipPreSeconds;
+        this.clipPostSeconds = clipPostSeconds;
+    }
+
+    static Settings defaults() {
+        Map<String, Integer> flags = new HashMap<>();
+        String[] emergency = {
+                "fire", "smoke alarm", "fire alarm", "siren", "emergency vehicle",
+                "glass breaking", "gunshot", "explosion", "smoke detector" };
+        for (String label : emergency) {
+            flags.put(label, FLAG_EMERGENCY);
+        }
+        Map<String, Profile> profiles = new LinkedHashMap<>();
+        profiles.put(Profile.DEFAULT_NAME,
+                new Profile(Profile.DEFAULT_NAME, 0.20, Profile.DEFAULT_COOLDOWN_MS, flags));
+        return new Settings(true, true, "Default", "Emergency", "🔵", new HashMap<>(), profiles,
+                Profile.DEFAULT_NAME, NetworkSettings.DEFAULT, DEFAULT_HISTORY_MAX_ROWS,
+                DEFAULT_HISTORY_MAX_AGE_DAYS, 0, DEFAULT_CLIP_PRE_SECONDS, DEFAULT_CLIP_POST_SECONDS);
+    }
+
+    public Profile getActiveProfile() {
+        return profiles.get(activeProfileName);
+    }
+
+    public Profile getProfile(String name) {
+        return profiles.get(name);
+    }
+
+    public List<String> getProfileNames() {
+        return new ArrayList<>(profiles.keySet());
+    }
+
+    Map<String, Profile> getProfiles() {
+        return profiles;
+    }
+
+    /**
+     * Flags for a label in the active profile; 0 if the label has no entry.
+     */
+    public int getFlags(String label) {
+        return getActiveProfile().getFlags(label);
+    }
+
+    public boolean hasFlag(String label, int flag) {
+        return (getFlags(label) & flag) != 0;
+    }
+
+    /**
+     * Custom notification color for a label, or null if none was chosen.
+     */
+    public String getColor(String label) {
+        String normalized = normalizeLabel(label);
+        return normalized != null ? labelColors.get(normalized) : null;
+    }
+
+    Map<String, String> getLabelColors() {
+        return labelColors;
+    }
+
+    static String normalizeLabel(String label) {
+        if (label == null)
+            return null;
+        String trimmed = label.trim();
+        return trimmed.isEmpty() ? null : trimmed.toLowerCase(Locale.ROOT);
+    }
+
+    // Binary format
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(FILE_VERSION);
+        out.writeBoolean(playSound);
+        out.writeBoolean(flashEmergency);
+        out.writeUTF(notificationSound);
+        out.writeUTF(emergencySound);
+        out.writeUTF(notificationEmoji);
+
+        out.writeInt(labelColors.size());
+        for (Map.Entry<String, String> entry : labelColors.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+
+        out.writeUTF(activeProfileName);
+        out.writeInt(profiles.size());
+        for (Profile profile : profiles.values()) {
+            out.writeUTF(profile.name);
+            out.writeFloat((float) profile.notifyThreshold);
+            out.writeInt((int) profile.cooldownMs);
+            Map<String, Integer> flags = profile.getLabelFlags();
+            out.writeInt(flags.size());
+            for (Map.Entry<String, Integer> entry : flags.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+        }
+
+        network.writeTo(out);
+
+        out.writeInt(historyMaxRows);
+        out.writeInt(historyMaxAgeDays);
+
+        out.writeInt(clipBudgetMb);
+        out.writeInt(clipPreSeconds);
+        out.writeInt(clipPostSeconds);
+    }
+
+    static Settings readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != FILE_MAGIC) {
+            throw new IOException("Not a settings file");
+        }
+        int version = in.readInt();
+        if (version == 1) {
+            return readVersion1(in);
+        }
+        if (version < 2 || version > FILE_VERSION) {
+            throw new IOException("Unsupported settings version " + version);
+        }
+
+        boolean playSound = in.readBoolean();
+        boolean flashEmergency = in.readBoolean();
+        String notificationSound = in.readUTF();
+        String emergencySound = in.readUTF();
+        String emoji = in.readUTF();
+
+        int colorCount = in.readInt();
+        Map<String, String> colors = new HashMap<>(colorCount * 2);
+        for (int i = 0; i < colorCount; i++) {
+            colors.put(in.readUTF(), in.readUTF());
+        }
+
+        String active = in.readUTF();
+        int profileCount = in.readInt();
+        Map<String, Profile> profiles = new LinkedHashMap<>();
+        for (int p = 0; p < profileCount; p++) {
+            String name = in.readUTF();
+            double threshold = in.readFloat();
+            long cooldownMs = in.readInt();
+            int count = in.readInt();
+            Map<String, Integer> flags = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                flags.put(in.readUTF(), in.readInt());
+            }
+            profiles.put(name, new Profile(name, threshold, cooldownMs, flags));
+        }
+        if (profiles.isEmpty()) {
+            throw new IOException("Settings file has no profiles");
+        }
+
+        // Version 2 had no network section
+        NetworkSettings network = version >= 3 ? NetworkSettings.readFrom(in, version) : NetworkSettings.DEFAULT;
+
+        // Before version 5 history was capped at a fixed count
+        int historyMaxRows = DEFAULT_HISTORY_MAX_ROWS;
+        int historyMaxAgeDays = DEFAULT_HISTORY_MAX_AGE_DAYS;
+        if (version >= 5) {
+            historyMaxRows = in.readInt();
+            historyMaxAgeDays = in.readInt();
+        }
+
+        // Clips came with version 6, off until chosen
+        int clipBudgetMb = 0;
+        int clipPreSeconds = DEFAULT_CLIP_PRE_SECONDS;
+        int clipPostSeconds = DEFAULT_CLIP_POST_SECONDS;
+        if (version >= 6) {
+            clipBudgetMb = in.readInt();
+            clipPreSeconds = in.readInt();
+            clipPostSeconds = in.readInt();
+        }
+
+        return new Settings(playSound, flashEmergency, notificationSound, emergencySound, emoji, colors,
+                profiles, active, network, historyMaxRows, historyMaxAgeDays, clipBudgetMb, clipPreSeconds,
+                clipPostSeconds);
+    }
+
+    /**
+     * Version 1 had a single implicit profile and a color per label entry.
+     */
+    private static Settings readVersion1(DataInputStream in) throws IOException {
+        boolean playSound = in.readBoolean();
+        boolean flashEmergency = in.readBoolean();
+        double threshold = in.readFloat();
+        String notificationSound = in.readUTF();
+        String emergencySound = in.readUTF();
+        String emoji = in.readUTF();
+
+        int count = in.readInt();
+        Map<String, Integer> flags = new HashMap<>(count * 2);
+        Map<String, String> colors = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String label = in.readUTF();
+            int labelFlags = in.readInt();
+            String color = in.readUTF();
+            if (labelFlags != 0) {
+                flags.put(label, labelFlags);
+            }
+            if (!color.isEmpty()) {
+                colors.put(label, color);
+            }
+        }
+
+        Map<String, Profile> profiles = new LinkedHashMap<>();
+        profiles.put(Profile.DEFAULT_NAME,
+                new Profile(Profile.DEFAULT_NAME, threshold, Profile.DEFAULT_COOLDOWN_MS, flags));
+        return new Settings(playSound, flashEmergency, notificationSound, emergencySound, emoji, colors,
+                profiles, Profile.DEFAULT_NAME, NetworkSettings.DEFAULT, DEFAULT_HISTORY_MAX_ROWS,
+                DEFAULT_HISTORY_MAX_AGE_DAYS, 0, DEFAULT_CLIP_PRE_SECONDS, DEFAULT_CLIP_POST_SECONDS);
+    }
+}
@@ -0,0 +1,510 @@
+package com.example.tapticapp.config;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Versioned binary settings file with atomic writes.
+ *
+ * The whole settings object is loaded once at startup and kept in memory.
+ * Changes are made through an {@link Editor}: all edits in one editor are
+ * applied together on {@link Editor#commit()}, published as a new immutable
+ * {@link Settings}, and written back as a single file write on a background
+ * thread. Bursts of commits are coalesced into one write.
+ *
+ * On first run the old SharedPreferences-based settings are migrated.
+ */
+public class SettingsStore {
+
+    private static final String TAG = "SettingsStore";
+    private static final String FILE_NAME = "taptic_settings.bin";
+
+    // Legacy SharedPreferences (pre-SettingsStore)
+    private static final String LEGACY_PREF_NAME = "taptic_settings";
+    private static final String KEY_PLAY_SOUND = "play_sound";
+    private static final String KEY_FLASH_EMERGENCY = "flash_emergency";
+    private static final String KEY_NOTIFY_THRESHOLD = "notify_threshold";
+    private static final String KEY_NOTIFICATION_SOUND = "notification_sound";
+    private static final String KEY_EMERGENCY_SOUND = "emergency_sound";
+    private static final String KEY_NOTIFICATION_EMOJI = "notification_emoji";
+    private static final String KEY_EMERGENCY_LABELS = "emergency_labels";
+    private static final String KEY_BROADCAST_SEND_LABELS = "broadcast_send_labels";
+    private static final String KEY_BROADCAST_LISTEN_LABELS = "broadcast_listen_labels";
+    private static final String KEY_NOTIFICATION_COLORS = "notification_colors";
+    private static final String KEY_DISABLED_MONITORED = "disabled_monitored";
+    private static final String KEY_DISABLED_NOTIFY = "disabled_notify";
+
+    public interface OnSettingsChangedListener {
+        void onSettingsChanged(Settings settings);
+    }
+
+    private final AtomicFile file;
+    private final Executor ioExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+    private final List<OnSettingsChangedListener> listeners = new CopyOnWriteArrayList<>();
+    private final Object commitLock = new Object();
+    private volatile Settings current;
+
+    SettingsStore(Context context) {
+        Context appContext = context.getApplicationContext();
+        file = new AtomicFile(new File(appContext.getFilesDir(), FILE_NAME));
+        current = load(appContext);
+    }
+
+    /**
+     * Current settings. Never null, never mutated.
+     */
+    public Settings get() {
+        return current;
+    }
+
+    public Editor edit() {
+        return new Editor();
+    }
+
+    public void addListener(OnSettingsChangedListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(OnSettingsChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * A batch of edits applied atomically on commit.
+     */
+    public final class Editor {
+
+        private final List<Consumer<Draft>> edits = new ArrayList<>();
+
+        private Editor() {
+        }
+
+        public Editor setPlaySound(boolean enabled) {
+            edits.add(d -> d.playSound = enabled);
+            return this;
+        }
+
+        public Editor setFlashEmergency(boolean enabled) {
+            edits.add(d -> d.flashEmergency = enabled);
+            return this;
+        }
+
+        /**
+         * Threshold of the active profile.
+         */
+        public Editor setNotifyThreshold(double threshold) {
+            edits.add(d -> d.activeProfile().notifyThreshold = threshold);
+            return this;
+        }
+
+        /**
+         * Per-label cooldown of the active profile.
+         */
+        public Editor setCooldownMs(long cooldownMs) {
+            edits.add(d -> d.activeProfile().cooldownMs = cooldownMs);
+            return this;
+        }
+
+        public Editor setNotificationSound(String sound) {
+            edits.add(d -> d.notificationSound = sound);
+            return this;
+        }
+
+        public Editor setEmergencySound(String sound) {
+            edits.add(d -> d.emergencySound = sound);
+            return this;
+        }
+
+        public Editor setNotificationEmoji(String emoji) {
+            edits.add(d -> d.notificationEmoji = emoji);
+            return this;
+        }
+
+        /**
+         * Set or clear one of the {@code Settings.FLAG_*} bits for a label in
+         * the active profile.
+         */
+        public Editor setLabelFlag(String label, int flag, boolean set) {
+            String normalized = Settings.normalizeLabel(label);
+            if (normalized != null) {
+                edits.add(d -> d.activeProfile().setFlag(normalized, flag, set));
+            }
+            return this;
+        }
+
+        /**
+         * Create a profile as a copy of an existing one. Does nothing if the
+         * name is taken. Does not activate it.
+         */
+        public Editor createProfile(String name, String copyFrom) {
+            if (name != null && !name.trim().isEmpty()) {
+                String trimmed = name.trim();
+                edits.add(d -> d.createProfile(trimmed, copyFrom));
+            }
+            return this;
+        }
+
+        /**
+         * Delete a profile. The last remaining profile cannot be deleted.
+         */
+        public Editor deleteProfile(String name) {
+            edits.add(d -> d.deleteProfile(name));
+            return this;
+        }
+
+        public Editor setActiveProfile(String name) {
+            edits.add(d -> d.setActiveProfile(name));
+            return this;
+        }
+
+        public Editor setMulticastEnabled(boolean enabled) {
+            edits.add(d -> d.network = new NetworkSettings(enabled, d.network.multicastGroup,
+                    d.network.multicastTtl, d.network.interfaceName, d.network.inferenceRole));
+            return this;
+        }
+
+        /**
+         * Ignored unless the group is a valid IPv4 multicast address.
+         */
+        public Editor setMulticastGroup(String group) {
+            if (NetworkSettings.isValidGroup(group)) {
+                edits.add(d -> d.network = new NetworkSettings(d.network.multicastEnabled, group.trim(),
+                        d.network.multicastTtl, d.network.interfaceName, d.network.inferenceRole));
+            }
+            return this;
+        }
+
+        public Editor setMulticastTtl(int ttl) {
+            edits.add(d -> d.network = new NetworkSettings(d.network.multicastEnabled, d.network.multicastGroup,
+                    ttl, d.network.interfaceName, d.network.inferenceRole));
+            return this;
+        }
+
+        /**
+         * Interface to join the group on; empty or null for automatic.
+         */
+        public Editor setNetworkInterface(String interfaceName) {
+            edits.add(d -> d.network = new NetworkSettings(d.network.multicastEnabled, d.network.multicastGroup,
+                    d.network.multicastTtl, interfaceName, d.network.inferenceRole));
+            return this;
+        }
+
+        /**
+         * One of the {@code NetworkSettings.ROLE_} constants.
+         */
+        public Editor setInferenceRole(int role) {
+            edits.add(d -> d.network = new NetworkSettings(d.network.multicastEnabled, d.network.multicastGroup,
+                    d.network.multicastTtl, d.network.interfaceName, role));
+            return this;
+        }
+
+        /**
+         * History retention: at most maxRows rows, none older than
+         * maxAgeDays (0 for no age limit).
+         */
+        public Editor setHistoryRetention(int maxRows, int maxAgeDays) {
+            if (maxRows > 0 && maxAgeDays >= 0) {
+                edits.add(d -> {
+                    d.historyMaxRows = maxRows;
+                    d.historyMaxAgeDays = maxAgeDays;
+                });
+            }
+            return this;
+        }
+
+        /**
+         * Audio clips of detections: up to budgetMb of disk (0 for none),
+         * each from preSeconds before the detection to postSeconds after.
+         */
+        public Editor setClips(int budgetMb, int preSeconds, int postSeconds) {
+            if (budgetMb >= 0 && preSeconds >= 0 && postSeconds >= 0) {
+                edits.add(d -> {
+                    d.clipBudgetMb = budgetMb;
+                    d.clipPreSeconds = preSeconds;
+                    d.clipPostSeconds = postSeconds;
+                });
+            }
+            return this;
+        }
+
+        public Editor setColor(String label, String colorHex) {
+            String normalized = Settings.normalizeLabel(label);
+            if (normalized != null) {
+                edits.add(d -> {
+                    if (colorHex == null || colorHex.isEmpty()) {
+                        d.colors.remove(normalized);
+                    } else {
+                        d.colors.put(normalized, colorHex);
+                    }
+                });
+            }
+            return this;
+        }
+
+        /**
+         * Apply all edits to the latest settings, publish them and schedule
+         * one write. Edits are applied in the order they were made.
+         */
+        public void commit() {
+            if (edits.isEmpty()) {
+                return;
+            }
+            Settings updated;
+            synchronized (commitLock) {
+                Draft draft = new Draft(current);
+                for (Consumer<Draft> edit : edits) {
+                    edit.accept(draft);
+                }
+                updated = draft.build();
+                current = updated;
+            }
+            edits.clear();
+            scheduleWrite();
+            for (OnSettingsChangedListener listener : listeners) {
+                listener.onSettingsChanged(updated);
+            }
+        }
+    }
+
+    /**
+     * Mutable copy of a Settings used while applying an Editor. Profiles that
+     * are not edited keep their existing (immutable) instances, so AppConfig
+     * can tell which ones need recompiling.
+     */
+    private static final class Draft {
+        boolean playSound;
+        boolean flashEmergency;
+        String notificationSound;
+        String emergencySound;
+        String notificationEmoji;
+        final Map<String, String> colors;
+        final Map<String, Profile> profiles;
+        String activeName;
+        NetworkSettings network;
+        int historyMaxRows;
+        int historyMaxAgeDays;
+        int clipBudgetMb;
+        int clipPreSeconds;
+        int clipPostSeconds;
+        private final NetworkSettings baseNetwork;
+        private ProfileDraft activeDraft;
+
+        Draft(Settings base) {
+            playSound = base.playSound;
+            flashEmergency = base.flashEmergency;
+            notificationSound = base.notificationSound;
+            emergencySound = base.emergencySound;
+            notificationEmoji = base.notificationEmoji;
+            colors = new HashMap<>(base.getLabelColors());
+            profiles = new LinkedHashMap<>(base.getProfiles());
+            activeName = base.activeProfileName;
+            network = base.network;
+            baseNetwork = base.network;
+            historyMaxRows = base.historyMaxRows;
+            historyMaxAgeDays = base.historyMaxAgeDays;
+            clipBudgetMb = base.clipBudgetMb;
+            clipPreSeconds = base.clipPreSeconds;
+            clipPostSeconds = base.clipPostSeconds;
+        }
+
+        ProfileDraft activeProfile() {
+            if (activeDraft == null) {
+                activeDraft = new ProfileDraft(profiles.get(activeName));
+            }
+            return activeDraft;
+        }
+
+        void createProfile(String name, String copyFrom) {
+            if (profiles.containsKey(name)) {
+                return;
+            }
+            flushProfile();
+            Profile source = profiles.get(copyFrom != null ? copyFrom : activeName);
+            if (source == null) {
+                source = profiles.get(activeName);
+            }
+            profiles.put(name, new Profile(name, source.notifyThreshold, source.cooldownMs,
+                    new HashMap<>(source.getLabelFlags())));
+        }
+
+        void deleteProfile(String name) {
+            if (profiles.size() <= 1 || !profiles.containsKey(name)) {
+                return;
+            }
+            flushProfile();
+            profiles.remove(name);
+            if (name.equals(activeName)) {
+                activeName = profiles.keySet().iterator().next();
+            }
+        }
+
+        void setActiveProfile(String name) {
+            if (profiles.containsKey(name)) {
+                flushProfile();
+                activeName = name;
+            }
+        }
+
+        private void flushProfile() {
+            if (activeDraft != null) {
+                profiles.put(activeName, activeDraft.build(activeName));
+                activeDraft = null;
+            }
+        }
+
+        Settings build() {
+            flushProfile();
+            return new Settings(playSound, flashEmergency, notificationSound, emergencySound,
+                    notificationEmoji, colors, profiles, activeName,
+                    // Unchanged values keep the old instance so listeners can compare by reference
+                    network.equals(baseNetwork) ? baseNetwork : network, historyMaxRows, historyMaxAgeDays,
+                    clipBudgetMb, clipPreSeconds, clipPostSeconds);
+        }
+    }
+
+    private static final class ProfileDraft {
+        double notifyThreshold;
+        long cooldownMs;
+        final Map<String, Integer> flags;
+
+        ProfileDraft(Profile base) {
+            notifyThreshold = base.notifyThreshold;
+            cooldownMs = base.cooldownMs;
+            flags = new HashMap<>(base.getLabelFlags());
+        }
+
+        void setFlag(String normalizedLabel, int flag, boolean set) {
+            Integer existing = flags.get(normalizedLabel);
+            int value = existing != null ? existing : 0;
+            value = set ? (value | flag) : (value & ~flag);
+            if (value == 0) {
+                flags.remove(normalizedLabel);
+            } else {
+                flags.put(normalizedLabel, value);
+            }
+        }
+
+        Profile build(String name) {
+            return new Profile(name, notifyThreshold, cooldownMs, flags);
+        }
+    }
+
+    // Persistence
+
+    private Settings load(Context context) {
+        if (file.getBaseFile().exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(file.openRead()))) {
+                return Settings.readFrom(in);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read settings, using defaults", e);
+                return Settings.defaults();
+            }
+        }
+
+        SharedPreferences prefs = context.getSharedPreferences(LEGACY_PREF_NAME, Context.MODE_PRIVATE);
+        Settings settings = prefs.getAll().isEmpty() ? Settings.defaults() : migrate(prefs);
+        // Write synchronously so the legacy prefs are only dropped once the
+        // new file is safely on disk
+        if (write(settings)) {
+            prefs.edit().clear().apply();
+        }
+        return settings;
+    }
+
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            ioExecutor.execute(() -> {
+                writeScheduled.set(false);
+                write(current);
+            });
+        }
+    }
+
+    private boolean write(Settings settings) {
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            settings.writeTo(out);
+            out.flush();
+            file.finishWrite(stream);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write settings", e);
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+            return false;
+        }
+    }
+
+    private static Settings migrate(SharedPreferences prefs) {
+        Settings defaults = Settings.defaults();
+        Draft draft = new Draft(defaults);
+
+        draft.playSound = prefs.getBoolean(KEY_PLAY_SOUND, defaults.playSound);
+        draft.flashEmergency = prefs.getBoolean(KEY_FLASH_EMERGENCY, defaults.flashEmergency);
+        ProfileDraft profile = draft.activeProfile();
+        profile.notifyThreshold = prefs.getFloat(KEY_NOTIFY_THRESHOLD,
+                (float) defaults.getActiveProfile().notifyThreshold);
+        draft.notificationSound = prefs.getString(KEY_NOTIFICATION_SOUND, defaults.notificationSound);
+        draft.emergencySound = prefs.getString(KEY_EMERGENCY_SOUND, defaults.emergencySound);
+        draft.notificationEmoji = prefs.getString(KEY_NOTIFICATION_EMOJI, defaults.notificationEmoji);
+
+        if (prefs.contains(KEY_EMERGENCY_LABELS)) {
+            profile.flags.clear();
+            migrateSet(profile, prefs.getStringSet(KEY_EMERGENCY_LABELS, null), Settings.FLAG_EMERGENCY);
+        }
+        migrateSet(profile, prefs.getStringSet(KEY_DISABLED_MONITORED, null), Settings.FLAG_MONITOR_DISABLED);
+        migrateSet(profile, prefs.getStringSet(KEY_DISABLED_NOTIFY, null), Settings.FLAG_NOTIFY_DISABLED);
+        migrateSet(profile, prefs.getStringSet(KEY_BROADCAST_SEND_LABELS, null), Settings.FLAG_BROADCAST_SEND);
+        migrateSet(profile, prefs.getStringSet(KEY_BROADCAST_LISTEN_LABELS, null),
+                Settings.FLAG_BROADCAST_LISTEN);
+
+        // Old format: "label1:color1,label2:color2"
+        String colorsStr = prefs.getString(KEY_NOTIFICATION_COLORS, "");
+        for (String pair : colorsStr.split(",")) {
+            String[] parts = pair.split(":");
+            String normalized = parts.length == 2 ? Settings.normalizeLabel(parts[0]) : null;
+            if (normalized != null) {
+                draft.colors.put(normalized, parts[1]);
+            }
+        }
+
+        Log.d(TAG, "Migrated settings from SharedPreferences");
+        return draft.build();
+    }
+
+    private static void migrateSet(ProfileDraft profile, Set<String> labels, int flag) {
+        if (labels == null)
+            return;
+        for (String label : labels) {
+            String normalized = Settings.normalizeLabel(label);
+            if (normalized != null) {
+                profile.setFlag(normalized, flag, true);
+            }
+        }
+    }
+}
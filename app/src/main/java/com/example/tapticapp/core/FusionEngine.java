@@ -0,0 +1,123 @@
+package com.example.tapticapp.core;
+
+import java.util.Arrays;
+
+/**
+ * Combines this device's score for a class with recent scores from peers,
+ * so several phones around a home act as one more accurate sensor.
+ *
+ * Peer scores are treated as independent, imperfect evidence and added to
+ * the local score with a noisy-OR: 1 - (1 - s0)(1 - r*s1)(1 - r*s2)...,
+ * where r is the reliability of a single phone. Phones that agree confirm
+ * a sound none of them was sure of alone. A peer that has no score for the
+ * class (it is in another room, or the class was not in its top few) is no
+ * evidence either way, so the local score is the floor. Only a peer that
+ * did score the class, at less than {@link #DISSENT_RATIO} of ours,
+ * discounts the local score to r*s0 and adds nothing itself.
+ *
+ * A peer score counts if it was captured within {@link #WINDOW_MS} of the
+ * local frame. Capture times are on our clock; the listener corrects for
+ * each peer's clock offset. Within the window a peer's strongest score is
+ * kept. Up to {@link #MAX_SOURCES} peers are tracked, the one silent the
+ * longest is replaced first. Thread-safe.
+ */
+public class FusionEngine {
+
+    /** Scores below this are not worth sharing. */
+    public static final double EVIDENCE_FLOOR = 0.1;
+
+    static final double RELIABILITY = 0.8;
+    // A peer scoring the class below this fraction of the local score dissents
+    static final double DISSENT_RATIO = 0.5;
+    static final long WINDOW_MS = 1500;
+    // A peer that has reported anything this recently is listening
+    static final long SOURCE_ACTIVE_MS = 10_000;
+    static final int MAX_SOURCES = 16;
+
+    private static final class Source {
+        long peerId;
+        long lastReportMs;
+        float[] scores = new float[0];
+        long[] capturedAtMs = new long[0];
+    }
+
+    private final Source[] sources = new Source[MAX_SOURCES];
+    private int sourceCount;
+
+    /**
+     * Record a peer's score for a class captured at {@code capturedAtMs}.
+     */
+    public synchronized void addPeerScore(long peerId, int classIndex, double score, long capturedAtMs) {
+        if (classIndex < 0)
+            return;
+        Source source = sourceFor(peerId);
+        if (classIndex >= source.scores.length) {
+            int size = Math.max(classIndex + 1, source.scores.length * 2);
+            source.scores = Arrays.copyOf(source.scores, size);
+            source.capturedAtMs = Arrays.copyOf(source.capturedAtMs, size);
+        }
+        boolean heldPeak = source.scores[classIndex] >= score
+                && Math.abs(capturedAtMs - source.capturedAtMs[classIndex]) < WINDOW_MS;
+        if (!heldPeak) {
+            source.scores[classIndex] = (float) score;
+            source.capturedAtMs[classIndex] = capturedAtMs;
+        }
+        source.lastReportMs = Math.max(source.lastReportMs, capturedAtMs);
+    }
+
+    /**
+     * Fused probability for a class given the local score of the frame
+     * captured at {@code nowMs}.
+     */
+    public synchronized double fuse(int classIndex, double localScore, long nowMs) {
+        boolean dissent = false;
+        double peersMiss = 1;
+        for (int i = 0; i < sourceCount; i++) {
+            Source source = sources[i];
+            if (nowMs - source.lastReportMs > SOURCE_ACTIVE_MS || classIndex >= source.scores.length
+                    || Math.abs(nowMs - source.capturedAtMs[classIndex]) > WINDOW_MS)
+                continue;
+            double score = source.scores[classIndex];
+            if (score < DISSENT_RATIO * localScore) {
+                dissent = true;
+            } else {
+                peersMiss *= 1 - RELIABILITY * score;
+            }
+        }
+        double local = dissent ? RELIABILITY * localScore : localScore;
+        return 1 - (1 - local) * peersMiss;
+    }
+
+    /**
+     * Number of peers whose scores are currently being fused.
+     */
+    public synchronized int getActivePeerCount(long nowMs) {
+        int active = 0;
+        for (int i = 0; i < sourceCount; i++) {
+            if (nowMs - sources[i].lastReportMs <= SOURCE_ACTIVE_MS)
+                active++;
+        }
+        return active;
+    }
+
+    private Source sourceFor(long peerId) {
+        for (int i = 0; i < sourceCount; i++) {
+            if (sources[i].peerId == peerId)
+                return sources[i];
+        }
+        int slot;
+        if (sourceCount < MAX_SOURCES) {
+            slot = sourceCount++;
+        } else {
+            slot = 0;
+            for (int i = 1; i < MAX_SOURCES; i++) {
+                if (sources[i].lastReportMs < sources[slot].lastReportMs)
+                    slot = i;
+            }
+        }
+        Source source = new Source();
+        source.peerId = peerId;
+        sources[slot] = source;
+        return source;
+    }
+}
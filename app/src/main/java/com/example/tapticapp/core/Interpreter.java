@@ -3,8 +3,10 @@ package com.example.tapticapp.core;
 import android.content.Context;
 import android.util.Log;
 import com.example.tapticapp.config.AppConfig;
+import com.example.tapticapp.config.ConfigSnapshot;
 import com.example.tapticapp.network.BroadcastSender;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -12,17 +14,26 @@ import java.util.Set;
 
 /**
  * Interpreter connects audio classification, UI, and network broadcasting.
+ *
+ * Local detections are decided on the score fused with nearby peers' scores
+ * (see {@link FusionEngine}); emergencies are never suppressed by fusion.
+ * The top local scores are shared with peers for the same purpose.
  */
 public class Interpreter {
 
     private static final String TAG = "Interpreter";
-    private static final long COOLDOWN_MS = 5000;
     public static final double ALPHA = 0.7; // Smoothing factor
 
     private final AppConfig appConfig;
     private final BroadcastSender broadcastSender;
     private final NotificationCallback notificationCallback;
     private final Map<String, Long> lastNotifyTime = new HashMap<>();
+    private long[] lastNotifyByClass = new long[0];
+    private final FusionEngine fusion = new FusionEngine();
+
+    // Evidence shared with peers, only touched by the audio thread
+    private final int[] sharedClassIds = new int[BroadcastSender.MAX_SCORES];
+    private final float[] sharedScores = new float[BroadcastSender.MAX_SCORES];
 
     public interface NotificationCallback {
         void onNotification(String label, double score, boolean isEmergency, boolean isLocal, String deviceName);
@@ -51,61 +62,137 @@ public class Interpreter {
         if (scores == null || scores.length == 0)
             return new ArrayList<>();
 
+        ConfigSnapshot config = appConfig.getSnapshot();
         List<Integer> top3Indices = findTop3Indices(scores);
         List<DetectionResult> results = new ArrayList<>();
+        int[] classIndices = new int[top3Indices.size()];
 
-        for (int index : top3Indices) {
+        for (int i = 0; i < top3Indices.size(); i++) {
+            int index = top3Indices.get(i);
             String label = getLabel(labels, index);
             double score = scores[index];
-            boolean isEmergency = appConfig.isEmergencyLabel(label);
+            boolean isEmergency = isKnownClass(config, index)
+                    ? config.isEmergency(index)
+                    : appConfig.isEmergencyLabel(label);
             results.add(new DetectionResult(label, score, isEmergency));
+            classIndices[i] = index;
         }
 
+        long now = System.currentTimeMillis();
+        shareEvidence(config, scores, classIndices, now);
+
         // Check notifications
-        for (DetectionResult result : results) {
-            maybeNotify(result.label, result.score, result.isEmergency, true, null);
+        for (int i = 0; i < results.size(); i++) {
+            DetectionResult result = results.get(i);
+            double score = result.score;
+            if (isKnownClass(config, classIndices[i])) {
+                double fused = fusion.fuse(classIndices[i], score, now);
+                score = result.isEmergency ? Math.max(score, fused) : fused;
+            }
+            maybeNotify(config, classIndices[i], result.label, score, result.isEmergency, true, null);
         }
 
         return results;
     }
 
-    public void handleBroadcastEvent(String eventLabel, String deviceName) {
-        boolean isEmergency = appConfig.isEmergencyLabel(eventLabel);
-        maybeNotify(eventLabel, 1.0, isEmergency, false, deviceName);
+    /**
+     * Handle an event from a peer. Binary frames carry the class index and
+     * score; legacy JSON events pass -1 and 1.0.
+     */
+    public void handleBroadcastEvent(int classIndex, String eventLabel, double score, String deviceName) {
+        ConfigSnapshot config = appConfig.getSnapshot();
+        if (classIndex < 0) {
+            classIndex = config.classIndexOf(eventLabel);
+        }
+        boolean isEmergency = classIndex >= 0
+                ? config.isEmergency(classIndex)
+                : appConfig.isEmergencyLabel(eventLabel);
+        maybeNotify(config, classIndex, eventLabel, score, isEmergency, false, deviceName);
+    }
+
+    /**
+     * A peer's raw score for a class, for fusion with our own.
+     */
+    public void handlePeerScore(long peerId, int classIndex, double score, long capturedAtMs) {
+        fusion.addPeerScore(peerId, classIndex, score, capturedAtMs);
     }
 
-    private void maybeNotify(String label, double score, boolean isEmergency, boolean isLocal, String deviceName) {
+    private void shareEvidence(ConfigSnapshot config, float[] scores, int[] classIndices, long capturedAtMs) {
+        int count = 0;
+        for (int index : classIndices) {
+            if (isKnownClass(config, index) && scores[index] >= FusionEngine.EVIDENCE_FLOOR
+                    && count < sharedClassIds.length) {
+                sharedClassIds[count] = index;
+                sharedScores[count] = scores[index];
+                count++;
+            }
+        }
+        broadcastSender.sendScores(count, sharedClassIds, sharedScores, capturedAtMs);
+    }
+
+    private void maybeNotify(ConfigSnapshot config, int classIndex, String label, double score,
+            boolean isEmergency, boolean isLocal, String deviceName) {
         // Check if confidence meets threshold
-        if (score < appConfig.getNotifyThreshold()) {
+        if (score < config.getNotifyThreshold()) {
             return;
         }
 
+        // Labels outside the snapshot (e.g. from a peer running another
+        // model) fall back to the slower string lookups
+        boolean known = isKnownClass(config, classIndex);
+
         // Check if monitored (if local)
-        if (isLocal && !appConfig.isMonitoredEnabled(label)) {
+        if (isLocal && !(known ? config.isMonitored(classIndex) : appConfig.isMonitoredEnabled(label))) {
             return;
         }
 
         // Check cooldown
         long now = System.currentTimeMillis();
-        Long lastTime = lastNotifyTime.get(label);
-        if (lastTime != null && (now - lastTime) < COOLDOWN_MS) {
+        if (!checkCooldown(known ? classIndex : -1, label, now, config.getCooldownMs())) {
             return;
         }
-        lastNotifyTime.put(label, now);
 
         // Broadcast if local and enabled
-        if (isLocal && appConfig.isBroadcastSendEnabled(label)) {
-            broadcastSender.sendEvent(label);
+        if (isLocal && (known ? config.isBroadcastSend(classIndex) : appConfig.isBroadcastSendEnabled(label))) {
+            broadcastSender.sendEvent(known ? classIndex : -1, label, score, isEmergency);
         }
 
         // Trigger notification if enabled
-        if (appConfig.isNotifyEnabled(label)) {
+        if (known ? config.isNotify(classIndex) : appConfig.isNotifyEnabled(label)) {
             if (notificationCallback != null) {
                 notificationCallback.onNotification(label, score, isEmergency, isLocal, deviceName);
             }
         }
     }
 
+    /**
+     * Returns true and records the time if the label is out of cooldown.
+     */
+    private boolean checkCooldown(int classIndex, String label, long now, long cooldownMs) {
+        if (classIndex >= 0) {
+            if (classIndex >= lastNotifyByClass.length) {
+                lastNotifyByClass = Arrays.copyOf(lastNotifyByClass, classIndex + 1);
+            }
+            long lastTime = lastNotifyByClass[classIndex];
+            if (lastTime != 0 && (now - lastTime) < cooldownMs) {
+                return false;
+            }
+            lastNotifyByClass[classIndex] = now;
+            return true;
+        }
+
+        Long lastTime = lastNotifyTime.get(label);
+        if (lastTime != null && (now - lastTime) < cooldownMs) {
+            return false;
+        }
+        lastNotifyTime.put(label, now);
+        return true;
+    }
+
+    private static boolean isKnownClass(ConfigSnapshot config, int classIndex) {
+        return classIndex >= 0 && classIndex < config.getClassCount();
+    }
+
     private List<Integer> findTop3Indices(float[] scores) {
         List<Integer> indices = new ArrayList<>();
         if (scores.length < 3) {
@@ -0,0 +1,33 @@
+package com.example.tapticapp.data;
+
+import androidx.room.Entity;
+
+/**
+ * {@link HourlyRollup}s of one local day, merged once the hours are old
+ * enough that charts no longer show them hour by hour. Days start at local
+ * midnight, to the hour, as the time zone was at the time of merging.
+ */
+@Entity(tableName = "rollup_days", primaryKeys = { "day", "labelId", "sourceId" })
+public class DailyRollup {
+
+    /** Local days since the epoch. */
+    public long day;
+    public long labelId;
+    public long sourceId;
+
+    public int events;
+    public int emergencies;
+    public double confidenceSum;
+    public double maxConfidence;
+
+    public DailyRollup(long day, long labelId, long sourceId, int events, int emergencies, double confidenceSum,
+            double maxConfidence) {
+        this.day = day;
+        this.labelId = labelId;
+        this.sourceId = sourceId;
+        this.events = events;
+        this.emergencies = emergencies;
+        this.confidenceSum = confidenceSum;
+        this.maxConfidence = maxConfidence;
+    }
+}
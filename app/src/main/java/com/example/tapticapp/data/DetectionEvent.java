@@ -1,15 +1,17 @@
 package com.example.tapticapp.data;
 
-import androidx.room.Entity;
-import androidx.room.PrimaryKey;
-
 /**
- * Database entity representing a single sound detection event.
+ * A single sound detection event, as read from and written to history.
+ * Stored as a {@link DetectionRow}; {@link HistoryDao} queries join the
+ * label and device name back in.
+ *
+ * Rows that can be synced between peers carry their origin: the id of the
+ * device that made the detection and that device's history sequence number
+ * for it. Live copies of remote events, and rows from before sync existed,
+ * have originDevice 0.
  */
-@Entity(tableName = "detections")
 public class DetectionEvent {
 
-    @PrimaryKey(autoGenerate = true)
     public long id;
 
     public long timestamp;
@@ -19,6 +21,13 @@ public class DetectionEvent {
     public boolean isRemote;
     public String deviceName; // null for local detections
 
+    public long originDevice;
+    public long originSeq;
+
+    // Audio clip around a local detection, see ClipRecorder; the file may
+    // have been evicted since
+    public String clipName;
+
     public DetectionEvent(long timestamp, String label, double confidence,
             boolean isEmergency, boolean isRemote, String deviceName) {
         this.timestamp = timestamp;
@@ -0,0 +1,55 @@
+package com.example.tapticapp.data;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * How a {@link DetectionEvent} is stored: the label and device name are
+ * ids into the {@link LabelEntry} and {@link SourceEntry} lookup tables,
+ * so a row is a few dozen bytes. {@code sourceId} 0 means a local
+ * detection.
+ *
+ * Indexed by timestamp for the newest-first history and for trimming, by
+ * label, by source and by emergency flag (each with timestamp) for
+ * filtered queries ({@link HistoryFilter}), and by origin for sync.
+ */
+@Entity(tableName = "detections", indices = {
+        @Index(value = { "timestamp" }),
+        @Index(value = { "labelId", "timestamp" }),
+        @Index(value = { "sourceId", "timestamp" }),
+        @Index(value = { "isEmergency", "timestamp" }),
+        @Index(value = { "originDevice", "originSeq" }) })
+public class DetectionRow {
+
+    @PrimaryKey(autoGenerate = true)
+    public long id;
+
+    public long timestamp;
+    public long labelId;
+    public double confidence;
+    public boolean isEmergency;
+    public boolean isRemote;
+
+    @ColumnInfo(defaultValue = "0")
+    public long sourceId;
+    @ColumnInfo(defaultValue = "0")
+    public long originDevice;
+    @ColumnInfo(defaultValue = "0")
+    public long originSeq;
+    // File name of the audio clip saved with the detection, if any
+    public String clipName;
+
+    public DetectionRow(long timestamp, long labelId, double confidence, boolean isEmergency, boolean isRemote,
+            long sourceId, long originDevice, long originSeq) {
+        this.timestamp = timestamp;
+        this.labelId = labelId;
+        this.confidence = confidence;
+        this.isEmergency = isEmergency;
+        this.isRemote = isRemote;
+        this.sourceId = sourceId;
+        this.originDevice = originDevice;
+        this.originSeq = originSeq;
+    }
+}
@@ -0,0 +1,377 @@
+package com.example.tapticapp.data;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * File formats for exporting and importing history: CSV with a header
+ * row, or NDJSON with one object per line. Both carry the same columns,
+ * {@link #COLUMNS}; "time" is the timestamp as UTC ISO 8601 for people
+ * reading the file and is ignored on import.
+ *
+ * Rows are written and read one at a time, so a file of any size takes
+ * the memory of one row.
+ */
+public final class HistoryCodec {
+
+    public static final int FORMAT_CSV = 0;
+    public static final int FORMAT_NDJSON = 1;
+    /** For reading only: NDJSON if the file starts with '{', else CSV. */
+    public static final int FORMAT_AUTO = -1;
+
+    static final String[] COLUMNS = { "timestamp", "time", "label", "confidence", "emergency", "remote", "device",
+            "origin_device", "origin_seq" };
+
+    /** Longest record or line read; an unterminated quote stops here. */
+    static final int MAX_RECORD_CHARS = 8192;
+
+    private static final char BOM = '\uFEFF';
+
+    private HistoryCodec() {
+    }
+
+    public static String fileExtension(int format) {
+        return format == FORMAT_NDJSON ? "ndjson" : "csv";
+    }
+
+    public static String mimeType(int format) {
+        return format == FORMAT_NDJSON ? "application/x-ndjson" : "text/csv";
+    }
+
+    /**
+     * Writes rows to a {@link Writer}, which should be buffered.
+     */
+    static final class RowWriter {
+        private final Writer out;
+        private final int format;
+        private final SimpleDateFormat isoTime = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        private final Date date = new Date();
+        private final StringBuilder line = new StringBuilder(160);
+
+        RowWriter(Writer out, int format) {
+            this.out = out;
+            this.format = format;
+            isoTime.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+
+        /**
+         * The CSV header; nothing for NDJSON.
+         */
+        void writeHeader() throws IOException {
+            if (format != FORMAT_CSV)
+                return;
+            out.write(String.join(",", COLUMNS));
+            out.write("\r\n");
+        }
+
+        void write(long timestamp, String label, double confidence, boolean emergency, boolean remote,
+                String device, long originDevice, long originSeq) throws IOException {
+            date.setTime(timestamp);
+            String time = isoTime.format(date);
+            line.setLength(0);
+            if (format == FORMAT_NDJSON) {
+                line.append("{\"timestamp\":").append(timestamp)
+                        .append(",\"time\":\"").append(time)
+                        .append("\",\"label\":").append(JSONObject.quote(label != null ? label : ""))
+                        .append(",\"confidence\":").append(confidence)
+                        .append(",\"emergency\":").append(emergency)
+                        .append(",\"remote\":").append(remote)
+                        .append(",\"device\":").append(device != null ? JSONObject.quote(device) : "null")
+                        .append(",\"origin_device\":").append(originDevice)
+                        .append(",\"origin_seq\":").append(originSeq)
+                        .append("}\n");
+            } else {
+                line.append(timestamp).append(',').append(time).append(',');
+                appendCsv(label);
+                line.append(',').append(confidence).append(',').append(emergency).append(',').append(remote)
+                        .append(',');
+                appendCsv(device);
+                line.append(',').append(originDevice).append(',').append(originSeq).append("\r\n");
+            }
+            out.append(line);
+        }
+
+        /**
+         * A field, quoted if it holds a separator, quote or line break.
+         * Null is written as an empty field.
+         */
+        private void appendCsv(String value) {
+            if (value == null)
+                return;
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+            }
+            if (!quote) {
+                line.append(value);
+                return;
+            }
+            line.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"')
+                    line.append('"');
+                line.append(c);
+            }
+            line.append('"');
+        }
+    }
+
+    /**
+     * Reads rows back. Rows that cannot be parsed are skipped and counted;
+     * a CSV file whose header lacks the timestamp or label is rejected.
+     */
+    static final class RowReader {
+        private final BufferedReader in;
+        private final int format;
+        private final StringBuilder field = new StringBuilder(64);
+        private final List<String> fields = new ArrayList<>(COLUMNS.length);
+        private boolean recordTooLong;
+        private long skipped;
+
+        // CSV column positions, -1 if absent
+        private int timestampColumn = -1;
+        private int labelColumn = -1;
+        private int confidenceColumn = -1;
+        private int emergencyColumn = -1;
+        private int remoteColumn = -1;
+        private int deviceColumn = -1;
+        private int originDeviceColumn = -1;
+        private int originSeqColumn = -1;
+
+        RowReader(BufferedReader in, int format) throws IOException {
+            this.in = in;
+            this.format = format == FORMAT_AUTO ? detectFormat(in) : format;
+            if (this.format == FORMAT_CSV)
+                readHeader();
+        }
+
+        int format() {
+            return format;
+        }
+
+        /**
+         * Rows that could not be parsed so far.
+         */
+        long skipped() {
+            return skipped;
+        }
+
+        /**
+         * The next row, or null at the end of the file.
+         */
+        DetectionEvent next() throws IOException {
+            while (true) {
+                if (format == FORMAT_NDJSON) {
+                    String line = readLine();
+                    if (line == null)
+                        return null;
+                    if (recordTooLong) {
+                        skipped++;
+                        continue;
+                    }
+                    if (!line.isEmpty() && line.charAt(0) == BOM)
+                        line = line.substring(1);
+                    if (line.trim().isEmpty())
+                        continue;
+                    try {
+                        return parseJson(new JSONObject(line));
+                    } catch (JSONException e) {
+                        skipped++;
+                    }
+                } else {
+                    if (!readRecord())
+                        return null;
+                    if (recordTooLong) {
+                        skipped++;
+                        continue;
+                    }
+                    if (fields.size() == 1 && fields.get(0).isEmpty())
+                        continue;
+                    try {
+                        return parseCsv();
+                    } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                        skipped++;
+                    }
+                }
+            }
+        }
+
+        private static int detectFormat(BufferedReader in) throws IOException {
+            in.mark(256);
+            int c;
+            do {
+                c = in.read();
+            } while (c == BOM || Character.isWhitespace(c));
+            in.reset();
+            return c == '{' ? FORMAT_NDJSON : FORMAT_CSV;
+        }
+
+        private void readHeader() throws IOException {
+            if (!readRecord())
+                throw new IOException("Empty file");
+            for (int i = 0; i < fields.size(); i++) {
+                String name = fields.get(i).trim().toLowerCase(Locale.ROOT);
+                if (i == 0 && !name.isEmpty() && name.charAt(0) == BOM)
+                    name = name.substring(1);
+                switch (name) {
+                    case "timestamp":
+                        timestampColumn = i;
+                        break;
+                    case "label":
+                        labelColumn = i;
+                        break;
+                    case "confidence":
+                        confidenceColumn = i;
+                        break;
+                    case "emergency":
+                        emergencyColumn = i;
+                        break;
+                    case "remote":
+                        remoteColumn = i;
+                        break;
+                    case "device":
+                        deviceColumn = i;
+                        break;
+                    case "origin_device":
+                        originDeviceColumn = i;
+                        break;
+                    case "origin_seq":
+                        originSeqColumn = i;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (timestampColumn < 0 || labelColumn < 0)
+                throw new IOException("Not a history export: no timestamp and label columns");
+        }
+
+        private DetectionEvent parseCsv() {
+            String device = deviceColumn >= 0 ? fields.get(deviceColumn) : "";
+            DetectionEvent event = new DetectionEvent(Long.parseLong(fields.get(timestampColumn).trim()),
+                    fields.get(labelColumn),
+                    confidenceColumn >= 0 ? Double.parseDouble(fields.get(confidenceColumn).trim()) : 0,
+                    emergencyColumn >= 0 && parseBoolean(fields.get(emergencyColumn)),
+                    remoteColumn >= 0 && parseBoolean(fields.get(remoteColumn)),
+                    device.isEmpty() ? null : device);
+            if (originDeviceColumn >= 0 && originSeqColumn >= 0) {
+                event.originDevice = parseLong(fields.get(originDeviceColumn));
+                event.originSeq = parseLong(fields.get(originSeqColumn));
+            }
+            return event;
+        }
+
+        private static DetectionEvent parseJson(JSONObject row) throws JSONException {
+            String device = row.isNull("device") ? null : row.getString("device");
+            DetectionEvent event = new DetectionEvent(row.getLong("timestamp"), row.getString("label"),
+                    row.optDouble("confidence", 0), row.optBoolean("emergency"), row.optBoolean("remote"),
+                    device != null && !device.isEmpty() ? device : null);
+            event.originDevice = row.optLong("origin_device");
+            event.originSeq = row.optLong("origin_seq");
+            return event;
+        }
+
+        private static boolean parseBoolean(String value) {
+            String trimmed = value.trim();
+            return trimmed.equalsIgnoreCase("true") || trimmed.equals("1");
+        }
+
+        private static long parseLong(String value) {
+            String trimmed = value.trim();
+            return trimmed.isEmpty() ? 0 : Long.parseLong(trimmed);
+        }
+
+        /**
+         * Read one NDJSON line, without its line break. Returns null at the
+         * end of the file. Like {@link #readRecord}, a line longer than
+         * {@link #MAX_RECORD_CHARS} is skipped to its end and returned
+         * empty with {@link #recordTooLong} set.
+         */
+        private String readLine() throws IOException {
+            field.setLength(0);
+            recordTooLong = false;
+            int c = in.read();
+            if (c == -1)
+                return null;
+            while (c != -1 && c != '\n') {
+                if (field.length() == MAX_RECORD_CHARS) {
+                    while (c != -1 && c != '\n') {
+                        c = in.read();
+                    }
+                    field.setLength(0);
+                    recordTooLong = true;
+                    break;
+                }
+                if (c != '\r')
+                    field.append((char) c);
+                c = in.read();
+            }
+            return field.toString();
+        }
+
+        /**
+         * Read one CSV record into {@link #fields}, following RFC 4180:
+         * quoted fields may hold separators, doubled quotes and line
+         * breaks. Returns false at the end of the file.
+         *
+         * A record longer than {@link #MAX_RECORD_CHARS}, usually one with
+         * an unterminated quote, is read up to the next line break after
+         * the limit and left without fields, with {@link #recordTooLong}
+         * set.
+         */
+        private boolean readRecord() throws IOException {
+            fields.clear();
+            field.setLength(0);
+            recordTooLong = false;
+            int c = in.read();
+            if (c == -1)
+                return false;
+            boolean quoted = false;
+            int length = 0;
+            while (c != -1) {
+                if (++length > MAX_RECORD_CHARS) {
+                    while (c != -1 && c != '\n') {
+                        c = in.read();
+                    }
+                    fields.clear();
+                    recordTooLong = true;
+                    return true;
+                }
+                if (quoted) {
+                    if (c == '"') {
+                        c = in.read();
+                        if (c != '"') {
+                            quoted = false;
+                            continue;
+                        }
+                    }
+                    field.append((char) c);
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\n') {
+                    break;
+                } else if (c != '\r') {
+                    field.append((char) c);
+                }
+                c = in.read();
+            }
+            fields.add(field.toString());
+            return true;
+        }
+    }
+}
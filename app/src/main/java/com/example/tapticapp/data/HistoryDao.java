@@ -1,26 +1,372 @@
 package com.example.tapticapp.data;
 
+import android.database.Cursor;
+
 import androidx.room.Dao;
 import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
+import androidx.room.RawQuery;
+import androidx.room.Transaction;
+import androidx.sqlite.db.SupportSQLiteQuery;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Data Access Object for detection events.
+ * Data Access Object for detection events. Events are stored as
+ * {@link DetectionRow}s; queries return them as {@link DetectionEvent}s
+ * with the label and device name joined back in.
+ *
+ * History is read in pages, newest first, ordered by (timestamp, id). Each
+ * page continues from the last row of the previous one (a keyset cursor)
+ * rather than an OFFSET, so reading page n costs the same as page 1. The
+ * timestamp index carries the rowid, which is the id, so it serves that
+ * order without a sort.
+ *
+ * Counts per label, source and hour are kept in {@link HourlyRollup} as
+ * rows are inserted, in the same transaction, and merged into
+ * {@link DailyRollup}s as they age. Statistics are read from those, at a
+ * cost of the buckets read rather than the rows, and outlive the rows
+ * themselves.
  */
 @Dao
 public interface HistoryDao {
 
+    // Window for matching a synced row to the live copy received earlier
+    long LIVE_COPY_WINDOW_MS = 10_000;
+
+    String SELECT_EVENTS = "SELECT d.id, d.timestamp, l.name AS label, d.confidence, d.isEmergency, d.isRemote, "
+            + "s.name AS deviceName, d.originDevice, d.originSeq, d.clipName FROM detections d "
+            + "JOIN labels l ON l.id = d.labelId LEFT JOIN sources s ON s.id = d.sourceId ";
+
+    String ROLLUP_STATS = "SUM(r.events) AS events, SUM(r.emergencies) AS emergencies, "
+            + "SUM(r.confidenceSum) / SUM(r.events) AS meanConfidence, MAX(r.maxConfidence) AS maxConfidence ";
+
+    String ROLLUP_NAMES = "JOIN labels l ON l.id = r.labelId LEFT JOIN sources s ON s.id = r.sourceId ";
+
     @Insert
-    void insert(DetectionEvent event);
+    long insertRow(DetectionRow row);
+
+    @Query(SELECT_EVENTS + "ORDER BY d.timestamp DESC, d.id DESC LIMIT :limit")
+    List<DetectionEvent> getNewest(int limit);
 
-    @Query("SELECT * FROM detections ORDER BY timestamp DESC LIMIT 1000")
-    List<DetectionEvent> getAllEvents();
+    /**
+     * The page after the row ({@code timestamp}, {@code id}). Written
+     * without a row-value comparison, which the SQLite of older devices
+     * lacks; the first term bounds the index range.
+     */
+    @Query(SELECT_EVENTS + "WHERE d.timestamp <= :timestamp AND (d.timestamp < :timestamp OR d.id < :id) "
+            + "ORDER BY d.timestamp DESC, d.id DESC LIMIT :limit")
+    List<DetectionEvent> getPageBefore(long timestamp, long id, int limit);
 
     @Query("DELETE FROM detections")
     void deleteAll();
 
-    @Query("DELETE FROM detections WHERE id NOT IN (SELECT id FROM detections ORDER BY timestamp DESC LIMIT 1000)")
-    void deleteOldEvents();
+    /**
+     * All rows, oldest first, for export. The cursor holds one window of
+     * rows at a time, so it can be walked over any number of rows.
+     */
+    @Query(SELECT_EVENTS + "ORDER BY d.timestamp, d.id")
+    Cursor exportAll();
+
+    @Query("SELECT * FROM detections WHERE id IN (:ids)")
+    List<DetectionRow> getRows(List<Long> ids);
+
+    // Search
+
+    /**
+     * Ids of the labels matching an FTS expression.
+     */
+    @Query("SELECT docid FROM labels_fts WHERE labels_fts MATCH :match")
+    List<Long> matchLabels(String match);
+
+    @Query("SELECT name FROM sources ORDER BY name")
+    List<String> getDeviceNames();
+
+    /**
+     * A page of rows for a {@link HistoryFilter#toQuery} query.
+     */
+    @RawQuery
+    List<DetectionEvent> search(SupportSQLiteQuery query);
+
+    // Lookup tables
+
+    @Query("SELECT id FROM labels WHERE name = :name")
+    Long findLabel(String name);
+
+    @Insert
+    long insertLabel(LabelEntry label);
+
+    @Query("SELECT id FROM sources WHERE name = :name")
+    Long findSource(String name);
+
+    @Insert
+    long insertSource(SourceEntry source);
+
+    /**
+     * Store one event, adding its label and device name to the lookup
+     * tables if they are new.
+     */
+    @Transaction
+    default void insert(DetectionEvent event) {
+        String label = event.label != null ? event.label : "";
+        Long labelId = findLabel(label);
+        if (labelId == null)
+            labelId = insertLabel(new LabelEntry(label));
+        long sourceId = 0;
+        if (event.deviceName != null) {
+            Long id = findSource(event.deviceName);
+            sourceId = id != null ? id : insertSource(new SourceEntry(event.deviceName));
+        }
+        DetectionRow row = new DetectionRow(event.timestamp, labelId, event.confidence, event.isEmergency,
+                event.isRemote, sourceId, event.originDevice, event.originSeq);
+        row.clipName = event.clipName;
+        event.id = insertRow(row);
+
+        long hour = HourlyRollup.hourOf(event.timestamp);
+        int emergency = event.isEmergency ? 1 : 0;
+        if (addToHour(hour, labelId, sourceId, event.confidence, emergency) == 0)
+            insertHour(new HourlyRollup(hour, labelId, sourceId, 1, emergency, event.confidence, event.confidence));
+    }
+
+    // Rollups
+
+    @Query("UPDATE rollup_hours SET events = events + 1, emergencies = emergencies + :emergency, "
+            + "confidenceSum = confidenceSum + :confidence, maxConfidence = MAX(maxConfidence, :confidence) "
+            + "WHERE hour = :hour AND labelId = :labelId AND sourceId = :sourceId")
+    int addToHour(long hour, long labelId, long sourceId, double confidence, int emergency);
+
+    @Insert
+    void insertHour(HourlyRollup rollup);
+
+    @Query("UPDATE rollup_hours SET events = events - 1, emergencies = emergencies - :emergency, "
+            + "confidenceSum = confidenceSum - :confidence "
+            + "WHERE hour = :hour AND labelId = :labelId AND sourceId = :sourceId AND events > 0")
+    int removeFromHour(long hour, long labelId, long sourceId, double confidence, int emergency);
+
+    @Query("UPDATE rollup_days SET events = events - 1, emergencies = emergencies - :emergency, "
+            + "confidenceSum = confidenceSum - :confidence "
+            + "WHERE day = :day AND labelId = :labelId AND sourceId = :sourceId AND events > 0")
+    int removeFromDay(long day, long labelId, long sourceId, double confidence, int emergency);
+
+    /**
+     * Take deleted rows back out of the rollups. The maximum confidence
+     * stays as it was, an upper bound. If the hour was merged already it
+     * is the day's bucket that gives, under the zone offset used now.
+     */
+    default void removeFromRollups(List<DetectionRow> rows, int offsetHours) {
+        for (DetectionRow row : rows) {
+            long hour = HourlyRollup.hourOf(row.timestamp);
+            int emergency = row.isEmergency ? 1 : 0;
+            if (removeFromHour(hour, row.labelId, row.sourceId, row.confidence, emergency) == 0)
+                removeFromDay(Math.floorDiv(hour + offsetHours, 24), row.labelId, row.sourceId, row.confidence,
+                        emergency);
+        }
+    }
+
+    /**
+     * Add the hours before {@code beforeHour} into the days they fall on,
+     * {@code offsetHours} from UTC, summing with what those days hold.
+     */
+    @Query("INSERT OR REPLACE INTO rollup_days "
+            + "(day, labelId, sourceId, events, emergencies, confidenceSum, maxConfidence) "
+            + "SELECT (h.hour + :offsetHours) / 24, h.labelId, h.sourceId, "
+            + "SUM(h.events) + IFNULL(d.events, 0), SUM(h.emergencies) + IFNULL(d.emergencies, 0), "
+            + "SUM(h.confidenceSum) + IFNULL(d.confidenceSum, 0), MAX(MAX(h.maxConfidence), IFNULL(d.maxConfidence, 0)) "
+            + "FROM rollup_hours h LEFT JOIN rollup_days d ON d.day = (h.hour + :offsetHours) / 24 "
+            + "AND d.labelId = h.labelId AND d.sourceId = h.sourceId "
+            + "WHERE h.hour < :beforeHour GROUP BY (h.hour + :offsetHours) / 24, h.labelId, h.sourceId")
+    void mergeHoursIntoDays(long beforeHour, int offsetHours);
+
+    @Query("DELETE FROM rollup_hours WHERE hour < :beforeHour")
+    int deleteHoursBefore(long beforeHour);
+
+    /**
+     * Move the hours before {@code beforeHour}, which should be a local
+     * midnight, into days. Returns the hours moved.
+     */
+    @Transaction
+    default int downsampleBefore(long beforeHour, int offsetHours) {
+        mergeHoursIntoDays(beforeHour, offsetHours);
+        return deleteHoursBefore(beforeHour);
+    }
+
+    /**
+     * Per label and source over [fromHour, toHour), from hours and from
+     * days that start in the range ([fromDay, toDay)).
+     */
+    @Query("SELECT l.name AS label, s.name AS deviceName, :fromHour * 3600000 AS bucketStart, " + ROLLUP_STATS
+            + "FROM (SELECT labelId, sourceId, events, emergencies, confidenceSum, maxConfidence FROM rollup_hours "
+            + "WHERE hour >= :fromHour AND hour < :toHour "
+            + "UNION ALL SELECT labelId, sourceId, events, emergencies, confidenceSum, maxConfidence FROM rollup_days "
+            + "WHERE day >= :fromDay AND day < :toDay) r " + ROLLUP_NAMES
+            + "GROUP BY r.labelId, r.sourceId HAVING SUM(r.events) > 0 ORDER BY events DESC")
+    List<RollupStats> getTotals(long fromHour, long toHour, long fromDay, long toDay);
+
+    /**
+     * Per label, source and hour over [fromHour, toHour). Only hours not
+     * yet merged into days.
+     */
+    @Query("SELECT l.name AS label, s.name AS deviceName, r.hour * 3600000 AS bucketStart, " + ROLLUP_STATS
+            + "FROM rollup_hours r " + ROLLUP_NAMES
+            + "WHERE r.hour >= :fromHour AND r.hour < :toHour "
+            + "GROUP BY r.hour, r.labelId, r.sourceId HAVING SUM(r.events) > 0 ORDER BY r.hour")
+    List<RollupStats> getHourly(long fromHour, long toHour);
+
+    /**
+     * Per label, source and local day over [fromDay, toDay), from days and
+     * from the hours not yet merged.
+     */
+    @Query("SELECT l.name AS label, s.name AS deviceName, (r.day * 24 - :offsetHours) * 3600000 AS bucketStart, "
+            + ROLLUP_STATS
+            + "FROM (SELECT day, labelId, sourceId, events, emergencies, confidenceSum, maxConfidence "
+            + "FROM rollup_days WHERE day >= :fromDay AND day < :toDay "
+            + "UNION ALL SELECT (hour + :offsetHours) / 24, labelId, sourceId, events, emergencies, confidenceSum, "
+            + "maxConfidence FROM rollup_hours "
+            + "WHERE hour >= :fromDay * 24 - :offsetHours AND hour < :toDay * 24 - :offsetHours) r " + ROLLUP_NAMES
+            + "GROUP BY r.day, r.labelId, r.sourceId HAVING SUM(r.events) > 0 ORDER BY r.day")
+    List<RollupStats> getDaily(long fromDay, long toDay, int offsetHours);
+
+    @Query("DELETE FROM rollup_hours")
+    void deleteHours();
+
+    @Query("DELETE FROM rollup_days")
+    void deleteDays();
+
+    /**
+     * Delete all history, rollups included.
+     */
+    @Transaction
+    default void deleteHistory() {
+        deleteAll();
+        deleteHours();
+        deleteDays();
+    }
+
+    // Retention
+
+    @Query("SELECT timestamp FROM detections ORDER BY timestamp DESC LIMIT 1 OFFSET :offset")
+    Long getTimestampAt(int offset);
+
+    @Query("DELETE FROM detections WHERE timestamp < :cutoff")
+    int deleteBefore(long cutoff);
+
+    /**
+     * Keep the newest {@code keep} rows (and any sharing the oldest one's
+     * timestamp), and none older than {@code notBefore}. Both steps walk
+     * the timestamp index, so the cost is the rows kept plus the rows
+     * deleted, not a scan of the table. Returns the cutoff applied if
+     * rows were deleted, 0 otherwise.
+     */
+    @Transaction
+    default long trim(int keep, long notBefore) {
+        Long kept = getTimestampAt(keep - 1);
+        long cutoff = Math.max(notBefore, kept != null ? kept : 0);
+        return cutoff > 0 && deleteBefore(cutoff) > 0 ? cutoff : 0;
+    }
+
+    // Sync
+
+    @Query("SELECT * FROM sync_state")
+    List<SyncState> getSyncStates();
+
+    @Query("SELECT highWater FROM sync_state WHERE originDevice = :originDevice")
+    Long getHighWater(long originDevice);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void putSyncState(SyncState state);
+
+    @Query(SELECT_EVENTS + "WHERE d.originDevice = :originDevice AND d.originSeq > :afterSeq "
+            + "ORDER BY d.originSeq LIMIT :limit")
+    List<DetectionEvent> getRowsAfter(long originDevice, long afterSeq, int limit);
+
+    @Query("SELECT COUNT(*) FROM detections WHERE originDevice = :originDevice AND originSeq = :originSeq")
+    int countOrigin(long originDevice, long originSeq);
+
+    @Query("SELECT id FROM detections WHERE originDevice = 0 AND isRemote = 1 "
+            + "AND sourceId = (SELECT id FROM sources WHERE name = :deviceName) "
+            + "AND labelId = (SELECT id FROM labels WHERE name = :label) AND timestamp BETWEEN :from AND :to")
+    List<Long> findLiveCopies(String deviceName, String label, long from, long to);
+
+    @Query("DELETE FROM detections WHERE id IN (:ids)")
+    void deleteRows(List<Long> ids);
+
+    @Query("SELECT COUNT(*) FROM detections WHERE timestamp = :timestamp AND originDevice = 0 "
+            + "AND labelId = (SELECT id FROM labels WHERE name = :label) AND sourceId = CASE WHEN :deviceName IS NULL "
+            + "THEN 0 ELSE (SELECT id FROM sources WHERE name = :deviceName) END")
+    int countSame(long timestamp, String label, String deviceName);
+
+    /**
+     * Insert a batch of detections in one transaction. Detections made by
+     * this device (originDevice set) get the next history sequence numbers
+     * of their origin.
+     */
+    @Transaction
+    default void insertBatch(List<DetectionEvent> events) {
+        long originDevice = 0;
+        long originSeq = 0;
+        for (DetectionEvent event : events) {
+            if (event.originDevice != 0) {
+                if (event.originDevice != originDevice) {
+                    if (originDevice != 0)
+                        putSyncState(new SyncState(originDevice, originSeq));
+                    originDevice = event.originDevice;
+                    Long last = getHighWater(originDevice);
+                    originSeq = last != null ? last : 0;
+                }
+                event.originSeq = ++originSeq;
+            }
+            insert(event);
+        }
+        if (originDevice != 0)
+            putSyncState(new SyncState(originDevice, originSeq));
+    }
+
+    /**
+     * Store rows pulled from a peer, skipping ones already held and
+     * replacing the live copy of each, and raise the high-water marks.
+     * Rows are in ascending originSeq order per origin. Stored rows get
+     * their id; returns the ids of the live copies removed. Those leave
+     * the rollups as well ({@link #removeFromRollups}).
+     */
+    @Transaction
+    default List<Long> insertSynced(List<DetectionEvent> rows, int offsetHours) {
+        List<Long> removed = new ArrayList<>();
+        for (DetectionEvent row : rows) {
+            if (countOrigin(row.originDevice, row.originSeq) == 0) {
+                List<Long> copies = findLiveCopies(row.deviceName, row.label,
+                        row.timestamp - LIVE_COPY_WINDOW_MS, row.timestamp + LIVE_COPY_WINDOW_MS);
+                if (!copies.isEmpty()) {
+                    removeFromRollups(getRows(copies), offsetHours);
+                    deleteRows(copies);
+                    removed.addAll(copies);
+                }
+                insert(row);
+            }
+            Long highWater = getHighWater(row.originDevice);
+            if (highWater == null || row.originSeq > highWater) {
+                putSyncState(new SyncState(row.originDevice, row.originSeq));
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Store imported rows, skipping ones already held: by origin where
+     * they have one, as {@link #insertSynced} does, and otherwise by
+     * timestamp, label and device. Stored rows get their id.
+     */
+    @Transaction
+    default void insertImported(List<DetectionEvent> rows, int offsetHours) {
+        List<DetectionEvent> synced = new ArrayList<>();
+        for (DetectionEvent row : rows) {
+            if (row.originDevice != 0) {
+                synced.add(row);
+            } else if (countSame(row.timestamp, row.label, row.deviceName) == 0) {
+                insert(row);
+            }
+        }
+        insertSynced(synced, offsetHours);
+    }
 }
@@ -2,18 +2,135 @@ package com.example.tapticapp.data;
 
 import android.content.Context;
 
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 /**
  * Room database for storing detection history.
  */
-@Database(entities = { DetectionEvent.class }, version = 1, exportSchema = false)
+@Database(entities = { DetectionRow.class, LabelEntry.class, SourceEntry.class, SyncState.class,
+        HourlyRollup.class, DailyRollup.class, LabelFts.class }, version = 6, exportSchema = false)
 public abstract class HistoryDatabase extends RoomDatabase {
 
     private static volatile HistoryDatabase INSTANCE;
 
+    /**
+     * Adds sync origins. Existing rows keep originDevice 0 and are never
+     * synced.
+     */
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE detections ADD COLUMN originDevice INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE detections ADD COLUMN originSeq INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_detections_originDevice_originSeq "
+                    + "ON detections (originDevice, originSeq)");
+            db.execSQL("CREATE TABLE IF NOT EXISTS sync_state "
+                    + "(originDevice INTEGER NOT NULL, highWater INTEGER NOT NULL, PRIMARY KEY(originDevice))");
+        }
+    };
+
+    /**
+     * Moves labels and device names into lookup tables and indexes
+     * detections by timestamp, label and source. SQLite cannot change
+     * columns in place, so the table is rebuilt.
+     */
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS labels "
+                    + "(id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, name TEXT NOT NULL)");
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS index_labels_name ON labels (name)");
+            db.execSQL("CREATE TABLE IF NOT EXISTS sources "
+                    + "(id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, name TEXT NOT NULL)");
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS index_sources_name ON sources (name)");
+            db.execSQL("INSERT OR IGNORE INTO labels (name) SELECT DISTINCT IFNULL(label, '') FROM detections");
+            db.execSQL("INSERT OR IGNORE INTO sources (name) "
+                    + "SELECT DISTINCT deviceName FROM detections WHERE deviceName IS NOT NULL");
+
+            db.execSQL("CREATE TABLE detections_new (id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "timestamp INTEGER NOT NULL, labelId INTEGER NOT NULL, confidence REAL NOT NULL, "
+                    + "isEmergency INTEGER NOT NULL, isRemote INTEGER NOT NULL, "
+                    + "sourceId INTEGER NOT NULL DEFAULT 0, originDevice INTEGER NOT NULL DEFAULT 0, "
+                    + "originSeq INTEGER NOT NULL DEFAULT 0)");
+            db.execSQL("INSERT INTO detections_new (id, timestamp, labelId, confidence, isEmergency, isRemote, "
+                    + "sourceId, originDevice, originSeq) "
+                    + "SELECT d.id, d.timestamp, l.id, d.confidence, d.isEmergency, d.isRemote, IFNULL(s.id, 0), "
+                    + "d.originDevice, d.originSeq FROM detections d "
+                    + "JOIN labels l ON l.name = IFNULL(d.label, '') LEFT JOIN sources s ON s.name = d.deviceName");
+            db.execSQL("DROP TABLE detections");
+            db.execSQL("ALTER TABLE detections_new RENAME TO detections");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_detections_timestamp ON detections (timestamp)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_detections_labelId_timestamp "
+                    + "ON detections (labelId, timestamp)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_detections_sourceId_timestamp "
+                    + "ON detections (sourceId, timestamp)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_detections_originDevice_originSeq "
+                    + "ON detections (originDevice, originSeq)");
+        }
+    };
+
+    /**
+     * Adds the rollup tables, filled from the rows held. Everything starts
+     * out in hours; the repository merges the old ones into days.
+     */
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS rollup_hours (hour INTEGER NOT NULL, labelId INTEGER NOT NULL, "
+                    + "sourceId INTEGER NOT NULL, events INTEGER NOT NULL, emergencies INTEGER NOT NULL, "
+                    + "confidenceSum REAL NOT NULL, maxConfidence REAL NOT NULL, "
+                    + "PRIMARY KEY(hour, labelId, sourceId))");
+            db.execSQL("CREATE TABLE IF NOT EXISTS rollup_days (day INTEGER NOT NULL, labelId INTEGER NOT NULL, "
+                    + "sourceId INTEGER NOT NULL, events INTEGER NOT NULL, emergencies INTEGER NOT NULL, "
+                    + "confidenceSum REAL NOT NULL, maxConfidence REAL NOT NULL, "
+                    + "PRIMARY KEY(day, labelId, sourceId))");
+            db.execSQL("INSERT INTO rollup_hours "
+                    + "(hour, labelId, sourceId, events, emergencies, confidenceSum, maxConfidence) "
+                    + "SELECT timestamp / 3600000, labelId, sourceId, COUNT(*), SUM(isEmergency), SUM(confidence), "
+                    + "MAX(confidence) FROM detections GROUP BY timestamp / 3600000, labelId, sourceId");
+        }
+    };
+
+    /**
+     * Adds the index for emergency searches and the full-text index of
+     * label names, with the triggers Room uses to keep it in step.
+     */
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_detections_isEmergency_timestamp "
+                    + "ON detections (isEmergency, timestamp)");
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `labels_fts` USING FTS4(`name` TEXT NOT NULL, "
+                    + "content=`labels`)");
+            for (String op : new String[] { "UPDATE", "DELETE" }) {
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_labels_fts_BEFORE_" + op
+                        + " BEFORE " + op + " ON `labels` BEGIN DELETE FROM `labels_fts` "
+                        + "WHERE `docid`=OLD.`rowid`; END");
+            }
+            for (String op : new String[] { "UPDATE", "INSERT" }) {
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_labels_fts_AFTER_" + op
+                        + " AFTER " + op + " ON `labels` BEGIN INSERT INTO `labels_fts`(`docid`, `name`) "
+                        + "VALUES (NEW.`rowid`, NEW.`name`); END");
+            }
+            db.execSQL("INSERT INTO labels_fts(labels_fts) VALUES ('rebuild')");
+        }
+    };
+
+    /**
+     * Adds the audio clip saved with a detection, if any.
+     */
+    static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE detections ADD COLUMN clipName TEXT");
+        }
+    };
+
     public abstract HistoryDao historyDao();
 
     public static HistoryDatabase getInstance(Context context) {
@@ -23,7 +140,10 @@ public abstract class HistoryDatabase extends RoomDatabase {
                     INSTANCE = Room.databaseBuilder(
                             context.getApplicationContext(),
                             HistoryDatabase.class,
-                            "detection_history_db").build();
+                            "detection_history_db")
+                            .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5,
+                                    MIGRATION_5_6)
+                            .build();
                 }
             }
         }
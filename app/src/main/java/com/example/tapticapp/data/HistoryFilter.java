@@ -0,0 +1,170 @@
+package com.example.tapticapp.data;
+
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * What to search the history for. Unset fields match everything.
+ *
+ * Turned into SQL that only has the conditions in use, so SQLite can pick
+ * the index for them: (labelId, timestamp) for a label, (sourceId,
+ * timestamp) for a device or local detections, (isEmergency, timestamp)
+ * for emergencies and (timestamp) otherwise. Each of these also yields
+ * rows in page order, so a page costs about as many index steps as it has
+ * rows, however large the table, unless the conditions not covered by the
+ * index reject most rows. A label search that matches several labels runs
+ * one such walk per label and merges them.
+ */
+public final class HistoryFilter {
+
+    public static final int SOURCE_ANY = 0;
+    public static final int SOURCE_LOCAL = 1;
+    public static final int SOURCE_REMOTE = 2;
+
+    // More labels than this are read with one IN walk and a sort instead
+    static final int MAX_MERGED_LABELS = 16;
+
+    private String labelText;
+    private String deviceName;
+    private int source = SOURCE_ANY;
+    private boolean emergencyOnly;
+    private long from;
+    private long to = Long.MAX_VALUE;
+
+    /**
+     * Labels with a word starting with each word of {@code text}, e.g.
+     * "door" matches "Doorbell" and "Sliding door". Null or blank for any.
+     */
+    public HistoryFilter setLabel(String text) {
+        labelText = text != null && !text.trim().isEmpty() ? text.trim() : null;
+        return this;
+    }
+
+    /**
+     * Detections received from one device. Null for any.
+     */
+    public HistoryFilter setDevice(String deviceName) {
+        this.deviceName = deviceName;
+        return this;
+    }
+
+    /**
+     * One of the {@code SOURCE_} constants.
+     */
+    public HistoryFilter setSource(int source) {
+        this.source = source;
+        return this;
+    }
+
+    public HistoryFilter setEmergencyOnly(boolean emergencyOnly) {
+        this.emergencyOnly = emergencyOnly;
+        return this;
+    }
+
+    /**
+     * Detections at or after {@code from} and before {@code to}.
+     */
+    public HistoryFilter setTimeRange(long from, long to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    public boolean hasLabel() {
+        return labelText != null;
+    }
+
+    public boolean isEmpty() {
+        return labelText == null && deviceName == null && source == SOURCE_ANY && !emergencyOnly && from == 0
+                && to == Long.MAX_VALUE;
+    }
+
+    /**
+     * The label text as an FTS MATCH expression: each word as a prefix,
+     * all required. Null if it has no words.
+     */
+    String labelMatch() {
+        if (labelText == null)
+            return null;
+        StringBuilder match = new StringBuilder();
+        for (String word : labelText.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty())
+                continue;
+            if (match.length() > 0)
+                match.append(' ');
+            match.append(word).append('*');
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * A page of matching rows after the row ({@code timestamp}, {@code id}),
+     * newest first; pass Long.MAX_VALUE for both for the first page.
+     * {@code labelIds} are the labels matched, if {@link #hasLabel}.
+     */
+    SupportSQLiteQuery toQuery(List<Long> labelIds, long timestamp, long id, int limit) {
+        List<Object> args = new ArrayList<>();
+        return new SimpleSQLiteQuery(toSql(labelIds, timestamp, id, limit, args), args.toArray());
+    }
+
+    String toSql(List<Long> labelIds, long timestamp, long id, int limit, List<Object> args) {
+        String order = "ORDER BY d.timestamp DESC, d.id DESC LIMIT " + limit;
+        if (labelIds == null || labelIds.size() == 1 || labelIds.size() > MAX_MERGED_LABELS) {
+            StringBuilder sql = new StringBuilder(HistoryDao.SELECT_EVENTS).append("WHERE ");
+            if (labelIds != null) {
+                sql.append(labelIds.size() == 1 ? "d.labelId = ? AND " : "d.labelId IN (" + placeholders(labelIds.size())
+                        + ") AND ");
+                args.addAll(labelIds);
+            }
+            appendConditions(sql, timestamp, id, args);
+            return sql.append(order).toString();
+        }
+        // Several labels: the newest page of each, merged
+        StringBuilder sql = new StringBuilder();
+        for (long labelId : labelIds) {
+            if (sql.length() > 0)
+                sql.append(" UNION ALL ");
+            sql.append("SELECT * FROM (").append(HistoryDao.SELECT_EVENTS).append("WHERE d.labelId = ? AND ");
+            args.add(labelId);
+            appendConditions(sql, timestamp, id, args);
+            sql.append(order).append(")");
+        }
+        return sql.append(" ORDER BY timestamp DESC, id DESC LIMIT ").append(limit).toString();
+    }
+
+    private void appendConditions(StringBuilder sql, long timestamp, long id, List<Object> args) {
+        if (deviceName != null) {
+            sql.append("d.sourceId = (SELECT id FROM sources WHERE name = ?) AND ");
+            args.add(deviceName);
+        } else if (source == SOURCE_LOCAL) {
+            sql.append("d.sourceId = 0 AND ");
+        } else if (source == SOURCE_REMOTE) {
+            sql.append("d.sourceId != 0 AND ");
+        }
+        if (emergencyOnly)
+            sql.append("d.isEmergency = 1 AND ");
+        if (from > 0) {
+            sql.append("d.timestamp >= ? AND ");
+            args.add(from);
+        }
+        // The cursor, as in HistoryDao#getPageBefore, capped by the range's end
+        long before = Math.min(timestamp, to);
+        long beforeId = to <= timestamp ? Long.MIN_VALUE : id;
+        sql.append("d.timestamp <= ? AND (d.timestamp < ? OR d.id < ?) ");
+        args.add(before);
+        args.add(before);
+        args.add(beforeId);
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder marks = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            marks.append(i == 0 ? "?" : ", ?");
+        }
+        return marks.toString();
+    }
+}
@@ -1,30 +1,203 @@
 package com.example.tapticapp.data;
 
 import android.content.Context;
+import android.database.Cursor;
 
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+import com.example.tapticapp.config.Settings;
+import com.example.tapticapp.network.HistorySync;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * Repository for managing detection history.
  * Handles database operations on background thread.
+ * Also the store for {@link HistorySync}, whose calls come from its own
+ * threads.
+ *
+ * Inserts are write-behind: events wait up to {@link #FLUSH_INTERVAL_MS},
+ * or until {@link #MAX_BATCH} are pending, and are then committed in one
+ * transaction, after which subscribers are notified once. Emergencies are
+ * flushed at once. Trimming the table to the retention limits
+ * ({@link #setRetention}) runs only after {@link #TRIM_EVERY_ROWS} new rows
+ * or {@link #TRIM_INTERVAL_MS}, whichever comes first; in between the table
+ * may hold a few rows more.
+ *
+ * History is read in pages of {@link #PAGE_SIZE}, newest first. The newest
+ * page is also kept in memory ({@link RecentCache}), so a subscriber's
+ * first page comes without a query. Searches ({@link HistoryFilter}) are
+ * paged the same way and filtered in SQLite.
+ *
+ * Changes are published as deltas ({@link ChangeListener}): a subscriber
+ * gets the newest page once and then only the rows added or removed, so a
+ * new detection costs it one row rather than a reload.
+ *
+ * Statistics for dashboards come from the rollups the DAO keeps with each
+ * insert: by hour for the last {@link #HOURLY_DAYS} days, by local day
+ * before that. Each trim also merges hours that have aged into days.
+ * Rollups are not trimmed, so they cover more than the rows retained.
+ *
+ * History can be exported to and imported from CSV or NDJSON
+ * ({@link HistoryCodec}) on a thread of their own. Both stream: export
+ * walks a cursor and writes through a buffer, import commits every
+ * {@link #IMPORT_BATCH} rows, so memory stays the same for any number of
+ * rows.
  */
-public class HistoryRepository {
+public class HistoryRepository implements HistorySync.Store {
+
+    static final long FLUSH_INTERVAL_MS = 250;
+    static final int MAX_BATCH = 32;
+    /** Rows per page, and rows kept in the recent cache. */
+    public static final int PAGE_SIZE = 100;
+    static final int TRIM_EVERY_ROWS = 100;
+    static final long TRIM_INTERVAL_MS = 60_000;
+    /** Days of statistics kept hour by hour. */
+    public static final int HOURLY_DAYS = 14;
+    static final int IMPORT_BATCH = 500;
+    // A multiple of IMPORT_BATCH
+    static final int PROGRESS_ROWS = 10_000;
+    private static final int TRANSFER_BUFFER = 64 * 1024;
 
     private static volatile HistoryRepository INSTANCE;
     private final HistoryDao historyDao;
-    private final Executor executor = Executors.newSingleThreadExecutor();
-    private final List<HistoryCallback> callbacks = new ArrayList<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    // Exports and imports, which may run for a long time
+    private final ExecutorService transferExecutor = Executors.newSingleThreadExecutor();
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile int maxRows = Settings.DEFAULT_HISTORY_MAX_ROWS;
+    private volatile long maxAgeMs = TimeUnit.DAYS.toMillis(Settings.DEFAULT_HISTORY_MAX_AGE_DAYS);
+
+    // Guarded by pending
+    private final List<DetectionEvent> pending = new ArrayList<>();
+    private final List<Long> pendingSinceNanos = new ArrayList<>();
+    private boolean flushScheduled;
+    private boolean flushQueued;
+
+    // Executor thread only
+    private final RecentCache recent = new RecentCache(PAGE_SIZE);
+    private int rowsSinceTrim;
+    private long lastTrimNanos = System.nanoTime();
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong rowsFlushed = new AtomicLong();
+    private final AtomicLong maxBatch = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong trims = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong totalSearchNanos = new AtomicLong();
+    private final AtomicLong maxSearchNanos = new AtomicLong();
+    private final AtomicLong rowsExported = new AtomicLong();
+    private final AtomicLong rowsImported = new AtomicLong();
 
     public interface HistoryCallback {
         void onHistoryChanged(List<DetectionEvent> events);
     }
 
+    public interface RollupCallback {
+        void onRollups(List<RollupStats> stats);
+    }
+
+    /**
+     * Progress of an export or import, on a background thread.
+     */
+    public interface TransferListener {
+        /** Every {@link #PROGRESS_ROWS} rows. */
+        void onProgress(long rows, double rowsPerSecond);
+
+        /**
+         * Done: {@code rows} written or stored, {@code skipped} rows that
+         * could not be read or were already held. {@code error} is null
+         * on success.
+         */
+        void onFinished(long rows, long skipped, double rowsPerSecond, Exception error);
+    }
+
+    /**
+     * History changes, delivered in order on the subscriber's executor.
+     * Lists are newest first and must not be modified. Older pages are
+     * loaded with {@link #loadPage}; changes cover them too.
+     */
+    public interface ChangeListener {
+        /**
+         * The newest page: when subscribing and after the history is
+         * cleared. Fewer than {@link #PAGE_SIZE} rows means there are no
+         * more.
+         */
+        void onReset(List<DetectionEvent> events);
+
+        /** Rows added, possibly older than the newest. */
+        void onInserted(List<DetectionEvent> events);
+
+        /** Rows removed, by id. */
+        void onRemoved(List<Long> ids);
+
+        /** Rows older than {@code cutoff} were deleted by retention. */
+        void onTrimmed(long cutoff);
+    }
+
+    /**
+     * A registered {@link ChangeListener}; close it to stop deliveries.
+     */
+    public final class Subscription {
+        private final Executor deliveryExecutor;
+        private final ChangeListener listener;
+        private volatile boolean closed;
+
+        private Subscription(Executor deliveryExecutor, ChangeListener listener) {
+            this.deliveryExecutor = deliveryExecutor;
+            this.listener = listener;
+        }
+
+        public void close() {
+            closed = true;
+            subscriptions.remove(this);
+        }
+
+        private void deliver(Consumer<ChangeListener> change) {
+            deliveryExecutor.execute(() -> {
+                if (!closed)
+                    change.accept(listener);
+            });
+        }
+    }
+
     private HistoryRepository(Context context) {
-        HistoryDatabase db = HistoryDatabase.getInstance(context);
-        historyDao = db.historyDao();
+        this(HistoryDatabase.getInstance(context).historyDao());
+    }
+
+    HistoryRepository(HistoryDao historyDao) {
+        this.historyDao = historyDao;
+        // Warm the cache before anyone opens the history
+        executor.execute(this::recentEvents);
     }
 
     public static HistoryRepository getInstance(Context context) {
@@ -38,48 +211,534 @@ public class HistoryRepository {
         return INSTANCE;
     }
 
-    public void addCallback(HistoryCallback callback) {
-        synchronized (callbacks) {
-            callbacks.add(callback);
-        }
+    /**
+     * Subscribe to history changes. The listener first gets the newest
+     * page, then every change after it, on {@code deliveryExecutor} (e.g.
+     * the main thread).
+     */
+    public Subscription subscribe(Executor deliveryExecutor, ChangeListener listener) {
+        Subscription subscription = new Subscription(deliveryExecutor, listener);
+        executor.execute(() -> {
+            // Registered on the executor so no change falls between the
+            // snapshot and the deltas
+            flushPending();
+            List<DetectionEvent> events = Collections.unmodifiableList(recentEvents());
+            subscription.deliver(l -> l.onReset(events));
+            if (!subscription.closed)
+                subscriptions.add(subscription);
+        });
+        return subscription;
     }
 
-    public void removeCallback(HistoryCallback callback) {
-        synchronized (callbacks) {
-            callbacks.remove(callback);
+    /**
+     * {@link #subscribe}, closed when {@code owner} is destroyed. For a
+     * fragment's view pass its view lifecycle owner.
+     */
+    public Subscription observe(LifecycleOwner owner, Executor deliveryExecutor, ChangeListener listener) {
+        Lifecycle lifecycle = owner.getLifecycle();
+        Subscription subscription = subscribe(deliveryExecutor, listener);
+        if (lifecycle.getCurrentState() == Lifecycle.State.DESTROYED) {
+            subscription.close();
+            return subscription;
         }
+        lifecycle.addObserver(new LifecycleEventObserver() {
+            @Override
+            public void onStateChanged(LifecycleOwner source, Lifecycle.Event event) {
+                if (event == Lifecycle.Event.ON_DESTROY) {
+                    subscription.close();
+                    lifecycle.removeObserver(this);
+                }
+            }
+        });
+        return subscription;
     }
 
+    /**
+     * Queue an event to be stored with the next batch.
+     */
     public void insert(DetectionEvent event) {
+        synchronized (pending) {
+            pending.add(event);
+            pendingSinceNanos.add(System.nanoTime());
+            if (event.isEmergency || pending.size() >= MAX_BATCH) {
+                if (!flushQueued) {
+                    flushQueued = true;
+                    executor.execute(this::flushPending);
+                }
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                executor.schedule(this::flushPending, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Store queued events now, e.g. before the service goes away.
+     */
+    public void flush() {
+        executor.execute(this::flushPending);
+    }
+
+    /**
+     * The newest page.
+     */
+    public void loadHistory(HistoryCallback callback) {
         executor.execute(() -> {
-            historyDao.insert(event);
-            historyDao.deleteOldEvents(); // Keep only last 1000
-            notifyCallbacks();
+            flushPending();
+            callback.onHistoryChanged(recentEvents());
         });
     }
 
-    public void loadHistory(HistoryCallback callback) {
+    /**
+     * The page of up to {@link #PAGE_SIZE} rows after the row
+     * ({@code timestamp}, {@code id}), i.e. older ones, newest first. The
+     * callback runs on the repository's thread, ordered with the changes
+     * published to subscribers.
+     */
+    public void loadPage(long timestamp, long id, HistoryCallback callback) {
+        executor.execute(() -> {
+            List<DetectionEvent> page = historyDao.getPageBefore(timestamp, id, PAGE_SIZE);
+            callback.onHistoryChanged(Collections.unmodifiableList(page));
+        });
+    }
+
+    /**
+     * A page of up to {@link #PAGE_SIZE} rows matching {@code filter},
+     * after the row ({@code timestamp}, {@code id}), newest first; pass
+     * Long.MAX_VALUE for both for the first page. The filter must not be
+     * changed afterwards. The callback runs on the repository's thread.
+     */
+    public void search(HistoryFilter filter, long timestamp, long id, HistoryCallback callback) {
         executor.execute(() -> {
-            List<DetectionEvent> events = historyDao.getAllEvents();
-            callback.onHistoryChanged(events);
+            flushPending();
+            long start = System.nanoTime();
+            List<DetectionEvent> page = Collections.emptyList();
+            List<Long> labelIds = null;
+            String match = filter.labelMatch();
+            if (match != null)
+                labelIds = historyDao.matchLabels(match);
+            // Label text with no words, or no label matching it, finds nothing
+            if (!filter.hasLabel() || (labelIds != null && !labelIds.isEmpty()))
+                page = historyDao.search(filter.toQuery(labelIds, timestamp, id, PAGE_SIZE));
+            long elapsed = System.nanoTime() - start;
+            searches.incrementAndGet();
+            totalSearchNanos.addAndGet(elapsed);
+            maxSearchNanos.accumulateAndGet(elapsed, Math::max);
+            callback.onHistoryChanged(Collections.unmodifiableList(page));
         });
     }
 
+    /**
+     * Names of the devices detections were received from, for filtering.
+     */
+    public void loadDeviceNames(Consumer<List<String>> callback) {
+        executor.execute(() -> callback.accept(historyDao.getDeviceNames()));
+    }
+
+    /**
+     * Retention: at most {@code maxRows} rows, and none older than
+     * {@code maxAgeMs} (0 for no age limit). Applied now and with every
+     * later trim.
+     */
+    public void setRetention(int maxRows, long maxAgeMs) {
+        this.maxRows = maxRows;
+        this.maxAgeMs = maxAgeMs;
+        executor.execute(this::trim);
+    }
+
     public void clearAll() {
         executor.execute(() -> {
-            historyDao.deleteAll();
-            notifyCallbacks();
+            flushPending();
+            historyDao.deleteHistory(); // Sync marks stay, so cleared rows are not pulled again
+            recent.clear();
+            rowsSinceTrim = 0;
+            List<DetectionEvent> none = Collections.emptyList();
+            publish(l -> l.onReset(none));
         });
     }
 
-    private void notifyCallbacks() {
+    // Export and import
+
+    /**
+     * Write the whole history to {@code out}, oldest first, in a
+     * {@link HistoryCodec} format, and close it. Events queued before the
+     * call are included.
+     */
+    public void exportHistory(OutputStream out, int format, TransferListener listener) {
         executor.execute(() -> {
-            List<DetectionEvent> events = historyDao.getAllEvents();
-            synchronized (callbacks) {
-                for (HistoryCallback callback : callbacks) {
-                    callback.onHistoryChanged(events);
+            flushPending();
+            transferExecutor.execute(() -> export(out, format, listener));
+        });
+    }
+
+    /**
+     * Read rows written by {@link #exportHistory} (or in the same columns)
+     * from {@code in} and close it. Rows already held are skipped;
+     * retention applies to the rest as to any new rows. Subscribers get
+     * the newest page again afterwards.
+     */
+    public void importHistory(InputStream in, int format, TransferListener listener) {
+        transferExecutor.execute(() -> importRows(in, format, listener));
+    }
+
+    private void export(OutputStream out, int format, TransferListener listener) {
+        long start = System.nanoTime();
+        long rows = 0;
+        Exception error = null;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8),
+                TRANSFER_BUFFER);
+                Cursor cursor = historyDao.exportAll()) {
+            HistoryCodec.RowWriter rowWriter = new HistoryCodec.RowWriter(writer, format);
+            rowWriter.writeHeader();
+            int timestamp = cursor.getColumnIndexOrThrow("timestamp");
+            int label = cursor.getColumnIndexOrThrow("label");
+            int confidence = cursor.getColumnIndexOrThrow("confidence");
+            int emergency = cursor.getColumnIndexOrThrow("isEmergency");
+            int remote = cursor.getColumnIndexOrThrow("isRemote");
+            int device = cursor.getColumnIndexOrThrow("deviceName");
+            int originDevice = cursor.getColumnIndexOrThrow("originDevice");
+            int originSeq = cursor.getColumnIndexOrThrow("originSeq");
+            while (cursor.moveToNext()) {
+                rowWriter.write(cursor.getLong(timestamp), cursor.getString(label), cursor.getDouble(confidence),
+                        cursor.getInt(emergency) != 0, cursor.getInt(remote) != 0,
+                        cursor.isNull(device) ? null : cursor.getString(device), cursor.getLong(originDevice),
+                        cursor.getLong(originSeq));
+                if (++rows % PROGRESS_ROWS == 0)
+                    listener.onProgress(rows, rowsPerSecond(rows, start));
+            }
+        } catch (IOException | RuntimeException e) {
+            error = e;
+        }
+        rowsExported.addAndGet(rows);
+        listener.onFinished(rows, 0, rowsPerSecond(rows, start), error);
+    }
+
+    private void importRows(InputStream in, int format, TransferListener listener) {
+        long start = System.nanoTime();
+        long read = 0;
+        long stored = 0;
+        long unreadable = 0;
+        Exception error = null;
+        int offset = zoneOffsetHours();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8),
+                TRANSFER_BUFFER)) {
+            HistoryCodec.RowReader rowReader = new HistoryCodec.RowReader(reader, format);
+            List<DetectionEvent> batch = new ArrayList<>(IMPORT_BATCH);
+            DetectionEvent row;
+            while ((row = rowReader.next()) != null) {
+                batch.add(row);
+                if (batch.size() == IMPORT_BATCH) {
+                    stored += storeImported(batch, offset);
+                    read += IMPORT_BATCH;
+                    if (read % PROGRESS_ROWS == 0)
+                        listener.onProgress(read, rowsPerSecond(read, start));
                 }
             }
+            read += batch.size();
+            stored += storeImported(batch, offset);
+            unreadable = rowReader.skipped();
+        } catch (IOException | RuntimeException e) {
+            error = e;
+        }
+        rowsImported.addAndGet(stored);
+        long skipped = read - stored + unreadable;
+        double rate = rowsPerSecond(read, start);
+        Exception failure = error;
+        long imported = stored;
+        executor.execute(() -> {
+            if (imported > 0) {
+                trim();
+                recent.load(historyDao.getNewest(recent.capacity()));
+                List<DetectionEvent> events = Collections.unmodifiableList(recent.snapshot(PAGE_SIZE));
+                publish(l -> l.onReset(events));
+            }
+            listener.onFinished(imported, skipped, rate, failure);
+        });
+    }
+
+    /**
+     * Commit one batch of imported rows and empty it. Returns the rows
+     * stored.
+     */
+    private int storeImported(List<DetectionEvent> batch, int offset) {
+        if (batch.isEmpty())
+            return 0;
+        historyDao.insertImported(batch, offset);
+        int stored = 0;
+        for (DetectionEvent event : batch) {
+            // Rows already held were skipped and have no id
+            if (event.id != 0)
+                stored++;
+        }
+        batch.clear();
+        return stored;
+    }
+
+    private static double rowsPerSecond(long rows, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        return elapsed <= 0 ? 0 : rows * 1e9 / elapsed;
+    }
+
+    // Rollups
+
+    /**
+     * Detections per label and source between {@code from} and {@code to},
+     * most frequent first: to the hour for the recent ones, and counting
+     * each older day whose local midnight is in the range.
+     */
+    public void loadTotals(long from, long to, RollupCallback callback) {
+        executor.execute(() -> {
+            flushPending();
+            int offset = zoneOffsetHours();
+            long fromHour = HourlyRollup.hourOf(from);
+            long toHour = HourlyRollup.hourOf(to - 1) + 1;
+            callback.onRollups(historyDao.getTotals(fromHour, toHour, firstDayStartingAt(fromHour, offset),
+                    firstDayStartingAt(toHour, offset)));
         });
     }
+
+    /**
+     * Detections per label, source and hour, oldest first. Covers the last
+     * {@link #HOURLY_DAYS} days at most; use {@link #loadDaily} beyond.
+     */
+    public void loadHourly(long from, long to, RollupCallback callback) {
+        executor.execute(() -> {
+            flushPending();
+            callback.onRollups(historyDao.getHourly(HourlyRollup.hourOf(from), HourlyRollup.hourOf(to - 1) + 1));
+        });
+    }
+
+    /**
+     * Detections per label, source and local day, for the days from the
+     * one holding {@code from} to the one holding {@code to}, oldest first.
+     */
+    public void loadDaily(long from, long to, RollupCallback callback) {
+        executor.execute(() -> {
+            flushPending();
+            int offset = zoneOffsetHours();
+            callback.onRollups(historyDao.getDaily(dayOf(HourlyRollup.hourOf(from), offset),
+                    dayOf(HourlyRollup.hourOf(to - 1), offset) + 1, offset));
+        });
+    }
+
+    /**
+     * Local day holding an hour, for a zone {@code offset} hours from UTC.
+     */
+    static long dayOf(long hour, int offset) {
+        return Math.floorDiv(hour + offset, 24);
+    }
+
+    /**
+     * First local day that starts at or after {@code hour}.
+     */
+    static long firstDayStartingAt(long hour, int offset) {
+        return -Math.floorDiv(-(hour + offset), 24);
+    }
+
+    private static int zoneOffsetHours() {
+        return (int) (TimeZone.getDefault().getOffset(System.currentTimeMillis()) / HourlyRollup.HOUR_MS);
+    }
+
+    // Stats
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public long getRowsFlushed() {
+        return rowsFlushed.get();
+    }
+
+    public double getAverageBatchSize() {
+        long count = flushes.get();
+        return count == 0 ? 0 : (double) rowsFlushed.get() / count;
+    }
+
+    public long getMaxBatchSize() {
+        return maxBatch.get();
+    }
+
+    /**
+     * Average time to commit a batch.
+     */
+    public double getAverageFlushMs() {
+        long count = flushes.get();
+        return count == 0 ? 0 : totalFlushNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxFlushMs() {
+        return maxFlushNanos.get() / 1e6;
+    }
+
+    /**
+     * Average time from {@link #insert} to the event being committed.
+     */
+    public double getAverageWaitMs() {
+        long count = rowsFlushed.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / 1e6 / count;
+    }
+
+    public long getTrims() {
+        return trims.get();
+    }
+
+    /**
+     * Newest pages served from memory.
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public long getSearches() {
+        return searches.get();
+    }
+
+    /**
+     * Average time to run a search, label match included.
+     */
+    public double getAverageSearchMs() {
+        long count = searches.get();
+        return count == 0 ? 0 : totalSearchNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxSearchMs() {
+        return maxSearchNanos.get() / 1e6;
+    }
+
+    public long getRowsExported() {
+        return rowsExported.get();
+    }
+
+    public long getRowsImported() {
+        return rowsImported.get();
+    }
+
+    @Override
+    public Map<Long, Long> getHighWaterMarks() {
+        Map<Long, Long> marks = new HashMap<>();
+        for (SyncState state : historyDao.getSyncStates()) {
+            marks.put(state.originDevice, state.highWater);
+        }
+        return marks;
+    }
+
+    @Override
+    public List<DetectionEvent> getRowsAfter(long originDevice, long afterSeq, int limit) {
+        return historyDao.getRowsAfter(originDevice, afterSeq, limit);
+    }
+
+    @Override
+    public void applySynced(List<DetectionEvent> rows) {
+        List<Long> replaced = historyDao.insertSynced(rows, zoneOffsetHours());
+        List<DetectionEvent> inserted = new ArrayList<>();
+        for (DetectionEvent row : rows) {
+            // Rows already held were skipped and have no id
+            if (row.id != 0)
+                inserted.add(row);
+        }
+        executor.execute(() -> {
+            if (!replaced.isEmpty()) {
+                List<Long> ids = Collections.unmodifiableList(replaced);
+                recent.remove(ids);
+                publish(l -> l.onRemoved(ids));
+            }
+            if (!inserted.isEmpty()) {
+                recent.insert(inserted);
+                publishInserted(inserted);
+            }
+            rowsSinceTrim += inserted.size();
+            trimIfDue();
+        });
+    }
+
+    /**
+     * Commit the queued events in one transaction. Executor thread only.
+     */
+    private void flushPending() {
+        List<DetectionEvent> batch;
+        long waitedSinceNanos = 0;
+        synchronized (pending) {
+            flushScheduled = false;
+            flushQueued = false;
+            if (pending.isEmpty())
+                return;
+            batch = new ArrayList<>(pending);
+            for (long since : pendingSinceNanos) {
+                waitedSinceNanos += since;
+            }
+            pending.clear();
+            pendingSinceNanos.clear();
+        }
+        long start = System.nanoTime();
+        historyDao.insertBatch(batch);
+        long end = System.nanoTime();
+
+        flushes.incrementAndGet();
+        rowsFlushed.addAndGet(batch.size());
+        maxBatch.accumulateAndGet(batch.size(), Math::max);
+        totalFlushNanos.addAndGet(end - start);
+        maxFlushNanos.accumulateAndGet(end - start, Math::max);
+        totalWaitNanos.addAndGet(end * batch.size() - waitedSinceNanos);
+
+        recent.insert(batch);
+        publishInserted(batch);
+        rowsSinceTrim += batch.size();
+        trimIfDue();
+    }
+
+    /**
+     * The newest page, from the cache, reloading it if stale. Executor
+     * thread only.
+     */
+    private List<DetectionEvent> recentEvents() {
+        if (recent.isStale()) {
+            cacheMisses.incrementAndGet();
+            recent.load(historyDao.getNewest(recent.capacity()));
+        } else {
+            cacheHits.incrementAndGet();
+        }
+        return recent.snapshot(PAGE_SIZE);
+    }
+
+    private void trimIfDue() {
+        long now = System.nanoTime();
+        if (rowsSinceTrim == 0 || (rowsSinceTrim < TRIM_EVERY_ROWS
+                && now - lastTrimNanos < TimeUnit.MILLISECONDS.toNanos(TRIM_INTERVAL_MS)))
+            return;
+        trim();
+    }
+
+    private void trim() {
+        long age = maxAgeMs;
+        long cutoff = historyDao.trim(maxRows, age > 0 ? System.currentTimeMillis() - age : 0);
+        trims.incrementAndGet();
+        rowsSinceTrim = 0;
+        lastTrimNanos = System.nanoTime();
+        if (cutoff != 0) {
+            recent.trimBefore(cutoff);
+            publish(l -> l.onTrimmed(cutoff));
+        }
+
+        // Hours older than HOURLY_DAYS whole days go into their days
+        int offset = zoneOffsetHours();
+        long today = dayOf(HourlyRollup.hourOf(System.currentTimeMillis()), offset);
+        historyDao.downsampleBefore((today - HOURLY_DAYS) * 24 - offset, offset);
+    }
+
+    private void publishInserted(List<DetectionEvent> events) {
+        List<DetectionEvent> newestFirst = new ArrayList<>(events);
+        Collections.sort(newestFirst, RecentCache::compareNewestFirst);
+        List<DetectionEvent> inserted = Collections.unmodifiableList(newestFirst);
+        publish(l -> l.onInserted(inserted));
+    }
+
+    private void publish(Consumer<ChangeListener> change) {
+        for (Subscription subscription : subscriptions) {
+            subscription.deliver(change);
+        }
+    }
 }
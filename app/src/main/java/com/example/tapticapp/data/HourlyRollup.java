@@ -0,0 +1,40 @@
+package com.example.tapticapp.data;
+
+import androidx.room.Entity;
+
+/**
+ * Detections of one label from one source in one hour, kept up to date
+ * with every insert (see {@link HistoryDao#insert}). Recent hours only;
+ * older ones are merged into {@link DailyRollup}s. Keyed by hour first so
+ * a time range is one walk of the primary key.
+ */
+@Entity(tableName = "rollup_hours", primaryKeys = { "hour", "labelId", "sourceId" })
+public class HourlyRollup {
+
+    public static final long HOUR_MS = 3_600_000;
+
+    /** Hours since the epoch. */
+    public long hour;
+    public long labelId;
+    public long sourceId;
+
+    public int events;
+    public int emergencies;
+    public double confidenceSum;
+    public double maxConfidence;
+
+    public HourlyRollup(long hour, long labelId, long sourceId, int events, int emergencies, double confidenceSum,
+            double maxConfidence) {
+        this.hour = hour;
+        this.labelId = labelId;
+        this.sourceId = sourceId;
+        this.events = events;
+        this.emergencies = emergencies;
+        this.confidenceSum = confidenceSum;
+        this.maxConfidence = maxConfidence;
+    }
+
+    public static long hourOf(long timestamp) {
+        return Math.floorDiv(timestamp, HOUR_MS);
+    }
+}
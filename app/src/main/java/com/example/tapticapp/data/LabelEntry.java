@@ -0,0 +1,23 @@
+package com.example.tapticapp.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * A sound label, stored once and referenced by {@link DetectionRow#labelId}.
+ */
+@Entity(tableName = "labels", indices = { @Index(value = { "name" }, unique = true) })
+public class LabelEntry {
+
+    @PrimaryKey(autoGenerate = true)
+    public long id;
+
+    @NonNull
+    public String name;
+
+    public LabelEntry(@NonNull String name) {
+        this.name = name;
+    }
+}
@@ -0,0 +1,22 @@
+package com.example.tapticapp.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Fts4;
+
+/**
+ * Full-text index over {@link LabelEntry} names, for matching labels by
+ * word prefix. Holds no copy of the names; Room keeps it in step with the
+ * labels table by triggers. Its docid is the label's id.
+ */
+@Fts4(contentEntity = LabelEntry.class)
+@Entity(tableName = "labels_fts")
+public class LabelFts {
+
+    @NonNull
+    public String name;
+
+    public LabelFts(@NonNull String name) {
+        this.name = name;
+    }
+}
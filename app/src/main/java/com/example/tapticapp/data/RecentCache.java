@@ -0,0 +1,176 @@
+package com.example.tapticapp.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The newest rows of the history, kept in memory so a subscriber's first
+ * page needs no query. A ring of fixed capacity, newest first: a new
+ * detection goes in front and pushes the oldest row out, without shifting.
+ * Rows synced from peers can be older and are inserted in place.
+ *
+ * The cache always holds the newest rows of the table, or all of them
+ * when there are fewer than its capacity. Removing rows can leave it
+ * short of that, in which case it is marked stale and must be reloaded
+ * with {@link #load} before use. Not thread-safe; the repository uses it
+ * from its executor only.
+ */
+final class RecentCache {
+
+    private final DetectionEvent[] ring;
+    private int head;
+    private int size;
+    // Whether rows older than the oldest cached one may exist
+    private boolean truncated;
+    private boolean stale = true;
+
+    RecentCache(int capacity) {
+        ring = new DetectionEvent[capacity];
+    }
+
+    int capacity() {
+        return ring.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * True until the first {@link #load} and after removals left the
+     * cache short.
+     */
+    boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * Replace the contents with the newest rows, newest first, as returned
+     * by a query limited to {@link #capacity()}.
+     */
+    void load(List<DetectionEvent> newest) {
+        Arrays.fill(ring, null);
+        head = 0;
+        size = Math.min(newest.size(), ring.length);
+        for (int i = 0; i < size; i++) {
+            ring[i] = newest.get(i);
+        }
+        truncated = newest.size() >= ring.length;
+        stale = false;
+    }
+
+    /**
+     * Add stored rows, in any order.
+     */
+    void insert(List<DetectionEvent> events) {
+        for (DetectionEvent event : events) {
+            insert(event);
+        }
+    }
+
+    private void insert(DetectionEvent event) {
+        int position = insertionPoint(event);
+        if (position == size && size == ring.length) {
+            // Older than everything kept; stays in the table only
+            truncated = true;
+            return;
+        }
+        if (size == ring.length) {
+            size--;
+            truncated = true;
+        }
+        if (position == 0) {
+            head = (head + ring.length - 1) % ring.length;
+        } else {
+            for (int i = size; i > position; i--) {
+                ring[index(i)] = ring[index(i - 1)];
+            }
+        }
+        ring[index(position)] = event;
+        size++;
+    }
+
+    /**
+     * Drop rows by id. If that leaves fewer rows than the table may still
+     * have, the cache becomes stale.
+     */
+    void remove(Collection<Long> ids) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            DetectionEvent event = ring[index(i)];
+            if (!ids.contains(event.id)) {
+                ring[index(kept++)] = event;
+            }
+        }
+        if (kept == size)
+            return;
+        for (int i = kept; i < size; i++) {
+            ring[index(i)] = null;
+        }
+        size = kept;
+        if (truncated)
+            stale = true;
+    }
+
+    /**
+     * Drop rows older than {@code cutoff}, after the table was trimmed to
+     * the same cutoff. Nothing older remains, so the cache stays complete.
+     */
+    void trimBefore(long cutoff) {
+        while (size > 0 && ring[index(size - 1)].timestamp < cutoff) {
+            ring[index(--size)] = null;
+            truncated = false;
+        }
+    }
+
+    void clear() {
+        load(Collections.emptyList());
+    }
+
+    /**
+     * The cached rows, newest first.
+     */
+    List<DetectionEvent> snapshot(int limit) {
+        int count = Math.min(limit, size);
+        List<DetectionEvent> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(ring[index(i)]);
+        }
+        return events;
+    }
+
+    private int index(int position) {
+        return (head + position) % ring.length;
+    }
+
+    /**
+     * Position of the first cached row that sorts after {@code event}, by
+     * timestamp and then id, newest first.
+     */
+    private int insertionPoint(DetectionEvent event) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareNewestFirst(ring[index(mid)], event) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Order of the history: newest first, ties by id, as the keyset cursor
+     * walks it.
+     */
+    static int compareNewestFirst(DetectionEvent a, DetectionEvent b) {
+        if (a.timestamp != b.timestamp)
+            return a.timestamp > b.timestamp ? -1 : 1;
+        return Long.compare(b.id, a.id);
+    }
+}
@@ -0,0 +1,18 @@
+package com.example.tapticapp.data;
+
+/**
+ * Detections of one label from one source over a bucket of time (an
+ * hour, a day or a whole range), as read from the rollup tables.
+ */
+public class RollupStats {
+
+    public String label;
+    public String deviceName; // null for local detections
+    /** Start of the bucket, or of the range for totals. */
+    public long bucketStart;
+
+    public int events;
+    public int emergencies;
+    public double meanConfidence;
+    public double maxConfidence;
+}
@@ -0,0 +1,516 @@
+package com.example.tapticapp.data;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A continuous record of what was heard: for every classified frame, the
+ * top {@link #TOP_K} classes with scores quantized to 8 bits, and the
+ * level. Unlike history, which only keeps notifications.
+ *
+ * Frames are appended to one memory-mapped file per local day, in blocks
+ * of {@link #BLOCK_BYTES}. Each block starts with a header: its time
+ * range, frame count, loudest level and, for every class, the highest
+ * score it had in the block. A query reads headers first and only reads
+ * the frames of blocks that can match, so a search for a rare sound
+ * reads little more than the headers, an eighth of the file. A frame is
+ * 16 bytes; a day of 2 Hz frames takes about 3.2 MB.
+ *
+ * {@link #append} runs on the classification thread and only copies into
+ * the mapping: no allocation, lock or I/O. Files are opened, mapped,
+ * trimmed and deleted on the timeline's own thread, which maps the next
+ * day's file ahead of time. A frame that arrives before its file is ready
+ * is dropped.
+ *
+ * Block layout, big-endian: magic (4), first and last frame time (8 + 8),
+ * frame count (2), loudest level (1), unused (1), per-class max score (one
+ * byte per class), padding to 16, then the frames. Frame: milliseconds
+ * after the block's first frame (4), level (1), class count (1), class
+ * indices (2 each), scores (1 each), padding. A block's magic is written
+ * last and its frame count after the frame, so a crash leaves whole
+ * frames.
+ */
+public class SoundTimeline {
+
+    private static final String TAG = "SoundTimeline";
+    public static final String TIMELINE_DIR = "timeline";
+    public static final int TOP_K = 3;
+    public static final int MAX_RETENTION_DAYS = 30;
+    static final int BLOCK_BYTES = 4096;
+    static final int FRAME_BYTES = 16;
+    // A day of frames at up to ~2.3 Hz; the file is sparse until written
+    static final int MAX_BLOCKS_PER_DAY = 1024;
+    private static final int MAGIC = 0x544C4231; // "TLB1"
+    private static final String SUFFIX = ".tl";
+
+    // Header offsets
+    private static final int FIRST_TIME = 4;
+    private static final int LAST_TIME = 12;
+    private static final int FRAME_COUNT = 20;
+    private static final int MAX_LEVEL = 22;
+    private static final int CLASS_MAX = 24;
+
+    // Frame offsets
+    private static final int FRAME_LEVEL = 4;
+    private static final int FRAME_CLASSES = 5;
+    private static final int FRAME_INDICES = 6;
+    private static final int FRAME_SCORES = FRAME_INDICES + 2 * TOP_K;
+
+    /**
+     * One frame read back from the timeline.
+     */
+    public static final class Frame {
+        public final long timestamp;
+        public final float level;
+        public final int[] classes;
+        public final float[] scores;
+
+        Frame(long timestamp, float level, int[] classes, float[] scores) {
+            this.timestamp = timestamp;
+            this.level = level;
+            this.classes = classes;
+            this.scores = scores;
+        }
+    }
+
+    /**
+     * A day file, mapped for writing.
+     */
+    private static final class Day {
+        final long start;
+        final long end;
+        final MappedByteBuffer buffer;
+        // Writer thread once published
+        int blocks;
+
+        Day(long start, long end, MappedByteBuffer buffer, int blocks) {
+            this.start = start;
+            this.end = end;
+            this.buffer = buffer;
+            this.blocks = blocks;
+        }
+    }
+
+    private final File dir;
+    private final int numClasses;
+    private final int headerBytes;
+    private final int framesPerBlock;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Runnable prepareTask = this::prepare;
+    private final AtomicBoolean preparing = new AtomicBoolean();
+
+    // Day being written, switched by the writer, and the one after it,
+    // mapped by the timeline's thread
+    private volatile Day current;
+    private volatile Day next;
+    // Latest frame time seen by the writer, for the timeline's thread
+    private volatile long wantedTime;
+    private volatile int retentionDays = MAX_RETENTION_DAYS;
+
+    // Writer thread only
+    private final int[] topClasses = new int[TOP_K];
+    private final float[] topScores = new float[TOP_K];
+    private int blockAt = -1;
+    private int blockFrames;
+    private long blockFirst;
+    private long blockLast;
+
+    private final AtomicLong framesWritten = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong blocksRead = new AtomicLong();
+    private final AtomicLong blocksSkipped = new AtomicLong();
+
+    /**
+     * A timeline of frames with {@code numClasses} scores, kept in
+     * {@code dir}. Nothing is recorded until {@link #start()}.
+     */
+    public SoundTimeline(File dir, int numClasses) {
+        this.dir = dir;
+        this.numClasses = numClasses;
+        this.headerBytes = (CLASS_MAX + numClasses + FRAME_BYTES - 1) / FRAME_BYTES * FRAME_BYTES;
+        this.framesPerBlock = (BLOCK_BYTES - headerBytes) / FRAME_BYTES;
+    }
+
+    /**
+     * Open today's file, and tomorrow's, in the background.
+     */
+    public void start() {
+        start(System.currentTimeMillis());
+    }
+
+    void start(long now) {
+        requestDay(now);
+    }
+
+    /**
+     * Days of frames to keep, at most {@link #MAX_RETENTION_DAYS}; 0 keeps
+     * the most. Older day files are deleted when the next day starts.
+     */
+    public void setRetentionDays(int days) {
+        retentionDays = days <= 0 ? MAX_RETENTION_DAYS : Math.min(days, MAX_RETENTION_DAYS);
+    }
+
+    /**
+     * Record one frame. Classification thread only, or one thread at a
+     * time; never blocks or allocates.
+     */
+    public void append(long timestamp, float[] scores, double level) {
+        Day day = current;
+        if (day == null || timestamp < day.start || timestamp >= day.end) {
+            Day upcoming = next;
+            if (upcoming == null || timestamp < upcoming.start || timestamp >= upcoming.end) {
+                framesDropped.incrementAndGet();
+                requestDay(timestamp);
+                return;
+            }
+            current = day = upcoming;
+            blockAt = -1;
+            // Map the day after, and trim and expire the old ones
+            requestDay(timestamp);
+        }
+        if (blockAt < 0 || blockFrames == framesPerBlock || timestamp < blockLast) {
+            if (!startBlock(day, timestamp)) {
+                framesDropped.incrementAndGet();
+                return;
+            }
+        }
+        int count = selectTop(scores);
+        ByteBuffer buffer = day.buffer;
+        int frame = blockAt + headerBytes + blockFrames * FRAME_BYTES;
+        byte levelByte = quantize((float) level);
+        buffer.putInt(frame, (int) (timestamp - blockFirst));
+        buffer.put(frame + FRAME_LEVEL, levelByte);
+        buffer.put(frame + FRAME_CLASSES, (byte) count);
+        for (int i = 0; i < count; i++) {
+            int classIndex = topClasses[i];
+            byte score = quantize(topScores[i]);
+            buffer.putShort(frame + FRAME_INDICES + 2 * i, (short) classIndex);
+            buffer.put(frame + FRAME_SCORES + i, score);
+            int max = blockAt + CLASS_MAX + classIndex;
+            if ((score & 0xFF) > (buffer.get(max) & 0xFF))
+                buffer.put(max, score);
+        }
+        if ((levelByte & 0xFF) > (buffer.get(blockAt + MAX_LEVEL) & 0xFF))
+            buffer.put(blockAt + MAX_LEVEL, levelByte);
+        buffer.putLong(blockAt + LAST_TIME, timestamp);
+        blockFrames++;
+        blockLast = timestamp;
+        buffer.putShort(blockAt + FRAME_COUNT, (short) blockFrames);
+        framesWritten.incrementAndGet();
+    }
+
+    /**
+     * Frames in [{@code from}, {@code to}) that scored at least
+     * {@code minScore} for {@code classIndex}, or all frames if it is
+     * negative, oldest first. Reads the files; not for the main thread.
+     */
+    public List<Frame> query(long from, long to, int classIndex, float minScore) {
+        List<Frame> frames = new ArrayList<>();
+        if (classIndex >= numClasses)
+            return frames;
+        int threshold = classIndex >= 0 ? Math.max(1, quantize(minScore) & 0xFF) : 0;
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_BYTES);
+        for (File file : dayFiles()) {
+            long start = dayStartOf(file);
+            if (start >= to || nextDay(start) <= from)
+                continue;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                FileChannel channel = raf.getChannel();
+                long blocks = Math.min(channel.size() / BLOCK_BYTES, MAX_BLOCKS_PER_DAY);
+                for (long i = 0; i < blocks; i++) {
+                    block.clear().limit(headerBytes);
+                    readFully(channel, block, i * BLOCK_BYTES);
+                    if (block.getInt(0) != MAGIC)
+                        break;
+                    int count = Math.min(block.getShort(FRAME_COUNT), framesPerBlock);
+                    if (count <= 0 || block.getLong(FIRST_TIME) >= to || block.getLong(LAST_TIME) < from
+                            || (classIndex >= 0 && (block.get(CLASS_MAX + classIndex) & 0xFF) < threshold)) {
+                        blocksSkipped.incrementAndGet();
+                        continue;
+                    }
+                    blocksRead.incrementAndGet();
+                    block.limit(headerBytes + count * FRAME_BYTES);
+                    readFully(channel, block, i * BLOCK_BYTES + headerBytes);
+                    readFrames(block, count, from, to, classIndex, threshold, frames);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read " + file, e);
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Stop. Frames appended after this are dropped.
+     */
+    public void close() {
+        current = null;
+        next = null;
+        executor.shutdown();
+    }
+
+    // Stats
+
+    public long getFramesWritten() {
+        return framesWritten.get();
+    }
+
+    /**
+     * Frames that arrived before their day's file was ready, or after it
+     * was full.
+     */
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    /**
+     * Blocks whose frames queries read, and blocks their headers ruled out.
+     */
+    public long getBlocksRead() {
+        return blocksRead.get();
+    }
+
+    public long getBlocksSkipped() {
+        return blocksSkipped.get();
+    }
+
+    /**
+     * Wait for the timeline's thread to catch up.
+     */
+    void sync() throws InterruptedException, ExecutionException {
+        executor.submit(() -> {
+        }).get();
+    }
+
+    int framesPerBlock() {
+        return framesPerBlock;
+    }
+
+    private boolean startBlock(Day day, long timestamp) {
+        if (day.blocks == MAX_BLOCKS_PER_DAY)
+            return false;
+        ByteBuffer buffer = day.buffer;
+        int at = day.blocks * BLOCK_BYTES;
+        buffer.putLong(at + FIRST_TIME, timestamp);
+        buffer.putLong(at + LAST_TIME, timestamp);
+        buffer.putShort(at + FRAME_COUNT, (short) 0);
+        buffer.put(at + MAX_LEVEL, (byte) 0);
+        for (int i = 0; i < numClasses; i++) {
+            buffer.put(at + CLASS_MAX + i, (byte) 0);
+        }
+        buffer.putInt(at, MAGIC);
+        day.blocks++;
+        blockAt = at;
+        blockFrames = 0;
+        blockFirst = timestamp;
+        blockLast = timestamp;
+        return true;
+    }
+
+    /**
+     * The highest scores into {@link #topClasses}, best first. Returns how
+     * many, those that quantize above 0.
+     */
+    private int selectTop(float[] scores) {
+        int count = 0;
+        int length = Math.min(scores.length, numClasses);
+        for (int c = 0; c < length; c++) {
+            float score = scores[c];
+            if (score < 0.5f / 255 || (count == TOP_K && score <= topScores[TOP_K - 1]))
+                continue;
+            int i = count < TOP_K ? count++ : TOP_K - 1;
+            while (i > 0 && topScores[i - 1] < score) {
+                topScores[i] = topScores[i - 1];
+                topClasses[i] = topClasses[i - 1];
+                i--;
+            }
+            topScores[i] = score;
+            topClasses[i] = c;
+        }
+        return count;
+    }
+
+    private void readFrames(ByteBuffer block, int count, long from, long to, int classIndex, int threshold,
+            List<Frame> out) {
+        long first = block.getLong(FIRST_TIME);
+        for (int f = 0; f < count; f++) {
+            int frame = headerBytes + f * FRAME_BYTES;
+            long timestamp = first + block.getInt(frame);
+            if (timestamp < from || timestamp >= to)
+                continue;
+            int classes = Math.min(block.get(frame + FRAME_CLASSES), TOP_K);
+            boolean match = classIndex < 0;
+            for (int i = 0; i < classes && !match; i++) {
+                match = block.getShort(frame + FRAME_INDICES + 2 * i) == classIndex
+                        && (block.get(frame + FRAME_SCORES + i) & 0xFF) >= threshold;
+            }
+            if (!match)
+                continue;
+            int[] indices = new int[classes];
+            float[] scores = new float[classes];
+            for (int i = 0; i < classes; i++) {
+                indices[i] = block.getShort(frame + FRAME_INDICES + 2 * i);
+                scores[i] = (block.get(frame + FRAME_SCORES + i) & 0xFF) / 255f;
+            }
+            out.add(new Frame(timestamp, (block.get(frame + FRAME_LEVEL) & 0xFF) / 255f, indices, scores));
+        }
+    }
+
+    private void requestDay(long timestamp) {
+        wantedTime = timestamp;
+        if (preparing.compareAndSet(false, true))
+            executor.execute(prepareTask);
+    }
+
+    /**
+     * Map the day the writer needs next: the day after its current one, or
+     * the day of its latest frame if it has none. Then trim the files of
+     * past days to their blocks and delete expired ones. Timeline thread.
+     */
+    private void prepare() {
+        preparing.set(false);
+        long time = wantedTime;
+        Day day = current;
+        long today = dayStart(time);
+        long needed = day != null && day.start == today ? day.end : today;
+        Day upcoming = next;
+        if (upcoming == null || upcoming.start != needed) {
+            try {
+                next = openDay(needed);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to open timeline for " + needed, e);
+            }
+        }
+        sweep(today);
+    }
+
+    private Day openDay(long start) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, start + SUFFIX), "rw")) {
+            long length = (long) MAX_BLOCKS_PER_DAY * BLOCK_BYTES;
+            if (raf.length() < length)
+                raf.setLength(length);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            int blocks = 0;
+            while (blocks < MAX_BLOCKS_PER_DAY && buffer.getInt(blocks * BLOCK_BYTES) == MAGIC) {
+                blocks++;
+            }
+            return new Day(start, nextDay(start), buffer, blocks);
+        }
+    }
+
+    /**
+     * Delete day files past retention and cut those before {@code today},
+     * which are no longer written, down to their blocks.
+     */
+    private void sweep(long today) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(today);
+        calendar.add(Calendar.DAY_OF_MONTH, -retentionDays);
+        long cutoff = calendar.getTimeInMillis();
+        for (File file : dayFiles()) {
+            long start = dayStartOf(file);
+            if (start < cutoff) {
+                if (!file.delete())
+                    Log.w(TAG, "Failed to delete " + file);
+            } else if (start < today) {
+                trim(file);
+            }
+        }
+    }
+
+    private void trim(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            long blocks = 0;
+            long total = Math.min(channel.size() / BLOCK_BYTES, MAX_BLOCKS_PER_DAY);
+            while (blocks < total) {
+                magic.clear();
+                readFully(channel, magic, blocks * BLOCK_BYTES);
+                if (magic.getInt(0) != MAGIC)
+                    break;
+                blocks++;
+            }
+            if (channel.size() > blocks * BLOCK_BYTES)
+                channel.truncate(blocks * BLOCK_BYTES);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to trim " + file, e);
+        }
+    }
+
+    /**
+     * Day files, oldest first.
+     */
+    private File[] dayFiles() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX) && dayStartOf(name) >= 0);
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files, (a, b) -> Long.compare(dayStartOf(a), dayStartOf(b)));
+        return files;
+    }
+
+    private static long dayStartOf(File file) {
+        return dayStartOf(file.getName());
+    }
+
+    private static long dayStartOf(String name) {
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Truncated timeline");
+            position += read;
+        }
+    }
+
+    /**
+     * A value in [0, 1] as an unsigned byte.
+     */
+    private static byte quantize(float value) {
+        return (byte) Math.round(Math.min(1f, Math.max(0f, value)) * 255);
+    }
+
+    /**
+     * Local midnight at the start of the day holding {@code time}.
+     */
+    static long dayStart(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private static long nextDay(long dayStart) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(dayStart);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.tapticapp.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * A peer device name, stored once and referenced by
+ * {@link DetectionRow#sourceId}.
+ */
+@Entity(tableName = "sources", indices = { @Index(value = { "name" }, unique = true) })
+public class SourceEntry {
+
+    @PrimaryKey(autoGenerate = true)
+    public long id;
+
+    @NonNull
+    public String name;
+
+    public SourceEntry(@NonNull String name) {
+        this.name = name;
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.tapticapp.data;
+
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * Highest history sequence number held from one origin device. Kept apart
+ * from the rows so trimming old history does not make sync pull them
+ * again. For this device's own id it is the last sequence number assigned.
+ */
+@Entity(tableName = "sync_state")
+public class SyncState {
+
+    @PrimaryKey
+    public long originDevice;
+
+    public long highWater;
+
+    public SyncState(long originDevice, long highWater) {
+        this.originDevice = originDevice;
+        this.highWater = highWater;
+    }
+}
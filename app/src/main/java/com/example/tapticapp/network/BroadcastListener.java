@@ -1,48 +1,172 @@
 package com.example.tapticapp.network;
 
-import android.os.Build;
 import android.util.Log;
-import org.json.JSONObject;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import com.example.tapticapp.config.ConfigSnapshot;
+import com.example.tapticapp.config.NetworkSettings;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * Listens for sound detection broadcasts from other Taptic devices.
+ *
+ * Accepts both {@link WireProtocol} binary frames and the legacy JSON
+ * format. Binary class ids are resolved to labels through the current
+ * config snapshot, so peers must run the same model. The socket joins the
+ * configured multicast group and also receives broadcasts (see
+ * {@link PeerTransport}).
+ *
+ * One thread waits on a Selector over a non-blocking DatagramChannel and
+ * drains every queued datagram into a single direct buffer. Both formats
+ * are parsed in place; labels the user has not subscribed to (the
+ * broadcast-listen flag) are dropped before anything is allocated, and
+ * device names are interned, so a flood of traffic costs little more than
+ * the reads themselves. Before any of that, a {@link FloodGuard} drops
+ * packets from sources over their rate limit, so a looping or hostile peer
+ * cannot flood the callbacks, history or notifications.
+ *
+ * Own frames are recognised by device id. Duplicates (the same frame
+ * received on two interfaces, retries, relays) are dropped by a
+ * {@link DedupCache} before they reach the callback. Every packet from
+ * another device, heartbeats included, updates the {@link PeerRegistry}.
+ *
+ * Frames carrying an emergency event are acked straight back to the
+ * sender, duplicates included, since the retransmit that produced the
+ * duplicate means our earlier ack was lost. Acks for our own frames are
+ * passed to the {@link AckCallback}.
+ *
+ * Scores frames are not events: their entries go to the
+ * {@link ScoresCallback} as fusion evidence, with the capture time moved
+ * onto our clock using the peer's estimated clock offset.
  */
 public class BroadcastListener {
 
     private static final String TAG = "BroadcastListener";
-    private static final int PORT = 50000;
+    private static final int MAX_DATAGRAM = 2048;
+    private static final int MAX_DEVICE_NAMES = 256;
+    private static final int MAX_LABELS = 1024;
+    private static final long JSON_DEDUP_TTL_MS = 5000;
 
     public interface BroadcastCallback {
-        void onEventReceived(String eventLabel, String deviceName);
+        /**
+         * @param classIndex model class index
+         * @param score      sender's confidence; 1.0 for JSON events
+         */
+        void onEventReceived(int classIndex, String eventLabel, double score, String deviceName);
     }
 
+    public interface AckCallback {
+        /**
+         * A peer acked our events frame {@code sequence}. Called on the
+         * listener thread.
+         */
+        void onAck(long peerId, long sequence);
+    }
+
+    public interface ScoresCallback {
+        /**
+         * A peer's raw score for a class, captured at {@code capturedAtMs}
+         * on our clock. Called on the listener thread.
+         */
+        void onPeerScore(long peerId, int classIndex, double score, long capturedAtMs);
+    }
+
+    private final long localDeviceId;
+    // As our sender writes it in JSON "device"
+    private final byte[] localDeviceHex;
+    private final Supplier<ConfigSnapshot> configSupplier;
+    private final Supplier<NetworkSettings> networkSettings;
+    private final PeerRegistry registry;
     private final BroadcastCallback callback;
-    private DatagramSocket socket;
-    private boolean isRunning = false;
+    private volatile boolean isRunning = false;
+    private volatile boolean reconfigureRequested = false;
     private Thread listenerThread;
+    private Selector selector;
+    private volatile AckCallback ackCallback;
+    private volatile ScoresCallback scoresCallback;
 
-    public BroadcastListener(BroadcastCallback callback) {
+    // Owned by the listener thread
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+    private final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(WireProtocol.HEADER_SIZE + WireProtocol.ACK_SIZE);
+    private DatagramChannel channel;
+    // Set by the peer simulator: bind here and send acks to this port
+    private InetSocketAddress simulatedAddress;
+    private int ackPort = PeerTransport.PORT;
+    private final WireProtocol.Frame frame = new WireProtocol.Frame();
+    private final ByteBuffer frameHost = ByteBuffer.wrap(frame.host);
+    private final ByteStringTable deviceNames = new ByteStringTable(MAX_DEVICE_NAMES, false);
+    private final ByteStringTable labelIndex = new ByteStringTable(MAX_LABELS, true);
+    private final DedupCache dedup = new DedupCache(JSON_DEDUP_TTL_MS);
+    private final FloodGuard floodGuard = new FloodGuard();
+    private ConfigSnapshot indexedConfig;
+
+    // Counters
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong packetsMalformed = new AtomicLong();
+    private final AtomicLong eventsFiltered = new AtomicLong();
+    private final AtomicLong eventsDuplicate = new AtomicLong();
+    private final AtomicLong eventsDelivered = new AtomicLong();
+    private final AtomicLong acksSent = new AtomicLong();
+
+    public BroadcastListener(long localDeviceId, Supplier<ConfigSnapshot> configSupplier,
+            Supplier<NetworkSettings> networkSettings, PeerRegistry registry, BroadcastCallback callback) {
+        this.localDeviceId = localDeviceId;
+        this.localDeviceHex = Long.toHexString(localDeviceId).getBytes(StandardCharsets.US_ASCII);
+        this.configSupplier = configSupplier;
+        this.networkSettings = networkSettings;
+        this.registry = registry;
         this.callback = callback;
     }
 
+    /**
+     * Called when a peer acks one of our emergency frames.
+     */
+    public void setAckCallback(AckCallback ackCallback) {
+        this.ackCallback = ackCallback;
+    }
+
+    /**
+     * Called with every entry of peers' scores frames.
+     */
+    public void setScoresCallback(ScoresCallback scoresCallback) {
+        this.scoresCallback = scoresCallback;
+    }
+
+    /**
+     * Bind to {@code address} instead of the peer port, without joining
+     * multicast, and send acks to {@code ackPort}. For the peer simulator;
+     * call before {@link #start()}.
+     */
+    void useSimulatedNetwork(InetSocketAddress address, int ackPort) {
+        this.simulatedAddress = address;
+        this.ackPort = ackPort;
+    }
+
     public void start() {
         if (isRunning)
             return;
 
         isRunning = true;
-        listenerThread = new Thread(this::listenForBroadcasts);
+        listenerThread = new Thread(this::listenForBroadcasts, "taptic-listener");
         listenerThread.start();
         Log.d(TAG, "Broadcast listener started");
     }
 
     public void stop() {
         isRunning = false;
-        if (socket != null) {
-            socket.close();
-            socket = null;
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
         }
         if (listenerThread != null) {
             listenerThread.interrupt();
@@ -50,51 +174,347 @@ public class BroadcastListener {
         }
     }
 
-    private void listenForBroadcasts() {
-        try {
-            socket = new DatagramSocket(PORT);
-            socket.setReuseAddress(true);
+    /**
+     * Re-read the network settings and rejoin the multicast group. Call
+     * after the settings change.
+     */
+    public void reconfigure() {
+        reconfigureRequested = true;
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
 
-            byte[] buffer = new byte[2048];
-            String thisDeviceName = getDeviceName();
+    // Counters
 
-            while (isRunning) {
-                try {
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                    socket.receive(packet);
+    public long getPacketsReceived() {
+        return packetsReceived.get();
+    }
+
+    public long getPacketsMalformed() {
+        return packetsMalformed.get();
+    }
+
+    /**
+     * Events dropped because the label is unknown or not subscribed.
+     */
+    public long getEventsFiltered() {
+        return eventsFiltered.get();
+    }
+
+    /**
+     * Events dropped because they had already been received.
+     */
+    public long getEventsDuplicate() {
+        return eventsDuplicate.get();
+    }
+
+    public long getEventsDelivered() {
+        return eventsDelivered.get();
+    }
+
+    public long getAcksSent() {
+        return acksSent.get();
+    }
 
-                    String jsonText = new String(packet.getData(), packet.getOffset(), packet.getLength(),
-                            StandardCharsets.UTF_8);
-                    JSONObject json = new JSONObject(jsonText);
+    /**
+     * Packets dropped unparsed because their source was over its rate limit.
+     */
+    public long getPacketsThrottled() {
+        return floodGuard.getPacketsThrottled();
+    }
+
+    /**
+     * Packets dropped unparsed because all sources together were over budget.
+     */
+    public long getPacketsOverBudget() {
+        return floodGuard.getPacketsOverBudget();
+    }
 
-                    String eventLabel = json.optString("type");
-                    String deviceName = json.optString("host", "Unknown");
+    public long getFloodReports() {
+        return floodGuard.getFloodReports();
+    }
+
+    private void listenForBroadcasts() {
+        MembershipKey membership = null;
+        try {
+            channel = simulatedAddress != null
+                    ? PeerTransport.openLoopback(simulatedAddress)
+                    : PeerTransport.openListener();
+            channel.configureBlocking(false);
+            reconfigureRequested = false;
+            if (simulatedAddress == null) {
+                membership = PeerTransport.join(channel, networkSettings.get());
+            }
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
 
-                    // Ignore own messages
-                    if (deviceName.equals(thisDeviceName))
-                        continue;
+            while (isRunning) {
+                selector.select();
+                selector.selectedKeys().clear();
 
-                    if (eventLabel != null && !eventLabel.isEmpty()) {
-                        Log.d(TAG, "Received broadcast: " + eventLabel + " from " + deviceName);
-                        callback.onEventReceived(eventLabel, deviceName);
+                if (reconfigureRequested && simulatedAddress == null) {
+                    reconfigureRequested = false;
+                    if (membership != null) {
+                        membership.drop();
                     }
+                    membership = PeerTransport.join(channel, networkSettings.get());
+                }
 
-                } catch (Exception e) {
-                    if (isRunning)
-                        Log.e(TAG, "Error receiving packet", e);
+                // Drain everything queued on the socket before selecting again
+                while (isRunning) {
+                    buffer.clear();
+                    SocketAddress from = channel.receive(buffer);
+                    if (from == null)
+                        break;
+                    buffer.flip();
+                    packetsReceived.incrementAndGet();
+                    try {
+                        handlePacket(from instanceof InetSocketAddress
+                                ? ((InetSocketAddress) from).getAddress()
+                                : null);
+                    } catch (RuntimeException e) {
+                        packetsMalformed.incrementAndGet();
+                        Log.e(TAG, "Error handling packet", e);
+                    }
                 }
             }
         } catch (Exception e) {
-            Log.e(TAG, "Failed to start broadcast listener", e);
+            if (isRunning)
+                Log.e(TAG, "Broadcast listener failed", e);
         } finally {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+            closeQuietly(selector);
+            selector = null;
+            closeQuietly(channel);
+            channel = null;
+            isRunning = false;
+        }
+    }
+
+    private void handlePacket(InetAddress source) {
+        boolean binary = WireProtocol.isBinaryFrame(buffer);
+        long key;
+        if (binary) {
+            long deviceId = WireProtocol.peekDeviceId(buffer);
+            // Ignore own messages
+            if (deviceId == localDeviceId)
+                return;
+            key = FloodGuard.deviceKey(deviceId);
+        } else {
+            key = FloodGuard.addressKey(source);
+        }
+        if (!floodGuard.allow(key, source, System.nanoTime()))
+            return;
+
+        ConfigSnapshot config = configSupplier.get();
+        if (binary) {
+            handleFrame(config, source);
+        } else {
+            handleJson(config, source);
+        }
+    }
+
+    private void handleFrame(ConfigSnapshot config, InetAddress source) {
+        int bytes = buffer.remaining();
+        if (!WireProtocol.decode(buffer, frame)) {
+            packetsMalformed.incrementAndGet();
+            return;
+        }
+
+        if (frame.type == WireProtocol.TYPE_ACK) {
+            AckCallback acks = ackCallback;
+            if (acks != null && frame.ackedDeviceId == localDeviceId) {
+                acks.onAck(frame.deviceId, frame.sequence);
+            }
+            return;
+        }
+
+        String deviceName = deviceNames.intern(frameHost, 0, frame.hostLength);
+        if (frame.type == WireProtocol.TYPE_SCORES) {
+            handleScores(config, deviceName, source, bytes);
+            return;
+        }
+
+        int duplicates = 0;
+        boolean emergency = false;
+        for (int i = 0; i < frame.eventCount; i++) {
+            emergency |= (frame.flags[i] & WireProtocol.FLAG_EMERGENCY) != 0;
+            if (dedup.isDuplicate(frame.deviceId, (frame.sequence + i) & 0xFFFFFFFFL)) {
+                eventsDuplicate.incrementAndGet();
+                duplicates++;
+                continue;
+            }
+            int classIndex = frame.classIds[i];
+            if (!isSubscribed(config, classIndex)) {
+                eventsFiltered.incrementAndGet();
+                continue;
+            }
+            dispatch(classIndex, config.getLabel(classIndex), WireProtocol.dequantizeScore(frame.scores[i]),
+                    deviceName);
+        }
+        if (emergency) {
+            sendAck(source);
+        }
+        registry.recordFrame(frame, deviceName, source, bytes, duplicates, System.currentTimeMillis());
+    }
+
+    private void handleScores(ConfigSnapshot config, String deviceName, InetAddress source, int bytes) {
+        long clockOffsetMs = registry.recordFrame(frame, deviceName, source, bytes, 0, System.currentTimeMillis());
+        ScoresCallback scores = scoresCallback;
+        if (scores == null)
+            return;
+        long capturedAtMs = frame.timestampMs - clockOffsetMs;
+        for (int i = 0; i < frame.eventCount; i++) {
+            int classIndex = frame.classIds[i];
+            if (classIndex < config.getClassCount()) {
+                scores.onPeerScore(frame.deviceId, classIndex, WireProtocol.dequantizeScore(frame.scores[i]),
+                        capturedAtMs);
+            }
+        }
+    }
+
+    /**
+     * Ack the current frame to its source. A lost ack only costs the sender
+     * a retransmit, so failures are just logged.
+     */
+    private void sendAck(InetAddress source) {
+        if (source == null)
+            return;
+        ackBuffer.clear();
+        WireProtocol.encodeAck(ackBuffer, localDeviceId, frame.deviceId, frame.sequence, System.currentTimeMillis());
+        ackBuffer.flip();
+        try {
+            if (channel.send(ackBuffer, new InetSocketAddress(source, ackPort)) > 0) {
+                acksSent.incrementAndGet();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to send ack", e);
+        }
+    }
+
+    private void handleJson(ConfigSnapshot config, InetAddress source) {
+        int start = buffer.position();
+        int end = buffer.limit();
+        long now = System.currentTimeMillis();
+
+        // JSON copies from peers that also sent the same events as a binary
+        // frame are marked with "proto"; our own carry our device id
+        if (LegacyJson.findValue(buffer, start, end, LegacyJson.KEY_PROTO) >= 0)
+            return;
+        if (LegacyJson.stringEquals(buffer, LegacyJson.findValue(buffer, start, end, LegacyJson.KEY_DEVICE), end,
+                localDeviceHex))
+            return;
+
+        int host = LegacyJson.findValue(buffer, start, end, LegacyJson.KEY_HOST);
+        String deviceName;
+        if (host >= 0 && buffer.get(host) == '"') {
+            int hostEnd = LegacyJson.stringEnd(buffer, host, end);
+            if (hostEnd < 0) {
+                packetsMalformed.incrementAndGet();
+                return;
+            }
+            deviceName = deviceNames.intern(buffer, host + 1, hostEnd - host - 1);
+        } else {
+            deviceName = "Unknown";
+        }
+
+        if (dedup.isDuplicatePayload(DedupCache.hash(buffer, start, end), now)) {
+            eventsDuplicate.incrementAndGet();
+            registry.recordLegacy(deviceName, source, end - start, 0, true, now);
+            return;
+        }
+
+        ensureLabelIndex(config);
+
+        // Coalesced datagrams list every event in "events"
+        int labels = 0;
+        int events = LegacyJson.findValue(buffer, start, end, LegacyJson.KEY_EVENTS);
+        if (events >= 0 && buffer.get(events) == '[') {
+            int i = events + 1;
+            while (i < end) {
+                i = LegacyJson.skipWhitespace(buffer, i, end);
+                if (i >= end || buffer.get(i) != '"')
+                    break;
+                int close = LegacyJson.stringEnd(buffer, i, end);
+                if (close < 0)
+                    break;
+                dispatchJsonLabel(config, i + 1, close, deviceName);
+                labels++;
+                i = LegacyJson.skipWhitespace(buffer, close + 1, end);
+                if (i >= end || buffer.get(i) != ',')
+                    break;
+                i++;
+            }
+            registry.recordLegacy(deviceName, source, end - start, labels, false, now);
+            return;
+        }
+
+        int type = LegacyJson.findValue(buffer, start, end, LegacyJson.KEY_TYPE);
+        if (type < 0 || buffer.get(type) != '"') {
+            packetsMalformed.incrementAndGet();
+            return;
+        }
+        int typeEnd = LegacyJson.stringEnd(buffer, type, end);
+        if (typeEnd < 0) {
+            packetsMalformed.incrementAndGet();
+            return;
+        }
+        dispatchJsonLabel(config, type + 1, typeEnd, deviceName);
+        registry.recordLegacy(deviceName, source, end - start, 1, false, now);
+    }
+
+    private void dispatchJsonLabel(ConfigSnapshot config, int start, int end, String deviceName) {
+        int classIndex = labelIndex.idOf(buffer, start, end - start);
+        if (!isSubscribed(config, classIndex)) {
+            eventsFiltered.incrementAndGet();
+            return;
+        }
+        dispatch(classIndex, config.getLabel(classIndex), 1.0, deviceName);
+    }
+
+    private void dispatch(int classIndex, String eventLabel, double score, String deviceName) {
+        eventsDelivered.incrementAndGet();
+        callback.onEventReceived(classIndex, eventLabel, score, deviceName);
+    }
+
+    private static boolean isSubscribed(ConfigSnapshot config, int classIndex) {
+        return classIndex >= 0 && classIndex < config.getClassCount() && config.isBroadcastListen(classIndex);
+    }
+
+    /**
+     * Rebuild the label lookup when the model labels change. Settings-only
+     * changes produce a new snapshot with the same labels, so compare those.
+     */
+    private void ensureLabelIndex(ConfigSnapshot config) {
+        if (config == indexedConfig)
+            return;
+        if (indexedConfig == null || !sameLabels(indexedConfig, config)) {
+            labelIndex.clear();
+            for (int i = 0; i < config.getClassCount(); i++) {
+                labelIndex.put(config.getLabel(i), i);
             }
         }
+        indexedConfig = config;
     }
 
-    private String getDeviceName() {
-        String model = Build.MODEL;
-        return model != null ? model : "Android Device";
+    private static boolean sameLabels(ConfigSnapshot a, ConfigSnapshot b) {
+        if (a.getClassCount() != b.getClassCount())
+            return false;
+        for (int i = 0; i < a.getClassCount(); i++) {
+            if (!a.getLabel(i).equals(b.getLabel(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to close", e);
+        }
     }
 }
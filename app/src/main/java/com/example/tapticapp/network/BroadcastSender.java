@@ -2,46 +2,691 @@ package com.example.tapticapp.network;
 
 import android.os.Build;
 import android.util.Log;
+import com.example.tapticapp.config.NetworkSettings;
+import org.json.JSONArray;
 import org.json.JSONObject;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * Sends sound detection events to other Taptic devices on the network via UDP
- * broadcast.
+ * multicast, or broadcast when multicast is off or unavailable (see
+ * {@link PeerTransport}).
+ *
+ * Callers only enqueue; a single long-lived I/O thread owns one
+ * DatagramChannel and drains the queue. Events arriving within
+ * {@link #BATCH_WINDOW_MS} of each other are coalesced into one datagram.
+ * If the queue is full the event is dropped and counted rather than blocking
+ * the classification thread.
+ *
+ * Batches go out as {@link WireProtocol} binary frames, and every batch is
+ * also sent as legacy JSON for peers that only speak that (e.g. the
+ * desktop app, which may only listen). The JSON copy of events that had a
+ * binary frame is marked with "proto" so binary-capable listeners skip
+ * it; labels without a class id only exist in JSON and are not marked.
+ * JSON always goes out as broadcast, since legacy peers do not join the
+ * group.
+ *
+ * The same thread sends heartbeats so peers can track our presence. The
+ * interval starts at {@link #MIN_HEARTBEAT_MS} and doubles after every
+ * heartbeat up to {@link #MAX_HEARTBEAT_MS}; it drops back to the minimum
+ * when the socket is reopened or a new peer appears
+ * ({@link #requestFastHeartbeat()}), so a stable network costs about one
+ * small datagram a minute.
+ *
+ * Emergency events are the exception to fire-and-forget: each goes out in
+ * a frame of its own, and an {@link EmergencyTracker} retransmits it until
+ * every live peer has acked ({@link #onAck}) or it expires. Other events
+ * take the plain batched path untouched.
+ *
+ * Raw per-class scores for multi-device fusion ({@link #sendScores}) skip
+ * the queue: only the latest report is kept, so a slow network never backs
+ * them up, and nothing is sent unless a live peer can use them.
  */
 public class BroadcastSender {
 
     private static final String TAG = "BroadcastSender";
-    private static final int PORT = 50000;
+    private static final int QUEUE_CAPACITY = 64;
+    private static final long BATCH_WINDOW_MS = 10;
+    private static final int MAX_BATCH = 16;
+    private static final int MAX_DATAGRAM = 1400;
+    static final long MIN_HEARTBEAT_MS = 2000;
+    static final long MAX_HEARTBEAT_MS = 60_000;
+    public static final int MAX_SCORES = 8;
+    private static final int CAPABILITIES = WireProtocol.CAP_SEND_EVENTS | WireProtocol.CAP_RECEIVE_EVENTS
+            | WireProtocol.CAP_ACK | WireProtocol.CAP_FUSION | WireProtocol.CAP_HISTORY_SYNC;
     private static final SimpleDateFormat TIME_FORMAT = new SimpleDateFormat("HH:mm:ss", Locale.US);
 
-    public void sendEvent(String eventLabel) {
-        new Thread(() -> {
-            try {
-                JSONObject json = new JSONObject();
-                json.put("type", eventLabel);
-                json.put("time", TIME_FORMAT.format(new Date()));
-                json.put("host", getDeviceName());
+    private final BlockingQueue<PendingEvent> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+    private volatile boolean isRunning = false;
+    private Thread ioThread;
+    private final Supplier<NetworkSettings> networkSettings;
+    private DatagramChannel channel;
+    private NetworkSettings channelSettings;
+    private InetSocketAddress frameDestination;
+    private InetSocketAddress broadcastDestination = PeerTransport.BROADCAST_ADDRESS;
+
+    private final DeviceIdentity identity;
+    private final PeerRegistry registry;
+    private final EmergencyTracker emergencies;
+    private byte[] hostBytes = WireProtocol.encodeHost(getDeviceName());
+    // Set by the peer simulator: send everything here over loopback
+    private InetSocketAddress simulatedDestination;
+    private volatile boolean failNextEmergency;
+    private volatile boolean heartbeatResetRequested = false;
+    private volatile long heartbeatIntervalMs = MIN_HEARTBEAT_MS;
+    private long nextHeartbeatNanos;
+
+    // Scratch arrays for encoding, only touched by the I/O thread
+    private final int[] batchClassIds = new int[MAX_BATCH];
+    private final float[] batchScores = new float[MAX_BATCH];
+    private final int[] batchFlags = new int[MAX_BATCH];
+    private final List<PendingEvent> binaryEvents = new ArrayList<>(MAX_BATCH);
+    private final List<PendingEvent> jsonOnlyEvents = new ArrayList<>(MAX_BATCH);
+    private final int[] emergencyClassId = new int[1];
+    private final float[] emergencyScore = new float[1];
+    private final int[] emergencyFlags = { WireProtocol.FLAG_EMERGENCY };
+    private final int[] scoreClassIds = new int[MAX_SCORES];
+    private final float[] scoreValues = new float[MAX_SCORES];
+
+    // Latest scores report, written by the caller and taken by the I/O thread
+    private final Object scoresLock = new Object();
+    private final int[] pendingScoreClassIds = new int[MAX_SCORES];
+    private final float[] pendingScoreValues = new float[MAX_SCORES];
+    private int pendingScoreCount;
+    private long pendingScoresCapturedMs;
+    private volatile boolean scoresPending = false;
+
+    // Counters
+    private final AtomicLong eventsQueued = new AtomicLong();
+    private final AtomicLong eventsDropped = new AtomicLong();
+    private final AtomicLong eventsSent = new AtomicLong();
+    private final AtomicLong datagramsSent = new AtomicLong();
+    private final AtomicLong sendErrors = new AtomicLong();
+    private final AtomicLong jsonDatagramsSent = new AtomicLong();
+    private final AtomicLong multicastFallbacks = new AtomicLong();
+    private final AtomicLong heartbeatsSent = new AtomicLong();
+    private final AtomicLong emergenciesSent = new AtomicLong();
+    private final AtomicLong scoresSent = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    // Queued to wake the I/O thread without sending anything
+    private static final PendingEvent WAKE_UP = new PendingEvent(WireProtocol.UNKNOWN_CLASS, null, 0, 0, 0);
+
+    private static final class PendingEvent {
+        final int classId;
+        final String label;
+        final float score;
+        final int flags;
+        final long enqueuedNanos;
+
+        PendingEvent(int classId, String label, float score, int flags, long enqueuedNanos) {
+            this.classId = classId;
+            this.label = label;
+            this.score = score;
+            this.flags = flags;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    /**
+     * @param registry        peers expected to ack emergency events, and
+     *                        where their delivery stats are kept
+     * @param networkSettings current transport settings; a changed instance
+     *                        makes the sender reopen its socket before the
+     *                        next batch
+     */
+    public BroadcastSender(DeviceIdentity identity, PeerRegistry registry,
+            Supplier<NetworkSettings> networkSettings) {
+        this.identity = identity;
+        this.registry = registry;
+        this.emergencies = new EmergencyTracker(registry, new Random());
+        this.networkSettings = networkSettings;
+    }
+
+    /**
+     * Make the next emergency frame fail to send, as a broken socket
+     * would. For tests.
+     */
+    void failNextEmergencySend() {
+        failNextEmergency = true;
+    }
+
+    /**
+     * Send every datagram to {@code destination} from a loopback socket,
+     * ignoring the network settings, and announce {@code hostName}. For the
+     * peer simulator; call before {@link #start()}.
+     */
+    void useSimulatedNetwork(InetSocketAddress destination, String hostName) {
+        simulatedDestination = destination;
+        hostBytes = WireProtocol.encodeHost(hostName);
+    }
+
+    public void start() {
+        if (isRunning)
+            return;
+
+        isRunning = true;
+        ioThread = new Thread(this::runSendLoop, "taptic-sender");
+        ioThread.start();
+        Log.d(TAG, "Broadcast sender started");
+    }
+
+    public void stop() {
+        isRunning = false;
+        if (ioThread != null) {
+            ioThread.interrupt();
+            ioThread = null;
+        }
+    }
+
+    /**
+     * Send a heartbeat now and restart the adaptive interval from the
+     * minimum. Called when a new peer shows up.
+     */
+    public void requestFastHeartbeat() {
+        heartbeatResetRequested = true;
+        queue.offer(WAKE_UP);
+    }
+
+    /**
+     * A peer acked one of our emergency frames. Called from the listener
+     * thread.
+     */
+    public void onAck(long peerId, long sequence) {
+        emergencies.onAck(peerId, sequence, System.nanoTime());
+    }
+
+    /**
+     * Share raw scores for up to {@link #MAX_SCORES} classes, captured at
+     * {@code capturedAtMs}, with peers that fuse them. Replaces any report
+     * not yet sent. Never blocks; does nothing without such peers.
+     */
+    public void sendScores(int count, int[] classIds, float[] scores, long capturedAtMs) {
+        if (count == 0 || !registry.hasLivePeer(WireProtocol.CAP_FUSION))
+            return;
+        synchronized (scoresLock) {
+            pendingScoreCount = Math.min(count, MAX_SCORES);
+            System.arraycopy(classIds, 0, pendingScoreClassIds, 0, pendingScoreCount);
+            System.arraycopy(scores, 0, pendingScoreValues, 0, pendingScoreCount);
+            pendingScoresCapturedMs = capturedAtMs;
+            scoresPending = true;
+        }
+        queue.offer(WAKE_UP);
+    }
+
+    /**
+     * Queue an event for sending. Never blocks. A negative class index
+     * means the label is not a model class and can only go out as JSON.
+     */
+    public void sendEvent(int classIndex, String eventLabel, double score, boolean isEmergency) {
+        int classId = classIndex >= 0 && classIndex < WireProtocol.UNKNOWN_CLASS
+                ? classIndex
+                : WireProtocol.UNKNOWN_CLASS;
+        int flags = isEmergency ? WireProtocol.FLAG_EMERGENCY : 0;
+        PendingEvent event = new PendingEvent(classId, eventLabel, (float) score, flags, System.nanoTime());
+        if (queue.offer(event)) {
+            eventsQueued.incrementAndGet();
+        } else {
+            eventsDropped.incrementAndGet();
+            Log.w(TAG, "Send queue full, dropped: " + eventLabel);
+        }
+    }
+
+    // Counters
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getEventsQueued() {
+        return eventsQueued.get();
+    }
+
+    public long getEventsDropped() {
+        return eventsDropped.get();
+    }
+
+    public long getEventsSent() {
+        return eventsSent.get();
+    }
+
+    public long getDatagramsSent() {
+        return datagramsSent.get();
+    }
+
+    public long getSendErrors() {
+        return sendErrors.get();
+    }
+
+    public long getHeartbeatsSent() {
+        return heartbeatsSent.get();
+    }
+
+    public long getHeartbeatIntervalMs() {
+        return heartbeatIntervalMs;
+    }
+
+    public long getEmergenciesSent() {
+        return emergenciesSent.get();
+    }
+
+    /**
+     * Emergency frames acked by every peer that was live when they were
+     * sent.
+     */
+    public long getEmergenciesDelivered() {
+        return emergencies.getDelivered();
+    }
+
+    /**
+     * Emergency frames given up on with at least one peer not acking.
+     */
+    public long getEmergenciesExpired() {
+        return emergencies.getExpired();
+    }
+
+    public long getEmergencyRetransmits() {
+        return emergencies.getRetransmits();
+    }
+
+    public long getScoresSent() {
+        return scoresSent.get();
+    }
+
+    public long getJsonDatagramsSent() {
+        return jsonDatagramsSent.get();
+    }
+
+    /**
+     * Frames that failed to go out on multicast and were resent as
+     * broadcast.
+     */
+    public long getMulticastFallbacks() {
+        return multicastFallbacks.get();
+    }
+
+    /**
+     * Mean time from sendEvent() to the datagram leaving the socket.
+     */
+    public long getAverageLatencyMicros() {
+        long sent = eventsSent.get();
+        return sent == 0 ? 0 : totalLatencyNanos.get() / sent / 1000;
+    }
+
+    public long getMaxLatencyMicros() {
+        return maxLatencyNanos.get() / 1000;
+    }
 
-                byte[] payload = json.toString().getBytes(StandardCharsets.UTF_8);
+    private void runSendLoop() {
+        List<PendingEvent> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            nextHeartbeatNanos = System.nanoTime();
+            while (isRunning) {
+                if (heartbeatResetRequested) {
+                    heartbeatResetRequested = false;
+                    resetHeartbeat();
+                }
+                if (scoresPending) {
+                    sendPendingScores();
+                }
 
-                try (DatagramSocket socket = new DatagramSocket()) {
-                    socket.setBroadcast(true);
-                    InetAddress broadcastAddress = InetAddress.getByName("255.255.255.255");
-                    DatagramPacket packet = new DatagramPacket(payload, payload.length, broadcastAddress, PORT);
-                    socket.send(packet);
-                    Log.d(TAG, "Broadcast sent: " + eventLabel);
+                long now = System.nanoTime();
+                long wakeAt = nextHeartbeatNanos;
+                if (emergencies.hasPending()) {
+                    long retryAt = emergencies.nextRetryNanos(now);
+                    if (retryAt - wakeAt < 0)
+                        wakeAt = retryAt;
+                }
+                PendingEvent first = wakeAt - now > 0
+                        ? queue.poll(wakeAt - now, TimeUnit.NANOSECONDS)
+                        : null;
+                if (first == null) {
+                    if (System.nanoTime() - nextHeartbeatNanos >= 0)
+                        sendHeartbeat();
+                    if (emergencies.hasPending())
+                        retransmitEmergencies();
+                    continue;
                 }
+                if (first == WAKE_UP)
+                    continue;
+                batch.add(first);
+
+                // Coalesce whatever else arrives within the batch window
+                long deadline = first.enqueuedNanos + TimeUnit.MILLISECONDS.toNanos(BATCH_WINDOW_MS);
+                while (batch.size() < MAX_BATCH) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingEvent next = remaining > 0
+                            ? queue.poll(remaining, TimeUnit.NANOSECONDS)
+                            : queue.poll();
+                    if (next == null)
+                        break;
+                    if (next != WAKE_UP)
+                        batch.add(next);
+                }
+
+                try {
+                    ensureChannel();
+                    sendBatch(batch);
+                } catch (IOException e) {
+                    // Retried with a fresh socket on the next batch
+                    sendErrors.incrementAndGet();
+                    closeChannel();
+                    Log.e(TAG, "Failed to open sender socket", e);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Stopping
+        } catch (Exception e) {
+            Log.e(TAG, "Broadcast sender failed", e);
+        } finally {
+            closeChannel();
+            isRunning = false;
+        }
+    }
+
+    private void sendBatch(List<PendingEvent> batch) {
+        try {
+            int count = 0;
+            binaryEvents.clear();
+            jsonOnlyEvents.clear();
+            for (PendingEvent event : batch) {
+                if (event.classId == WireProtocol.UNKNOWN_CLASS) {
+                    jsonOnlyEvents.add(event);
+                    continue;
+                }
+                binaryEvents.add(event);
+                if ((event.flags & WireProtocol.FLAG_EMERGENCY) != 0) {
+                    try {
+                        sendEmergency(event);
+                    } catch (IOException e) {
+                        // Tracked, so retransmits cover it; the rest of the
+                        // batch and its JSON copy go out on a fresh socket
+                        sendErrors.incrementAndGet();
+                        closeChannel();
+                        Log.e(TAG, "Failed to send emergency", e);
+                        ensureChannel();
+                    }
+                    continue;
+                }
+                batchClassIds[count] = event.classId;
+                batchScores[count] = event.score;
+                batchFlags[count] = event.flags;
+                count++;
+            }
+
+            if (count > 0) {
+                sendBuffer.clear();
+                long sequence = identity.allocateSequences(count);
+                WireProtocol.encodeEvents(sendBuffer, identity.getDeviceId(), sequence,
+                        System.currentTimeMillis(), hostBytes, count, batchClassIds, batchScores, batchFlags);
+                sendBuffer.flip();
+                sendFrame();
+                datagramsSent.incrementAndGet();
+            }
+
+            // Labels without a class id only exist in JSON
+            if (!binaryEvents.isEmpty()) {
+                sendJson(binaryEvents, true);
+            }
+            if (!jsonOnlyEvents.isEmpty()) {
+                sendJson(jsonOnlyEvents, false);
+            }
+
+            long now = System.nanoTime();
+            for (PendingEvent event : batch) {
+                recordLatency(now - event.enqueuedNanos);
+            }
+            eventsSent.addAndGet(batch.size());
+            Log.d(TAG, "Broadcast sent: " + batch.size() + " event(s)");
+        } catch (Exception e) {
+            sendErrors.incrementAndGet();
+            Log.e(TAG, "Failed to send broadcast", e);
+        }
+    }
+
+    /**
+     * Send an emergency event in a frame of its own, so an ack for its
+     * sequence number covers exactly this event, and track it for
+     * retransmission. Tracking starts before the send so an early ack
+     * cannot be missed.
+     */
+    private void sendEmergency(PendingEvent event) throws IOException {
+        emergencyClassId[0] = event.classId;
+        emergencyScore[0] = event.score;
+        long sequence = identity.allocateSequences(1);
+        sendBuffer.clear();
+        WireProtocol.encodeEvents(sendBuffer, identity.getDeviceId(), sequence, System.currentTimeMillis(),
+                hostBytes, 1, emergencyClassId, emergencyScore, emergencyFlags);
+        sendBuffer.flip();
+        int peers = emergencies.track(sequence, sendBuffer, System.nanoTime());
+        if (failNextEmergency) {
+            failNextEmergency = false;
+            throw new IOException("Simulated send failure");
+        }
+        sendFrame();
+        datagramsSent.incrementAndGet();
+        emergenciesSent.incrementAndGet();
+        Log.d(TAG, "Emergency sent, awaiting acks from " + peers + " peer(s)");
+    }
+
+    private void sendPendingScores() {
+        int count;
+        long capturedAtMs;
+        synchronized (scoresLock) {
+            scoresPending = false;
+            count = pendingScoreCount;
+            capturedAtMs = pendingScoresCapturedMs;
+            System.arraycopy(pendingScoreClassIds, 0, scoreClassIds, 0, count);
+            System.arraycopy(pendingScoreValues, 0, scoreValues, 0, count);
+        }
+        try {
+            ensureChannel();
+            sendBuffer.clear();
+            WireProtocol.encodeScores(sendBuffer, identity.getDeviceId(), identity.allocateSequences(0),
+                    capturedAtMs, hostBytes, count, scoreClassIds, scoreValues);
+            sendBuffer.flip();
+            sendFrame();
+            datagramsSent.incrementAndGet();
+            scoresSent.incrementAndGet();
+        } catch (IOException e) {
+            // Stale by the next report anyway; not retried
+            sendErrors.incrementAndGet();
+            closeChannel();
+            Log.e(TAG, "Failed to send scores", e);
+        }
+    }
+
+    private void retransmitEmergencies() {
+        while (emergencies.pollDue(System.nanoTime(), sendBuffer)) {
+            try {
+                ensureChannel();
+                sendFrame();
+                datagramsSent.incrementAndGet();
+            } catch (IOException e) {
+                // Still scheduled; the next retry gets a fresh socket
+                sendErrors.incrementAndGet();
+                closeChannel();
+                Log.e(TAG, "Failed to retransmit emergency", e);
+            }
+        }
+    }
+
+    /**
+     * Send events as JSON, split over as many datagrams as it takes to
+     * keep each within {@link #MAX_DATAGRAM}. An event too large on its own
+     * is dropped and counted as a send error; a payload is never cut.
+     */
+    private void sendJson(List<PendingEvent> events, boolean duplicate) throws Exception {
+        byte[] payload = encodeJson(events, duplicate);
+        if (payload.length > MAX_DATAGRAM) {
+            if (events.size() == 1) {
+                sendErrors.incrementAndGet();
+                Log.w(TAG, "Event too large for a datagram: " + events.get(0).label);
+                return;
+            }
+            int half = events.size() / 2;
+            sendJson(events.subList(0, half), duplicate);
+            sendJson(events.subList(half, events.size()), duplicate);
+            return;
+        }
+        sendBuffer.clear();
+        sendBuffer.put(payload);
+        sendBuffer.flip();
+        channel.send(sendBuffer, broadcastDestination);
+        datagramsSent.incrementAndGet();
+        jsonDatagramsSent.incrementAndGet();
+    }
+
+    /**
+     * Legacy JSON format. The first event keeps the original top-level
+     * "type" field so older peers still see it; "events" lists all of them.
+     * "device" lets our own listener skip the copy; "proto" marks a
+     * {@code duplicate} of events also sent as a binary frame. Legacy peers
+     * ignore both.
+     */
+    private byte[] encodeJson(List<PendingEvent> batch, boolean duplicate) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("type", batch.get(0).label);
+        json.put("time", TIME_FORMAT.format(new Date()));
+        json.put("host", getDeviceName());
+        json.put("device", Long.toHexString(identity.getDeviceId()));
+        // Tells binary-capable listeners this is a duplicate they can skip
+        if (duplicate) {
+            json.put("proto", WireProtocol.VERSION);
+        }
+        if (batch.size() > 1) {
+            JSONArray events = new JSONArray();
+            for (PendingEvent event : batch) {
+                events.put(event.label);
+            }
+            json.put("events", events);
+        }
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * (Re)open the socket if the network settings changed since it was
+     * opened.
+     */
+    private void ensureChannel() throws IOException {
+        if (simulatedDestination != null) {
+            if (channel == null) {
+                channel = PeerTransport.openLoopback(new InetSocketAddress(simulatedDestination.getAddress(), 0));
+                frameDestination = simulatedDestination;
+                broadcastDestination = simulatedDestination;
+                resetHeartbeat();
+            }
+            return;
+        }
+
+        NetworkSettings settings = networkSettings.get();
+        if (channel != null && settings == channelSettings)
+            return;
+
+        closeChannel();
+        NetworkInterface multicastInterface = settings.multicastEnabled
+                ? PeerTransport.selectInterface(settings)
+                : null;
+        channel = PeerTransport.openSender(settings, multicastInterface);
+        frameDestination = PeerTransport.frameDestination(settings, multicastInterface);
+        channelSettings = settings;
+        Log.d(TAG, "Sending frames to " + frameDestination);
+
+        // Announce ourselves promptly on the new transport
+        resetHeartbeat();
+    }
+
+    private int capabilities() {
+        NetworkSettings settings = networkSettings.get();
+        if (settings != null && settings.inferenceRole == NetworkSettings.ROLE_HUB)
+            return CAPABILITIES | WireProtocol.CAP_INFERENCE_HUB;
+        return CAPABILITIES;
+    }
+
+    private void resetHeartbeat() {
+        heartbeatIntervalMs = MIN_HEARTBEAT_MS;
+        nextHeartbeatNanos = System.nanoTime();
+    }
+
+    private void sendHeartbeat() {
+        try {
+            ensureChannel();
+            // The interval announced is the one until the next heartbeat
+            long interval = Math.min(heartbeatIntervalMs * 2, MAX_HEARTBEAT_MS);
+            sendBuffer.clear();
+            WireProtocol.encodeHeartbeat(sendBuffer, identity.getDeviceId(), identity.allocateSequences(0),
+                    System.currentTimeMillis(), hostBytes, capabilities(), (int) ((interval + 999) / 1000));
+            sendBuffer.flip();
+            sendFrame();
+            heartbeatsSent.incrementAndGet();
+            datagramsSent.incrementAndGet();
+            heartbeatIntervalMs = interval;
+        } catch (IOException e) {
+            sendErrors.incrementAndGet();
+            closeChannel();
+            // Back off while the network is unavailable too
+            heartbeatIntervalMs = Math.min(heartbeatIntervalMs * 2, MAX_HEARTBEAT_MS);
+            Log.e(TAG, "Failed to send heartbeat", e);
+        }
+        nextHeartbeatNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(heartbeatIntervalMs);
+    }
+
+    /**
+     * Send the frame in sendBuffer; if multicast fails, resend it as
+     * broadcast.
+     */
+    private void sendFrame() throws IOException {
+        if (frameDestination == broadcastDestination) {
+            channel.send(sendBuffer, broadcastDestination);
+            return;
+        }
+        try {
+            channel.send(sendBuffer, frameDestination);
+        } catch (IOException e) {
+            multicastFallbacks.incrementAndGet();
+            Log.w(TAG, "Multicast send failed, falling back to broadcast", e);
+            sendBuffer.rewind();
+            channel.send(sendBuffer, broadcastDestination);
+        }
+    }
+
+    private void recordLatency(long nanos) {
+        totalLatencyNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxLatencyNanos.get())) {
+            if (maxLatencyNanos.compareAndSet(max, nanos))
+                break;
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
             } catch (Exception e) {
-                Log.e(TAG, "Failed to send broadcast", e);
+                Log.e(TAG, "Failed to close channel", e);
             }
-        }).start();
+            channel = null;
+        }
     }
 
     private String getDeviceName() {
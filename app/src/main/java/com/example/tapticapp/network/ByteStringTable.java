@@ -0,0 +1,138 @@
+package com.example.tapticapp.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Open-addressing table from UTF-8 byte sequences to Strings (plus an int
+ * id), looked up straight from a ByteBuffer range so the caller never has to
+ * decode a String just to find out whether it already has one.
+ *
+ * Used by the listener to resolve class labels and to intern device names.
+ * Not thread-safe; owned by the listener thread.
+ */
+final class ByteStringTable {
+
+    private final boolean ignoreAsciiCase;
+    private final int maxSize;
+    private byte[][] keys;
+    private String[] values;
+    private int[] ids;
+    private int size;
+
+    /**
+     * @param maxSize         entries kept before {@link #intern} starts over
+     * @param ignoreAsciiCase compare A-Z and a-z as equal
+     */
+    ByteStringTable(int maxSize, boolean ignoreAsciiCase) {
+        this.maxSize = maxSize;
+        this.ignoreAsciiCase = ignoreAsciiCase;
+        int capacity = Integer.highestOneBit(Math.max(4, maxSize) * 2 - 1) << 1;
+        keys = new byte[capacity][];
+        values = new String[capacity];
+        ids = new int[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(keys, null);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Add an entry, replacing any existing one with equal bytes. Entries
+     * beyond maxSize are ignored.
+     */
+    void put(String value, int id) {
+        byte[] key = value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer wrapped = ByteBuffer.wrap(key);
+        int slot = slotFor(wrapped, 0, key.length);
+        if (keys[slot] == null) {
+            if (size >= maxSize)
+                return;
+            size++;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        ids[slot] = id;
+    }
+
+    /**
+     * Id of the entry matching {@code length} bytes at absolute
+     * {@code offset}, or -1.
+     */
+    int idOf(ByteBuffer src, int offset, int length) {
+        int slot = slotFor(src, offset, length);
+        return keys[slot] != null ? ids[slot] : -1;
+    }
+
+    /**
+     * The String for the given bytes, decoding and remembering it on first
+     * sight. When the table is full it is cleared rather than grown, so a
+     * flood of distinct names cannot use unbounded memory.
+     */
+    String intern(ByteBuffer src, int offset, int length) {
+        int slot = slotFor(src, offset, length);
+        if (keys[slot] != null) {
+            return values[slot];
+        }
+        if (size >= maxSize) {
+            clear();
+            slot = slotFor(src, offset, length);
+        }
+
+        byte[] key = new byte[length];
+        for (int i = 0; i < length; i++) {
+            key[i] = src.get(offset + i);
+        }
+        String value = new String(key, StandardCharsets.UTF_8);
+        keys[slot] = key;
+        values[slot] = value;
+        ids[slot] = size;
+        size++;
+        return value;
+    }
+
+    /**
+     * Slot holding these bytes, or the empty slot where they would go.
+     */
+    private int slotFor(ByteBuffer src, int offset, int length) {
+        int mask = keys.length - 1;
+        int slot = hash(src, offset, length) & mask;
+        while (keys[slot] != null && !matches(keys[slot], src, offset, length)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int hash(ByteBuffer src, int offset, int length) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            h ^= fold(src.get(offset + i));
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private boolean matches(byte[] key, ByteBuffer src, int offset, int length) {
+        if (key.length != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (fold(key[i]) != fold(src.get(offset + i)))
+                return false;
+        }
+        return true;
+    }
+
+    private int fold(byte b) {
+        if (ignoreAsciiCase && b >= 'A' && b <= 'Z') {
+            return b + ('a' - 'A');
+        }
+        return b;
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.tapticapp.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size duplicate filter for incoming peer events.
+ *
+ * Binary events are checked against a sliding window per peer: the highest
+ * sequence number seen plus a 64-bit mask of the ones just below it, the
+ * same scheme IPsec uses for replay protection. Anything older than the
+ * window is treated as a duplicate. Up to {@link #MAX_PEERS} peers are
+ * tracked; the least recently heard one is evicted to make room.
+ *
+ * Legacy JSON has no sequence numbers, so whole datagrams are hashed into a
+ * small table with a TTL instead. The legacy payload carries the send time
+ * to the second, so identical bytes within the TTL are the same send
+ * arriving twice.
+ *
+ * All checks are constant time and allocate nothing. Not thread-safe;
+ * owned by the listener thread.
+ */
+final class DedupCache {
+
+    static final int MAX_PEERS = 64;
+    static final int WINDOW = 64;
+
+    // A jump back this far means the peer lost its counter; start over
+    private static final long RESTART_GAP = 1L << 20;
+
+    private static final int PAYLOAD_SLOTS = 256;
+
+    private final long payloadTtlMs;
+
+    private final long[] peerIds = new long[MAX_PEERS];
+    private final long[] highest = new long[MAX_PEERS];
+    private final long[] masks = new long[MAX_PEERS];
+    private final long[] lastSeen = new long[MAX_PEERS];
+    private int peerCount;
+    private long clock;
+
+    private final long[] payloadHashes = new long[PAYLOAD_SLOTS];
+    private final long[] payloadExpiry = new long[PAYLOAD_SLOTS];
+
+    DedupCache(long payloadTtlMs) {
+        this.payloadTtlMs = payloadTtlMs;
+    }
+
+    /**
+     * True if this (peer, sequence) was already seen; otherwise records it.
+     * Sequences are unsigned 32-bit and may wrap.
+     */
+    boolean isDuplicate(long peerId, long sequence) {
+        int peer = peerSlot(peerId);
+        if (peer < 0) {
+            peer = addPeer(peerId);
+            highest[peer] = sequence;
+            masks[peer] = 1;
+            return false;
+        }
+
+        int delta = (int) (sequence - highest[peer]);
+        if (delta > 0) {
+            masks[peer] = delta >= WINDOW ? 1 : (masks[peer] << delta) | 1;
+            highest[peer] = sequence;
+            return false;
+        }
+
+        long back = -(long) delta;
+        if (back >= WINDOW) {
+            if (back > RESTART_GAP) {
+                highest[peer] = sequence;
+                masks[peer] = 1;
+                return false;
+            }
+            return true;
+        }
+        long bit = 1L << back;
+        if ((masks[peer] & bit) != 0) {
+            return true;
+        }
+        masks[peer] |= bit;
+        return false;
+    }
+
+    /**
+     * True if a datagram with this hash was seen within the TTL; otherwise
+     * records it. A colliding older entry is simply overwritten.
+     */
+    boolean isDuplicatePayload(long hash, long nowMs) {
+        int slot = (int) (hash ^ (hash >>> 32)) & (PAYLOAD_SLOTS - 1);
+        if (payloadHashes[slot] == hash && payloadExpiry[slot] > nowMs) {
+            return true;
+        }
+        payloadHashes[slot] = hash;
+        payloadExpiry[slot] = nowMs + payloadTtlMs;
+        return false;
+    }
+
+    /**
+     * 64-bit FNV-1a over the bytes in [start, end).
+     */
+    static long hash(ByteBuffer buf, int start, int end) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = start; i < end; i++) {
+            h ^= buf.get(i) & 0xFF;
+            h *= 0x100000001B3L;
+        }
+        return h;
+    }
+
+    int getPeerCount() {
+        return peerCount;
+    }
+
+    private int peerSlot(long peerId) {
+        for (int i = 0; i < peerCount; i++) {
+            if (peerIds[i] == peerId) {
+                lastSeen[i] = ++clock;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int addPeer(long peerId) {
+        int slot;
+        if (peerCount < MAX_PEERS) {
+            slot = peerCount++;
+        } else {
+            slot = 0;
+            for (int i = 1; i < MAX_PEERS; i++) {
+                if (lastSeen[i] < lastSeen[slot])
+                    slot = i;
+            }
+        }
+        peerIds[slot] = peerId;
+        lastSeen[slot] = ++clock;
+        return slot;
+    }
+}
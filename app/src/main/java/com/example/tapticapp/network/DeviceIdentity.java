@@ -0,0 +1,127 @@
+package com.example.tapticapp.network;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+
+/**
+ * This device's identity on the peer network: a random 64-bit id created on
+ * first run, plus the sequence counter for outgoing events.
+ *
+ * Sequence numbers must keep increasing across restarts or peers would
+ * discard new events as duplicates. Persisting every number would mean a
+ * file write per event, so numbers are reserved in blocks of
+ * {@link #SEQUENCE_BLOCK}: only the end of the reserved block is saved, and
+ * after a restart numbering resumes from there (skipping whatever was left
+ * of the block).
+ *
+ * The file is excluded from backups so a restored phone does not clone
+ * another device's id.
+ */
+public class DeviceIdentity {
+
+    private static final String TAG = "DeviceIdentity";
+    private static final String FILE_NAME = "taptic_device.bin";
+    private static final int FILE_MAGIC = 0x54505444; // "TPTD"
+    private static final int FILE_VERSION = 1;
+    static final long SEQUENCE_BLOCK = 1024;
+
+    private static DeviceIdentity instance;
+
+    private final AtomicFile file;
+    private final long deviceId;
+    private long nextSequence;
+    private long reservedUntil;
+
+    private DeviceIdentity(AtomicFile file, long deviceId, long firstSequence) {
+        this.file = file;
+        this.deviceId = deviceId;
+        this.nextSequence = firstSequence;
+        this.reservedUntil = firstSequence;
+    }
+
+    public static synchronized DeviceIdentity getInstance(Context context) {
+        if (instance == null) {
+            AtomicFile file = new AtomicFile(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+            instance = load(file);
+        }
+        return instance;
+    }
+
+    /**
+     * An identity that is never saved, for tests and the peer simulator.
+     */
+    public static DeviceIdentity ephemeral() {
+        return new DeviceIdentity(null, new SecureRandom().nextLong(), 0);
+    }
+
+    public long getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * Reserve {@code count} consecutive sequence numbers and return the
+     * first. Saves synchronously when a new block has to be reserved, which
+     * happens once every {@link #SEQUENCE_BLOCK} numbers.
+     */
+    public synchronized long allocateSequences(int count) {
+        long first = nextSequence;
+        nextSequence += count;
+        if (nextSequence > reservedUntil) {
+            reservedUntil = nextSequence + SEQUENCE_BLOCK;
+            write();
+        }
+        return first;
+    }
+
+    private static DeviceIdentity load(AtomicFile file) {
+        if (file.getBaseFile().exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(file.openRead()))) {
+                if (in.readInt() == FILE_MAGIC && in.readInt() == FILE_VERSION) {
+                    long deviceId = in.readLong();
+                    long reservedUntil = in.readLong();
+                    return new DeviceIdentity(file, deviceId, reservedUntil);
+                }
+                Log.e(TAG, "Unrecognized identity file, creating a new identity");
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read identity, creating a new one", e);
+            }
+        }
+
+        DeviceIdentity identity = new DeviceIdentity(file, new SecureRandom().nextLong(), 0);
+        identity.write();
+        Log.d(TAG, "Created device id " + Long.toHexString(identity.deviceId));
+        return identity;
+    }
+
+    private void write() {
+        if (file == null)
+            return;
+
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeLong(deviceId);
+            out.writeLong(reservedUntil);
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write identity", e);
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+        }
+    }
+}
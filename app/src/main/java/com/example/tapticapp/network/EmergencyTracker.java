@@ -0,0 +1,216 @@
+package com.example.tapticapp.network;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Emergency frames waiting to be acked, and their retransmit schedule.
+ *
+ * A tracked frame remembers which peers were alive and able to ack when it
+ * was first sent. It is retransmitted with exponential backoff, starting at
+ * {@link #INITIAL_BACKOFF_MS} and doubling up to {@link #MAX_BACKOFF_MS},
+ * until every one of those peers has acked or {@link #DELIVERY_TIMEOUT_MS}
+ * has passed. Each delay is shortened by a random amount of up to half, so
+ * phones that heard the same alarm do not retry in lockstep. Retransmits
+ * reuse the original sequence number, so receivers drop them as duplicates
+ * once the first copy got through.
+ *
+ * Ack latency, retries and failures are reported per peer to the
+ * {@link PeerRegistry}. At most {@link #MAX_PENDING} frames are tracked;
+ * when full the oldest is given up on. Slots are preallocated.
+ *
+ * Thread-safe: the sender thread tracks and retransmits, the listener
+ * thread delivers acks.
+ */
+final class EmergencyTracker {
+
+    static final int MAX_PENDING = 8;
+    static final long INITIAL_BACKOFF_MS = 250;
+    static final long MAX_BACKOFF_MS = 4000;
+    static final long DELIVERY_TIMEOUT_MS = 30_000;
+
+    // One emergency event per frame, but leave room for a full frame
+    private static final int MAX_FRAME = WireProtocol.HEADER_SIZE + WireProtocol.MAX_HOST_BYTES
+            + WireProtocol.MAX_EVENTS * WireProtocol.EVENT_SIZE;
+
+    private static final class Pending {
+        boolean active;
+        long sequence;
+        final byte[] frame = new byte[MAX_FRAME];
+        int frameLength;
+        long firstSentNanos;
+        long nextRetryNanos;
+        long backoffMs;
+        int retries;
+        final long[] peers = new long[PeerRegistry.MAX_PEERS];
+        final boolean[] acked = new boolean[PeerRegistry.MAX_PEERS];
+        int peerCount;
+        int unacked;
+    }
+
+    private final PeerRegistry registry;
+    private final Random random;
+    private final Pending[] pending = new Pending[MAX_PENDING];
+    private final long[] peerScratch = new long[PeerRegistry.MAX_PEERS];
+    // Read without the lock so the idle sender loop costs nothing
+    private volatile int activeCount;
+
+    private long delivered;
+    private long expired;
+    private long retransmits;
+
+    EmergencyTracker(PeerRegistry registry, Random random) {
+        this.registry = registry;
+        this.random = random;
+        for (int i = 0; i < MAX_PENDING; i++) {
+            pending[i] = new Pending();
+        }
+    }
+
+    boolean hasPending() {
+        return activeCount > 0;
+    }
+
+    /**
+     * Start tracking the frame between the buffer's position and limit
+     * (left unchanged), about to be sent for the first time. Returns the
+     * number of peers expected to ack; if there are none nothing is
+     * tracked.
+     */
+    synchronized int track(long sequence, ByteBuffer frame, long nowNanos) {
+        int peerCount = registry.collectAckingPeers(peerScratch);
+        if (peerCount == 0)
+            return 0;
+
+        Pending slot = freeSlot();
+        System.arraycopy(peerScratch, 0, slot.peers, 0, peerCount);
+        slot.peerCount = peerCount;
+
+        int start = frame.position();
+        slot.frameLength = Math.min(frame.remaining(), MAX_FRAME);
+        for (int i = 0; i < slot.frameLength; i++) {
+            slot.frame[i] = frame.get(start + i);
+        }
+        for (int i = 0; i < slot.peerCount; i++) {
+            slot.acked[i] = false;
+        }
+        slot.active = true;
+        slot.sequence = sequence & 0xFFFFFFFFL;
+        slot.unacked = slot.peerCount;
+        slot.retries = 0;
+        slot.firstSentNanos = nowNanos;
+        slot.backoffMs = INITIAL_BACKOFF_MS;
+        slot.nextRetryNanos = nowNanos + jittered(INITIAL_BACKOFF_MS);
+        activeCount++;
+        return slot.peerCount;
+    }
+
+    /**
+     * Record an ack. Acks from peers we were not waiting for, and repeats,
+     * are ignored.
+     */
+    synchronized void onAck(long peerId, long sequence, long nowNanos) {
+        for (Pending slot : pending) {
+            if (!slot.active || slot.sequence != sequence)
+                continue;
+            for (int i = 0; i < slot.peerCount; i++) {
+                if (slot.peers[i] != peerId || slot.acked[i])
+                    continue;
+                slot.acked[i] = true;
+                registry.recordAck(peerId, TimeUnit.NANOSECONDS.toMillis(nowNanos - slot.firstSentNanos),
+                        slot.retries);
+                if (--slot.unacked == 0) {
+                    delivered++;
+                    release(slot);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * When the next retransmit (or expiry) is due. Only meaningful while
+     * {@link #hasPending()}.
+     */
+    synchronized long nextRetryNanos(long nowNanos) {
+        long next = nowNanos + TimeUnit.MILLISECONDS.toNanos(MAX_BACKOFF_MS);
+        for (Pending slot : pending) {
+            if (slot.active && slot.nextRetryNanos - next < 0)
+                next = slot.nextRetryNanos;
+        }
+        return next;
+    }
+
+    /**
+     * If a frame is due for retransmit, copy it into {@code out} (flipped,
+     * ready to send), schedule its next retry and return true. Frames past
+     * the delivery timeout are dropped here. Call until it returns false.
+     */
+    synchronized boolean pollDue(long nowNanos, ByteBuffer out) {
+        for (Pending slot : pending) {
+            if (!slot.active || nowNanos - slot.nextRetryNanos < 0)
+                continue;
+            if (nowNanos - slot.firstSentNanos >= TimeUnit.MILLISECONDS.toNanos(DELIVERY_TIMEOUT_MS)) {
+                giveUp(slot);
+                continue;
+            }
+            out.clear();
+            out.put(slot.frame, 0, slot.frameLength);
+            out.flip();
+            slot.retries++;
+            retransmits++;
+            slot.backoffMs = Math.min(slot.backoffMs * 2, MAX_BACKOFF_MS);
+            slot.nextRetryNanos = nowNanos + jittered(slot.backoffMs);
+            return true;
+        }
+        return false;
+    }
+
+    synchronized long getDelivered() {
+        return delivered;
+    }
+
+    synchronized long getExpired() {
+        return expired;
+    }
+
+    synchronized long getRetransmits() {
+        return retransmits;
+    }
+
+    private Pending freeSlot() {
+        Pending oldest = null;
+        for (Pending slot : pending) {
+            if (!slot.active)
+                return slot;
+            if (oldest == null || slot.firstSentNanos - oldest.firstSentNanos < 0)
+                oldest = slot;
+        }
+        giveUp(oldest);
+        return oldest;
+    }
+
+    private void giveUp(Pending slot) {
+        for (int i = 0; i < slot.peerCount; i++) {
+            if (!slot.acked[i]) {
+                registry.recordDeliveryFailure(slot.peers[i], slot.retries);
+            }
+        }
+        expired++;
+        release(slot);
+    }
+
+    private void release(Pending slot) {
+        slot.active = false;
+        activeCount--;
+    }
+
+    /**
+     * Between half and all of {@code ms}, in nanoseconds.
+     */
+    private long jittered(long ms) {
+        long half = ms / 2;
+        return TimeUnit.MILLISECONDS.toNanos(half + (long) (random.nextDouble() * (ms - half)));
+    }
+}
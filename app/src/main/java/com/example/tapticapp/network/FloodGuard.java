@@ -0,0 +1,233 @@
+package com.example.tapticapp.network;
+
+import android.util.Log;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token-bucket rate limits for incoming packets, checked before a packet is
+ * parsed so a flood costs little more than the socket reads.
+ *
+ * Each source gets a bucket of {@link #SOURCE_BURST} packets refilled at
+ * {@link #SOURCE_RATE} per second, enough for a peer batching events every
+ * 10 ms plus heartbeats and retransmits. Binary frames are keyed by the
+ * sender's device id, so peers behind one address (or a relay) are limited
+ * separately; legacy JSON is keyed by source address. All sources together
+ * share a global budget of {@link #GLOBAL_RATE} per second, which bounds
+ * floods that rotate ids or addresses.
+ *
+ * So that such a flood cannot starve the peers we already know, each source
+ * also earns a small reserved allowance of {@link #RESERVED_RATE} packets
+ * per second, starting from nothing when it is first seen. Packets covered
+ * by it skip the global budget. A peer sending at a normal rate lives on
+ * its allowance; one-shot ids from a flood never earn any.
+ *
+ * Dropped packets are not logged one by one: a source that is over its
+ * limit gets one "flood from" line when it starts and then at most one per
+ * {@link #REPORT_INTERVAL_MS}, with the number dropped since the last one.
+ *
+ * Up to {@link #MAX_SOURCES} buckets are kept. When the table is full, a
+ * source silent for {@link #IDLE_MS} is evicted if there is one, otherwise
+ * the newest, so new ids churn through one slot instead of pushing out
+ * established peers. Slots are preallocated. Used by the listener
+ * thread only; the counters may be read from any thread.
+ */
+final class FloodGuard {
+
+    private static final String TAG = "FloodGuard";
+
+    static final int MAX_SOURCES = 64;
+    static final double SOURCE_RATE = 100;
+    static final double SOURCE_BURST = 200;
+    static final double GLOBAL_RATE = 500;
+    static final double GLOBAL_BURST = 1000;
+    static final double RESERVED_RATE = 10;
+    static final double RESERVED_BURST = 50;
+    static final long IDLE_MS = 2000;
+    static final long REPORT_INTERVAL_MS = 10_000;
+
+    // Keeps address keys apart from device ids
+    private static final long ADDRESS_KEY = 1L << 63;
+
+    private static final class Source {
+        long key;
+        InetAddress address;
+        double tokens;
+        double reserved;
+        long refilledNanos;
+        long createdNanos;
+        long lastSeenNanos;
+        long dropped;
+        long reportedNanos;
+        boolean flooding;
+    }
+
+    private final Source[] sources = new Source[MAX_SOURCES];
+    private int sourceCount;
+    private double globalTokens = GLOBAL_BURST;
+    private long globalRefilledNanos;
+    private boolean globalStarted;
+    private long globalDropped;
+    private long globalReportedNanos;
+
+    private final AtomicLong packetsThrottled = new AtomicLong();
+    private final AtomicLong packetsOverBudget = new AtomicLong();
+    private final AtomicLong floodReports = new AtomicLong();
+
+    FloodGuard() {
+        for (int i = 0; i < MAX_SOURCES; i++) {
+            sources[i] = new Source();
+        }
+    }
+
+    /**
+     * Key for a binary frame from {@code deviceId}.
+     */
+    static long deviceKey(long deviceId) {
+        return deviceId & ~ADDRESS_KEY;
+    }
+
+    /**
+     * Key for a packet identified only by its source address.
+     */
+    static long addressKey(InetAddress address) {
+        return ADDRESS_KEY | (address != null ? address.hashCode() & 0xFFFFFFFFL : 0);
+    }
+
+    /**
+     * Take a token for a packet from {@code key}; false if the packet
+     * should be dropped.
+     */
+    boolean allow(long key, InetAddress address, long nowNanos) {
+        Source source = sourceFor(key, address, nowNanos);
+        source.lastSeenNanos = nowNanos;
+        source.tokens = refill(source.tokens, source.refilledNanos, nowNanos, SOURCE_RATE, SOURCE_BURST);
+        source.reserved = refill(source.reserved, source.refilledNanos, nowNanos, RESERVED_RATE, RESERVED_BURST);
+        source.refilledNanos = nowNanos;
+        if (source.tokens < 1) {
+            source.dropped++;
+            packetsThrottled.incrementAndGet();
+            reportSource(source, nowNanos);
+            return false;
+        }
+
+        // Spent even if the global budget then refuses the packet
+        source.tokens--;
+        if (source.reserved >= 1) {
+            source.reserved--;
+        } else {
+            if (!globalStarted) {
+                globalStarted = true;
+                globalRefilledNanos = nowNanos;
+            }
+            globalTokens = refill(globalTokens, globalRefilledNanos, nowNanos, GLOBAL_RATE, GLOBAL_BURST);
+            globalRefilledNanos = nowNanos;
+            if (globalTokens < 1) {
+                globalDropped++;
+                packetsOverBudget.incrementAndGet();
+                reportGlobal(nowNanos);
+                return false;
+            }
+            globalTokens--;
+        }
+        if (source.flooding) {
+            reportSource(source, nowNanos);
+        }
+        return true;
+    }
+
+    /**
+     * Packets dropped because their source was over its limit.
+     */
+    long getPacketsThrottled() {
+        return packetsThrottled.get();
+    }
+
+    /**
+     * Packets dropped because all sources together were over budget.
+     */
+    long getPacketsOverBudget() {
+        return packetsOverBudget.get();
+    }
+
+    long getFloodReports() {
+        return floodReports.get();
+    }
+
+    /**
+     * Log the drops since the last report, if one is due. The first drop of
+     * a flood is reported at once.
+     */
+    private void reportSource(Source source, long nowNanos) {
+        boolean starting = !source.flooding;
+        if (!starting && nowNanos - source.reportedNanos < TimeUnit.MILLISECONDS.toNanos(REPORT_INTERVAL_MS))
+            return;
+        if (source.dropped == 0) {
+            source.flooding = false;
+            return;
+        }
+        String from = source.address != null ? source.address.getHostAddress() : "unknown";
+        if ((source.key & ADDRESS_KEY) == 0) {
+            from += " (device " + Long.toHexString(source.key) + ")";
+        }
+        String period = starting ? ""
+                : " in the last " + TimeUnit.NANOSECONDS.toSeconds(nowNanos - source.reportedNanos) + " s";
+        Log.w(TAG, "Flood from " + from + ": " + source.dropped + " packets dropped" + period);
+        floodReports.incrementAndGet();
+        source.flooding = true;
+        source.dropped = 0;
+        source.reportedNanos = nowNanos;
+    }
+
+    private void reportGlobal(long nowNanos) {
+        if (globalReportedNanos != 0
+                && nowNanos - globalReportedNanos < TimeUnit.MILLISECONDS.toNanos(REPORT_INTERVAL_MS))
+            return;
+        Log.w(TAG, "Flood: " + globalDropped + " packets over the global budget");
+        floodReports.incrementAndGet();
+        globalDropped = 0;
+        globalReportedNanos = nowNanos;
+    }
+
+    private Source sourceFor(long key, InetAddress address, long nowNanos) {
+        for (int i = 0; i < sourceCount; i++) {
+            if (sources[i].key == key) {
+                if (address != null)
+                    sources[i].address = address;
+                return sources[i];
+            }
+        }
+        Source source;
+        if (sourceCount < MAX_SOURCES) {
+            source = sources[sourceCount++];
+        } else {
+            Source idlest = sources[0];
+            Source newest = sources[0];
+            for (int i = 1; i < MAX_SOURCES; i++) {
+                if (sources[i].lastSeenNanos - idlest.lastSeenNanos < 0)
+                    idlest = sources[i];
+                if (sources[i].createdNanos - newest.createdNanos > 0)
+                    newest = sources[i];
+            }
+            boolean idle = nowNanos - idlest.lastSeenNanos >= TimeUnit.MILLISECONDS.toNanos(IDLE_MS);
+            source = idle ? idlest : newest;
+        }
+        source.key = key;
+        source.address = address;
+        source.tokens = SOURCE_BURST;
+        source.reserved = 0;
+        source.createdNanos = nowNanos;
+        source.refilledNanos = nowNanos;
+        source.dropped = 0;
+        source.flooding = false;
+        return source;
+    }
+
+    private static double refill(double tokens, long sinceNanos, long nowNanos, double rate, double burst) {
+        long elapsed = nowNanos - sinceNanos;
+        if (elapsed <= 0)
+            return tokens;
+        return Math.min(burst, tokens + elapsed * rate / TimeUnit.SECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,571 @@
+package com.example.tapticapp.network;
+
+import android.util.Log;
+import com.example.tapticapp.data.DetectionEvent;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Catches up on the detection history a peer has and we missed, for example
+ * while this phone was off the network.
+ *
+ * Every detection a device makes gets a history sequence number from that
+ * device ({@link DetectionEvent#originSeq}). For each origin device the
+ * store remembers the highest number it holds, its high-water mark. Sync is
+ * pull-based over TCP on {@link PeerTransport#SYNC_PORT}: we send our marks
+ * and the peer streams back every row it has above them, for its own
+ * detections and for any others it has collected, so history also spreads
+ * through phones that were never on the network at the same time.
+ *
+ * Request: magic u16, version u8, max rows u16, origin count u16, then per
+ * origin its id (i64) and mark (varint).
+ *
+ * Response: magic u16, version u8, then batches of at most
+ * {@link #BATCH_ROWS} rows, each prefixed with its row count (u8); a count
+ * of 0 ends the stream. A row is about 8 bytes once the session's tables
+ * are warm:
+ * <ul>
+ * <li>origin: varint index into the session's device table; the next
+ * unused index adds an entry and is followed by the device id (i64)</li>
+ * <li>sequence: varint delta from the previous row of that origin (the
+ * first is relative to the requested mark)</li>
+ * <li>timestamp: zigzag varint delta from the previous row</li>
+ * <li>label and device name: varint reference into the session's string
+ * table, 0 for none; the next unused reference adds an entry and is
+ * followed by a varint length and UTF-8 bytes</li>
+ * <li>confidence: u8, quantized like event scores</li>
+ * <li>flags: u8, {@link WireProtocol#FLAG_EMERGENCY}</li>
+ * </ul>
+ *
+ * Rows arrive in ascending sequence order per origin and each batch is
+ * stored in one transaction together with the new marks, so a session that
+ * breaks off resumes where it stopped. A session carries at most
+ * {@link #MAX_SESSION_ROWS} rows and {@link #MAX_STRINGS} strings; the
+ * server ends the session before a batch that would need one more string,
+ * and the client asks again while either limit was reached, up to
+ * {@link #MAX_SESSIONS} times. Rows the peer no longer has (trimmed) are
+ * skipped, and a mark never moves back, so a row below it that we lack is
+ * not fetched later.
+ *
+ * A peer is pulled from when it is discovered or comes back, at most once
+ * per {@link #MIN_SYNC_INTERVAL_MS}. At most {@link #MAX_SERVER_SESSIONS}
+ * peers are served at once; more are turned away and retry later.
+ */
+public class HistorySync {
+
+    private static final String TAG = "HistorySync";
+
+    static final int MAGIC = 0x5453;
+    static final int VERSION = 1;
+    static final int BATCH_ROWS = 64;
+    static final int MAX_SESSION_ROWS = 1000;
+    static final int MAX_SESSIONS = 5;
+    static final int MAX_SERVER_SESSIONS = 2;
+    static final long MIN_SYNC_INTERVAL_MS = 30_000;
+
+    private static final int MAX_ORIGINS = 256;
+    static final int MAX_STRINGS = 256;
+    private static final int MAX_STRING_BYTES = 256;
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final int READ_TIMEOUT_MS = 5000;
+    private static final int FLAG_EMERGENCY = WireProtocol.FLAG_EMERGENCY;
+
+    /**
+     * Where synced history is kept. Called on sync threads.
+     */
+    public interface Store {
+        /** Highest sequence number held per origin device. */
+        Map<Long, Long> getHighWaterMarks();
+
+        /** Rows of one origin above {@code afterSeq}, in sequence order. */
+        List<DetectionEvent> getRowsAfter(long originDevice, long afterSeq, int limit);
+
+        /** Store rows received from a peer and raise the marks, atomically. */
+        void applySynced(List<DetectionEvent> rows);
+    }
+
+    private final long localDeviceId;
+    private final String localName;
+    private final Store store;
+    private final ExecutorService clientExecutor = Executors.newSingleThreadExecutor();
+    private final ThreadPoolExecutor serverExecutor = new ThreadPoolExecutor(0, MAX_SERVER_SESSIONS,
+            30, TimeUnit.SECONDS, new SynchronousQueue<>());
+    private final Map<Long, Long> lastSyncMs = new HashMap<>();
+
+    private volatile ServerSocket serverSocket;
+    private Thread acceptThread;
+    private volatile int syncPort = PeerTransport.SYNC_PORT;
+
+    private final AtomicLong sessionsServed = new AtomicLong();
+    private final AtomicLong sessionsRejected = new AtomicLong();
+    private final AtomicLong rowsSent = new AtomicLong();
+    private final AtomicLong rowsReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * {@code localName} is sent as the device name of our own rows, which
+     * are stored without one.
+     */
+    public HistorySync(long localDeviceId, String localName, Store store) {
+        this.localDeviceId = localDeviceId;
+        this.localName = new String(WireProtocol.encodeHost(localName), StandardCharsets.UTF_8);
+        this.store = store;
+    }
+
+    public void start() {
+        start(new InetSocketAddress(PeerTransport.SYNC_PORT));
+    }
+
+    /**
+     * Serve on the given address instead of the default port, for tests.
+     */
+    synchronized void start(InetSocketAddress address) {
+        if (acceptThread != null)
+            return;
+        try {
+            ServerSocket socket = new ServerSocket();
+            socket.setReuseAddress(true);
+            socket.bind(address);
+            serverSocket = socket;
+            syncPort = socket.getLocalPort();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open sync socket", e);
+            return;
+        }
+        acceptThread = new Thread(this::acceptLoop, "taptic-sync");
+        acceptThread.start();
+        Log.d(TAG, "Serving history on port " + syncPort);
+    }
+
+    public synchronized void stop() {
+        ServerSocket socket = serverSocket;
+        serverSocket = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close sync socket", e);
+            }
+        }
+        acceptThread = null;
+        clientExecutor.shutdownNow();
+        serverExecutor.shutdownNow();
+    }
+
+    /**
+     * Pull history from a peer that was just discovered or came back, unless
+     * it cannot serve it or we synced with it recently.
+     */
+    public void requestSync(PeerRegistry.PeerInfo peer) {
+        if (peer.isLegacy || peer.address == null
+                || (peer.capabilities & WireProtocol.CAP_HISTORY_SYNC) == 0)
+            return;
+        long now = System.currentTimeMillis();
+        synchronized (lastSyncMs) {
+            Long last = lastSyncMs.get(peer.deviceId);
+            if (last != null && now - last < MIN_SYNC_INTERVAL_MS)
+                return;
+            lastSyncMs.put(peer.deviceId, now);
+        }
+        int port = syncPort;
+        try {
+            clientExecutor.execute(() -> {
+                try {
+                    syncWith(InetAddress.getByName(peer.address), port);
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                    Log.w(TAG, "History sync with " + peer.name + " failed: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Pull everything the peer has that we lack, in up to
+     * {@link #MAX_SESSIONS} sessions. Returns the number of rows received.
+     */
+    int syncWith(InetAddress address, int port) throws IOException {
+        int total = 0;
+        for (int i = 0; i < MAX_SESSIONS; i++) {
+            Session session = pull(address, port, MAX_SESSION_ROWS);
+            total += session.rows;
+            if (session.rows == 0
+                    || session.rows < MAX_SESSION_ROWS && session.strings.size() < MAX_STRINGS)
+                break;
+        }
+        if (total > 0) {
+            Log.d(TAG, "Synced " + total + " rows from " + address.getHostAddress());
+        }
+        return total;
+    }
+
+    int getPort() {
+        return syncPort;
+    }
+
+    public long getSessionsServed() {
+        return sessionsServed.get();
+    }
+
+    public long getSessionsRejected() {
+        return sessionsRejected.get();
+    }
+
+    public long getRowsSent() {
+        return rowsSent.get();
+    }
+
+    public long getRowsReceived() {
+        return rowsReceived.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    // Client
+
+    private Session pull(InetAddress address, int port, int maxRows) throws IOException {
+        Map<Long, Long> marks = store.getHighWaterMarks();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            CountingInputStream counter = new CountingInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(counter));
+
+            Session session = new Session();
+            out.writeShort(MAGIC);
+            out.writeByte(VERSION);
+            out.writeShort(maxRows);
+            out.writeShort(Math.min(marks.size(), MAX_ORIGINS));
+            for (Map.Entry<Long, Long> mark : marks.entrySet()) {
+                if (session.lastSeq.size() == MAX_ORIGINS)
+                    break;
+                out.writeLong(mark.getKey());
+                writeVarint(out, mark.getValue());
+                session.lastSeq.put(mark.getKey(), mark.getValue());
+            }
+            out.flush();
+
+            if (in.readUnsignedShort() != MAGIC || in.readUnsignedByte() != VERSION)
+                throw new IOException("Not a history sync peer");
+
+            List<DetectionEvent> batch = new ArrayList<>(BATCH_ROWS);
+            try {
+                int count;
+                while ((count = in.readUnsignedByte()) != 0) {
+                    if (count > BATCH_ROWS || session.rows + count > maxRows)
+                        throw new IOException("Batch too large");
+                    batch.clear();
+                    for (int i = 0; i < count; i++) {
+                        DetectionEvent row = readRow(in, session);
+                        if (row.originDevice != localDeviceId)
+                            batch.add(row);
+                    }
+                    if (!batch.isEmpty()) {
+                        store.applySynced(batch);
+                    }
+                    session.rows += count;
+                    rowsReceived.addAndGet(count);
+                }
+            } finally {
+                bytesReceived.addAndGet(counter.count);
+            }
+            return session;
+        }
+    }
+
+    private DetectionEvent readRow(DataInputStream in, Session session) throws IOException {
+        int originIndex = (int) readVarint(in);
+        long origin;
+        if (originIndex == session.origins.size()) {
+            if (originIndex == MAX_ORIGINS)
+                throw new IOException("Too many origins");
+            origin = in.readLong();
+            session.origins.add(origin);
+        } else if (originIndex < session.origins.size()) {
+            origin = session.origins.get(originIndex);
+        } else {
+            throw new IOException("Bad origin reference");
+        }
+        Long previous = session.lastSeq.get(origin);
+        long seq = (previous != null ? previous : 0) + readVarint(in);
+        session.lastSeq.put(origin, seq);
+        session.lastTimestamp += unzigzag(readVarint(in));
+        String label = readString(in, session);
+        String deviceName = readString(in, session);
+        double confidence = WireProtocol.dequantizeScore(in.readUnsignedByte());
+        int flags = in.readUnsignedByte();
+
+        DetectionEvent row = new DetectionEvent(session.lastTimestamp, label, confidence,
+                (flags & FLAG_EMERGENCY) != 0, true, deviceName);
+        row.originDevice = origin;
+        row.originSeq = seq;
+        return row;
+    }
+
+    private static String readString(DataInputStream in, Session session) throws IOException {
+        int ref = (int) readVarint(in);
+        if (ref == 0)
+            return null;
+        if (ref <= session.strings.size())
+            return session.strings.get(ref - 1);
+        if (ref != session.strings.size() + 1 || ref > MAX_STRINGS)
+            throw new IOException("Bad string reference");
+        int length = (int) readVarint(in);
+        if (length > MAX_STRING_BYTES)
+            throw new IOException("String too long");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        session.strings.add(value);
+        return value;
+    }
+
+    // Server
+
+    private void acceptLoop() {
+        ServerSocket socket;
+        while ((socket = serverSocket) != null) {
+            Socket client;
+            try {
+                client = socket.accept();
+            } catch (IOException e) {
+                if (serverSocket != null) {
+                    Log.e(TAG, "Accept failed", e);
+                }
+                continue;
+            }
+            try {
+                serverExecutor.execute(() -> serve(client));
+            } catch (RejectedExecutionException e) {
+                sessionsRejected.incrementAndGet();
+                closeQuietly(client);
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try (Socket socket = client) {
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            if (in.readUnsignedShort() != MAGIC || in.readUnsignedByte() != VERSION)
+                return;
+            int maxRows = Math.min(in.readUnsignedShort(), MAX_SESSION_ROWS);
+            int origins = in.readUnsignedShort();
+            if (origins > MAX_ORIGINS)
+                return;
+            Session session = new Session();
+            for (int i = 0; i < origins; i++) {
+                long origin = in.readLong();
+                session.lastSeq.put(origin, readVarint(in));
+            }
+
+            out.writeShort(MAGIC);
+            out.writeByte(VERSION);
+            int sent = 0;
+            boolean stringsFull = false;
+            for (Map.Entry<Long, Long> mark : store.getHighWaterMarks().entrySet()) {
+                long origin = mark.getKey();
+                Long theirs = session.lastSeq.get(origin);
+                long after = theirs != null ? theirs : 0;
+                while (sent < maxRows && mark.getValue() > after) {
+                    List<DetectionEvent> rows = store.getRowsAfter(origin, after,
+                            Math.min(BATCH_ROWS, maxRows - sent));
+                    if (rows.isEmpty())
+                        break;
+                    int count = rowsThatFit(rows, session);
+                    if (count > 0) {
+                        out.writeByte(count);
+                        for (int i = 0; i < count; i++) {
+                            writeRow(out, rows.get(i), session);
+                        }
+                        out.flush();
+                        after = rows.get(count - 1).originSeq;
+                        sent += count;
+                    }
+                    if (count < rows.size()) {
+                        // The rest goes in the client's next session
+                        stringsFull = true;
+                        break;
+                    }
+                }
+                if (sent == maxRows || stringsFull)
+                    break;
+            }
+            // Counted before the client can see the end of the stream
+            sessionsServed.incrementAndGet();
+            out.writeByte(0);
+            out.flush();
+            rowsSent.addAndGet(sent);
+        } catch (IOException e) {
+            Log.w(TAG, "History sync session failed: " + e.getMessage());
+        }
+    }
+
+    private void writeRow(DataOutputStream out, DetectionEvent row, Session session) throws IOException {
+        int originIndex = session.origins.indexOf(row.originDevice);
+        if (originIndex < 0) {
+            writeVarint(out, session.origins.size());
+            out.writeLong(row.originDevice);
+            session.origins.add(row.originDevice);
+        } else {
+            writeVarint(out, originIndex);
+        }
+        Long previous = session.lastSeq.get(row.originDevice);
+        writeVarint(out, row.originSeq - (previous != null ? previous : 0));
+        session.lastSeq.put(row.originDevice, row.originSeq);
+        writeVarint(out, zigzag(row.timestamp - session.lastTimestamp));
+        session.lastTimestamp = row.timestamp;
+        writeString(out, row.label, session);
+        writeString(out, senderName(row), session);
+        out.writeByte(WireProtocol.quantizeScore(row.confidence));
+        out.writeByte(row.isEmergency ? FLAG_EMERGENCY : 0);
+    }
+
+    private String senderName(DetectionEvent row) {
+        boolean ours = row.originDevice == localDeviceId && !row.isRemote;
+        return ours ? localName : row.deviceName;
+    }
+
+    /**
+     * How many of {@code rows}, from the start, can be written before the
+     * session's string table would overflow.
+     */
+    private int rowsThatFit(List<DetectionEvent> rows, Session session) {
+        List<String> added = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            DetectionEvent row = rows.get(i);
+            for (String value : new String[] { row.label, senderName(row) }) {
+                if (value != null && !session.strings.contains(value) && !added.contains(value))
+                    added.add(value);
+            }
+            if (session.strings.size() + added.size() > MAX_STRINGS)
+                return i;
+        }
+        return rows.size();
+    }
+
+    private static void writeString(DataOutputStream out, String value, Session session) throws IOException {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        int index = session.strings.indexOf(value);
+        if (index >= 0) {
+            writeVarint(out, index + 1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (session.strings.size() == MAX_STRINGS || bytes.length > MAX_STRING_BYTES) {
+            throw new IOException("String table full");
+        }
+        session.strings.add(value);
+        writeVarint(out, session.strings.size());
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Coding state shared by both ends of one session.
+     */
+    private static final class Session {
+        final List<Long> origins = new ArrayList<>();
+        final List<String> strings = new ArrayList<>();
+        final Map<Long, Long> lastSeq = new HashMap<>();
+        long lastTimestamp;
+        int rows;
+    }
+
+    // Encoding helpers
+
+    static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Varint too long");
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignored
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+    }
+}
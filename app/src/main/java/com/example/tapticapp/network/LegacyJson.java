@@ -0,0 +1,96 @@
+package com.example.tapticapp.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * In-place scanning of the legacy JSON payload
+ * ({@code {"type": ..., "time": ..., "host": ..., "events": [...]}}).
+ *
+ * Works on absolute ByteBuffer indices and never builds a DOM or decodes
+ * Strings; callers get byte ranges back. String values are returned raw,
+ * so a value containing escape sequences will not match a plain label.
+ */
+final class LegacyJson {
+
+    static final byte[] KEY_TYPE = { 't', 'y', 'p', 'e' };
+    static final byte[] KEY_HOST = { 'h', 'o', 's', 't' };
+    static final byte[] KEY_EVENTS = { 'e', 'v', 'e', 'n', 't', 's' };
+    static final byte[] KEY_PROTO = { 'p', 'r', 'o', 't', 'o' };
+    static final byte[] KEY_DEVICE = { 'd', 'e', 'v', 'i', 'c', 'e' };
+
+    private LegacyJson() {
+    }
+
+    /**
+     * Index of the first character of the value for {@code key}, or -1.
+     * Only object keys match; string values equal to the key are skipped.
+     */
+    static int findValue(ByteBuffer buf, int start, int end, byte[] key) {
+        int i = start;
+        while (i < end) {
+            if (buf.get(i) != '"') {
+                i++;
+                continue;
+            }
+            int close = stringEnd(buf, i, end);
+            if (close < 0)
+                return -1;
+
+            boolean isKey = close - i - 1 == key.length && regionMatches(buf, i + 1, key);
+            i = close + 1;
+            if (!isKey)
+                continue;
+
+            int colon = skipWhitespace(buf, i, end);
+            if (colon < end && buf.get(colon) == ':') {
+                int value = skipWhitespace(buf, colon + 1, end);
+                return value < end ? value : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Index of the quote closing the string that opens at {@code quote}, or
+     * -1 if it is unterminated.
+     */
+    static int stringEnd(ByteBuffer buf, int quote, int end) {
+        for (int i = quote + 1; i < end; i++) {
+            byte b = buf.get(i);
+            if (b == '\\') {
+                i++;
+            } else if (b == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Whether the value at {@code at} is a string equal to {@code value}.
+     */
+    static boolean stringEquals(ByteBuffer buf, int at, int end, byte[] value) {
+        if (at < 0 || buf.get(at) != '"')
+            return false;
+        int close = stringEnd(buf, at, end);
+        return close - at - 1 == value.length && regionMatches(buf, at + 1, value);
+    }
+
+    static int skipWhitespace(ByteBuffer buf, int i, int end) {
+        while (i < end) {
+            byte b = buf.get(i);
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r')
+                break;
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean regionMatches(ByteBuffer buf, int offset, byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (buf.get(offset + i) != key[i])
+                return false;
+        }
+        return true;
+    }
+}
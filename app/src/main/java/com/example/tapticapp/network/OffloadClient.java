@@ -0,0 +1,485 @@
+package com.example.tapticapp.network;
+
+import android.util.Log;
+import com.example.tapticapp.audio.MuLaw;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Inference offload for devices too weak to run the model continuously:
+ * captured audio is streamed to a hub peer ({@link OffloadHub}), which
+ * classifies it and sends the scores back.
+ *
+ * The capture thread hands each hop to {@link #submitHop}. While connected
+ * to a hub it is mu-law encoded (8 bits per sample, 128 kbit/s) and queued;
+ * when there is no hub it returns false and the caller runs the model
+ * itself, so fallback to local inference is immediate. A cheap energy gate
+ * runs first: a quiet hop that follows another quiet hop is sent as a
+ * 5-byte SILENCE marker and reported as silent right away.
+ *
+ * The queue holds {@link #QUEUE_HOPS} hops. A sender thread writes them to
+ * the socket; if the hub or the network cannot keep up, TCP flow control
+ * blocks it, the queue fills and the oldest hop is dropped, so latency
+ * stays bounded instead of growing.
+ *
+ * The hub is the live peer advertising {@link WireProtocol#CAP_INFERENCE_HUB}
+ * heard from most recently. The connection is dropped, and inference falls
+ * back to local, when the hub stops answering for {@link #STALL_MS}, expires
+ * from the {@link PeerRegistry} or the socket fails; a hub is looked for
+ * again every {@link #RETRY_MS}.
+ *
+ * End-to-end latency (capture to result) and bandwidth are counted and
+ * logged every {@link #REPORT_INTERVAL_MS}.
+ */
+public class OffloadClient {
+
+    private static final String TAG = "OffloadClient";
+
+    static final int QUEUE_HOPS = 4;
+    static final long STALL_MS = 3000;
+    static final long RETRY_MS = 5000;
+    static final long REPORT_INTERVAL_MS = 60_000;
+    // About -50 dBFS
+    static final double GATE_RMS = 0.003;
+
+    private static final int PENDING = 16;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+
+    public interface ResultCallback {
+        /**
+         * Scores for the window ending with a submitted hop, and the level
+         * passed with it. Called on the receiving thread, or on the capture
+         * thread for gated hops.
+         */
+        void onResult(float[] scores, double level);
+    }
+
+    private final long deviceId;
+    private final PeerRegistry registry;
+    private final int hopSamples;
+    private final int windowSamples;
+    private final int classCount;
+    private volatile ResultCallback resultCallback;
+    private int hubPort = PeerTransport.OFFLOAD_PORT;
+
+    private volatile boolean isRunning;
+    private volatile boolean active;
+    private volatile Socket socket;
+    private Thread connectionThread;
+    private final Object wakeLock = new Object();
+
+    // Queue of hops to send, and hops waiting for a result; guarded by lock
+    private final Object lock = new Object();
+    private final byte[][] queueAudio;
+    private final int[] queueType = new int[QUEUE_HOPS];
+    private final long[] queueSeq = new long[QUEUE_HOPS];
+    private int queueHead;
+    private int queueSize;
+    private final long[] pendingSeq = new long[PENDING];
+    private final long[] pendingNanos = new long[PENDING];
+    private final double[] pendingLevel = new double[PENDING];
+    private long nextSeq;
+    private int awaiting;
+    private long lastProgressNanos;
+    private boolean previousQuiet;
+
+    private final AtomicLong hopsSent = new AtomicLong();
+    private final AtomicLong hopsGated = new AtomicLong();
+    private final AtomicLong hopsDropped = new AtomicLong();
+    private final AtomicLong hopsSkipped = new AtomicLong();
+    private final AtomicLong results = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final AtomicLong connectedNanos = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    public OffloadClient(long deviceId, PeerRegistry registry, int hopSamples, int windowSamples,
+            int classCount) {
+        this.deviceId = deviceId;
+        this.registry = registry;
+        this.hopSamples = hopSamples;
+        this.windowSamples = windowSamples;
+        this.classCount = classCount;
+        queueAudio = new byte[QUEUE_HOPS][hopSamples];
+    }
+
+    public void setResultCallback(ResultCallback resultCallback) {
+        this.resultCallback = resultCallback;
+    }
+
+    /**
+     * Connect to hubs on {@code port} instead of the default, for tests.
+     */
+    void useHubPort(int port) {
+        this.hubPort = port;
+    }
+
+    public void start() {
+        if (isRunning)
+            return;
+        isRunning = true;
+        connectionThread = new Thread(this::connectionLoop, "taptic-offload");
+        connectionThread.start();
+    }
+
+    public void stop() {
+        isRunning = false;
+        active = false;
+        closeSocket();
+        synchronized (wakeLock) {
+            wakeLock.notifyAll();
+        }
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        connectionThread = null;
+    }
+
+    /**
+     * True while connected to a hub, i.e. while {@link #submitHop} takes
+     * hops.
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Offer the newest hop of captured audio, samples in [-1, 1], with the
+     * level to report with its result. Returns false if there is no hub and
+     * the caller should classify the window itself.
+     */
+    public boolean submitHop(float[] hop, double level) {
+        if (!active)
+            return false;
+        long now = System.nanoTime();
+        boolean gated;
+        synchronized (lock) {
+            if (queueSize == QUEUE_HOPS) {
+                // Hub or network behind: drop the oldest
+                queueHead = (queueHead + 1) % QUEUE_HOPS;
+                queueSize--;
+                hopsDropped.incrementAndGet();
+            }
+            int slot = (queueHead + queueSize) % QUEUE_HOPS;
+            byte[] audio = queueAudio[slot];
+            double sumSquares = 0;
+            for (int i = 0; i < hopSamples; i++) {
+                sumSquares += hop[i] * hop[i];
+                audio[i] = MuLaw.encode(hop[i]);
+            }
+            boolean quiet = Math.sqrt(sumSquares / hopSamples) < GATE_RMS;
+            gated = quiet && previousQuiet;
+            previousQuiet = quiet;
+
+            long seq = nextSeq++ & 0xFFFFFFFFL;
+            queueSeq[slot] = seq;
+            queueType[slot] = gated ? OffloadProtocol.MSG_SILENCE : OffloadProtocol.MSG_HOP;
+            queueSize++;
+            if (!gated) {
+                int p = (int) (seq % PENDING);
+                pendingSeq[p] = seq;
+                pendingNanos[p] = now;
+                pendingLevel[p] = level;
+            }
+            lock.notifyAll();
+        }
+        if (gated) {
+            hopsGated.incrementAndGet();
+            ResultCallback callback = resultCallback;
+            if (callback != null) {
+                callback.onResult(new float[classCount], level);
+            }
+        }
+        return true;
+    }
+
+    // Stats
+
+    public long getHopsSent() {
+        return hopsSent.get();
+    }
+
+    public long getHopsGated() {
+        return hopsGated.get();
+    }
+
+    /**
+     * Hops dropped from the full queue.
+     */
+    public long getHopsDropped() {
+        return hopsDropped.get();
+    }
+
+    /**
+     * Hops the hub skipped to catch up.
+     */
+    public long getHopsSkipped() {
+        return hopsSkipped.get();
+    }
+
+    public long getResults() {
+        return results.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Total time connected to a hub, over which bandwidth is averaged.
+     */
+    public long getConnectedMs() {
+        return TimeUnit.NANOSECONDS.toMillis(connectedNanos.get());
+    }
+
+    /**
+     * Average time from capturing a hop to receiving its scores.
+     */
+    public double getAverageLatencyMs() {
+        long count = results.get();
+        return count == 0 ? 0 : totalLatencyNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxLatencyMs() {
+        return maxLatencyNanos.get() / 1e6;
+    }
+
+    /**
+     * Times a hub connection ended and inference fell back to local.
+     */
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    // Connection
+
+    private void connectionLoop() {
+        while (isRunning) {
+            PeerRegistry.PeerInfo hub = registry.findLivePeer(WireProtocol.CAP_INFERENCE_HUB);
+            if (hub != null && hub.address != null) {
+                try {
+                    session(hub);
+                } catch (IOException e) {
+                    if (isRunning)
+                        Log.w(TAG, "Offload to " + hub.name + " ended: " + e.getMessage());
+                } finally {
+                    active = false;
+                    closeSocket();
+                    synchronized (lock) {
+                        queueSize = 0;
+                        awaiting = 0;
+                        previousQuiet = false;
+                    }
+                }
+            }
+            synchronized (wakeLock) {
+                if (isRunning) {
+                    try {
+                        wakeLock.wait(RETRY_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void session(PeerRegistry.PeerInfo hub) throws IOException {
+        Socket s = new Socket();
+        socket = s;
+        s.setTcpNoDelay(true);
+        s.connect(new InetSocketAddress(hub.address, hubPort), CONNECT_TIMEOUT_MS);
+        s.setSoTimeout((int) STALL_MS);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+
+        OffloadProtocol.writeHello(out, deviceId, hopSamples, windowSamples, classCount);
+        out.flush();
+        int status = OffloadProtocol.readReply(in, classCount);
+        if (status != OffloadProtocol.STATUS_OK)
+            throw new IOException(status == OffloadProtocol.STATUS_BUSY ? "Hub busy" : "Hub runs another model");
+        s.setSoTimeout(0);
+
+        Log.d(TAG, "Offloading inference to " + hub.name);
+        Thread receiver = new Thread(() -> receiveLoop(in, s), "taptic-offload-rx");
+        receiver.start();
+        long connectedAt = System.nanoTime();
+        long lastReport = connectedAt;
+        long lastHubCheck = connectedAt;
+        synchronized (lock) {
+            lastProgressNanos = connectedAt;
+        }
+        active = true;
+
+        byte[] audio = new byte[hopSamples];
+        try {
+            while (isRunning && !s.isClosed()) {
+                int type;
+                long seq;
+                long now;
+                synchronized (lock) {
+                    if (queueSize == 0) {
+                        try {
+                            lock.wait(500);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    now = System.nanoTime();
+                    if (awaiting > 0 && now - lastProgressNanos > TimeUnit.MILLISECONDS.toNanos(STALL_MS))
+                        throw new IOException("Hub stopped answering");
+                    if (queueSize == 0) {
+                        type = 0;
+                        seq = 0;
+                    } else {
+                        type = queueType[queueHead];
+                        seq = queueSeq[queueHead];
+                        System.arraycopy(queueAudio[queueHead], 0, audio, 0, hopSamples);
+                        queueHead = (queueHead + 1) % QUEUE_HOPS;
+                        queueSize--;
+                        if (type == OffloadProtocol.MSG_HOP && awaiting++ == 0) {
+                            lastProgressNanos = now;
+                        }
+                    }
+                }
+
+                if (type != 0) {
+                    out.writeByte(type);
+                    out.writeInt((int) seq);
+                    int size = 5;
+                    if (type == OffloadProtocol.MSG_HOP) {
+                        out.write(audio, 0, hopSamples);
+                        size += hopSamples;
+                        hopsSent.incrementAndGet();
+                    }
+                    out.flush();
+                    bytesSent.addAndGet(size);
+                }
+
+                if (now - lastHubCheck >= TimeUnit.SECONDS.toNanos(1)) {
+                    lastHubCheck = now;
+                    if (!registry.isAlive(hub.deviceId))
+                        throw new IOException("Hub expired");
+                }
+                if (now - lastReport >= TimeUnit.MILLISECONDS.toNanos(REPORT_INTERVAL_MS)) {
+                    connectedNanos.addAndGet(now - lastReport);
+                    lastReport = now;
+                    logReport(hub.name);
+                }
+            }
+        } finally {
+            connectedNanos.addAndGet(System.nanoTime() - lastReport);
+            fallbacks.incrementAndGet();
+            active = false;
+            closeSocket();
+            receiver.interrupt();
+        }
+    }
+
+    private void receiveLoop(DataInputStream in, Socket s) {
+        byte[] quantized = new byte[classCount];
+        try {
+            while (isRunning) {
+                int type = in.readUnsignedByte();
+                long seq = in.readInt() & 0xFFFFFFFFL;
+                if (type == OffloadProtocol.MSG_SKIPPED) {
+                    hopsSkipped.incrementAndGet();
+                    bytesReceived.addAndGet(5);
+                    answered();
+                    continue;
+                }
+                if (type != OffloadProtocol.MSG_RESULT)
+                    throw new IOException("Unexpected message " + type);
+                in.readInt(); // Hub's inference time, for debugging
+                in.readFully(quantized);
+                long now = System.nanoTime();
+                bytesReceived.addAndGet(OffloadProtocol.resultMessageSize(classCount));
+
+                long capturedNanos;
+                double level;
+                synchronized (lock) {
+                    int p = (int) (seq % PENDING);
+                    if (pendingSeq[p] != seq) {
+                        answeredLocked();
+                        continue;
+                    }
+                    capturedNanos = pendingNanos[p];
+                    level = pendingLevel[p];
+                    answeredLocked();
+                }
+                long latency = now - capturedNanos;
+                results.incrementAndGet();
+                totalLatencyNanos.addAndGet(latency);
+                maxLatencyNanos.accumulateAndGet(latency, Math::max);
+
+                float[] scores = new float[classCount];
+                for (int i = 0; i < classCount; i++) {
+                    scores[i] = (float) WireProtocol.dequantizeScore(quantized[i] & 0xFF);
+                }
+                ResultCallback callback = resultCallback;
+                if (callback != null) {
+                    callback.onResult(scores, level);
+                }
+            }
+        } catch (IOException e) {
+            // Socket closed; the sender notices
+        } finally {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // Ignored
+            }
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void answered() {
+        synchronized (lock) {
+            answeredLocked();
+        }
+    }
+
+    private void answeredLocked() {
+        if (awaiting > 0)
+            awaiting--;
+        lastProgressNanos = System.nanoTime();
+    }
+
+    private void logReport(String hubName) {
+        double seconds = connectedNanos.get() / 1e9;
+        if (seconds <= 0)
+            return;
+        Log.d(TAG, String.format(java.util.Locale.US,
+                "Offload to %s: %d results, latency avg %.0f ms max %.0f ms, up %.1f kbit/s, down %.1f kbit/s,"
+                        + " %d gated, %d dropped, %d skipped",
+                hubName, results.get(), getAverageLatencyMs(), getMaxLatencyMs(),
+                bytesSent.get() * 8 / seconds / 1000, bytesReceived.get() * 8 / seconds / 1000,
+                hopsGated.get(), hopsDropped.get(), hopsSkipped.get()));
+    }
+
+    private void closeSocket() {
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // Ignored
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.tapticapp.network;
+
+import android.util.Log;
+import com.example.tapticapp.audio.MuLaw;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the model for {@link OffloadClient} peers, on a device that
+ * advertises {@link WireProtocol#CAP_INFERENCE_HUB}.
+ *
+ * Each client gets a thread that rebuilds its sliding window from the
+ * streamed hops and classifies it once per hop. If the next hop has
+ * already arrived by the time one is decoded, the hub is behind (the model
+ * is shared by all clients and by our own capture) and the hop is answered
+ * with SKIPPED instead, so every client's results stay current. Reading
+ * only as fast as we classify also leaves the client's socket to fill up,
+ * which is what makes it drop hops on its side.
+ *
+ * At most {@link #MAX_CLIENTS} clients are served; more are answered BUSY
+ * and run their model themselves.
+ */
+public class OffloadHub {
+
+    private static final String TAG = "OffloadHub";
+
+    static final int MAX_CLIENTS = 4;
+
+    private static final int HELLO_TIMEOUT_MS = 3000;
+
+    /**
+     * The classifier. Called on client threads; must be thread-safe.
+     */
+    public interface Model {
+        /** Scores for a window of samples in [-1, 1]. */
+        float[] classify(float[] window);
+    }
+
+    private final Model model;
+    private final int hopSamples;
+    private final int windowSamples;
+    private final int classCount;
+    private final ThreadPoolExecutor clientExecutor = new ThreadPoolExecutor(0, MAX_CLIENTS,
+            30, TimeUnit.SECONDS, new SynchronousQueue<>());
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+
+    private volatile ServerSocket serverSocket;
+    private Thread acceptThread;
+    private volatile int port = PeerTransport.OFFLOAD_PORT;
+
+    private final AtomicLong clientsServed = new AtomicLong();
+    private final AtomicLong clientsRejected = new AtomicLong();
+    private final AtomicLong windowsClassified = new AtomicLong();
+    private final AtomicLong hopsSkipped = new AtomicLong();
+    private final AtomicLong totalInferenceNanos = new AtomicLong();
+
+    public OffloadHub(Model model, int hopSamples, int windowSamples, int classCount) {
+        this.model = model;
+        this.hopSamples = hopSamples;
+        this.windowSamples = windowSamples;
+        this.classCount = classCount;
+    }
+
+    public void start() {
+        start(new InetSocketAddress(PeerTransport.OFFLOAD_PORT));
+    }
+
+    /**
+     * Serve on the given address instead of the default port, for tests.
+     */
+    synchronized void start(InetSocketAddress address) {
+        if (acceptThread != null)
+            return;
+        try {
+            ServerSocket socket = new ServerSocket();
+            socket.setReuseAddress(true);
+            socket.bind(address);
+            serverSocket = socket;
+            port = socket.getLocalPort();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open hub socket", e);
+            return;
+        }
+        acceptThread = new Thread(this::acceptLoop, "taptic-hub");
+        acceptThread.start();
+        Log.d(TAG, "Serving inference on port " + port);
+    }
+
+    public synchronized void stop() {
+        ServerSocket socket = serverSocket;
+        serverSocket = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close hub socket", e);
+            }
+        }
+        acceptThread = null;
+        clientExecutor.shutdownNow();
+        // Clients see the stream end and fall back to local inference
+        for (Socket client : clients) {
+            closeQuietly(client);
+        }
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    // Stats
+
+    public long getClientsServed() {
+        return clientsServed.get();
+    }
+
+    public long getClientsRejected() {
+        return clientsRejected.get();
+    }
+
+    public long getWindowsClassified() {
+        return windowsClassified.get();
+    }
+
+    public long getHopsSkipped() {
+        return hopsSkipped.get();
+    }
+
+    public double getAverageInferenceMs() {
+        long count = windowsClassified.get();
+        return count == 0 ? 0 : totalInferenceNanos.get() / 1e6 / count;
+    }
+
+    private void acceptLoop() {
+        ServerSocket socket;
+        while ((socket = serverSocket) != null) {
+            Socket client;
+            try {
+                client = socket.accept();
+            } catch (IOException e) {
+                if (serverSocket != null) {
+                    Log.e(TAG, "Accept failed", e);
+                }
+                continue;
+            }
+            try {
+                clientExecutor.execute(() -> serve(client));
+            } catch (RejectedExecutionException e) {
+                clientsRejected.incrementAndGet();
+                try {
+                    DataOutputStream out = new DataOutputStream(client.getOutputStream());
+                    OffloadProtocol.writeReply(out, OffloadProtocol.STATUS_BUSY, classCount);
+                    out.flush();
+                } catch (IOException ignored) {
+                    // Closing anyway
+                }
+                closeQuietly(client);
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        String from = client.getInetAddress().getHostAddress();
+        clients.add(client);
+        try {
+            client.setTcpNoDelay(true);
+            client.setSoTimeout(HELLO_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+
+            if (in.readUnsignedShort() != OffloadProtocol.MAGIC
+                    || in.readUnsignedByte() != OffloadProtocol.VERSION)
+                throw new IOException("Not an offload client");
+            in.readLong(); // Device id
+            boolean matches = in.readInt() == OffloadProtocol.SAMPLE_RATE
+                    & in.readUnsignedShort() == hopSamples
+                    & in.readUnsignedShort() == windowSamples
+                    & in.readUnsignedShort() == classCount;
+            OffloadProtocol.writeReply(out,
+                    matches ? OffloadProtocol.STATUS_OK : OffloadProtocol.STATUS_MISMATCH, classCount);
+            out.flush();
+            if (!matches)
+                return;
+            client.setSoTimeout(0);
+            clientsServed.incrementAndGet();
+            Log.d(TAG, "Classifying for " + from);
+
+            float[] window = new float[windowSamples];
+            byte[] hop = new byte[hopSamples];
+            int tail = windowSamples - hopSamples;
+            int hopMessage = OffloadProtocol.hopMessageSize(hopSamples);
+            while (serverSocket != null) {
+                int type = in.readUnsignedByte();
+                int seq = in.readInt();
+                System.arraycopy(window, hopSamples, window, 0, tail);
+                if (type == OffloadProtocol.MSG_SILENCE) {
+                    Arrays.fill(window, tail, windowSamples, 0f);
+                    continue;
+                }
+                if (type != OffloadProtocol.MSG_HOP)
+                    throw new IOException("Unexpected message " + type);
+                in.readFully(hop);
+                MuLaw.decode(hop, hopSamples, window, tail);
+
+                if (in.available() >= hopMessage) {
+                    // Behind: the next window supersedes this one
+                    hopsSkipped.incrementAndGet();
+                    out.writeByte(OffloadProtocol.MSG_SKIPPED);
+                    out.writeInt(seq);
+                    out.flush();
+                    continue;
+                }
+                long started = System.nanoTime();
+                float[] scores = model.classify(window);
+                long elapsed = System.nanoTime() - started;
+                windowsClassified.incrementAndGet();
+                totalInferenceNanos.addAndGet(elapsed);
+
+                out.writeByte(OffloadProtocol.MSG_RESULT);
+                out.writeInt(seq);
+                out.writeInt((int) Math.min(TimeUnit.NANOSECONDS.toMicros(elapsed), Integer.MAX_VALUE));
+                for (int i = 0; i < classCount; i++) {
+                    out.writeByte(scores != null && i < scores.length ? WireProtocol.quantizeScore(scores[i]) : 0);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client gone
+        } finally {
+            clients.remove(client);
+            closeQuietly(client);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignored
+        }
+    }
+}
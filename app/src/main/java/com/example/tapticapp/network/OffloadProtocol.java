@@ -0,0 +1,91 @@
+package com.example.tapticapp.network;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Stream format between an {@link OffloadClient} and an {@link OffloadHub},
+ * over TCP on {@link PeerTransport#OFFLOAD_PORT}. All fields big-endian.
+ *
+ * <pre>
+ * client hello: magic u16, version u8, device id u64, sample rate u32,
+ *               hop samples u16, window samples u16, class count u16
+ * hub reply:    magic u16, version u8, status u8, class count u16
+ *
+ * client -> hub, repeated:
+ *   HOP      type u8, sequence u32, hop samples bytes of mu-law audio
+ *   SILENCE  type u8, sequence u32 (a hop below the energy gate)
+ *
+ * hub -> client, repeated:
+ *   RESULT   type u8, sequence u32, inference time us u32,
+ *            class count u8 scores (0-255)
+ *   SKIPPED  type u8, sequence u32 (hop not classified, hub behind)
+ * </pre>
+ *
+ * The hub classifies the window ending with each HOP, the previous
+ * window's audio shifted by one hop. A SILENCE hop enters the window as
+ * zeros and gets no reply; the client reports it as silent itself.
+ */
+final class OffloadProtocol {
+
+    static final int MAGIC = 0x5449;
+    static final int VERSION = 1;
+    static final int SAMPLE_RATE = 16000;
+
+    static final int STATUS_OK = 0;
+    static final int STATUS_BUSY = 1;
+    static final int STATUS_MISMATCH = 2;
+
+    static final int MSG_HOP = 1;
+    static final int MSG_SILENCE = 2;
+    static final int MSG_RESULT = 3;
+    static final int MSG_SKIPPED = 4;
+
+    private OffloadProtocol() {
+    }
+
+    static void writeHello(DataOutputStream out, long deviceId, int hopSamples, int windowSamples, int classCount)
+            throws IOException {
+        out.writeShort(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(deviceId);
+        out.writeInt(SAMPLE_RATE);
+        out.writeShort(hopSamples);
+        out.writeShort(windowSamples);
+        out.writeShort(classCount);
+    }
+
+    static void writeReply(DataOutputStream out, int status, int classCount) throws IOException {
+        out.writeShort(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(status);
+        out.writeShort(classCount);
+    }
+
+    /**
+     * Read the hub's reply; returns its status.
+     */
+    static int readReply(DataInputStream in, int classCount) throws IOException {
+        if (in.readUnsignedShort() != MAGIC || in.readUnsignedByte() != VERSION)
+            throw new IOException("Not an inference hub");
+        int status = in.readUnsignedByte();
+        if (in.readUnsignedShort() != classCount && status == STATUS_OK)
+            return STATUS_MISMATCH;
+        return status;
+    }
+
+    /**
+     * Size of a HOP message.
+     */
+    static int hopMessageSize(int hopSamples) {
+        return 5 + hopSamples;
+    }
+
+    /**
+     * Size of a RESULT message.
+     */
+    static int resultMessageSize(int classCount) {
+        return 9 + classCount;
+    }
+}
@@ -0,0 +1,398 @@
+package com.example.tapticapp.network;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * In-memory table of the Taptic peers heard on the network.
+ *
+ * Updated by the listener thread for every frame (heartbeat or events) and
+ * every legacy JSON datagram; read by the Devices view. A peer is alive
+ * until three of its announced heartbeat intervals pass without a packet,
+ * and is forgotten {@link #FORGET_AFTER_MS} after that. At most
+ * {@link #MAX_PEERS} peers are kept; the one heard from least recently is
+ * evicted first.
+ *
+ * Each binary frame also updates an estimate of the peer's clock offset.
+ * Every frame carries the sender's send time, so (send time - receive time)
+ * is the offset minus the one-way delay; the largest sample over the last
+ * one to two {@link #CLOCK_WINDOW_MS} windows is the offset minus the
+ * smallest delay, which on a LAN is a few ms. The window lets the estimate
+ * follow clock adjustments.
+ *
+ * The sender also reports emergency delivery here: how long each peer took
+ * to ack, how many retransmits that needed and how many deliveries timed
+ * out.
+ */
+public class PeerRegistry {
+
+    public static final int MAX_PEERS = 64;
+
+    private static final int MISSED_HEARTBEATS = 3;
+    private static final long MIN_EXPIRY_MS = 10_000;
+    // Before a peer's first heartbeat, and for legacy peers, which send none
+    private static final long DEFAULT_EXPIRY_MS = 3 * 60 * 1000;
+    static final long FORGET_AFTER_MS = 10 * 60 * 1000;
+    static final long CLOCK_WINDOW_MS = 60_000;
+
+    private static PeerRegistry instance;
+
+    /**
+     * Told about a peer worth contacting.
+     */
+    public interface DiscoveryListener {
+        void onPeerDiscovered(PeerInfo peer);
+    }
+
+    /**
+     * Immutable copy of a peer's state for display.
+     */
+    public static final class PeerInfo {
+        public final long deviceId;
+        public final String name;
+        public final String address;
+        public final boolean isLegacy;
+        public final int protocolVersion;
+        public final int capabilities;
+        public final int heartbeatIntervalSec;
+        public final long firstSeenMs;
+        public final long lastSeenMs;
+        public final long packets;
+        public final long bytes;
+        public final long events;
+        public final long duplicates;
+        public final boolean isAlive;
+        public final long emergencyAcks;
+        public final long emergencyRetries;
+        public final long emergencyFailures;
+        public final long averageAckLatencyMs;
+        public final long maxAckLatencyMs;
+        /** Peer clock minus ours; 0 for legacy peers. */
+        public final long clockOffsetMs;
+
+        PeerInfo(Peer peer, long now) {
+            deviceId = peer.deviceId;
+            name = peer.name;
+            address = peer.address != null ? peer.address.getHostAddress() : null;
+            isLegacy = peer.isLegacy;
+            protocolVersion = peer.protocolVersion;
+            capabilities = peer.capabilities;
+            heartbeatIntervalSec = peer.heartbeatIntervalSec;
+            firstSeenMs = peer.firstSeenMs;
+            lastSeenMs = peer.lastSeenMs;
+            packets = peer.packets;
+            bytes = peer.bytes;
+            events = peer.events;
+            duplicates = peer.duplicates;
+            isAlive = peer.isAlive(now);
+            emergencyAcks = peer.acks;
+            emergencyRetries = peer.retries;
+            emergencyFailures = peer.failures;
+            averageAckLatencyMs = peer.acks == 0 ? 0 : peer.totalAckLatencyMs / peer.acks;
+            maxAckLatencyMs = peer.maxAckLatencyMs;
+            clockOffsetMs = peer.clockOffsetMs;
+        }
+    }
+
+    private static final class Peer {
+        long deviceId;
+        String name;
+        InetAddress address;
+        boolean isLegacy;
+        int protocolVersion;
+        int capabilities;
+        int heartbeatIntervalSec;
+        long firstSeenMs;
+        long lastSeenMs;
+        long packets;
+        long bytes;
+        long events;
+        long duplicates;
+        long acks;
+        long retries;
+        long failures;
+        long totalAckLatencyMs;
+        long maxAckLatencyMs;
+        long clockOffsetMs;
+        long offsetWindowStartMs;
+        long offsetWindowMax = Long.MIN_VALUE;
+        long offsetPreviousMax = Long.MIN_VALUE;
+
+        long expiryMs() {
+            if (heartbeatIntervalSec == 0)
+                return DEFAULT_EXPIRY_MS;
+            return Math.max(MIN_EXPIRY_MS, heartbeatIntervalSec * 1000L * MISSED_HEARTBEATS);
+        }
+
+        boolean isAlive(long now) {
+            return now - lastSeenMs < expiryMs();
+        }
+
+        void updateClockOffset(long senderTimeMs, long now) {
+            if (now - offsetWindowStartMs >= CLOCK_WINDOW_MS) {
+                offsetPreviousMax = offsetWindowMax;
+                offsetWindowMax = Long.MIN_VALUE;
+                offsetWindowStartMs = now;
+            }
+            offsetWindowMax = Math.max(offsetWindowMax, senderTimeMs - now);
+            clockOffsetMs = Math.max(offsetWindowMax, offsetPreviousMax);
+        }
+    }
+
+    private final Peer[] peers = new Peer[MAX_PEERS];
+    private int peerCount;
+    private volatile DiscoveryListener discoveryListener;
+
+    public static synchronized PeerRegistry getInstance() {
+        if (instance == null) {
+            instance = new PeerRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * Called (on the listener thread) when a peer that speaks the binary
+     * protocol is seen for the first time, comes back after expiring, or
+     * announces different capabilities, so we can announce ourselves
+     * promptly and catch up on its history.
+     */
+    public void setDiscoveryListener(DiscoveryListener listener) {
+        this.discoveryListener = listener;
+    }
+
+    /**
+     * Record a decoded binary frame. {@code duplicates} of its events were
+     * dropped by the dedup filter. Returns the peer's estimated clock offset
+     * (its clock minus ours) in ms.
+     */
+    long recordFrame(WireProtocol.Frame frame, String name, InetAddress address, int bytes, int duplicates,
+            long now) {
+        long clockOffsetMs;
+        PeerInfo discoveredPeer = null;
+        synchronized (this) {
+            Peer peer = findById(frame.deviceId);
+            boolean discovered = peer == null || !peer.isAlive(now);
+            if (peer == null) {
+                peer = add(now);
+                peer.deviceId = frame.deviceId;
+            }
+            peer.name = name;
+            peer.protocolVersion = frame.version;
+            if (frame.type == WireProtocol.TYPE_HEARTBEAT) {
+                discovered |= peer.capabilities != frame.capabilities;
+                peer.capabilities = frame.capabilities;
+                peer.heartbeatIntervalSec = frame.heartbeatIntervalSec;
+            }
+            touch(peer, address, bytes, now);
+            if (frame.type == WireProtocol.TYPE_EVENTS) {
+                peer.events += frame.eventCount - duplicates;
+                peer.duplicates += duplicates;
+            }
+            peer.updateClockOffset(frame.timestampMs, now);
+            clockOffsetMs = peer.clockOffsetMs;
+            if (discovered && discoveryListener != null) {
+                discoveredPeer = new PeerInfo(peer, now);
+            }
+        }
+
+        DiscoveryListener listener = discoveryListener;
+        if (discoveredPeer != null && listener != null) {
+            listener.onPeerDiscovered(discoveredPeer);
+        }
+        return clockOffsetMs;
+    }
+
+    /**
+     * Record a legacy JSON datagram. Legacy peers have no device id and are
+     * keyed by host name.
+     */
+    synchronized void recordLegacy(String name, InetAddress address, int bytes, int events, boolean duplicate,
+            long now) {
+        Peer peer = findLegacy(name);
+        if (peer == null) {
+            peer = add(now);
+            peer.name = name;
+            peer.isLegacy = true;
+        }
+        touch(peer, address, bytes, now);
+        if (duplicate) {
+            peer.duplicates++;
+        } else {
+            peer.events += events;
+        }
+    }
+
+    /**
+     * All known peers, live ones first, then by name. Peers silent for too
+     * long are dropped here.
+     */
+    public synchronized List<PeerInfo> getPeers() {
+        long now = System.currentTimeMillis();
+        prune(now);
+        List<PeerInfo> result = new ArrayList<>(peerCount);
+        for (int i = 0; i < peerCount; i++) {
+            result.add(new PeerInfo(peers[i], now));
+        }
+        Collections.sort(result, (a, b) -> {
+            if (a.isAlive != b.isAlive)
+                return a.isAlive ? -1 : 1;
+            return String.valueOf(a.name).compareToIgnoreCase(String.valueOf(b.name));
+        });
+        return result;
+    }
+
+    /**
+     * Record an ack for one of our emergency frames. {@code retries} is the
+     * number of retransmits sent before it arrived.
+     */
+    synchronized void recordAck(long deviceId, long latencyMs, int retries) {
+        Peer peer = findById(deviceId);
+        if (peer == null)
+            return;
+        peer.acks++;
+        peer.retries += retries;
+        peer.totalAckLatencyMs += latencyMs;
+        peer.maxAckLatencyMs = Math.max(peer.maxAckLatencyMs, latencyMs);
+    }
+
+    /**
+     * Record an emergency frame the peer never acked.
+     */
+    synchronized void recordDeliveryFailure(long deviceId, int retries) {
+        Peer peer = findById(deviceId);
+        if (peer == null)
+            return;
+        peer.failures++;
+        peer.retries += retries;
+    }
+
+    /**
+     * Fill {@code out} with the ids of live peers that ack emergency frames
+     * and return how many there are. Allocates nothing.
+     */
+    synchronized int collectAckingPeers(long[] out) {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (int i = 0; i < peerCount && count < out.length; i++) {
+            Peer peer = peers[i];
+            if (!peer.isLegacy && (peer.capabilities & WireProtocol.CAP_ACK) != 0 && peer.isAlive(now)) {
+                out[count++] = peer.deviceId;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * True if a live peer advertises all of the given capability bits.
+     */
+    public synchronized boolean hasLivePeer(int capabilities) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < peerCount; i++) {
+            Peer peer = peers[i];
+            if ((peer.capabilities & capabilities) == capabilities && peer.isAlive(now))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * The live peer advertising all of the given capability bits that was
+     * heard from most recently, or null.
+     */
+    public synchronized PeerInfo findLivePeer(int capabilities) {
+        long now = System.currentTimeMillis();
+        Peer best = null;
+        for (int i = 0; i < peerCount; i++) {
+            Peer peer = peers[i];
+            if (!peer.isLegacy && (peer.capabilities & capabilities) == capabilities && peer.isAlive(now)
+                    && (best == null || peer.lastSeenMs > best.lastSeenMs))
+                best = peer;
+        }
+        return best != null ? new PeerInfo(best, now) : null;
+    }
+
+    public synchronized boolean isAlive(long deviceId) {
+        Peer peer = findById(deviceId);
+        return peer != null && peer.isAlive(System.currentTimeMillis());
+    }
+
+    public synchronized int getAliveCount() {
+        long now = System.currentTimeMillis();
+        int alive = 0;
+        for (int i = 0; i < peerCount; i++) {
+            if (peers[i].isAlive(now))
+                alive++;
+        }
+        return alive;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < peerCount; i++) {
+            peers[i] = null;
+        }
+        peerCount = 0;
+    }
+
+    private void touch(Peer peer, InetAddress address, int bytes, long now) {
+        if (address != null) {
+            peer.address = address;
+        }
+        peer.lastSeenMs = now;
+        peer.packets++;
+        peer.bytes += bytes;
+    }
+
+    private Peer findById(long deviceId) {
+        for (int i = 0; i < peerCount; i++) {
+            Peer peer = peers[i];
+            if (!peer.isLegacy && peer.deviceId == deviceId)
+                return peer;
+        }
+        return null;
+    }
+
+    private Peer findLegacy(String name) {
+        for (int i = 0; i < peerCount; i++) {
+            Peer peer = peers[i];
+            if (peer.isLegacy && peer.name.equals(name))
+                return peer;
+        }
+        return null;
+    }
+
+    private Peer add(long now) {
+        if (peerCount == MAX_PEERS) {
+            prune(now);
+        }
+        int slot;
+        if (peerCount < MAX_PEERS) {
+            slot = peerCount++;
+        } else {
+            slot = 0;
+            for (int i = 1; i < MAX_PEERS; i++) {
+                if (peers[i].lastSeenMs < peers[slot].lastSeenMs)
+                    slot = i;
+            }
+        }
+        Peer peer = new Peer();
+        peer.firstSeenMs = now;
+        peers[slot] = peer;
+        return peer;
+    }
+
+    private void prune(long now) {
+        int kept = 0;
+        for (int i = 0; i < peerCount; i++) {
+            Peer peer = peers[i];
+            if (now - peer.lastSeenMs < peer.expiryMs() + FORGET_AFTER_MS) {
+                peers[kept++] = peer;
+            }
+        }
+        for (int i = kept; i < peerCount; i++) {
+            peers[i] = null;
+        }
+        peerCount = kept;
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.tapticapp.network;
+
+import android.util.Log;
+import com.example.tapticapp.config.NetworkSettings;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Socket setup shared by {@link BroadcastSender} and
+ * {@link BroadcastListener}.
+ *
+ * Binary frames go to an IP multicast group so only hosts that joined it
+ * (Taptic peers) receive them. If multicast is disabled, or no usable
+ * interface is found, everything falls back to limited broadcast on the same
+ * port. The listener socket is bound to the wildcard address, so it receives
+ * both.
+ */
+public final class PeerTransport {
+
+    private static final String TAG = "PeerTransport";
+
+    public static final int PORT = 50000;
+    /** TCP port {@link HistorySync} serves on. */
+    public static final int SYNC_PORT = 50001;
+    /** TCP port {@link OffloadHub} serves on. */
+    public static final int OFFLOAD_PORT = 50002;
+    static final InetSocketAddress BROADCAST_ADDRESS = new InetSocketAddress("255.255.255.255", PORT);
+
+    private PeerTransport() {
+    }
+
+    /**
+     * Names of the interfaces that can carry multicast, for the settings UI.
+     */
+    public static List<String> listMulticastInterfaces() {
+        List<String> names = new ArrayList<>();
+        for (NetworkInterface ni : interfaces()) {
+            if (isUsable(ni)) {
+                names.add(ni.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * The configured interface if it is usable, otherwise the first usable
+     * one (Wi-Fi preferred). Null if there is none.
+     */
+    static NetworkInterface selectInterface(NetworkSettings settings) {
+        if (!settings.interfaceName.isEmpty()) {
+            try {
+                NetworkInterface ni = NetworkInterface.getByName(settings.interfaceName);
+                if (isUsable(ni)) {
+                    return ni;
+                }
+            } catch (SocketException e) {
+                // Fall through to automatic selection
+            }
+            Log.w(TAG, "Interface " + settings.interfaceName + " not usable, selecting automatically");
+        }
+
+        NetworkInterface fallback = null;
+        for (NetworkInterface ni : interfaces()) {
+            if (!isUsable(ni))
+                continue;
+            if (ni.getName().startsWith("wlan"))
+                return ni;
+            if (fallback == null)
+                fallback = ni;
+        }
+        return fallback;
+    }
+
+    /**
+     * Where binary frames go: the multicast group if multicast is enabled
+     * and an interface is available, otherwise broadcast.
+     */
+    static InetSocketAddress frameDestination(NetworkSettings settings, NetworkInterface multicastInterface) {
+        if (settings.multicastEnabled && multicastInterface != null) {
+            return new InetSocketAddress(settings.multicastGroup, PORT);
+        }
+        return BROADCAST_ADDRESS;
+    }
+
+    /**
+     * Sending socket: broadcast allowed, multicast TTL and outgoing
+     * interface set when multicast is in use.
+     */
+    static DatagramChannel openSender(NetworkSettings settings, NetworkInterface multicastInterface)
+            throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+        if (settings.multicastEnabled && multicastInterface != null) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, settings.multicastTtl);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, multicastInterface);
+        }
+        return channel;
+    }
+
+    /**
+     * Receiving socket bound to the wildcard address on {@link #PORT}.
+     */
+    static DatagramChannel openListener() throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(new InetSocketAddress(PORT));
+        return channel;
+    }
+
+    /**
+     * Plain socket bound to a loopback address, for the peer simulator.
+     */
+    static DatagramChannel openLoopback(InetSocketAddress address) throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.bind(address);
+        return channel;
+    }
+
+    /**
+     * Join the configured group. Returns null (broadcast only) if multicast
+     * is off or the join fails.
+     */
+    static MembershipKey join(DatagramChannel channel, NetworkSettings settings) {
+        if (!settings.multicastEnabled)
+            return null;
+        NetworkInterface ni = selectInterface(settings);
+        if (ni == null) {
+            Log.w(TAG, "No multicast interface, listening for broadcast only");
+            return null;
+        }
+        try {
+            MembershipKey key = channel.join(InetAddress.getByName(settings.multicastGroup), ni);
+            Log.d(TAG, "Joined " + settings.multicastGroup + " on " + ni.getName());
+            return key;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to join " + settings.multicastGroup + ", listening for broadcast only", e);
+            return null;
+        }
+    }
+
+    private static boolean isUsable(NetworkInterface ni) {
+        try {
+            if (ni == null || !ni.isUp() || ni.isLoopback() || !ni.supportsMulticast())
+                return false;
+        } catch (SocketException e) {
+            return false;
+        }
+        Enumeration<InetAddress> addresses = ni.getInetAddresses();
+        while (addresses.hasMoreElements()) {
+            if (addresses.nextElement() instanceof Inet4Address)
+                return true;
+        }
+        return false;
+    }
+
+    private static List<NetworkInterface> interfaces() {
+        try {
+            Enumeration<NetworkInterface> all = NetworkInterface.getNetworkInterfaces();
+            return all != null ? Collections.list(all) : Collections.emptyList();
+        } catch (SocketException e) {
+            Log.e(TAG, "Failed to list network interfaces", e);
+            return Collections.emptyList();
+        }
+    }
+}
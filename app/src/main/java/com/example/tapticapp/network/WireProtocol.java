@@ -0,0 +1,281 @@
+package com.example.tapticapp.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary frame format for peer events.
+ *
+ * <pre>
+ * offset size field
+ *      0    2 magic 0x5450 ("TP")
+ *      2    1 version
+ *      3    1 frame type
+ *      4    8 device id
+ *     12    4 sequence number of the first event (unsigned)
+ *     16    8 sender wall-clock time, ms since epoch
+ *     24    1 event count
+ *     25    1 host name length N (UTF-8 bytes, at most 32)
+ *     26    N host name
+ *   26+N      body, depending on the frame type:
+ *             EVENTS:    4*k events: class id (u16), score (u8, 0-255), flags (u8)
+ *             SCORES:    4*k entries, as for EVENTS
+ *             HEARTBEAT: capabilities (u16), heartbeat interval in s (u16)
+ *             ACK:       device id of the frame's sender (u64)
+ * </pre>
+ *
+ * All fields are big-endian. Event i of a frame has sequence number
+ * {@code sequence + i}; a heartbeat carries the sequence number the sender
+ * will use next and no events. A scores frame shares a sender's raw
+ * per-class evidence for fusion; its timestamp is the capture time, its
+ * entries are not events and it uses no sequence numbers. An ack confirms
+ * receipt of the events frame with the given sequence number from the given
+ * device; it carries no host name and is sent unicast back to the frame's
+ * source. Frames of unknown type decode with an empty body so newer peers
+ * can add types. Anything that does not start with the magic is treated as
+ * the legacy JSON format by the listener.
+ *
+ * Encoding and decoding work directly on ByteBuffers and reuse a
+ * {@link Frame} holder, so neither side allocates per packet.
+ */
+public final class WireProtocol {
+
+    public static final int MAGIC = 0x5450;
+    public static final int VERSION = 1;
+
+    public static final int TYPE_EVENTS = 1;
+    public static final int TYPE_HEARTBEAT = 2;
+    public static final int TYPE_ACK = 3;
+    public static final int TYPE_SCORES = 4;
+
+    public static final int FLAG_EMERGENCY = 1;
+
+    // Heartbeat capability bits
+    public static final int CAP_SEND_EVENTS = 1;
+    public static final int CAP_RECEIVE_EVENTS = 1 << 1;
+    // Acks frames that contain emergency events
+    public static final int CAP_ACK = 1 << 2;
+    // Sends and uses SCORES frames
+    public static final int CAP_FUSION = 1 << 3;
+    // Serves detection history to HistorySync
+    public static final int CAP_HISTORY_SYNC = 1 << 4;
+    // Runs the model for OffloadClient peers
+    public static final int CAP_INFERENCE_HUB = 1 << 5;
+
+    public static final int MAX_HOST_BYTES = 32;
+    public static final int MAX_EVENTS = 32;
+    public static final int UNKNOWN_CLASS = 0xFFFF;
+
+    static final int HEADER_SIZE = 26;
+    static final int EVENT_SIZE = 4;
+    static final int HEARTBEAT_SIZE = 4;
+    static final int ACK_SIZE = 8;
+
+    private static final byte[] NO_HOST = new byte[0];
+
+    private WireProtocol() {
+    }
+
+    /**
+     * Decoded frame. Reused between packets; only the first
+     * {@link #eventCount} entries of the event arrays are valid.
+     */
+    public static final class Frame {
+        public int version;
+        public int type;
+        public long deviceId;
+        public long sequence;
+        public long timestampMs;
+        public int eventCount;
+        public final int[] classIds = new int[MAX_EVENTS];
+        public final int[] scores = new int[MAX_EVENTS];
+        public final int[] flags = new int[MAX_EVENTS];
+        public final byte[] host = new byte[MAX_HOST_BYTES];
+        public int hostLength;
+        public int capabilities;
+        public int heartbeatIntervalSec;
+        public long ackedDeviceId;
+
+        public String hostString() {
+            return new String(host, 0, hostLength, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * True if the bytes at the buffer's position start with the frame magic.
+     */
+    public static boolean isBinaryFrame(ByteBuffer in) {
+        return in.remaining() >= 2 && (in.getShort(in.position()) & 0xFFFF) == MAGIC;
+    }
+
+    /**
+     * Sender's device id of the binary frame at the buffer's position,
+     * without decoding it. 0 if the frame is too short to have one.
+     */
+    public static long peekDeviceId(ByteBuffer in) {
+        return in.remaining() >= HEADER_SIZE ? in.getLong(in.position() + 4) : 0;
+    }
+
+    /**
+     * Host name as it goes on the wire: UTF-8, truncated to
+     * {@link #MAX_HOST_BYTES}. Encode once and reuse.
+     */
+    public static byte[] encodeHost(String host) {
+        byte[] bytes = (host != null ? host : "").getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= MAX_HOST_BYTES) {
+            return bytes;
+        }
+        byte[] truncated = new byte[MAX_HOST_BYTES];
+        System.arraycopy(bytes, 0, truncated, 0, MAX_HOST_BYTES);
+        return truncated;
+    }
+
+    /**
+     * Write an events frame at the buffer's position.
+     */
+    public static void encodeEvents(ByteBuffer out, long deviceId, long sequence, long timestampMs,
+            byte[] host, int count, int[] classIds, float[] scores, int[] flags) {
+        int events = Math.min(count, MAX_EVENTS);
+        writeHeader(out, TYPE_EVENTS, deviceId, sequence, timestampMs, events, host);
+        for (int i = 0; i < events; i++) {
+            out.putShort((short) classIds[i]);
+            out.put((byte) quantizeScore(scores[i]));
+            out.put((byte) flags[i]);
+        }
+    }
+
+    /**
+     * Write a scores frame at the buffer's position. {@code timestampMs} is
+     * when the audio was captured.
+     */
+    public static void encodeScores(ByteBuffer out, long deviceId, long nextSequence, long timestampMs,
+            byte[] host, int count, int[] classIds, float[] scores) {
+        int entries = Math.min(count, MAX_EVENTS);
+        writeHeader(out, TYPE_SCORES, deviceId, nextSequence, timestampMs, entries, host);
+        for (int i = 0; i < entries; i++) {
+            out.putShort((short) classIds[i]);
+            out.put((byte) quantizeScore(scores[i]));
+            out.put((byte) 0);
+        }
+    }
+
+    /**
+     * Write a heartbeat frame at the buffer's position.
+     */
+    public static void encodeHeartbeat(ByteBuffer out, long deviceId, long nextSequence, long timestampMs,
+            byte[] host, int capabilities, int intervalSec) {
+        writeHeader(out, TYPE_HEARTBEAT, deviceId, nextSequence, timestampMs, 0, host);
+        out.putShort((short) capabilities);
+        out.putShort((short) Math.min(intervalSec, 0xFFFF));
+    }
+
+    /**
+     * Write an ack for the events frame {@code ackedSequence} of device
+     * {@code ackedDeviceId} at the buffer's position.
+     */
+    public static void encodeAck(ByteBuffer out, long deviceId, long ackedDeviceId, long ackedSequence,
+            long timestampMs) {
+        writeHeader(out, TYPE_ACK, deviceId, ackedSequence, timestampMs, 0, NO_HOST);
+        out.putLong(ackedDeviceId);
+    }
+
+    private static void writeHeader(ByteBuffer out, int type, long deviceId, long sequence, long timestampMs,
+            int eventCount, byte[] host) {
+        int hostLength = Math.min(host.length, MAX_HOST_BYTES);
+        out.putShort((short) MAGIC);
+        out.put((byte) VERSION);
+        out.put((byte) type);
+        out.putLong(deviceId);
+        out.putInt((int) sequence);
+        out.putLong(timestampMs);
+        out.put((byte) eventCount);
+        out.put((byte) hostLength);
+        out.put(host, 0, hostLength);
+    }
+
+    /**
+     * Decode a frame from the buffer's position into {@code frame}.
+     * Returns false (leaving the frame in an unspecified state) if the bytes
+     * are not a well-formed frame of a supported version.
+     */
+    public static boolean decode(ByteBuffer in, Frame frame) {
+        int start = in.position();
+        int length = in.remaining();
+        if (length < HEADER_SIZE || (in.getShort(start) & 0xFFFF) != MAGIC) {
+            return false;
+        }
+
+        frame.version = in.get(start + 2) & 0xFF;
+        if (frame.version != VERSION) {
+            return false;
+        }
+        frame.type = in.get(start + 3) & 0xFF;
+        frame.deviceId = in.getLong(start + 4);
+        frame.sequence = in.getInt(start + 12) & 0xFFFFFFFFL;
+        frame.timestampMs = in.getLong(start + 16);
+        frame.eventCount = in.get(start + 24) & 0xFF;
+        frame.hostLength = in.get(start + 25) & 0xFF;
+
+        if (frame.hostLength > MAX_HOST_BYTES || length < HEADER_SIZE + frame.hostLength) {
+            return false;
+        }
+        for (int i = 0; i < frame.hostLength; i++) {
+            frame.host[i] = in.get(start + HEADER_SIZE + i);
+        }
+        int offset = start + HEADER_SIZE + frame.hostLength;
+        int bodyLength = length - HEADER_SIZE - frame.hostLength;
+        frame.capabilities = 0;
+        frame.heartbeatIntervalSec = 0;
+        frame.ackedDeviceId = 0;
+
+        switch (frame.type) {
+            case TYPE_EVENTS:
+            case TYPE_SCORES:
+                if (frame.eventCount > MAX_EVENTS || bodyLength < frame.eventCount * EVENT_SIZE) {
+                    return false;
+                }
+                for (int i = 0; i < frame.eventCount; i++) {
+                    frame.classIds[i] = in.getShort(offset) & 0xFFFF;
+                    frame.scores[i] = in.get(offset + 2) & 0xFF;
+                    frame.flags[i] = in.get(offset + 3) & 0xFF;
+                    offset += EVENT_SIZE;
+                }
+                break;
+            case TYPE_HEARTBEAT:
+                if (bodyLength < HEARTBEAT_SIZE) {
+                    return false;
+                }
+                frame.eventCount = 0;
+                frame.capabilities = in.getShort(offset) & 0xFFFF;
+                frame.heartbeatIntervalSec = in.getShort(offset + 2) & 0xFFFF;
+                offset += HEARTBEAT_SIZE;
+                break;
+            case TYPE_ACK:
+                if (bodyLength < ACK_SIZE) {
+                    return false;
+                }
+                frame.eventCount = 0;
+                frame.ackedDeviceId = in.getLong(offset);
+                offset += ACK_SIZE;
+                break;
+            default:
+                frame.eventCount = 0;
+                offset = start + length;
+                break;
+        }
+        in.position(offset);
+        return true;
+    }
+
+    public static int quantizeScore(double score) {
+        if (score <= 0)
+            return 0;
+        if (score >= 1)
+            return 255;
+        return (int) Math.round(score * 255);
+    }
+
+    public static double dequantizeScore(int quantized) {
+        return quantized / 255.0;
+    }
+}
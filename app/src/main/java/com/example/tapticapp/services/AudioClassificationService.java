@@ -1,25 +1,40 @@
 package com.example.tapticapp.services;
 
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ServiceInfo;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.net.wifi.WifiManager;
 import android.os.Looper;
 import android.util.Log;
 
+import com.example.tapticapp.audio.ClipRecorder;
+import com.example.tapticapp.audio.PcmRing;
 import com.example.tapticapp.audio.YamnetAudioClassifier;
 import com.example.tapticapp.config.AppConfig;
+import com.example.tapticapp.config.NetworkSettings;
+import com.example.tapticapp.config.Settings;
+import com.example.tapticapp.config.SettingsStore;
 import com.example.tapticapp.core.Interpreter;
 import com.example.tapticapp.data.DetectionEvent;
 import com.example.tapticapp.data.HistoryRepository;
+import com.example.tapticapp.data.SoundTimeline;
 import com.example.tapticapp.network.BroadcastListener;
 import com.example.tapticapp.network.BroadcastSender;
+import com.example.tapticapp.network.DeviceIdentity;
+import com.example.tapticapp.network.HistorySync;
+import com.example.tapticapp.network.OffloadClient;
+import com.example.tapticapp.network.OffloadHub;
+import com.example.tapticapp.network.PeerRegistry;
 import com.example.tapticapp.notifications.TapticNotificationManager;
 
+import java.io.File;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Foreground service that runs audio classification continuously.
@@ -30,12 +45,26 @@ public class AudioClassificationService extends Service {
     private static final int NOTIFICATION_ID = 9001;
 
     private YamnetAudioClassifier audioClassifier;
+    private ClipRecorder clipRecorder;
+    private SoundTimeline soundTimeline;
     private Interpreter interpreter;
     private AppConfig appConfig;
     private TapticNotificationManager notificationManager;
     private BroadcastSender broadcastSender;
     private BroadcastListener broadcastListener;
     private HistoryRepository historyRepository;
+    private HistorySync historySync;
+    private OffloadHub offloadHub;
+    private OffloadClient offloadClient;
+    private long localDeviceId;
+    private WifiManager.MulticastLock multicastLock;
+    private NetworkSettings activeNetworkSettings;
+    private int activeHistoryMaxRows;
+    private int activeHistoryMaxAgeDays;
+    private int activeClipBudgetMb;
+    private int activeClipPreSeconds;
+    private int activeClipPostSeconds;
+    private final SettingsStore.OnSettingsChangedListener settingsListener = this::onSettingsChanged;
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     private final IBinder binder = new LocalBinder();
@@ -48,7 +77,7 @@ public class AudioClassificationService extends Service {
     }
 
     public interface ServiceCallback {
-        void onAudioUpdate(List<Interpreter.DetectionResult> top3, double level);
+        void onAudioUpdate(List<Interpreter.DetectionResult> top3, float[] scores, double level);
 
         void onEmergencyFlash();
     }
@@ -64,9 +93,25 @@ public class AudioClassificationService extends Service {
 
         appConfig = AppConfig.getInstance(getApplicationContext());
         audioClassifier = new YamnetAudioClassifier(getApplicationContext());
-        broadcastSender = new BroadcastSender();
+        appConfig.setClassLabels(audioClassifier.getLabels());
+        // The ring lives on the heap: a mapped file would be written back
+        // to flash continuously
+        int sampleRate = YamnetAudioClassifier.SAMPLE_RATE;
+        clipRecorder = new ClipRecorder(ClipRecorder.clipDir(getApplicationContext()),
+                new PcmRing(ClipRecorder.ringCapacity(sampleRate)), sampleRate);
+        applyClipLimits(appConfig.getClipBudgetMb(), appConfig.getClipPreSeconds(), appConfig.getClipPostSeconds());
+        audioClassifier.setPcmListener(clipRecorder::onPcm);
+        soundTimeline = new SoundTimeline(new File(getFilesDir(), SoundTimeline.TIMELINE_DIR),
+                YamnetAudioClassifier.NUM_CLASSES);
+        soundTimeline.start();
+        DeviceIdentity identity = DeviceIdentity.getInstance(getApplicationContext());
+        localDeviceId = identity.getDeviceId();
+        PeerRegistry peerRegistry = PeerRegistry.getInstance();
+        broadcastSender = new BroadcastSender(identity, peerRegistry, appConfig::getNetworkSettings);
+        broadcastSender.start();
         notificationManager = new TapticNotificationManager(getApplicationContext());
         historyRepository = HistoryRepository.getInstance(getApplicationContext());
+        applyHistoryRetention(appConfig.getHistoryMaxRows(), appConfig.getHistoryMaxAgeDays());
 
         interpreter = new Interpreter(
                 getApplicationContext(),
@@ -74,7 +119,29 @@ public class AudioClassificationService extends Service {
                 broadcastSender,
                 this::handleNotification);
 
-        broadcastListener = new BroadcastListener(this::handleBroadcastEvent);
+        historySync = new HistorySync(localDeviceId, Build.MODEL != null ? Build.MODEL : "Android Device",
+                historyRepository);
+        historySync.start();
+        peerRegistry.setDiscoveryListener(peer -> {
+            broadcastSender.requestFastHeartbeat();
+            historySync.requestSync(peer);
+        });
+        broadcastListener = new BroadcastListener(identity.getDeviceId(), appConfig::getSnapshot,
+                appConfig::getNetworkSettings, peerRegistry, this::handleBroadcastEvent);
+        broadcastListener.setAckCallback(broadcastSender::onAck);
+        broadcastListener.setScoresCallback(interpreter::handlePeerScore);
+
+        // Many Wi-Fi drivers filter multicast unless a lock is held
+        WifiManager wifiManager = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        if (wifiManager != null) {
+            multicastLock = wifiManager.createMulticastLock(TAG);
+            multicastLock.setReferenceCounted(false);
+            multicastLock.acquire();
+        }
+
+        activeNetworkSettings = appConfig.getNetworkSettings();
+        applyInferenceRole(activeNetworkSettings);
+        appConfig.addOnSettingsChangedListener(settingsListener);
         broadcastListener.start();
     }
 
@@ -107,8 +174,97 @@ public class AudioClassificationService extends Service {
         Log.d(TAG, "Service destroyed");
         if (audioClassifier != null)
             audioClassifier.close();
+        if (clipRecorder != null)
+            clipRecorder.close();
+        if (soundTimeline != null)
+            soundTimeline.close();
         if (broadcastListener != null)
             broadcastListener.stop();
+        if (broadcastSender != null)
+            broadcastSender.stop();
+        PeerRegistry.getInstance().setDiscoveryListener(null);
+        if (historySync != null)
+            historySync.stop();
+        if (historyRepository != null)
+            historyRepository.flush();
+        if (offloadHub != null)
+            offloadHub.stop();
+        if (offloadClient != null)
+            offloadClient.stop();
+        if (appConfig != null)
+            appConfig.removeOnSettingsChangedListener(settingsListener);
+        if (multicastLock != null && multicastLock.isHeld())
+            multicastLock.release();
+    }
+
+    /**
+     * The sender picks up new network settings by itself; the listener has
+     * to rejoin the group.
+     */
+    private void onSettingsChanged(Settings settings) {
+        if (settings.network != activeNetworkSettings) {
+            activeNetworkSettings = settings.network;
+            if (broadcastListener != null)
+                broadcastListener.reconfigure();
+            applyInferenceRole(settings.network);
+            // Peers learn about a new hub from our next heartbeat
+            if (broadcastSender != null)
+                broadcastSender.requestFastHeartbeat();
+        }
+        if (settings.historyMaxRows != activeHistoryMaxRows
+                || settings.historyMaxAgeDays != activeHistoryMaxAgeDays)
+            applyHistoryRetention(settings.historyMaxRows, settings.historyMaxAgeDays);
+        if (settings.clipBudgetMb != activeClipBudgetMb || settings.clipPreSeconds != activeClipPreSeconds
+                || settings.clipPostSeconds != activeClipPostSeconds)
+            applyClipLimits(settings.clipBudgetMb, settings.clipPreSeconds, settings.clipPostSeconds);
+    }
+
+    /**
+     * Trims the history to the new limits right away. The sound timeline
+     * keeps as many days, up to {@link SoundTimeline#MAX_RETENTION_DAYS}.
+     */
+    private void applyHistoryRetention(int maxRows, int maxAgeDays) {
+        activeHistoryMaxRows = maxRows;
+        activeHistoryMaxAgeDays = maxAgeDays;
+        historyRepository.setRetention(maxRows, TimeUnit.DAYS.toMillis(maxAgeDays));
+        soundTimeline.setRetentionDays(maxAgeDays);
+    }
+
+    /**
+     * Evicts clips over a smaller budget right away.
+     */
+    private void applyClipLimits(int budgetMb, int preSeconds, int postSeconds) {
+        activeClipBudgetMb = budgetMb;
+        activeClipPreSeconds = preSeconds;
+        activeClipPostSeconds = postSeconds;
+        clipRecorder.setLimits(preSeconds, postSeconds, budgetMb * 1024L * 1024L);
+    }
+
+    /**
+     * Serve inference to weak peers, offload ours to a hub, or neither.
+     */
+    private void applyInferenceRole(NetworkSettings settings) {
+        int role = settings.inferenceRole;
+        if (role == NetworkSettings.ROLE_HUB && offloadHub == null) {
+            offloadHub = new OffloadHub(audioClassifier::classify, YamnetAudioClassifier.HOP_SAMPLES,
+                    YamnetAudioClassifier.WINDOW_SAMPLES, YamnetAudioClassifier.NUM_CLASSES);
+            offloadHub.start();
+        } else if (role != NetworkSettings.ROLE_HUB && offloadHub != null) {
+            offloadHub.stop();
+            offloadHub = null;
+        }
+
+        if (role == NetworkSettings.ROLE_OFFLOAD && offloadClient == null) {
+            offloadClient = new OffloadClient(localDeviceId, PeerRegistry.getInstance(),
+                    YamnetAudioClassifier.HOP_SAMPLES, YamnetAudioClassifier.WINDOW_SAMPLES,
+                    YamnetAudioClassifier.NUM_CLASSES);
+            audioClassifier.setOffloadClient(offloadClient);
+            offloadClient.start();
+        } else if (role != NetworkSettings.ROLE_OFFLOAD && offloadClient != null) {
+            audioClassifier.setOffloadClient(null);
+            offloadClient.stop();
+            offloadClient = null;
+        }
     }
 
     public String[] getLabels() {
@@ -134,6 +290,7 @@ public class AudioClassificationService extends Service {
 
         audioClassifier.startListening((scores, labels, level) -> {
             List<Interpreter.DetectionResult> top3 = interpreter.onFrame(scores, labels, level);
+            soundTimeline.append(System.currentTimeMillis(), scores, level);
 
             // Update foreground notification
             if (!top3.isEmpty()) {
@@ -143,7 +300,7 @@ public class AudioClassificationService extends Service {
 
             // Update UI via callback
             if (serviceCallback != null) {
-                mainHandler.post(() -> serviceCallback.onAudioUpdate(top3, level));
+                mainHandler.post(() -> serviceCallback.onAudioUpdate(top3, scores, level));
             }
         });
     }
@@ -158,6 +315,12 @@ public class AudioClassificationService extends Service {
                 isEmergency,
                 !isLocal, // isRemote
                 deviceName);
+        if (isLocal) {
+            event.originDevice = localDeviceId;
+            // Audio for checking the alert, written once the post-roll is in
+            if (isEmergency || appConfig.isClipLabel(label))
+                event.clipName = clipRecorder.capture(event.timestamp);
+        }
         historyRepository.insert(event);
 
         mainHandler.post(() -> {
@@ -173,8 +336,8 @@ public class AudioClassificationService extends Service {
         });
     }
 
-    private void handleBroadcastEvent(String label, String deviceName) {
-        interpreter.handleBroadcastEvent(label, deviceName);
+    private void handleBroadcastEvent(int classIndex, String label, double score, String deviceName) {
+        interpreter.handleBroadcastEvent(classIndex, label, score, deviceName);
     }
 
     private void triggerEmergencyFlash() {
@@ -0,0 +1,113 @@
+package com.example.tapticapp.ui;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.example.tapticapp.R;
+import com.example.tapticapp.network.PeerRegistry;
+import com.example.tapticapp.network.WireProtocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adapter for displaying known peers in the Devices tab.
+ */
+public class DevicesAdapter extends RecyclerView.Adapter<DevicesAdapter.ViewHolder> {
+
+    private List<PeerRegistry.PeerInfo> peers = new ArrayList<>();
+    private long now;
+
+    public void setPeers(List<PeerRegistry.PeerInfo> peers, long now) {
+        this.peers = peers;
+        this.now = now;
+        notifyDataSetChanged();
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.item_device, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        PeerRegistry.PeerInfo peer = peers.get(position);
+
+        holder.nameText.setText(peer.name != null && !peer.name.isEmpty() ? peer.name : "Unknown device");
+        holder.statusText.setText(peer.isAlive ? "Online" : "Offline");
+        holder.statusText.setTextColor(peer.isAlive ? 0xFF69F0AE : 0xFFB0BEC5);
+        holder.statusIndicator.setBackgroundColor(peer.isAlive ? 0xFF69F0AE : 0xFF616161);
+
+        String address = peer.address != null ? peer.address : "?";
+        holder.addressText.setText(address + "  ·  seen " + formatAge(now - peer.lastSeenMs));
+
+        holder.protocolText.setText(describeProtocol(peer));
+        String stats = peer.packets + " packets  ·  " + peer.events + " events  ·  "
+                + peer.duplicates + " duplicates";
+        if (peer.emergencyAcks > 0 || peer.emergencyFailures > 0) {
+            stats += "\nAlerts: " + peer.emergencyAcks + " acked (avg " + peer.averageAckLatencyMs + " ms, max "
+                    + peer.maxAckLatencyMs + " ms)  ·  " + peer.emergencyRetries + " retries  ·  "
+                    + peer.emergencyFailures + " missed";
+        }
+        holder.statsText.setText(stats);
+    }
+
+    @Override
+    public int getItemCount() {
+        return peers.size();
+    }
+
+    private static String describeProtocol(PeerRegistry.PeerInfo peer) {
+        if (peer.isLegacy) {
+            return "Legacy JSON";
+        }
+        StringBuilder sb = new StringBuilder("Protocol v").append(peer.protocolVersion);
+        if (peer.heartbeatIntervalSec > 0) {
+            if ((peer.capabilities & WireProtocol.CAP_SEND_EVENTS) != 0)
+                sb.append("  ·  sends");
+            if ((peer.capabilities & WireProtocol.CAP_RECEIVE_EVENTS) != 0)
+                sb.append("  ·  receives");
+            sb.append("  ·  heartbeat ").append(peer.heartbeatIntervalSec).append("s");
+        }
+        sb.append("  ·  clock ").append(peer.clockOffsetMs >= 0 ? "+" : "").append(peer.clockOffsetMs).append(" ms");
+        return sb.toString();
+    }
+
+    private static String formatAge(long ageMs) {
+        long seconds = Math.max(0, ageMs / 1000);
+        if (seconds < 5)
+            return "just now";
+        if (seconds < 60)
+            return seconds + "s ago";
+        if (seconds < 3600)
+            return (seconds / 60) + "m ago";
+        return (seconds / 3600) + "h ago";
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        TextView nameText;
+        TextView statusText;
+        TextView addressText;
+        TextView protocolText;
+        TextView statsText;
+        View statusIndicator;
+
+        ViewHolder(View view) {
+            super(view);
+            nameText = view.findViewById(R.id.deviceNameText);
+            statusText = view.findViewById(R.id.deviceStatusText);
+            addressText = view.findViewById(R.id.deviceAddressText);
+            protocolText = view.findViewById(R.id.deviceProtocolText);
+            statsText = view.findViewById(R.id.deviceStatsText);
+            statusIndicator = view.findViewById(R.id.deviceStatusIndicator);
+        }
+    }
+}
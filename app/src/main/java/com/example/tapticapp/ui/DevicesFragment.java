@@ -0,0 +1,96 @@
+package com.example.tapticapp.ui;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.fragment.app.Fragment;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.example.tapticapp.R;
+import com.example.tapticapp.network.PeerRegistry;
+
+import java.util.List;
+
+/**
+ * Devices fragment listing the Taptic peers heard on the network. The peer
+ * table is polled while the tab is visible so "last seen" and liveness stay
+ * current without the listener thread touching the UI.
+ */
+public class DevicesFragment extends Fragment {
+
+    private static final long REFRESH_INTERVAL_MS = 2000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable refreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            handler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    private RecyclerView recyclerView;
+    private TextView emptyText;
+    private TextView summaryText;
+    private DevicesAdapter adapter;
+
+    @Nullable
+    @Override
+    public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container,
+            @Nullable Bundle savedInstanceState) {
+        return inflater.inflate(R.layout.fragment_devices, container, false);
+    }
+
+    @Override
+    public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+
+        recyclerView = view.findViewById(R.id.devicesRecyclerView);
+        emptyText = view.findViewById(R.id.devicesEmptyText);
+        summaryText = view.findViewById(R.id.devicesSummaryText);
+
+        adapter = new DevicesAdapter();
+        recyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
+        recyclerView.setAdapter(adapter);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        handler.post(refreshRunnable);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refreshRunnable);
+    }
+
+    private void refresh() {
+        List<PeerRegistry.PeerInfo> peers = PeerRegistry.getInstance().getPeers();
+        adapter.setPeers(peers, System.currentTimeMillis());
+
+        int alive = 0;
+        for (PeerRegistry.PeerInfo peer : peers) {
+            if (peer.isAlive)
+                alive++;
+        }
+        summaryText.setText(alive + " online, " + peers.size() + " seen");
+
+        if (peers.isEmpty()) {
+            recyclerView.setVisibility(View.GONE);
+            emptyText.setVisibility(View.VISIBLE);
+        } else {
+            recyclerView.setVisibility(View.VISIBLE);
+            emptyText.setVisibility(View.GONE);
+        }
+    }
+}
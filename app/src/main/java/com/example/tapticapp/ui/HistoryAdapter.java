@@ -10,6 +10,7 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.tapticapp.R;
 import com.example.tapticapp.data.DetectionEvent;
+import com.example.tapticapp.data.HistoryRepository;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -18,18 +19,141 @@ import java.util.List;
 import java.util.Locale;
 
 /**
- * Adapter for displaying detection history in RecyclerView.
+ * Adapter for displaying detection history in RecyclerView, newest first.
+ * Holds the pages loaded so far; {@link #appendPage} adds the next one as
+ * the list is scrolled. Fed with the deltas of
+ * {@link HistoryRepository.ChangeListener}; each change is a positional
+ * notification, so a new detection binds one row.
+ *
+ * Rows with a saved audio clip show a play link, handled by the
+ * {@link OnClipClickListener}.
  */
 public class HistoryAdapter extends RecyclerView.Adapter<HistoryAdapter.ViewHolder> {
 
-    private List<DetectionEvent> events = new ArrayList<>();
+    public interface OnClipClickListener {
+        void onClipClick(DetectionEvent event);
+    }
+
+    private final List<DetectionEvent> events = new ArrayList<>();
     private final SimpleDateFormat timeFormat = new SimpleDateFormat("h:mm:ss a", Locale.getDefault());
+    // Whether the oldest row of the history is loaded
+    private boolean endReached;
+    private OnClipClickListener clipClickListener;
 
+    public HistoryAdapter() {
+        setHasStableIds(true);
+    }
+
+    public void setOnClipClickListener(OnClipClickListener listener) {
+        this.clipClickListener = listener;
+    }
+
+    /**
+     * Replace the rows with the newest page.
+     */
     public void setEvents(List<DetectionEvent> events) {
-        this.events = events;
+        this.events.clear();
+        this.events.addAll(events);
+        endReached = events.size() < HistoryRepository.PAGE_SIZE;
         notifyDataSetChanged();
     }
 
+    /**
+     * The oldest row loaded, the cursor for the next page; null if none.
+     */
+    public DetectionEvent getLastEvent() {
+        return events.isEmpty() ? null : events.get(events.size() - 1);
+    }
+
+    public boolean isEndReached() {
+        return endReached;
+    }
+
+    /**
+     * Add the page that follows {@link #getLastEvent()}. Rows that are not
+     * older than the current last one arrived as deltas meanwhile and are
+     * skipped.
+     */
+    public void appendPage(List<DetectionEvent> page) {
+        DetectionEvent last = getLastEvent();
+        int start = events.size();
+        for (DetectionEvent event : page) {
+            if (last == null || isOlder(event, last))
+                events.add(event);
+        }
+        if (page.size() < HistoryRepository.PAGE_SIZE)
+            endReached = true;
+        notifyItemRangeInserted(start, events.size() - start);
+    }
+
+    /**
+     * Add rows in order. Rows older than everything loaded are left to
+     * {@link #appendPage}, unless there are no more pages.
+     */
+    public void insertEvents(List<DetectionEvent> added) {
+        for (DetectionEvent event : added) {
+            int position = insertionPoint(event);
+            if (position == events.size() && !endReached)
+                continue;
+            events.add(position, event);
+            notifyItemInserted(position);
+        }
+    }
+
+    public void removeEvents(List<Long> ids) {
+        for (int i = events.size() - 1; i >= 0; i--) {
+            if (ids.contains(events.get(i).id)) {
+                events.remove(i);
+                notifyItemRemoved(i);
+            }
+        }
+    }
+
+    /**
+     * Drop rows older than {@code cutoff}, as retention did.
+     */
+    public void removeOlderThan(long cutoff) {
+        int start = events.size();
+        while (start > 0 && events.get(start - 1).timestamp < cutoff) {
+            start--;
+        }
+        if (start == events.size())
+            return;
+        int count = events.size() - start;
+        events.subList(start, events.size()).clear();
+        endReached = true;
+        notifyItemRangeRemoved(start, count);
+    }
+
+    /**
+     * Index of the first row older than {@code event}.
+     */
+    private int insertionPoint(DetectionEvent event) {
+        int low = 0;
+        int high = events.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (!isOlder(events.get(mid), event)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * History order: by timestamp, then id.
+     */
+    private static boolean isOlder(DetectionEvent a, DetectionEvent b) {
+        return a.timestamp < b.timestamp || (a.timestamp == b.timestamp && a.id < b.id);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return events.get(position).id;
+    }
+
     @NonNull
     @Override
     public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -56,6 +180,18 @@ public class HistoryAdapter extends RecyclerView.Adapter<HistoryAdapter.ViewHold
         // Set emergency indicator color
         int color = event.isEmergency ? 0xFFFF5252 : 0xFF8AB4FF;
         holder.emergencyIndicator.setBackgroundColor(color);
+
+        // Audio clip, if one was saved
+        if (event.clipName != null) {
+            holder.clipText.setVisibility(View.VISIBLE);
+            holder.clipText.setOnClickListener(v -> {
+                if (clipClickListener != null)
+                    clipClickListener.onClipClick(event);
+            });
+        } else {
+            holder.clipText.setVisibility(View.GONE);
+            holder.clipText.setOnClickListener(null);
+        }
     }
 
     @Override
@@ -69,6 +205,7 @@ public class HistoryAdapter extends RecyclerView.Adapter<HistoryAdapter.ViewHold
         TextView timeText;
         TextView sourceText;
         View emergencyIndicator;
+        TextView clipText;
 
         ViewHolder(View view) {
             super(view);
@@ -77,6 +214,7 @@ public class HistoryAdapter extends RecyclerView.Adapter<HistoryAdapter.ViewHold
             timeText = view.findViewById(R.id.timeText);
             sourceText = view.findViewById(R.id.sourceText);
             emergencyIndicator = view.findViewById(R.id.emergencyIndicator);
+            clipText = view.findViewById(R.id.clipText);
         }
     }
 }
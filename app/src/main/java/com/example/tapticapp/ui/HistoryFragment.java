@@ -1,31 +1,115 @@
 package com.example.tapticapp.ui;
 
+import android.app.Activity;
+import android.media.MediaPlayer;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.appcompat.app.AlertDialog;
 import androidx.fragment.app.Fragment;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.tapticapp.R;
+import com.example.tapticapp.audio.ClipRecorder;
+import com.example.tapticapp.data.DetectionEvent;
+import com.example.tapticapp.data.HistoryCodec;
+import com.example.tapticapp.data.HistoryFilter;
 import com.example.tapticapp.data.HistoryRepository;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
 /**
- * History fragment showing past detections.
+ * History fragment showing past detections. Opens on the newest page and
+ * loads older ones as the list is scrolled towards its end.
+ *
+ * With a search filter set the list shows the matching rows instead, paged
+ * the same way. New detections are not added while searching; removals
+ * still apply.
+ *
+ * The whole history can be exported to a CSV or NDJSON file, and such a
+ * file imported, through the system file picker.
+ *
+ * Detections with a saved audio clip can be played back from their row.
  */
 public class HistoryFragment extends Fragment {
 
+    // Rows from the end at which the next page is requested
+    private static final int PREFETCH_ROWS = 20;
+    // Wait for typing to pause before searching
+    private static final long SEARCH_DELAY_MS = 300;
+
+    // Source spinner entries before the device names
+    private static final int SOURCE_ANY = 0;
+    private static final int SOURCE_LOCAL = 1;
+    private static final int SOURCE_REMOTE = 2;
+
+    // Time spinner entries, as in R.array.history_time_ranges
+    private static final int TIME_ANY = 0;
+    private static final int TIME_HOUR = 1;
+    private static final int TIME_TODAY = 2;
+    private static final int TIME_WEEK = 3;
+    private static final int TIME_MONTH = 4;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable searchRunnable = this::applyFilter;
+
+    private final ActivityResultLauncher<String> exportCsvLauncher = registerForActivityResult(
+            new ActivityResultContracts.CreateDocument(HistoryCodec.mimeType(HistoryCodec.FORMAT_CSV)),
+            uri -> exportTo(uri, HistoryCodec.FORMAT_CSV));
+    private final ActivityResultLauncher<String> exportNdjsonLauncher = registerForActivityResult(
+            new ActivityResultContracts.CreateDocument(HistoryCodec.mimeType(HistoryCodec.FORMAT_NDJSON)),
+            uri -> exportTo(uri, HistoryCodec.FORMAT_NDJSON));
+    private final ActivityResultLauncher<String[]> importLauncher = registerForActivityResult(
+            new ActivityResultContracts.OpenDocument(), this::importFrom);
+
     private RecyclerView recyclerView;
     private TextView emptyText;
     private Button clearButton;
+    private Button exportButton;
+    private Button importButton;
+    private EditText labelSearch;
+    private Spinner sourceFilterSpinner;
+    private Spinner timeFilterSpinner;
+    private CheckBox emergencyOnlyCheckbox;
     private HistoryAdapter adapter;
     private HistoryRepository repository;
+    private MediaPlayer clipPlayer;
+    private boolean loadingPage;
+    // Null while showing the whole history
+    private HistoryFilter filter;
+    // Bumped by each new filter so results of the previous one are dropped
+    private int filterGeneration;
 
     @Nullable
     @Override
@@ -41,54 +125,347 @@ public class HistoryFragment extends Fragment {
         recyclerView = view.findViewById(R.id.historyRecyclerView);
         emptyText = view.findViewById(R.id.emptyText);
         clearButton = view.findViewById(R.id.clearHistoryButton);
+        exportButton = view.findViewById(R.id.exportHistoryButton);
+        importButton = view.findViewById(R.id.importHistoryButton);
+        labelSearch = view.findViewById(R.id.labelSearchInput);
+        sourceFilterSpinner = view.findViewById(R.id.sourceFilterSpinner);
+        timeFilterSpinner = view.findViewById(R.id.timeFilterSpinner);
+        emergencyOnlyCheckbox = view.findViewById(R.id.emergencyOnlyCheckbox);
+        filter = null;
+        loadingPage = false;
 
         // Setup RecyclerView
         adapter = new HistoryAdapter();
-        recyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
+        LinearLayoutManager layoutManager = new LinearLayoutManager(getContext());
+        recyclerView.setLayoutManager(layoutManager);
         recyclerView.setAdapter(adapter);
+        adapter.setOnClipClickListener(this::playClip);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView view, int dx, int dy) {
+                if (dy > 0 && layoutManager.findLastVisibleItemPosition()
+                        >= adapter.getItemCount() - PREFETCH_ROWS)
+                    loadNextPage();
+            }
+        });
 
-        // Setup repository
+        // Rows arrive as deltas for as long as the view exists
         repository = HistoryRepository.getInstance(requireContext());
-        repository.addCallback(events -> {
-            if (isAdded()) {
-                requireActivity().runOnUiThread(() -> {
-                    adapter.setEvents(events);
-                    if (events.isEmpty()) {
-                        recyclerView.setVisibility(View.GONE);
-                        emptyText.setVisibility(View.VISIBLE);
-                    } else {
-                        recyclerView.setVisibility(View.VISIBLE);
-                        emptyText.setVisibility(View.GONE);
+        repository.observe(getViewLifecycleOwner(), requireActivity()::runOnUiThread,
+                new HistoryRepository.ChangeListener() {
+                    @Override
+                    public void onReset(List<DetectionEvent> events) {
+                        if (filter != null) {
+                            applyFilter();
+                            return;
+                        }
+                        adapter.setEvents(events);
+                        updateEmptyState();
+                    }
+
+                    @Override
+                    public void onInserted(List<DetectionEvent> events) {
+                        if (filter != null)
+                            return;
+                        boolean atTop = !recyclerView.canScrollVertically(-1);
+                        adapter.insertEvents(events);
+                        if (atTop)
+                            recyclerView.scrollToPosition(0);
+                        updateEmptyState();
+                    }
+
+                    @Override
+                    public void onRemoved(List<Long> ids) {
+                        adapter.removeEvents(ids);
+                        updateEmptyState();
+                    }
+
+                    @Override
+                    public void onTrimmed(long cutoff) {
+                        adapter.removeOlderThan(cutoff);
+                        updateEmptyState();
                     }
                 });
+
+        setupFilters();
+        clearButton.setOnClickListener(v -> repository.clearAll());
+        exportButton.setOnClickListener(v -> chooseExportFormat());
+        importButton.setOnClickListener(v -> importLauncher.launch(new String[] { "text/*", "application/*" }));
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        handler.removeCallbacks(searchRunnable);
+        stopClip();
+    }
+
+    private void setupFilters() {
+        ArrayAdapter<CharSequence> timeAdapter = ArrayAdapter.createFromResource(
+                requireContext(), R.array.history_time_ranges, R.layout.spinner_item);
+        timeAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        timeFilterSpinner.setAdapter(timeAdapter);
+
+        List<String> sources = new ArrayList<>();
+        sources.add("All devices");
+        sources.add("This device");
+        sources.add("Other devices");
+        ArrayAdapter<String> sourceAdapter = new ArrayAdapter<>(requireContext(), R.layout.spinner_item, sources);
+        sourceAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        sourceFilterSpinner.setAdapter(sourceAdapter);
+        Activity activity = requireActivity();
+        repository.loadDeviceNames(names -> activity.runOnUiThread(() -> {
+            if (getView() != null)
+                sourceAdapter.addAll(names);
+        }));
+
+        AdapterView.OnItemSelectedListener onSelected = new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                scheduleSearch(0);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        };
+        sourceFilterSpinner.setOnItemSelectedListener(onSelected);
+        timeFilterSpinner.setOnItemSelectedListener(onSelected);
+        emergencyOnlyCheckbox.setOnCheckedChangeListener((button, checked) -> scheduleSearch(0));
+        labelSearch.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                scheduleSearch(SEARCH_DELAY_MS);
             }
         });
+    }
 
-        // Load initial history
-        repository.loadHistory(events -> {
-            if (isAdded()) {
-                requireActivity().runOnUiThread(() -> {
-                    adapter.setEvents(events);
-                    if (events.isEmpty()) {
-                        recyclerView.setVisibility(View.GONE);
-                        emptyText.setVisibility(View.VISIBLE);
+    private void scheduleSearch(long delayMs) {
+        handler.removeCallbacks(searchRunnable);
+        handler.postDelayed(searchRunnable, delayMs);
+    }
+
+    /**
+     * Read the filter views and reload the list for them: the first page
+     * of matches, or the newest page if nothing is filtered.
+     */
+    private void applyFilter() {
+        if (getView() == null)
+            return;
+        HistoryFilter next = readFilter();
+        if (filter == null && next == null)
+            return;
+        filter = next;
+        int generation = ++filterGeneration;
+        loadingPage = false;
+        Activity activity = requireActivity();
+        HistoryRepository.HistoryCallback show = page -> activity.runOnUiThread(() -> {
+            if (getView() == null || generation != filterGeneration)
+                return;
+            adapter.setEvents(page);
+            recyclerView.scrollToPosition(0);
+            updateEmptyState();
+        });
+        if (next == null) {
+            repository.loadHistory(show);
+        } else {
+            repository.search(next, Long.MAX_VALUE, Long.MAX_VALUE, show);
+        }
+    }
+
+    /**
+     * The filter set in the views, or null if they filter nothing.
+     */
+    private HistoryFilter readFilter() {
+        HistoryFilter next = new HistoryFilter()
+                .setLabel(labelSearch.getText().toString())
+                .setEmergencyOnly(emergencyOnlyCheckbox.isChecked());
+
+        int source = sourceFilterSpinner.getSelectedItemPosition();
+        if (source == SOURCE_LOCAL) {
+            next.setSource(HistoryFilter.SOURCE_LOCAL);
+        } else if (source == SOURCE_REMOTE) {
+            next.setSource(HistoryFilter.SOURCE_REMOTE);
+        } else if (source > SOURCE_REMOTE) {
+            next.setDevice(sourceFilterSpinner.getSelectedItem().toString());
+        }
+
+        long now = System.currentTimeMillis();
+        switch (timeFilterSpinner.getSelectedItemPosition()) {
+            case TIME_HOUR:
+                next.setTimeRange(now - TimeUnit.HOURS.toMillis(1), Long.MAX_VALUE);
+                break;
+            case TIME_TODAY:
+                Calendar midnight = Calendar.getInstance();
+                midnight.set(Calendar.HOUR_OF_DAY, 0);
+                midnight.set(Calendar.MINUTE, 0);
+                midnight.set(Calendar.SECOND, 0);
+                midnight.set(Calendar.MILLISECOND, 0);
+                next.setTimeRange(midnight.getTimeInMillis(), Long.MAX_VALUE);
+                break;
+            case TIME_WEEK:
+                next.setTimeRange(now - TimeUnit.DAYS.toMillis(7), Long.MAX_VALUE);
+                break;
+            case TIME_MONTH:
+                next.setTimeRange(now - TimeUnit.DAYS.toMillis(30), Long.MAX_VALUE);
+                break;
+            default:
+                break;
+        }
+        return next.isEmpty() ? null : next;
+    }
+
+    /**
+     * Request the page after the last row shown. Delivered on the UI thread
+     * after any change published before it, so it lines up with the deltas.
+     */
+    private void loadNextPage() {
+        DetectionEvent last = adapter.getLastEvent();
+        if (loadingPage || last == null || adapter.isEndReached())
+            return;
+        loadingPage = true;
+        int generation = filterGeneration;
+        Activity activity = requireActivity();
+        HistoryRepository.HistoryCallback append = page -> activity.runOnUiThread(() -> {
+            if (getView() == null || generation != filterGeneration)
+                return;
+            loadingPage = false;
+            // A reset or removal may have moved the end meanwhile
+            if (adapter.getLastEvent() == last)
+                adapter.appendPage(page);
+        });
+        if (filter == null) {
+            repository.loadPage(last.timestamp, last.id, append);
+        } else {
+            repository.search(filter, last.timestamp, last.id, append);
+        }
+    }
+
+    private void chooseExportFormat() {
+        String name = "taptic-history-" + new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(new Date()) + ".";
+        new AlertDialog.Builder(requireContext())
+                .setTitle("Export history as")
+                .setItems(new String[] { "CSV", "NDJSON" }, (dialog, which) -> {
+                    if (which == 0) {
+                        exportCsvLauncher.launch(name + HistoryCodec.fileExtension(HistoryCodec.FORMAT_CSV));
                     } else {
-                        recyclerView.setVisibility(View.VISIBLE);
-                        emptyText.setVisibility(View.GONE);
+                        exportNdjsonLauncher.launch(name + HistoryCodec.fileExtension(HistoryCodec.FORMAT_NDJSON));
                     }
+                })
+                .show();
+    }
+
+    private void exportTo(Uri uri, int format) {
+        if (uri == null)
+            return;
+        OutputStream out;
+        try {
+            out = requireContext().getContentResolver().openOutputStream(uri);
+        } catch (FileNotFoundException e) {
+            out = null;
+        }
+        if (out == null) {
+            showToast("Could not open the file");
+            return;
+        }
+        exportButton.setEnabled(false);
+        repository.exportHistory(out, format, transferListener("Exported"));
+    }
+
+    private void importFrom(Uri uri) {
+        if (uri == null)
+            return;
+        InputStream in;
+        try {
+            in = requireContext().getContentResolver().openInputStream(uri);
+        } catch (FileNotFoundException e) {
+            in = null;
+        }
+        if (in == null) {
+            showToast("Could not open the file");
+            return;
+        }
+        importButton.setEnabled(false);
+        repository.importHistory(in, HistoryCodec.FORMAT_AUTO, transferListener("Imported"));
+    }
+
+    private HistoryRepository.TransferListener transferListener(String done) {
+        Activity activity = requireActivity();
+        return new HistoryRepository.TransferListener() {
+            @Override
+            public void onProgress(long rows, double rowsPerSecond) {
+            }
+
+            @Override
+            public void onFinished(long rows, long skipped, double rowsPerSecond, Exception error) {
+                activity.runOnUiThread(() -> {
+                    if (getView() == null)
+                        return;
+                    exportButton.setEnabled(true);
+                    importButton.setEnabled(true);
+                    if (error != null) {
+                        showToast("Failed: " + error.getMessage());
+                        return;
+                    }
+                    String message = String.format(Locale.US, "%s %d detections (%.0f rows/s)", done, rows,
+                            rowsPerSecond);
+                    showToast(skipped > 0 ? message + ", skipped " + skipped : message);
                 });
             }
-        });
+        };
+    }
 
-        clearButton.setOnClickListener(v -> repository.clearAll());
+    /**
+     * Play a detection's clip, stopping any playing one.
+     */
+    private void playClip(DetectionEvent event) {
+        stopClip();
+        File clip = ClipRecorder.openClip(requireContext(), event.clipName);
+        if (clip == null) {
+            showToast("Clip no longer saved");
+            return;
+        }
+        MediaPlayer player = new MediaPlayer();
+        try {
+            player.setDataSource(clip.getPath());
+            player.prepare();
+        } catch (IOException e) {
+            player.release();
+            showToast("Cannot play clip: " + e.getMessage());
+            return;
+        }
+        player.setOnCompletionListener(p -> stopClip());
+        player.start();
+        clipPlayer = player;
     }
 
-    @Override
-    public void onDestroyView() {
-        super.onDestroyView();
-        if (repository != null) {
-            repository.removeCallback(events -> {
-            });
+    private void stopClip() {
+        if (clipPlayer == null)
+            return;
+        clipPlayer.release();
+        clipPlayer = null;
+    }
+
+    private void showToast(String message) {
+        Toast.makeText(requireContext(), message, Toast.LENGTH_LONG).show();
+    }
+
+    private void updateEmptyState() {
+        if (adapter.getItemCount() == 0) {
+            recyclerView.setVisibility(View.GONE);
+            emptyText.setVisibility(View.VISIBLE);
+            emptyText.setText(filter != null ? "No matching detections" : "No detections yet");
+        } else {
+            recyclerView.setVisibility(View.VISIBLE);
+            emptyText.setVisibility(View.GONE);
         }
     }
 }
@@ -31,6 +31,7 @@ public class HomeFragment extends Fragment {
     private ProgressBar soundLevelBar;
     private TextView sound1Text, sound2Text, sound3Text;
     private ProgressBar sound1Bar, sound2Bar, sound3Bar;
+    private ScoreHeatmapView heatmapView;
 
     // Remember last values to avoid unnecessary updates
     private String lastTopSound = "";
@@ -58,6 +59,7 @@ public class HomeFragment extends Fragment {
         sound1Bar = view.findViewById(R.id.sound1Bar);
         sound2Bar = view.findViewById(R.id.sound2Bar);
         sound3Bar = view.findViewById(R.id.sound3Bar);
+        heatmapView = view.findViewById(R.id.scoreHeatmap);
 
         // Set initial status
         if (statusText != null) {
@@ -65,15 +67,28 @@ public class HomeFragment extends Fragment {
         }
     }
 
+    /**
+     * Set which class indices the score heatmap shows, one row each.
+     */
+    public void setHeatmapRows(int[] classIndices) {
+        if (heatmapView != null) {
+            heatmapView.setRows(classIndices);
+        }
+    }
+
     /**
      * Update UI with new detection results.
      * Called from MainActivity when audio service provides updates.
      */
-    public void updateDetections(List<Interpreter.DetectionResult> top3, double level) {
+    public void updateDetections(List<Interpreter.DetectionResult> top3, float[] scores, double level) {
         if (!isAdded()) {
             return;
         }
 
+        if (heatmapView != null) {
+            heatmapView.pushFrame(scores, level);
+        }
+
         // Update sound level meter (with smooth animation)
         int levelPercent = (int) (level * 100);
         if (levelPercent != lastLevel) {
@@ -0,0 +1,194 @@
+package com.example.tapticapp.ui;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Scrolling heatmap of per-class scores for the last minute of audio.
+ *
+ * Scores are quantized into a byte ring buffer (one column per frame). The
+ * ring is mirrored into a bitmap that is used as a circular image: each frame
+ * only the newest column is written, and onDraw blits the two halves so the
+ * newest column ends up on the right. Nothing is allocated per frame.
+ */
+public class ScoreHeatmapView extends View {
+
+    // ~60 s at YAMNet's 0.49 s hop
+    private static final int COLUMNS = 120;
+    // Rows at the bottom reserved for the sound level strip
+    private static final int LEVEL_ROWS = 3;
+    private static final int BACKGROUND_COLOR = 0xFF121212;
+
+    private final int[] palette = new int[256];
+    private final Paint bitmapPaint = new Paint();
+    private final Rect srcOld = new Rect();
+    private final Rect dstOld = new Rect();
+    private final Rect srcNew = new Rect();
+    private final Rect dstNew = new Rect();
+
+    private int[] rowClasses = new int[0];
+    private byte[] ring = new byte[0]; // COLUMNS x (rows + LEVEL_ROWS), column-major
+    private int[] columnPixels = new int[0];
+    private Bitmap bitmap;
+    private int head = 0; // next column to write
+
+    public ScoreHeatmapView(Context context) {
+        this(context, null);
+    }
+
+    public ScoreHeatmapView(Context context, @Nullable AttributeSet attrs) {
+        super(context, attrs);
+        bitmapPaint.setFilterBitmap(false);
+        buildPalette();
+    }
+
+    /**
+     * Set which class indices are shown, one row each (top to bottom).
+     * Clears the history if the rows change.
+     */
+    public void setRows(int[] classIndices) {
+        if (classIndices == null || classIndices == rowClasses) {
+            return;
+        }
+        rowClasses = classIndices;
+        int height = classIndices.length + LEVEL_ROWS;
+        ring = new byte[COLUMNS * height];
+        columnPixels = new int[height];
+        head = 0;
+        rebuildBitmap();
+        invalidate();
+    }
+
+    /**
+     * Append one frame of scores. Must be called on the UI thread.
+     */
+    public void pushFrame(float[] scores, double level) {
+        if (ring.length == 0 || scores == null) {
+            return;
+        }
+
+        int rows = rowClasses.length;
+        int height = rows + LEVEL_ROWS;
+        int base = head * height;
+
+        for (int r = 0; r < rows; r++) {
+            int classIndex = rowClasses[r];
+            float score = classIndex < scores.length ? scores[classIndex] : 0f;
+            int q = quantize(score);
+            ring[base + r] = (byte) q;
+            columnPixels[r] = palette[q];
+        }
+        int levelQ = quantize((float) level);
+        for (int r = rows; r < height; r++) {
+            ring[base + r] = (byte) levelQ;
+            columnPixels[r] = palette[levelQ];
+        }
+
+        if (bitmap != null) {
+            bitmap.setPixels(columnPixels, 0, 1, head, 0, 1, height);
+        }
+        head = (head + 1) % COLUMNS;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(@NonNull Canvas canvas) {
+        super.onDraw(canvas);
+        canvas.drawColor(BACKGROUND_COLOR);
+        if (ring.length == 0) {
+            return;
+        }
+        if (bitmap == null) {
+            rebuildBitmap();
+        }
+
+        int width = getWidth();
+        int height = getHeight();
+        int bitmapHeight = bitmap.getHeight();
+
+        // Columns [head, COLUMNS) are the oldest, [0, head) the newest
+        int oldCount = COLUMNS - head;
+        int splitX = width * oldCount / COLUMNS;
+
+        srcOld.set(head, 0, COLUMNS, bitmapHeight);
+        dstOld.set(0, 0, splitX, height);
+        srcNew.set(0, 0, head, bitmapHeight);
+        dstNew.set(splitX, 0, width, height);
+
+        if (oldCount > 0) {
+            canvas.drawBitmap(bitmap, srcOld, dstOld, bitmapPaint);
+        }
+        if (head > 0) {
+            canvas.drawBitmap(bitmap, srcNew, dstNew, bitmapPaint);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // The ring keeps the history; the bitmap is rebuilt on the next draw
+        if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+        }
+    }
+
+    /**
+     * Repaint the whole bitmap from the ring buffer. Only needed when the
+     * rows change or the view is re-attached, never per frame.
+     */
+    private void rebuildBitmap() {
+        if (bitmap != null) {
+            bitmap.recycle();
+        }
+        int height = rowClasses.length + LEVEL_ROWS;
+        bitmap = Bitmap.createBitmap(COLUMNS, height, Bitmap.Config.ARGB_8888);
+        for (int c = 0; c < COLUMNS; c++) {
+            int base = c * height;
+            for (int r = 0; r < height; r++) {
+                columnPixels[r] = palette[ring[base + r] & 0xFF];
+            }
+            bitmap.setPixels(columnPixels, 0, 1, c, 0, 1, height);
+        }
+    }
+
+    private int quantize(float score) {
+        if (score <= 0f) {
+            return 0;
+        }
+        if (score >= 1f) {
+            return 255;
+        }
+        // Square root lifts the many low-confidence scores into view
+        return (int) (Math.sqrt(score) * 255f);
+    }
+
+    /**
+     * Dark background → teal → gold, matching the dashboard colors.
+     */
+    private void buildPalette() {
+        int[] stops = { BACKGROUND_COLOR, 0xFF00BCD4, 0xFFFFC46B };
+        for (int i = 0; i < 256; i++) {
+            float t = i / 255f;
+            int from = t < 0.5f ? stops[0] : stops[1];
+            int to = t < 0.5f ? stops[1] : stops[2];
+            float f = t < 0.5f ? t * 2f : (t - 0.5f) * 2f;
+            palette[i] = 0xFF000000
+                    | lerp(from >> 16 & 0xFF, to >> 16 & 0xFF, f) << 16
+                    | lerp(from >> 8 & 0xFF, to >> 8 & 0xFF, f) << 8
+                    | lerp(from & 0xFF, to & 0xFF, f);
+        }
+    }
+
+    private static int lerp(int a, int b, float f) {
+        return (int) (a + (b - a) * f);
+    }
+}
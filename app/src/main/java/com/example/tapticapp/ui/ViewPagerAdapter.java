@@ -6,8 +6,8 @@ import androidx.fragment.app.FragmentActivity;
 import androidx.viewpager2.adapter.FragmentStateAdapter;
 
 /**
- * ViewPager adapter for tab navigation between Sound Dashboard and Live
- * Captions.
+ * ViewPager adapter for tab navigation between Sound Dashboard, Live
+ * Captions and Devices.
  */
 public class ViewPagerAdapter extends FragmentStateAdapter {
 
@@ -20,13 +20,15 @@ public class ViewPagerAdapter extends FragmentStateAdapter {
     public Fragment createFragment(int position) {
         if (position == 0) {
             return new HomeFragment();
-        } else {
+        } else if (position == 1) {
             return new CaptionsFragment();
+        } else {
+            return new DevicesFragment();
         }
     }
 
     @Override
     public int getItemCount() {
-        return 2; // Sound Dashboard + Live Captions
+        return 3; // Sound Dashboard + Live Captions + Devices
     }
 }
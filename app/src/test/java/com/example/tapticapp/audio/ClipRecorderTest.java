@@ -0,0 +1,126 @@
+package com.example.tapticapp.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.Test;
+
+public class ClipRecorderTest {
+
+    private static final int SAMPLE_RATE = 8000;
+
+    @Test
+    public void clipIsMuLawWavOfTheRange() throws Exception {
+        File dir = Files.createTempDirectory("clips").toFile();
+        PcmRing ring = new PcmRing(4000);
+        ClipRecorder recorder = new ClipRecorder(dir, ring, SAMPLE_RATE);
+        recorder.sync();
+        for (int i = 0; i < 6; i++) {
+            ring.write(new byte[500], 0, 500);
+        }
+
+        assertEquals(1000, recorder.writeClip("a.wav", 1000, 3000));
+        File clip = new File(dir, "a.wav");
+        assertEquals(ClipRecorder.WAV_HEADER_BYTES + 1000, clip.length());
+        byte[] header = Files.readAllBytes(clip.toPath());
+        assertEquals("RIFF", new String(header, 0, 4, "US-ASCII"));
+        assertEquals(7, header[20]);
+        assertEquals("data", new String(header, 50, 4, "US-ASCII"));
+        assertFalse(new File(dir, "a.wav.part").exists());
+        assertEquals(1, recorder.getClipsWritten());
+        recorder.close();
+    }
+
+    @Test
+    public void overwrittenStartIsSkipped() throws Exception {
+        File dir = Files.createTempDirectory("clips").toFile();
+        PcmRing ring = new PcmRing(4000);
+        ClipRecorder recorder = new ClipRecorder(dir, ring, SAMPLE_RATE);
+        recorder.sync();
+        for (int i = 0; i < 20; i++) {
+            ring.write(new byte[500], 0, 500);
+        }
+        // Held from 6000, less the hop that may be mid-write
+        assertEquals(1750, recorder.writeClip("b.wav", 0, 10_000));
+        recorder.close();
+    }
+
+    @Test
+    public void leastRecentlyUsedClipsAreEvicted() throws Exception {
+        File dir = Files.createTempDirectory("clips").toFile();
+        PcmRing ring = new PcmRing(1000);
+        ClipRecorder recorder = new ClipRecorder(dir, ring, SAMPLE_RATE);
+        recorder.sync();
+        File oldest = clip(dir, "clip-1.wav", 1_000_000);
+        File used = clip(dir, "clip-2.wav", 2_000_000);
+        File newest = clip(dir, "clip-3.wav", 3_000_000);
+        used.setLastModified(4_000_000);
+
+        recorder.evict(250);
+        assertFalse(oldest.exists());
+        assertTrue(newest.exists());
+        assertTrue(used.exists());
+        assertEquals(1, recorder.getClipsEvicted());
+        assertTrue(usage(dir) <= 250);
+
+        // Room is made before the new clip is written, not after
+        recorder.setLimits(1, 1, 400);
+        recorder.sync();
+        for (int i = 0; i < 6; i++) {
+            ring.write(new byte[100], 0, 100);
+        }
+        recorder.saveClip("clip-4.wav", 0, 400);
+        assertEquals(ClipRecorder.WAV_HEADER_BYTES + 200L, new File(dir, "clip-4.wav").length());
+        assertFalse(newest.exists());
+        assertTrue(used.exists());
+        assertTrue(usage(dir) <= 400);
+
+        // A clip that could never fit is not promised
+        recorder.setLimits(1, 1, ClipRecorder.clipBytes(0, SAMPLE_RATE * 2) - 1);
+        assertNull(recorder.capture(5));
+        recorder.close();
+    }
+
+    @Test
+    public void detectionsDuringAClipShareIt() throws Exception {
+        File dir = Files.createTempDirectory("clips").toFile();
+        PcmRing ring = new PcmRing(ClipRecorder.ringCapacity(SAMPLE_RATE));
+        ClipRecorder recorder = new ClipRecorder(dir, ring, SAMPLE_RATE);
+        recorder.sync();
+        ring.write(new byte[1000], 0, 1000);
+        assertNull(recorder.capture(1));
+
+        recorder.setLimits(2, 1, 1_000_000);
+        String name = recorder.capture(5);
+        assertNotNull(name);
+        ring.write(new byte[1000], 0, 1000);
+        assertEquals(name, recorder.capture(6));
+        ring.write(new byte[SAMPLE_RATE * 2], 0, SAMPLE_RATE * 2);
+        assertEquals("clip-7.wav", recorder.capture(7));
+        recorder.close();
+    }
+
+    private static long usage(File dir) {
+        long total = 0;
+        for (File file : dir.listFiles()) {
+            total += file.length();
+        }
+        return total;
+    }
+
+    private static File clip(File dir, String name, long lastModified) throws IOException {
+        File file = new File(dir, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[100]);
+        }
+        file.setLastModified(lastModified);
+        return file;
+    }
+}
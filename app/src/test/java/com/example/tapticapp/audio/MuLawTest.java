@@ -0,0 +1,45 @@
+package com.example.tapticapp.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MuLawTest {
+
+    @Test
+    public void roundTripErrorGrowsWithAmplitude() {
+        for (int i = -1000; i <= 1000; i++) {
+            float sample = i / 1000f;
+            float decoded = MuLaw.decode(MuLaw.encode(sample));
+            float error = Math.abs(decoded - sample);
+            assertTrue("sample " + sample + " decoded as " + decoded, error <= Math.abs(sample) * 0.07f + 0.0005f);
+        }
+    }
+
+    @Test
+    public void quietSamplesKeepDetail() {
+        assertEquals(0f, MuLaw.decode(MuLaw.encode(0f)), 0.0003f);
+        assertEquals(0.001f, MuLaw.decode(MuLaw.encode(0.001f)), 0.0003f);
+        assertEquals(-0.001f, MuLaw.decode(MuLaw.encode(-0.001f)), 0.0003f);
+    }
+
+    @Test
+    public void clipsOutOfRange() {
+        assertEquals(MuLaw.decode(MuLaw.encode(1f)), MuLaw.decode(MuLaw.encode(4f)), 0f);
+        assertEquals(MuLaw.decode(MuLaw.encode(-1f)), MuLaw.decode(MuLaw.encode(-4f)), 0f);
+        assertTrue(MuLaw.decode(MuLaw.encode(1f)) > 0.95f);
+    }
+
+    @Test
+    public void arrayHelpersMatchSingleSamples() {
+        float[] samples = { 0.5f, -0.25f, 0.01f, 0f };
+        byte[] encoded = new byte[4];
+        MuLaw.encode(samples, 4, encoded);
+        float[] decoded = new float[6];
+        MuLaw.decode(encoded, 4, decoded, 2);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(MuLaw.decode(MuLaw.encode(samples[i])), decoded[i + 2], 0f);
+        }
+    }
+}
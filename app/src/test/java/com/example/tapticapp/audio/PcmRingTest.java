@@ -0,0 +1,82 @@
+package com.example.tapticapp.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Test;
+
+public class PcmRingTest {
+
+    @Test
+    public void readsAcrossTheWrap() {
+        PcmRing ring = new PcmRing(10);
+        byte[] data = bytes(0, 13);
+        for (int at = 0; at < data.length; at += 3) {
+            ring.write(data, at, Math.min(3, data.length - at));
+        }
+        assertEquals(13, ring.position());
+        assertEquals(3, ring.oldest());
+
+        byte[] out = new byte[4];
+        assertEquals(0, ring.read(8, out, 0, 4));
+        assertEquals(8, out[0]);
+        assertEquals(11, out[3]);
+    }
+
+    @Test
+    public void overwrittenBytesAreReported() {
+        PcmRing ring = new PcmRing(10);
+        for (int i = 0; i < 5; i++) {
+            ring.write(bytes(4 * i, 4), 0, 4);
+        }
+        // Position 20 with writes of 4: anything before 14 may be torn
+        byte[] out = new byte[6];
+        assertEquals(4, ring.read(10, out, 0, 6));
+        assertEquals(0, ring.read(14, out, 0, 6));
+        assertEquals(14, out[0]);
+    }
+
+    @Test
+    public void writeLongerThanTheRingKeepsItsEnd() {
+        PcmRing ring = new PcmRing(4);
+        ring.write(bytes(0, 9), 0, 9);
+        assertEquals(9, ring.position());
+        byte[] out = new byte[2];
+        ring.read(7, out, 0, 2);
+        assertEquals(7, out[0]);
+        assertEquals(8, out[1]);
+    }
+
+    @Test
+    public void mappedRingWrapsLikeTheHeapOne() throws IOException {
+        File file = File.createTempFile("ring", ".pcm");
+        try {
+            PcmRing ring = PcmRing.mapped(file, 10);
+            assertEquals(10, ring.capacity());
+            assertEquals(10, file.length());
+            byte[] data = bytes(0, 13);
+            for (int at = 0; at < data.length; at += 3) {
+                ring.write(data, at, Math.min(3, data.length - at));
+            }
+            assertEquals(3, ring.oldest());
+
+            byte[] out = new byte[5];
+            assertEquals(0, ring.read(8, out, 0, 5));
+            for (int i = 0; i < 5; i++) {
+                assertEquals(8 + i, out[i]);
+            }
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    private static byte[] bytes(int first, int count) {
+        byte[] data = new byte[count];
+        for (int i = 0; i < count; i++) {
+            data[i] = (byte) (first + i);
+        }
+        return data;
+    }
+}
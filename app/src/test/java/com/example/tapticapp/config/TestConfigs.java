@@ -0,0 +1,26 @@
+package com.example.tapticapp.config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Config snapshots for tests in other packages.
+ */
+public final class TestConfigs {
+
+    private TestConfigs() {
+    }
+
+    /**
+     * A snapshot with the given labels, every one sent to and accepted from
+     * peers.
+     */
+    public static ConfigSnapshot sharingAll(String[] labels) {
+        Map<String, Integer> flags = new HashMap<>(labels.length * 2);
+        for (String label : labels) {
+            flags.put(Settings.normalizeLabel(label), Settings.FLAG_BROADCAST_SEND | Settings.FLAG_BROADCAST_LISTEN);
+        }
+        Profile profile = new Profile("test", 0.2, 0, flags);
+        return ConfigSnapshot.build(labels, profile, label -> false);
+    }
+}
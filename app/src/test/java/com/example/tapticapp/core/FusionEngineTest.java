@@ -0,0 +1,62 @@
+package com.example.tapticapp.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FusionEngineTest {
+
+    private static final int SIREN = 3;
+    private static final long NOW = 1_000_000;
+
+    @Test
+    public void passesLocalScoreThroughWithoutPeers() {
+        FusionEngine fusion = new FusionEngine();
+        assertEquals(0.6, fusion.fuse(SIREN, 0.6, NOW), 1e-9);
+
+        // A peer that went quiet no longer counts
+        fusion.addPeerScore(1, SIREN, 0.9, NOW - FusionEngine.SOURCE_ACTIVE_MS - 1);
+        assertEquals(0.6, fusion.fuse(SIREN, 0.6, NOW), 1e-9);
+    }
+
+    @Test
+    public void onePeerActiveSilentOnThisClass() {
+        FusionEngine fusion = new FusionEngine();
+        // The peer is active but heard something else
+        fusion.addPeerScore(1, 7, 0.4, NOW);
+        assertEquals(1, fusion.getActivePeerCount(NOW));
+        assertEquals(0.95, fusion.fuse(SIREN, 0.95, NOW), 1e-9);
+        assertEquals(1.0, fusion.fuse(SIREN, 1.0, NOW), 1e-9);
+    }
+
+    @Test
+    public void agreementConfirmsAndDissentDiscounts() {
+        FusionEngine fusion = new FusionEngine();
+        fusion.addPeerScore(1, SIREN, 0.6, NOW - 500);
+        double agreed = fusion.fuse(SIREN, 0.6, NOW);
+        assertTrue("agreed " + agreed, agreed > 0.7);
+
+        // A peer that ranked the class, far lower than we did
+        FusionEngine dissenting = new FusionEngine();
+        dissenting.addPeerScore(2, SIREN, 0.2, NOW);
+        assertEquals(FusionEngine.RELIABILITY * 0.6, dissenting.fuse(SIREN, 0.6, NOW), 1e-6);
+    }
+
+    @Test
+    public void ignoresScoresOutsideTheWindow() {
+        FusionEngine fusion = new FusionEngine();
+        fusion.addPeerScore(1, SIREN, 0.9, NOW - FusionEngine.WINDOW_MS - 1);
+        fusion.addPeerScore(1, 7, 0.2, NOW);
+        assertEquals(0.5, fusion.fuse(SIREN, 0.5, NOW), 1e-9);
+    }
+
+    @Test
+    public void holdsPeakWithinWindow() {
+        FusionEngine fusion = new FusionEngine();
+        fusion.addPeerScore(1, SIREN, 0.9, NOW - 200);
+        fusion.addPeerScore(1, SIREN, 0.2, NOW);
+        double fused = fusion.fuse(SIREN, 0, NOW);
+        assertEquals(FusionEngine.RELIABILITY * 0.9, fused, 1e-6);
+    }
+}
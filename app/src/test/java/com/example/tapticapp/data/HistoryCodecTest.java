@@ -0,0 +1,139 @@
+package com.example.tapticapp.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import org.junit.Test;
+
+public class HistoryCodecTest {
+
+    @Test
+    public void csvRoundTripsAwkwardText() throws IOException {
+        String csv = write(HistoryCodec.FORMAT_CSV);
+        assertTrue(csv.startsWith("timestamp,time,label,"));
+        assertTrue(csv.contains("2023-11-14T22:13:20.000Z"));
+        assertTrue(csv.contains("\"Door, \"\"front\"\"\""));
+        readBack(csv, HistoryCodec.FORMAT_CSV);
+    }
+
+    @Test
+    public void ndjsonRoundTripsAwkwardText() throws IOException {
+        String ndjson = write(HistoryCodec.FORMAT_NDJSON);
+        assertEquals(2, ndjson.split("\n").length);
+        assertTrue(ndjson.contains("\"device\":null"));
+        readBack(ndjson, HistoryCodec.FORMAT_NDJSON);
+    }
+
+    @Test
+    public void formatIsDetected() throws IOException {
+        assertEquals(HistoryCodec.FORMAT_NDJSON, reader("\n  {\"timestamp\":1,\"label\":\"Knock\"}\n",
+                HistoryCodec.FORMAT_AUTO).format());
+        assertEquals(HistoryCodec.FORMAT_CSV, reader("\uFEFFtimestamp,label\r\n1,Knock\r\n",
+                HistoryCodec.FORMAT_AUTO).format());
+    }
+
+    @Test
+    public void csvColumnsAreFoundByName() throws IOException {
+        HistoryCodec.RowReader reader = reader("label,extra,timestamp\nKnock,x,42\n", HistoryCodec.FORMAT_CSV);
+        DetectionEvent event = reader.next();
+        assertEquals(42, event.timestamp);
+        assertEquals("Knock", event.label);
+        assertNull(event.deviceName);
+        assertEquals(0, event.originDevice);
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void badRowsAreSkippedAndCounted() throws IOException {
+        HistoryCodec.RowReader csv = reader("timestamp,label\nsoon,Knock\n\n7,Knock\n", HistoryCodec.FORMAT_CSV);
+        assertEquals(7, csv.next().timestamp);
+        assertNull(csv.next());
+        assertEquals(1, csv.skipped());
+
+        HistoryCodec.RowReader ndjson = reader("{\"timestamp\":1,\"label\":\"Knock\"}\nnot json\n{\"label\":\"x\"}\n",
+                HistoryCodec.FORMAT_NDJSON);
+        assertEquals(1, ndjson.next().timestamp);
+        assertNull(ndjson.next());
+        assertEquals(2, ndjson.skipped());
+    }
+
+    @Test
+    public void unterminatedQuoteIsCutOffAndSkipped() throws IOException {
+        StringBuilder csv = new StringBuilder("timestamp,label\n1,\"Knock\n");
+        for (int i = 0; csv.length() < HistoryCodec.MAX_RECORD_CHARS * 2; i++) {
+            csv.append(i).append(",Knock\n");
+        }
+        csv.append("9,Knock\n");
+        HistoryCodec.RowReader reader = reader(csv.toString(), HistoryCodec.FORMAT_CSV);
+        // The quote swallows rows up to the limit, then reading goes on
+        DetectionEvent row = reader.next();
+        assertEquals(1, reader.skipped());
+        assertEquals("Knock", row.label);
+        DetectionEvent last = row;
+        for (DetectionEvent next; (next = reader.next()) != null; last = next) {
+            assertEquals("Knock", next.label);
+        }
+        assertEquals(9, last.timestamp);
+        assertEquals(1, reader.skipped());
+
+        // An NDJSON line with no end in sight is cut off the same way
+        StringBuilder ndjson = new StringBuilder("{\"timestamp\":1,\"label\":\"");
+        while (ndjson.length() < HistoryCodec.MAX_RECORD_CHARS * 2) {
+            ndjson.append("Knock ");
+        }
+        ndjson.append("\"}\n{\"timestamp\":9,\"label\":\"Knock\"}\n");
+        HistoryCodec.RowReader lines = reader(ndjson.toString(), HistoryCodec.FORMAT_NDJSON);
+        assertEquals(9, lines.next().timestamp);
+        assertEquals(1, lines.skipped());
+        assertNull(lines.next());
+    }
+
+    @Test
+    public void csvWithoutTheColumnsIsRejected() {
+        try {
+            reader("name,value\na,b\n", HistoryCodec.FORMAT_CSV);
+            fail();
+        } catch (IOException e) {
+            // Not a history export
+        }
+    }
+
+    private static String write(int format) throws IOException {
+        StringWriter out = new StringWriter();
+        HistoryCodec.RowWriter writer = new HistoryCodec.RowWriter(out, format);
+        writer.writeHeader();
+        writer.write(1_700_000_000_000L, "Door, \"front\"", 0.25, true, false, null, 0, 0);
+        writer.write(1_700_000_000_500L, "Knock", 0.875, false, true, "Kitchen\nTablet", 77, 9);
+        return out.toString();
+    }
+
+    private static void readBack(String text, int format) throws IOException {
+        HistoryCodec.RowReader reader = reader(text, format);
+        DetectionEvent first = reader.next();
+        assertEquals(1_700_000_000_000L, first.timestamp);
+        assertEquals("Door, \"front\"", first.label);
+        assertEquals(0.25, first.confidence, 0);
+        assertTrue(first.isEmergency);
+        assertFalse(first.isRemote);
+        assertNull(first.deviceName);
+
+        DetectionEvent second = reader.next();
+        assertEquals("Kitchen\nTablet", second.deviceName);
+        assertTrue(second.isRemote);
+        assertEquals(77, second.originDevice);
+        assertEquals(9, second.originSeq);
+        assertNull(reader.next());
+        assertEquals(0, reader.skipped());
+    }
+
+    private static HistoryCodec.RowReader reader(String text, int format) throws IOException {
+        return new HistoryCodec.RowReader(new BufferedReader(new StringReader(text)), format);
+    }
+}
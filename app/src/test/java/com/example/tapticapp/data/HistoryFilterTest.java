@@ -0,0 +1,80 @@
+package com.example.tapticapp.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class HistoryFilterTest {
+
+    private static final long FIRST = Long.MAX_VALUE;
+
+    @Test
+    public void labelWordsBecomePrefixes() {
+        assertEquals("door* bell*", new HistoryFilter().setLabel(" Door-Bell ").labelMatch());
+        assertNull(new HistoryFilter().setLabel("\"*-").labelMatch());
+        assertNull(new HistoryFilter().setLabel("  ").labelMatch());
+        assertFalse(new HistoryFilter().setLabel("  ").hasLabel());
+        assertTrue(new HistoryFilter().isEmpty());
+        assertFalse(new HistoryFilter().setEmergencyOnly(true).isEmpty());
+    }
+
+    @Test
+    public void onlyConditionsInUseAreQueried() {
+        List<Object> args = new ArrayList<>();
+        String sql = new HistoryFilter().toSql(null, FIRST, FIRST, 10, args);
+        assertFalse(sql.contains("WHERE d.labelId"));
+        assertFalse(sql.contains("sourceId ="));
+        assertFalse(sql.contains("isEmergency ="));
+        assertTrue(sql.endsWith("ORDER BY d.timestamp DESC, d.id DESC LIMIT 10"));
+        assertEquals(3, args.size());
+
+        args.clear();
+        sql = new HistoryFilter().setSource(HistoryFilter.SOURCE_LOCAL).setEmergencyOnly(true)
+                .setTimeRange(1000, 2000).toSql(Collections.singletonList(7L), FIRST, FIRST, 10, args);
+        assertTrue(sql.contains("d.labelId = ? AND d.sourceId = 0 AND d.isEmergency = 1 AND d.timestamp >= ?"));
+        // The range's end bounds the first page without an id
+        assertEquals(Arrays.asList(7L, 1000L, 2000L, 2000L, Long.MIN_VALUE), args);
+    }
+
+    @Test
+    public void cursorContinuesWithinRange() {
+        List<Object> args = new ArrayList<>();
+        new HistoryFilter().setDevice("Phone B").setTimeRange(1000, 2000)
+                .toSql(null, 1500, 42, 10, args);
+        assertEquals(Arrays.asList("Phone B", 1000L, 1500L, 1500L, 42L), args);
+    }
+
+    @Test
+    public void severalLabelsAreMerged() {
+        List<Object> args = new ArrayList<>();
+        String sql = new HistoryFilter().toSql(Arrays.asList(1L, 2L, 3L), FIRST, FIRST, 10, args);
+        assertEquals(3, count(sql, "UNION ALL") + 1);
+        assertEquals(4, count(sql, "LIMIT 10"));
+        assertEquals(3 * 4, args.size());
+
+        List<Long> many = new ArrayList<>();
+        for (long id = 1; id <= HistoryFilter.MAX_MERGED_LABELS + 1; id++) {
+            many.add(id);
+        }
+        args.clear();
+        sql = new HistoryFilter().toSql(many, FIRST, FIRST, 10, args);
+        assertFalse(sql.contains("UNION"));
+        assertTrue(sql.contains("d.labelId IN (?, ?, "));
+        assertEquals(many.size() + 3, args.size());
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,635 @@
+package com.example.tapticapp.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import android.database.Cursor;
+import androidx.sqlite.db.SupportSQLiteQuery;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HistoryRepositoryTest {
+
+    private final MemoryDao dao = new MemoryDao();
+    private final HistoryRepository repository = new HistoryRepository(dao);
+    private final RecordingListener feed = new RecordingListener();
+
+    @Before
+    public void setUp() throws InterruptedException {
+        repository.subscribe(Runnable::run, feed);
+        drain();
+    }
+
+    @Test
+    public void burstIsCommittedAsOneBatch() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            repository.insert(event(false));
+        }
+        drain();
+
+        // Held back together, not written one by one
+        assertEquals(10, dao.size());
+        assertEquals(1, dao.batches);
+        assertEquals(1, repository.getFlushes());
+        assertEquals(10, repository.getMaxBatchSize());
+        assertEquals(1, feed.insertCalls);
+        assertEquals(10, feed.rows.size());
+        assertEquals(0, dao.trims);
+    }
+
+    @Test
+    public void fullBatchIsFlushedWithoutWaiting() throws InterruptedException {
+        for (int i = 0; i < HistoryRepository.MAX_BATCH; i++) {
+            repository.insert(event(false));
+        }
+        drain();
+        assertEquals(HistoryRepository.MAX_BATCH, dao.size());
+        assertTrue(repository.getAverageWaitMs() < HistoryRepository.FLUSH_INTERVAL_MS);
+    }
+
+    @Test
+    public void emergencyIsFlushedAtOnce() throws InterruptedException {
+        repository.insert(event(false));
+        repository.insert(event(true));
+        // The flush was queued ahead of this, not left to the interval
+        awaitExecutor();
+        assertEquals(2, dao.size());
+        assertEquals(1, dao.batches);
+    }
+
+    @Test
+    public void trimIsAmortized() throws InterruptedException {
+        for (int i = 0; i < 250; i++) {
+            repository.insert(event(false));
+        }
+        drain();
+        assertEquals(250, dao.size());
+        assertTrue(dao.batches < 250 / 10);
+        // At most one per hundred rows, however they were batched
+        assertTrue(dao.trims >= 1 && dao.trims <= 250 / HistoryRepository.TRIM_EVERY_ROWS);
+        assertEquals(dao.trims, repository.getTrims());
+    }
+
+    @Test
+    public void localRowsAreNumberedAcrossBatches() throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            DetectionEvent event = event(false);
+            event.originDevice = 7;
+            repository.insert(event);
+            if (i == 20)
+                drain();
+        }
+        repository.insert(event(false));
+        drain();
+
+        assertTrue(dao.batches >= 2);
+        long expected = 1;
+        for (DetectionEvent row : dao.rows) {
+            if (row.originDevice == 7)
+                assertEquals(expected++, row.originSeq);
+        }
+        assertEquals(51, expected);
+        assertEquals(Long.valueOf(50), dao.getHighWater(7));
+    }
+
+    @Test
+    public void loadHistorySeesQueuedEvents() throws InterruptedException {
+        repository.insert(event(false));
+        CountDownLatch loaded = new CountDownLatch(1);
+        int[] count = new int[1];
+        repository.loadHistory(events -> {
+            count[0] = events.size();
+            loaded.countDown();
+        });
+        assertTrue(loaded.await(1, TimeUnit.SECONDS));
+        assertEquals(1, count[0]);
+    }
+
+    @Test
+    public void feedSendsDeltas() throws InterruptedException {
+        repository.insert(event(false));
+        drain();
+        assertEquals(1, feed.resets);
+        assertEquals(1, feed.rows.size());
+
+        // A late subscriber starts from the stored rows
+        RecordingListener late = new RecordingListener();
+        HistoryRepository.Subscription subscription = repository.subscribe(Runnable::run, late);
+        drain();
+        assertEquals(1, late.rows.size());
+
+        DetectionEvent newer = event(false);
+        newer.timestamp += 1000;
+        repository.insert(newer);
+        drain();
+        assertEquals(2, late.rows.size());
+        assertEquals(newer.id, (long) late.rows.get(0));
+
+        subscription.close();
+        repository.clearAll();
+        drain();
+        assertEquals(2, late.rows.size());
+        assertEquals(0, feed.rows.size());
+        assertEquals(2, feed.resets);
+    }
+
+    @Test
+    public void syncedRowReplacesLiveCopy() throws InterruptedException {
+        DetectionEvent live = new DetectionEvent(1000, "Knock", 0.8, false, true, "Phone B");
+        repository.insert(live);
+        drain();
+
+        DetectionEvent synced = new DetectionEvent(1000, "Knock", 0.8, false, true, "Phone B");
+        synced.originDevice = 0xB;
+        synced.originSeq = 1;
+        List<DetectionEvent> batch = new ArrayList<>();
+        batch.add(synced);
+        repository.applySynced(batch);
+        drain();
+
+        assertEquals(1, feed.removeCalls);
+        assertEquals(1, feed.rows.size());
+        assertEquals(synced.id, (long) feed.rows.get(0));
+    }
+
+    @Test
+    public void pagesWalkTheWholeHistory() throws InterruptedException {
+        // Runs of equal timestamps, so pages split ties
+        long base = System.currentTimeMillis();
+        for (int i = 0; i < 250; i++) {
+            repository.insert(new DetectionEvent(base - i / 7, "Knock", 0.8, false, false, null));
+        }
+        drain();
+
+        List<DetectionEvent> seen = new ArrayList<>();
+        List<DetectionEvent> page = load(null);
+        assertEquals(HistoryRepository.PAGE_SIZE, page.size());
+        while (!page.isEmpty()) {
+            seen.addAll(page);
+            page = load(page.get(page.size() - 1));
+        }
+        assertEquals(250, seen.size());
+        for (int i = 1; i < seen.size(); i++) {
+            assertTrue(RecentCache.compareNewestFirst(seen.get(i - 1), seen.get(i)) < 0);
+        }
+    }
+
+    @Test
+    public void newestPageComesFromMemory() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            repository.insert(event(false));
+        }
+        drain();
+        int queries = dao.pageQueries;
+
+        RecordingListener drawer = new RecordingListener();
+        repository.subscribe(Runnable::run, drawer);
+        drain();
+        assertEquals(10, drawer.rows.size());
+        assertEquals(queries, dao.pageQueries);
+        assertEquals(1, repository.getCacheMisses());
+    }
+
+    @Test
+    public void retentionDeletesOldRows() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            // One a day, oldest first
+            repository.insert(new DetectionEvent(now - TimeUnit.DAYS.toMillis(19 - i), "Knock", 0.8, false,
+                    false, null));
+        }
+        drain();
+        repository.setRetention(1000, TimeUnit.DAYS.toMillis(7) - 1000);
+        drain();
+        assertEquals(7, dao.size());
+        assertTrue(feed.trimmedBefore > now - TimeUnit.DAYS.toMillis(7));
+
+        repository.setRetention(5, 0);
+        drain();
+        assertEquals(5, dao.size());
+        // The newest page was trimmed alongside the table
+        List<DetectionEvent> page = load(null);
+        assertEquals(5, page.size());
+    }
+
+    @Test
+    public void unmatchedLabelSkipsTheQuery() throws InterruptedException {
+        repository.insert(event(false));
+        drain();
+        assertEquals(1, search(new HistoryFilter().setEmergencyOnly(false)).size());
+        assertEquals(0, search(new HistoryFilter().setLabel("doorbell")).size());
+        assertEquals(1, dao.searchQueries);
+        assertEquals(2, repository.getSearches());
+    }
+
+    @Test
+    public void importCommitsInBatchesAndSkipsHeldRows() throws InterruptedException {
+        long base = System.currentTimeMillis() - 60_000;
+        DetectionEvent held = new DetectionEvent(base, "Knock", 0.5, false, false, null);
+        dao.insert(held);
+        int total = HistoryRepository.IMPORT_BATCH * 2 + 10;
+        StringBuilder csv = new StringBuilder("timestamp,label,confidence\n");
+        for (int i = 0; i < total; i++) {
+            csv.append(base + i).append(",Knock,0.5\n");
+        }
+
+        CountDownLatch finished = new CountDownLatch(1);
+        long[] result = new long[2];
+        repository.importHistory(new ByteArrayInputStream(csv.toString().getBytes(StandardCharsets.UTF_8)),
+                HistoryCodec.FORMAT_AUTO, new HistoryRepository.TransferListener() {
+                    @Override
+                    public void onProgress(long rows, double rowsPerSecond) {
+                    }
+
+                    @Override
+                    public void onFinished(long rows, long skipped, double rowsPerSecond, Exception error) {
+                        result[0] = rows;
+                        result[1] = skipped;
+                        finished.countDown();
+                    }
+                });
+        assertTrue(finished.await(1, TimeUnit.SECONDS));
+
+        assertEquals(total - 1, result[0]);
+        assertEquals(1, result[1]);
+        assertEquals(total, dao.size());
+        assertEquals(3, dao.imports);
+        assertEquals(total - 1, repository.getRowsImported());
+        // Subscribers start over from the newest page
+        assertEquals(2, feed.resets);
+        assertEquals(HistoryRepository.PAGE_SIZE, feed.rows.size());
+    }
+
+    private List<DetectionEvent> search(HistoryFilter filter) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        List<DetectionEvent> found = new ArrayList<>();
+        repository.search(filter, Long.MAX_VALUE, Long.MAX_VALUE, events -> {
+            found.addAll(events);
+            done.countDown();
+        });
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        return found;
+    }
+
+    @Test
+    public void trimMergesAgedHours() throws InterruptedException {
+        repository.setRetention(1000, 0);
+        drain();
+        assertEquals(1, dao.downsamples);
+    }
+
+    @Test
+    public void dayBoundsFollowTheZone() {
+        // 02:00 UTC is still the previous day at UTC-5 and already 07:00 at UTC+5
+        long hour = 20000 * 24 + 2;
+        assertEquals(19999, HistoryRepository.dayOf(hour, -5));
+        assertEquals(20000, HistoryRepository.dayOf(hour, 5));
+        // The day starting at 05:00 UTC for UTC-5
+        assertEquals(20000, HistoryRepository.firstDayStartingAt(20000 * 24 + 5, -5));
+        assertEquals(20001, HistoryRepository.firstDayStartingAt(20000 * 24 + 6, -5));
+        assertEquals(20000, HistoryRepository.firstDayStartingAt(20000 * 24, 0));
+    }
+
+    /**
+     * The newest page, or the one after {@code last}.
+     */
+    private List<DetectionEvent> load(DetectionEvent last) throws InterruptedException {
+        CountDownLatch loaded = new CountDownLatch(1);
+        List<DetectionEvent> page = new ArrayList<>();
+        HistoryRepository.HistoryCallback callback = events -> {
+            page.addAll(events);
+            loaded.countDown();
+        };
+        if (last == null) {
+            repository.loadHistory(callback);
+        } else {
+            repository.loadPage(last.timestamp, last.id, callback);
+        }
+        assertTrue(loaded.await(1, TimeUnit.SECONDS));
+        return page;
+    }
+
+    /**
+     * Flush and wait for the executor to get through it.
+     */
+    private void drain() throws InterruptedException {
+        repository.flush();
+        CountDownLatch done = new CountDownLatch(1);
+        repository.loadHistory(events -> done.countDown());
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Wait for the executor to get through what is queued, without
+     * flushing.
+     */
+    private void awaitExecutor() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        repository.loadPage(Long.MAX_VALUE, Long.MAX_VALUE, events -> done.countDown());
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Keeps the ids a subscriber would show, newest first.
+     */
+    private static final class RecordingListener implements HistoryRepository.ChangeListener {
+        final List<Long> rows = new ArrayList<>();
+        int resets;
+        int insertCalls;
+        int removeCalls;
+        long trimmedBefore;
+
+        @Override
+        public void onReset(List<DetectionEvent> events) {
+            resets++;
+            rows.clear();
+            for (DetectionEvent event : events) {
+                rows.add(event.id);
+            }
+        }
+
+        @Override
+        public void onInserted(List<DetectionEvent> events) {
+            insertCalls++;
+            for (int i = events.size() - 1; i >= 0; i--) {
+                rows.add(0, events.get(i).id);
+            }
+        }
+
+        @Override
+        public void onRemoved(List<Long> ids) {
+            removeCalls++;
+            rows.removeAll(ids);
+        }
+
+        @Override
+        public void onTrimmed(long cutoff) {
+            trimmedBefore = cutoff;
+        }
+    }
+
+    private static DetectionEvent event(boolean emergency) {
+        return new DetectionEvent(System.currentTimeMillis(), "Knock", 0.8, emergency, false, null);
+    }
+
+    private static final class MemoryDao implements HistoryDao {
+        final List<DetectionEvent> rows = new ArrayList<>();
+        final Map<Long, Long> marks = new HashMap<>();
+        int batches;
+        int trims;
+        int pageQueries;
+        int downsamples;
+        int searchQueries;
+        int imports;
+        long nextId = 1;
+
+        synchronized int size() {
+            return rows.size();
+        }
+
+        @Override
+        public synchronized void insertBatch(List<DetectionEvent> events) {
+            batches++;
+            HistoryDao.super.insertBatch(events);
+        }
+
+        @Override
+        public synchronized void insert(DetectionEvent event) {
+            event.id = nextId++;
+            rows.add(event);
+        }
+
+        @Override
+        public synchronized List<DetectionEvent> getNewest(int limit) {
+            return getPageBefore(Long.MAX_VALUE, Long.MAX_VALUE, limit);
+        }
+
+        @Override
+        public synchronized List<DetectionEvent> getPageBefore(long timestamp, long id, int limit) {
+            pageQueries++;
+            List<DetectionEvent> page = new ArrayList<>();
+            for (DetectionEvent row : rows) {
+                if (row.timestamp < timestamp || (row.timestamp == timestamp && row.id < id))
+                    page.add(row);
+            }
+            Collections.sort(page, RecentCache::compareNewestFirst);
+            return new ArrayList<>(page.subList(0, Math.min(limit, page.size())));
+        }
+
+        @Override
+        public synchronized List<Long> insertSynced(List<DetectionEvent> synced, int offsetHours) {
+            List<Long> removed = new ArrayList<>();
+            for (DetectionEvent row : synced) {
+                for (DetectionEvent copy : new ArrayList<>(rows)) {
+                    if (copy.originDevice == 0 && copy.isRemote && copy.label.equals(row.label)
+                            && copy.deviceName.equals(row.deviceName)) {
+                        rows.remove(copy);
+                        removed.add(copy.id);
+                    }
+                }
+                insert(row);
+            }
+            return removed;
+        }
+
+        @Override
+        public synchronized void deleteAll() {
+            rows.clear();
+        }
+
+        @Override
+        public void deleteHours() {
+        }
+
+        @Override
+        public void deleteDays() {
+        }
+
+        @Override
+        public synchronized int downsampleBefore(long beforeHour, int offsetHours) {
+            downsamples++;
+            return 0;
+        }
+
+        @Override
+        public synchronized long trim(int keep, long notBefore) {
+            trims++;
+            return HistoryDao.super.trim(keep, notBefore);
+        }
+
+        @Override
+        public long insertRow(DetectionRow row) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Long findLabel(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long insertLabel(LabelEntry label) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Long findSource(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long insertSource(SourceEntry source) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized Long getTimestampAt(int offset) {
+            List<DetectionEvent> newest = getNewest(offset + 1);
+            return newest.size() > offset ? newest.get(offset).timestamp : null;
+        }
+
+        @Override
+        public synchronized int deleteBefore(long cutoff) {
+            int before = rows.size();
+            rows.removeIf(row -> row.timestamp < cutoff);
+            return before - rows.size();
+        }
+
+        @Override
+        public synchronized List<SyncState> getSyncStates() {
+            List<SyncState> states = new ArrayList<>();
+            for (Map.Entry<Long, Long> mark : marks.entrySet()) {
+                states.add(new SyncState(mark.getKey(), mark.getValue()));
+            }
+            return states;
+        }
+
+        @Override
+        public synchronized Long getHighWater(long originDevice) {
+            return marks.get(originDevice);
+        }
+
+        @Override
+        public synchronized void putSyncState(SyncState state) {
+            marks.put(state.originDevice, state.highWater);
+        }
+
+        @Override
+        public List<DetectionEvent> getRowsAfter(long originDevice, long afterSeq, int limit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int countOrigin(long originDevice, long originSeq) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Long> findLiveCopies(String deviceName, String label, long from, long to) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void deleteRows(List<Long> ids) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<DetectionRow> getRows(List<Long> ids) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int addToHour(long hour, long labelId, long sourceId, double confidence, int emergency) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void insertHour(HourlyRollup rollup) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int removeFromHour(long hour, long labelId, long sourceId, double confidence, int emergency) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int removeFromDay(long day, long labelId, long sourceId, double confidence, int emergency) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void mergeHoursIntoDays(long beforeHour, int offsetHours) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int deleteHoursBefore(long beforeHour) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<RollupStats> getTotals(long fromHour, long toHour, long fromDay, long toDay) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<RollupStats> getHourly(long fromHour, long toHour) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<RollupStats> getDaily(long fromDay, long toDay, int offsetHours) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Long> matchLabels(String match) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<String> getDeviceNames() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized void insertImported(List<DetectionEvent> rows, int offsetHours) {
+            imports++;
+            HistoryDao.super.insertImported(rows, offsetHours);
+        }
+
+        @Override
+        public synchronized int countSame(long timestamp, String label, String deviceName) {
+            int count = 0;
+            for (DetectionEvent row : rows) {
+                if (row.timestamp == timestamp && row.originDevice == 0 && row.label.equals(label)
+                        && Objects.equals(row.deviceName, deviceName))
+                    count++;
+            }
+            return count;
+        }
+
+        @Override
+        public Cursor exportAll() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized List<DetectionEvent> search(SupportSQLiteQuery query) {
+            searchQueries++;
+            return getNewest(HistoryRepository.PAGE_SIZE);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.tapticapp.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class RecentCacheTest {
+
+    private final RecentCache cache = new RecentCache(4);
+
+    @Test
+    public void newRowsPushOutTheOldest() {
+        cache.load(Collections.emptyList());
+        for (int i = 1; i <= 10; i++) {
+            cache.insert(Collections.singletonList(row(i, i * 100)));
+        }
+        assertEquals(Arrays.asList(10L, 9L, 8L, 7L), ids(cache.snapshot(10)));
+        assertEquals(Arrays.asList(10L, 9L), ids(cache.snapshot(2)));
+    }
+
+    @Test
+    public void olderRowsGoInPlace() {
+        cache.load(Arrays.asList(row(4, 400), row(3, 300), row(2, 200)));
+        cache.insert(Arrays.asList(row(5, 350), row(6, 100), row(7, 300)));
+        // Same timestamp: the higher id is newer
+        assertEquals(Arrays.asList(4L, 5L, 7L, 3L), ids(cache.snapshot(4)));
+
+        // Older than everything kept
+        cache.insert(Collections.singletonList(row(8, 50)));
+        assertEquals(Arrays.asList(4L, 5L, 7L, 3L), ids(cache.snapshot(4)));
+    }
+
+    @Test
+    public void removalFromAFullCacheMakesItStale() {
+        cache.load(Arrays.asList(row(4, 400), row(3, 300), row(2, 200), row(1, 100)));
+        assertFalse(cache.isStale());
+        cache.remove(Collections.singletonList(3L));
+        assertTrue(cache.isStale());
+
+        // Holding the whole table, the rest is still complete
+        RecentCache small = new RecentCache(4);
+        small.load(Arrays.asList(row(2, 200), row(1, 100)));
+        small.remove(Collections.singletonList(2L));
+        assertFalse(small.isStale());
+        assertEquals(Collections.singletonList(1L), ids(small.snapshot(4)));
+    }
+
+    @Test
+    public void trimDropsTheTail() {
+        cache.load(Arrays.asList(row(4, 400), row(3, 300), row(2, 200), row(1, 100)));
+        cache.trimBefore(250);
+        assertEquals(Arrays.asList(4L, 3L), ids(cache.snapshot(4)));
+        // Nothing older is left, so removing rows keeps it usable
+        cache.remove(Collections.singletonList(4L));
+        assertFalse(cache.isStale());
+    }
+
+    private static DetectionEvent row(long id, long timestamp) {
+        DetectionEvent event = new DetectionEvent(timestamp, "Knock", 0.5, false, false, null);
+        event.id = id;
+        return event;
+    }
+
+    private static List<Long> ids(List<DetectionEvent> events) {
+        List<Long> ids = new ArrayList<>();
+        for (DetectionEvent event : events) {
+            ids.add(event.id);
+        }
+        return ids;
+    }
+}
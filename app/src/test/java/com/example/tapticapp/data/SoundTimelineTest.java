@@ -0,0 +1,120 @@
+package com.example.tapticapp.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.Test;
+
+public class SoundTimelineTest {
+
+    private static final int CLASSES = 8;
+    private static final long DAY = SoundTimeline.dayStart(1_700_000_000_000L);
+    private static final long MORNING = DAY + 10 * 3_600_000L;
+
+    @Test
+    public void classQueriesSkipBlocksWithoutTheClass() throws Exception {
+        SoundTimeline timeline = started(Files.createTempDirectory("timeline").toFile());
+        int frames = timeline.framesPerBlock() * 3;
+        for (int i = 0; i < frames; i++) {
+            float[] scores = new float[CLASSES];
+            scores[0] = 0.1f;
+            scores[1] = 0.5f;
+            if (i >= 10 && i < 20)
+                scores[2] = 0.9f;
+            timeline.append(MORNING + i * 500L, scores, 0.25);
+        }
+        assertEquals(frames, timeline.getFramesWritten());
+
+        List<SoundTimeline.Frame> found = timeline.query(0, Long.MAX_VALUE, 2, 0.5f);
+        assertEquals(10, found.size());
+        assertEquals(MORNING + 5_000, found.get(0).timestamp);
+        assertEquals(2, found.get(0).classes[0]);
+        assertEquals(0.9f, found.get(0).scores[0], 1f / 255);
+        assertEquals(0.25f, found.get(0).level, 1f / 255);
+        assertEquals(1, timeline.getBlocksRead());
+        assertEquals(2, timeline.getBlocksSkipped());
+
+        assertEquals(frames, timeline.query(0, Long.MAX_VALUE, -1, 0).size());
+        assertEquals(4, timeline.query(MORNING + 1_000, MORNING + 3_000, 1, 0.4f).size());
+        assertTrue(timeline.query(0, Long.MAX_VALUE, 1, 0.6f).isEmpty());
+        timeline.close();
+    }
+
+    @Test
+    public void framesKeepTheirTopClassesBestFirst() throws Exception {
+        SoundTimeline timeline = started(Files.createTempDirectory("timeline").toFile());
+        timeline.append(MORNING, new float[] { 0.1f, 0.9f, 0.3f, 0.7f, 0.05f, 0, 0, 0 }, 1.0);
+        timeline.append(MORNING + 500, new float[] { 0, 0, 0, 0, 0, 0.4f, 0, 0 }, 0);
+
+        List<SoundTimeline.Frame> frames = timeline.query(0, Long.MAX_VALUE, -1, 0);
+        assertArrayEquals(new int[] { 1, 3, 2 }, frames.get(0).classes);
+        assertEquals(1f, frames.get(0).level, 0);
+        assertArrayEquals(new int[] { 5 }, frames.get(1).classes);
+        timeline.close();
+    }
+
+    @Test
+    public void reopenedDayIsAppendedTo() throws Exception {
+        File dir = Files.createTempDirectory("timeline").toFile();
+        SoundTimeline first = started(dir);
+        first.append(MORNING, new float[CLASSES], 0.5);
+        first.close();
+
+        SoundTimeline second = started(dir);
+        second.append(MORNING + 500, new float[CLASSES], 0.5);
+        assertEquals(2, second.query(0, Long.MAX_VALUE, -1, 0).size());
+        second.close();
+    }
+
+    @Test
+    public void framesMoveToTheNextDayFileAndOldOnesAreTrimmed() throws Exception {
+        File dir = Files.createTempDirectory("timeline").toFile();
+        SoundTimeline timeline = new SoundTimeline(dir, CLASSES);
+        timeline.append(MORNING, new float[CLASSES], 0.5);
+        assertEquals(1, timeline.getFramesDropped());
+
+        timeline.start(MORNING);
+        timeline.sync();
+        timeline.append(MORNING, new float[CLASSES], 0.5);
+        timeline.sync();
+        long tomorrow = MORNING + 24 * 3_600_000L;
+        timeline.append(tomorrow, new float[CLASSES], 0.5);
+        timeline.sync();
+
+        assertEquals(2, timeline.getFramesWritten());
+        assertEquals(2, timeline.query(0, Long.MAX_VALUE, -1, 0).size());
+        assertEquals(1, timeline.query(tomorrow, Long.MAX_VALUE, -1, 0).size());
+        assertEquals(SoundTimeline.BLOCK_BYTES, new File(dir, DAY + ".tl").length());
+        timeline.close();
+    }
+
+    @Test
+    public void expiredDaysAreDeleted() throws Exception {
+        File dir = Files.createTempDirectory("timeline").toFile();
+        File old = new File(dir, SoundTimeline.dayStart(DAY - 3 * 24 * 3_600_000L) + ".tl");
+        File recent = new File(dir, SoundTimeline.dayStart(DAY - 12 * 3_600_000L) + ".tl");
+        assertTrue(old.createNewFile());
+        assertTrue(recent.createNewFile());
+
+        SoundTimeline timeline = new SoundTimeline(dir, CLASSES);
+        timeline.setRetentionDays(1);
+        timeline.start(MORNING);
+        timeline.sync();
+        assertFalse(old.exists());
+        assertTrue(recent.exists());
+        timeline.close();
+    }
+
+    private static SoundTimeline started(File dir) throws Exception {
+        SoundTimeline timeline = new SoundTimeline(dir, CLASSES);
+        timeline.start(MORNING);
+        timeline.sync();
+        return timeline;
+    }
+}
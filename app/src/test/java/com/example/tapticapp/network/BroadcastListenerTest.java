@@ -0,0 +1,67 @@
+package com.example.tapticapp.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.example.tapticapp.config.ConfigSnapshot;
+import com.example.tapticapp.config.TestConfigs;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.Test;
+
+/**
+ * Which legacy JSON datagrams a loopback listener passes on.
+ */
+public class BroadcastListenerTest {
+
+    private static final long LISTENER_ID = 0x1F;
+    private static final long TIMEOUT_MS = 5000;
+
+    private final InetAddress loopback = InetAddress.getLoopbackAddress();
+    private final ConfigSnapshot snapshot = TestConfigs.sharingAll(new String[] { "alarm", "noise" });
+    private final List<String> hosts = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void jsonCopiesAndOwnJsonAreSkipped() throws Exception {
+        InetSocketAddress listenAddress;
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            probe.bind(new InetSocketAddress(loopback, 0));
+            listenAddress = (InetSocketAddress) probe.getLocalAddress();
+        }
+        BroadcastListener listener = new BroadcastListener(LISTENER_ID, () -> snapshot, () -> null,
+                new PeerRegistry(), (classIndex, label, score, deviceName) -> hosts.add(deviceName));
+        listener.useSimulatedNetwork(listenAddress, 9);
+        listener.start();
+        try (DatagramChannel peer = DatagramChannel.open()) {
+            for (int i = 0; hosts.isEmpty() && i < TIMEOUT_MS / 10; i++) {
+                send(peer, listenAddress, "{\"type\":\"alarm\",\"host\":\"probe\",\"n\":" + i + "}");
+                Thread.sleep(10);
+            }
+            hosts.clear();
+
+            send(peer, listenAddress, "{\"type\":\"alarm\",\"host\":\"desktop\"}");
+            send(peer, listenAddress, "{\"type\":\"alarm\",\"host\":\"self\",\"device\":\"1f\"}");
+            send(peer, listenAddress, "{\"type\":\"noise\",\"host\":\"copy\",\"device\":\"2\",\"proto\":1}");
+            send(peer, listenAddress, "{\"type\":\"noise\",\"host\":\"unknown label\",\"device\":\"2\"}");
+            send(peer, listenAddress, "{\"type\":\"alarm\",\"host\":\"end\"}");
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!hosts.contains("end") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            listener.stop();
+        }
+        assertTrue(hosts.contains("end"));
+        assertEquals(Arrays.asList("desktop", "unknown label", "end"), hosts);
+    }
+
+    private static void send(DatagramChannel channel, InetSocketAddress to, String json) throws Exception {
+        channel.send(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)), to);
+    }
+}
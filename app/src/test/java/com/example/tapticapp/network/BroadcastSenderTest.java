@@ -0,0 +1,160 @@
+package com.example.tapticapp.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * The JSON copies a sender puts on the wire, read from a loopback socket.
+ */
+public class BroadcastSenderTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    @Test
+    public void longJsonBatchesAreSplitNotCut() throws Exception {
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 150; i++) {
+            padding.append('x');
+        }
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            BroadcastSender sender = sender(socket);
+            // Queued before the sender starts, so they go out as one batch
+            for (int i = 0; i < 16; i++) {
+                sender.sendEvent(-1, "Sound " + i + " " + padding, 0.5, false);
+            }
+            sender.start();
+            Set<String> labels = new HashSet<>();
+            try {
+                long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+                while (labels.size() < 16 && System.currentTimeMillis() < deadline) {
+                    JSONObject json = receiveJson(socket, deadline);
+                    if (json == null)
+                        break;
+                    labels.addAll(labelsOf(json));
+                }
+            } finally {
+                sender.stop();
+            }
+            assertEquals(16, labels.size());
+            assertTrue(sender.getJsonDatagramsSent() > 1);
+        }
+    }
+
+    @Test
+    public void onlyJsonCopiesOfBinaryEventsAreMarked() throws Exception {
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            BroadcastSender sender = sender(socket);
+            sender.sendEvent(5, "Known", 0.5, false);
+            sender.sendEvent(-1, "Custom", 0.5, false);
+            sender.start();
+            JSONObject known = null;
+            JSONObject custom = null;
+            try {
+                long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+                while (known == null || custom == null) {
+                    JSONObject json = receiveJson(socket, deadline);
+                    if (json == null)
+                        break;
+                    if (labelsOf(json).contains("Known"))
+                        known = json;
+                    if (labelsOf(json).contains("Custom"))
+                        custom = json;
+                }
+            } finally {
+                sender.stop();
+            }
+            // Sent as JSON even though no JSON-only peer was heard
+            assertTrue(known != null && custom != null);
+            assertTrue(known.has("proto"));
+            assertFalse(custom.has("proto"));
+            assertFalse(labelsOf(known).contains("Custom"));
+            assertTrue(custom.has("device"));
+        }
+    }
+
+    @Test
+    public void failedEmergencyDoesNotLoseTheBatch() throws Exception {
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            BroadcastSender sender = sender(socket);
+            sender.sendEvent(3, "Siren", 0.9, true);
+            sender.sendEvent(5, "Known", 0.5, false);
+            sender.sendEvent(-1, "Custom", 0.5, false);
+            sender.failNextEmergencySend();
+            sender.start();
+            Set<String> labels = new HashSet<>();
+            try {
+                long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+                while (labels.size() < 3) {
+                    JSONObject json = receiveJson(socket, deadline);
+                    if (json == null)
+                        break;
+                    labels.addAll(labelsOf(json));
+                }
+            } finally {
+                sender.stop();
+            }
+            // JSON-only peers still hear of the emergency
+            assertTrue(labels.toString(), labels.contains("Siren"));
+            assertTrue(labels.contains("Known"));
+            assertTrue(labels.contains("Custom"));
+            assertEquals(1, sender.getSendErrors());
+            assertEquals(0, sender.getEmergenciesSent());
+        }
+    }
+
+    static BroadcastSender sender(DatagramSocket socket) throws Exception {
+        socket.setSoTimeout(100);
+        BroadcastSender sender = new BroadcastSender(DeviceIdentity.ephemeral(), new PeerRegistry(), () -> null);
+        sender.useSimulatedNetwork(new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort()),
+                "test");
+        return sender;
+    }
+
+    /**
+     * The next JSON datagram, skipping binary frames such as heartbeats;
+     * null if none arrives by {@code deadline}. Fails on a datagram over
+     * the size limit or one that does not parse.
+     */
+    static JSONObject receiveJson(DatagramSocket socket, long deadline) throws Exception {
+        byte[] data = new byte[4096];
+        while (System.currentTimeMillis() < deadline) {
+            DatagramPacket packet = new DatagramPacket(data, data.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            if (packet.getLength() == 0 || data[0] != '{')
+                continue;
+            assertTrue("datagram of " + packet.getLength() + " bytes", packet.getLength() <= 1400);
+            return new JSONObject(new String(data, 0, packet.getLength(), StandardCharsets.UTF_8));
+        }
+        return null;
+    }
+
+    static Set<String> labelsOf(JSONObject json) throws Exception {
+        Set<String> labels = new HashSet<>();
+        JSONArray events = json.optJSONArray("events");
+        if (events == null) {
+            labels.add(json.getString("type"));
+        } else {
+            for (int i = 0; i < events.length(); i++) {
+                labels.add(events.optString(i));
+            }
+        }
+        return labels;
+    }
+}
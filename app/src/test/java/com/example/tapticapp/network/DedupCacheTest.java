@@ -0,0 +1,65 @@
+package com.example.tapticapp.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DedupCacheTest {
+
+    @Test
+    public void dropsRepeatedSequences() {
+        DedupCache cache = new DedupCache(1000);
+        assertFalse(cache.isDuplicate(1, 10));
+        assertTrue(cache.isDuplicate(1, 10));
+        assertFalse(cache.isDuplicate(2, 10));
+    }
+
+    @Test
+    public void acceptsReorderedWithinWindow() {
+        DedupCache cache = new DedupCache(1000);
+        assertFalse(cache.isDuplicate(1, 100));
+        assertFalse(cache.isDuplicate(1, 98));
+        assertFalse(cache.isDuplicate(1, 99));
+        assertTrue(cache.isDuplicate(1, 98));
+        assertFalse(cache.isDuplicate(1, 100 - DedupCache.WINDOW + 1));
+        // Older than the window
+        assertTrue(cache.isDuplicate(1, 100 - DedupCache.WINDOW));
+    }
+
+    @Test
+    public void handlesLargeJumpsAndWraparound() {
+        DedupCache cache = new DedupCache(1000);
+        assertFalse(cache.isDuplicate(1, 0xFFFF_FFFEL));
+        assertFalse(cache.isDuplicate(1, 0xFFFF_FFFFL));
+        assertFalse(cache.isDuplicate(1, 0));
+        assertTrue(cache.isDuplicate(1, 0xFFFF_FFFFL));
+        assertFalse(cache.isDuplicate(1, 500));
+        assertTrue(cache.isDuplicate(1, 0));
+    }
+
+    @Test
+    public void evictsLeastRecentlySeenPeer() {
+        DedupCache cache = new DedupCache(1000);
+        for (int peer = 0; peer < DedupCache.MAX_PEERS; peer++) {
+            cache.isDuplicate(peer, 1);
+        }
+        // Touch peer 0 so peer 1 is the oldest
+        assertTrue(cache.isDuplicate(0, 1));
+        assertFalse(cache.isDuplicate(1000, 1));
+        assertEquals(DedupCache.MAX_PEERS, cache.getPeerCount());
+
+        assertTrue(cache.isDuplicate(0, 1));
+        // Peer 1 was evicted, so its history is gone
+        assertFalse(cache.isDuplicate(1, 1));
+    }
+
+    @Test
+    public void payloadEntriesExpire() {
+        DedupCache cache = new DedupCache(1000);
+        assertFalse(cache.isDuplicatePayload(42, 0));
+        assertTrue(cache.isDuplicatePayload(42, 999));
+        assertFalse(cache.isDuplicatePayload(42, 1000));
+    }
+}
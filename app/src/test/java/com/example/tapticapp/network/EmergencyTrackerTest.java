@@ -0,0 +1,125 @@
+package com.example.tapticapp.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EmergencyTrackerTest {
+
+    private static final long SEQUENCE = 7;
+
+    private PeerRegistry registry;
+    private EmergencyTracker tracker;
+    private ByteBuffer frame;
+    private final ByteBuffer out = ByteBuffer.allocate(1400);
+
+    @Before
+    public void setUp() {
+        registry = new PeerRegistry();
+        addPeer(1);
+        addPeer(2);
+        tracker = new EmergencyTracker(registry, new Random(1));
+
+        frame = ByteBuffer.allocate(1400);
+        WireProtocol.encodeEvents(frame, 99, SEQUENCE, 0, WireProtocol.encodeHost("me"), 1, new int[] { 5 },
+                new float[] { 1f }, new int[] { WireProtocol.FLAG_EMERGENCY });
+        frame.flip();
+    }
+
+    @Test
+    public void retransmitsWithBackoffUntilAllPeersAck() {
+        assertEquals(2, tracker.track(SEQUENCE, frame, 0));
+        assertEquals(0, frame.position());
+        assertFalse(tracker.pollDue(ms(EmergencyTracker.INITIAL_BACKOFF_MS / 2 - 1), out));
+
+        long now = ms(EmergencyTracker.INITIAL_BACKOFF_MS);
+        assertTrue(tracker.pollDue(now, out));
+        assertEquals(frame, out);
+        assertFalse(tracker.pollDue(now, out));
+
+        // Next retry at least half the doubled backoff later
+        long next = tracker.nextRetryNanos(now);
+        assertTrue(next - now >= ms(EmergencyTracker.INITIAL_BACKOFF_MS));
+        assertTrue(next - now <= ms(2 * EmergencyTracker.INITIAL_BACKOFF_MS));
+
+        tracker.onAck(1, SEQUENCE, now + ms(10));
+        tracker.onAck(1, SEQUENCE, now + ms(10));
+        assertTrue(tracker.hasPending());
+        tracker.onAck(2, SEQUENCE, now + ms(20));
+        assertFalse(tracker.hasPending());
+        assertEquals(1, tracker.getDelivered());
+
+        PeerRegistry.PeerInfo peer = find(1);
+        assertEquals(1, peer.emergencyAcks);
+        assertEquals(1, peer.emergencyRetries);
+        assertEquals(EmergencyTracker.INITIAL_BACKOFF_MS + 10, peer.maxAckLatencyMs);
+    }
+
+    @Test
+    public void expiresAndRecordsFailures() {
+        tracker.track(SEQUENCE, frame, 0);
+        tracker.onAck(1, SEQUENCE, ms(5));
+
+        int retries = 0;
+        long now = 0;
+        while (tracker.hasPending()) {
+            now = tracker.nextRetryNanos(now);
+            while (tracker.pollDue(now, out)) {
+                retries++;
+            }
+        }
+        assertTrue(now >= ms(EmergencyTracker.DELIVERY_TIMEOUT_MS));
+        // 250 + 500 + 1000 + 2000 ms then 4000 ms steps, each up to halved
+        assertTrue("retries " + retries, retries >= 7 && retries <= 20);
+        assertEquals(1, tracker.getExpired());
+        assertEquals(0, find(1).emergencyFailures);
+        assertEquals(1, find(2).emergencyFailures);
+        assertEquals(retries, find(2).emergencyRetries);
+    }
+
+    @Test
+    public void tracksNothingWithoutAckingPeers() {
+        tracker = new EmergencyTracker(new PeerRegistry(), new Random(1));
+        assertEquals(0, tracker.track(SEQUENCE, frame, 0));
+        assertFalse(tracker.hasPending());
+    }
+
+    @Test
+    public void evictsOldestWhenFull() {
+        for (int i = 0; i <= EmergencyTracker.MAX_PENDING; i++) {
+            tracker.track(i, frame, i);
+        }
+        assertEquals(1, tracker.getExpired());
+        assertEquals(1, find(1).emergencyFailures);
+    }
+
+    private void addPeer(long deviceId) {
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        WireProtocol.encodeHeartbeat(buffer, deviceId, 0, 0, WireProtocol.encodeHost("peer" + deviceId),
+                WireProtocol.CAP_RECEIVE_EVENTS | WireProtocol.CAP_ACK, 60);
+        buffer.flip();
+        WireProtocol.Frame heartbeat = new WireProtocol.Frame();
+        WireProtocol.decode(buffer, heartbeat);
+        registry.recordFrame(heartbeat, "peer" + deviceId, null, 40, 0, System.currentTimeMillis());
+    }
+
+    private PeerRegistry.PeerInfo find(long deviceId) {
+        List<PeerRegistry.PeerInfo> peers = registry.getPeers();
+        for (PeerRegistry.PeerInfo peer : peers) {
+            if (peer.deviceId == deviceId)
+                return peer;
+        }
+        throw new AssertionError("no peer " + deviceId);
+    }
+
+    private static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
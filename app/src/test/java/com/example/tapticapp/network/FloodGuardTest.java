@@ -0,0 +1,95 @@
+package com.example.tapticapp.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class FloodGuardTest {
+
+    private static final InetAddress ADDRESS = InetAddress.getLoopbackAddress();
+
+    private final FloodGuard guard = new FloodGuard();
+
+    @Test
+    public void sourceIsLimitedToBurstThenRate() {
+        long key = FloodGuard.deviceKey(1);
+        assertEquals((int) FloodGuard.SOURCE_BURST, allowed(key, 1000, 0));
+        assertEquals(1000 - (int) FloodGuard.SOURCE_BURST, guard.getPacketsThrottled());
+
+        // Refills at the sustained rate
+        long later = TimeUnit.MILLISECONDS.toNanos(500);
+        assertEquals((int) (FloodGuard.SOURCE_RATE / 2), allowed(key, 1000, later));
+    }
+
+    @Test
+    public void floodingSourceDoesNotStarveOthers() {
+        allowed(FloodGuard.deviceKey(1), 10_000, 0);
+        assertTrue(guard.allow(FloodGuard.deviceKey(2), ADDRESS, 0));
+        assertTrue(guard.allow(FloodGuard.addressKey(ADDRESS), ADDRESS, 0));
+        assertEquals(0, guard.getPacketsOverBudget());
+    }
+
+    @Test
+    public void globalBudgetBoundsRotatingSources() {
+        int accepted = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (guard.allow(FloodGuard.deviceKey(i), ADDRESS, 0))
+                accepted++;
+        }
+        assertEquals((int) FloodGuard.GLOBAL_BURST, accepted);
+        assertEquals(10_000 - accepted, guard.getPacketsOverBudget());
+    }
+
+    @Test
+    public void establishedPeerOutlastsRotatingFlood() {
+        long good = FloodGuard.deviceKey(1);
+        assertTrue(guard.allow(good, ADDRESS, 0));
+
+        // A second later the table fills with one-shot ids and the global
+        // budget runs dry
+        long now = TimeUnit.SECONDS.toNanos(1);
+        for (int i = 0; i < 10_000; i++) {
+            guard.allow(FloodGuard.deviceKey(1000 + i), ADDRESS, now);
+        }
+        assertTrue(guard.getPacketsOverBudget() > 0);
+        assertEquals((int) FloodGuard.RESERVED_RATE, allowed(good, 100, now));
+    }
+
+    @Test
+    public void floodIsReportedOncePerInterval() {
+        long key = FloodGuard.deviceKey(1);
+        long interval = TimeUnit.MILLISECONDS.toNanos(FloodGuard.REPORT_INTERVAL_MS);
+        allowed(key, 1000, 0);
+        assertEquals(1, guard.getFloodReports());
+        allowed(key, 1000, interval / 2);
+        assertEquals(1, guard.getFloodReports());
+        allowed(key, 1000, interval);
+        assertEquals(2, guard.getFloodReports());
+        // The drops after that report come with the next packet let through
+        assertTrue(guard.allow(key, ADDRESS, 3 * interval));
+        assertEquals(3, guard.getFloodReports());
+        // Flood over: no further reports
+        assertTrue(guard.allow(key, ADDRESS, 5 * interval));
+        assertEquals(3, guard.getFloodReports());
+    }
+
+    @Test
+    public void keysDoNotCollide() {
+        assertFalse(FloodGuard.deviceKey(-1) == FloodGuard.addressKey(ADDRESS));
+        assertTrue(FloodGuard.addressKey(ADDRESS) < 0);
+        assertTrue(FloodGuard.deviceKey(-1) >= 0);
+    }
+
+    private int allowed(long key, int packets, long nowNanos) {
+        int count = 0;
+        for (int i = 0; i < packets; i++) {
+            if (guard.allow(key, ADDRESS, nowNanos))
+                count++;
+        }
+        return count;
+    }
+}
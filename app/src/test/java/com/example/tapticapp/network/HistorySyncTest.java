@@ -0,0 +1,224 @@
+package com.example.tapticapp.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.example.tapticapp.data.DetectionEvent;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+
+public class HistorySyncTest {
+
+    private static final long A = 0xA;
+    private static final long B = 0xB;
+    private static final long C = 0xC;
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private final List<HistorySync> syncs = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (HistorySync sync : syncs) {
+            sync.stop();
+        }
+    }
+
+    @Test
+    public void pullsOnlyMissingRows() throws IOException {
+        MemoryStore storeA = new MemoryStore();
+        MemoryStore storeB = new MemoryStore();
+        storeB.addLocal(B, 150);
+        HistorySync a = sync(A, "Phone A", storeA);
+        HistorySync b = serve(B, "Phone B", storeB);
+
+        assertEquals(150, a.syncWith(LOOPBACK, port(b)));
+        assertEquals(150, storeA.rows.size());
+        assertEquals(Long.valueOf(150), storeA.getHighWaterMarks().get(B));
+        DetectionEvent first = storeA.rows.get(0);
+        assertEquals(B, first.originDevice);
+        assertEquals(1, first.originSeq);
+        assertTrue(first.isRemote);
+        assertEquals("Phone B", first.deviceName);
+        assertEquals(storeB.rows.get(0).timestamp, first.timestamp);
+        assertEquals(storeB.rows.get(0).label, first.label);
+        assertEquals(storeB.rows.get(0).confidence, first.confidence, 1 / 255.0);
+        assertTrue(storeA.rows.get(9).isEmergency);
+        assertFalse(storeA.rows.get(8).isEmergency);
+        // Tables and deltas keep rows small
+        assertTrue(a.getBytesReceived() < 150 * 10);
+
+        assertEquals(0, a.syncWith(LOOPBACK, port(b)));
+        storeB.addLocal(B, 5);
+        assertEquals(5, a.syncWith(LOOPBACK, port(b)));
+        assertEquals(155, storeA.rows.size());
+    }
+
+    @Test
+    public void relaysOtherDevicesRows() throws IOException {
+        MemoryStore storeA = new MemoryStore();
+        MemoryStore storeB = new MemoryStore();
+        MemoryStore storeC = new MemoryStore();
+        storeA.addLocal(A, 20);
+        storeC.addLocal(C, 10);
+        HistorySync a = serve(A, "Phone A", storeA);
+        HistorySync b = serve(B, "Phone B", storeB);
+        HistorySync c = serve(C, "Phone C", storeC);
+
+        // B met A, then later C met B
+        assertEquals(20, b.syncWith(LOOPBACK, port(a)));
+        assertEquals(20, c.syncWith(LOOPBACK, port(b)));
+        assertEquals(30, storeC.rows.size());
+        assertEquals("Phone A", storeC.rows.get(10).deviceName);
+        assertEquals(A, storeC.rows.get(10).originDevice);
+
+        // A does not get its own rows back, but gets C's through B
+        assertEquals(10, b.syncWith(LOOPBACK, port(c)));
+        assertEquals(10, a.syncWith(LOOPBACK, port(b)));
+        assertEquals(30, storeA.rows.size());
+    }
+
+    @Test
+    public void largeBacklogSpansSessions() throws IOException {
+        MemoryStore storeA = new MemoryStore();
+        MemoryStore storeB = new MemoryStore();
+        storeB.addLocal(B, 2500);
+        HistorySync a = sync(A, "Phone A", storeA);
+        HistorySync b = serve(B, "Phone B", storeB);
+
+        assertEquals(2500, a.syncWith(LOOPBACK, port(b)));
+        assertEquals(3, b.getSessionsServed());
+        assertEquals(2500, storeA.rows.size());
+        assertEquals(Long.valueOf(2500), storeA.getHighWaterMarks().get(B));
+    }
+
+    @Test
+    public void fullStringTableEndsTheSession() throws IOException {
+        MemoryStore storeA = new MemoryStore();
+        MemoryStore storeB = new MemoryStore();
+        storeB.addLocal(B, 600);
+        for (DetectionEvent row : storeB.rows) {
+            row.label = "Sound " + row.originSeq;
+        }
+        HistorySync a = sync(A, "Phone A", storeA);
+        HistorySync b = serve(B, "Phone B", storeB);
+
+        // One string for the device name, then one per row
+        assertEquals(600, a.syncWith(LOOPBACK, port(b)));
+        assertEquals(3, b.getSessionsServed());
+        assertEquals(0, a.getFailures());
+        assertEquals(600, storeA.rows.size());
+        for (int i = 0; i < 600; i++) {
+            assertEquals(i + 1, storeA.rows.get(i).originSeq);
+            assertEquals("Sound " + (i + 1), storeA.rows.get(i).label);
+        }
+    }
+
+    @Test
+    public void interruptedSyncResumes() throws IOException {
+        MemoryStore storeA = new MemoryStore();
+        MemoryStore storeB = new MemoryStore();
+        storeB.addLocal(B, 200);
+        HistorySync a = sync(A, "Phone A", storeA);
+        HistorySync b = serve(B, "Phone B", storeB);
+
+        storeA.failAfterBatches = 2;
+        try {
+            a.syncWith(LOOPBACK, port(b));
+            fail();
+        } catch (IllegalStateException e) {
+            // Simulated crash while storing the third batch
+        }
+        assertEquals(2 * HistorySync.BATCH_ROWS, storeA.rows.size());
+
+        storeA.failAfterBatches = -1;
+        assertEquals(200 - 2 * HistorySync.BATCH_ROWS, a.syncWith(LOOPBACK, port(b)));
+        assertEquals(200, storeA.rows.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i + 1, storeA.rows.get(i).originSeq);
+        }
+    }
+
+    @Test
+    public void zigzagRoundTrip() {
+        for (long value : new long[] { 0, 1, -1, 1000, -1000, Long.MAX_VALUE, Long.MIN_VALUE }) {
+            assertEquals(value, HistorySync.unzigzag(HistorySync.zigzag(value)));
+        }
+        assertEquals(1, HistorySync.zigzag(-1));
+    }
+
+    private HistorySync sync(long id, String name, MemoryStore store) {
+        HistorySync sync = new HistorySync(id, name, store);
+        syncs.add(sync);
+        return sync;
+    }
+
+    private HistorySync serve(long id, String name, MemoryStore store) {
+        HistorySync sync = sync(id, name, store);
+        sync.start(new InetSocketAddress(LOOPBACK, 0));
+        return sync;
+    }
+
+    private static int port(HistorySync sync) {
+        return sync.getPort();
+    }
+
+    /**
+     * Same rules as the Room store: skip rows already held, marks only
+     * rise, own rows are numbered from the mark.
+     */
+    private static final class MemoryStore implements HistorySync.Store {
+        final List<DetectionEvent> rows = new ArrayList<>();
+        final Map<Long, Long> marks = new HashMap<>();
+        int failAfterBatches = -1;
+
+        synchronized void addLocal(long id, int count) {
+            for (int i = 0; i < count; i++) {
+                long seq = marks.getOrDefault(id, 0L) + 1;
+                DetectionEvent row = new DetectionEvent(1_700_000_000_000L + seq * 1500, "Sound " + (seq % 7),
+                        (seq % 100) / 100.0, seq % 10 == 0, false, null);
+                row.originDevice = id;
+                row.originSeq = seq;
+                rows.add(row);
+                marks.put(id, seq);
+            }
+        }
+
+        @Override
+        public synchronized Map<Long, Long> getHighWaterMarks() {
+            return new HashMap<>(marks);
+        }
+
+        @Override
+        public synchronized List<DetectionEvent> getRowsAfter(long originDevice, long afterSeq, int limit) {
+            List<DetectionEvent> result = new ArrayList<>();
+            for (DetectionEvent row : rows) {
+                if (result.size() < limit && row.originDevice == originDevice && row.originSeq > afterSeq)
+                    result.add(row);
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized void applySynced(List<DetectionEvent> batch) {
+            if (failAfterBatches == 0)
+                throw new IllegalStateException("Simulated failure");
+            failAfterBatches--;
+            for (DetectionEvent row : batch) {
+                Long mark = marks.get(row.originDevice);
+                if (mark == null || row.originSeq > mark) {
+                    rows.add(row);
+                    marks.put(row.originDevice, row.originSeq);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.tapticapp.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+/**
+ * In-place JSON scanning and byte-keyed lookups used by the listener.
+ */
+public class LegacyJsonTest {
+
+    private static ByteBuffer direct(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    private static String stringAt(ByteBuffer buffer, int quote) {
+        int close = LegacyJson.stringEnd(buffer, quote, buffer.limit());
+        byte[] bytes = new byte[close - quote - 1];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(quote + 1 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void findsTopLevelValues() {
+        ByteBuffer json = direct("{\"type\": \"Siren\", \"time\":\"12:00:00\",\"host\" : \"Desk \\\"A\\\"\"}");
+        int end = json.limit();
+
+        assertEquals("Siren", stringAt(json, LegacyJson.findValue(json, 0, end, LegacyJson.KEY_TYPE)));
+        assertEquals("Desk \\\"A\\\"", stringAt(json, LegacyJson.findValue(json, 0, end, LegacyJson.KEY_HOST)));
+        assertEquals(-1, LegacyJson.findValue(json, 0, end, LegacyJson.KEY_EVENTS));
+    }
+
+    @Test
+    public void skipsStringValuesThatLookLikeKeys() {
+        ByteBuffer json = direct("{\"time\":\"host\",\"host\":\"Laptop\"}");
+        int host = LegacyJson.findValue(json, 0, json.limit(), LegacyJson.KEY_HOST);
+        assertEquals("Laptop", stringAt(json, host));
+    }
+
+    @Test
+    public void toleratesTruncatedInput() {
+        ByteBuffer json = direct("{\"type\":\"Sir");
+        int type = LegacyJson.findValue(json, 0, json.limit(), LegacyJson.KEY_TYPE);
+        assertEquals(-1, LegacyJson.stringEnd(json, type, json.limit()));
+        assertEquals(-1, LegacyJson.findValue(direct("{\"ty"), 0, 4, LegacyJson.KEY_TYPE));
+    }
+
+    @Test
+    public void labelLookupIgnoresAsciiCase() {
+        ByteStringTable labels = new ByteStringTable(16, true);
+        labels.put("Siren", 3);
+        labels.put("Dog", 7);
+
+        ByteBuffer json = direct("xxSIRENdog");
+        assertEquals(3, labels.idOf(json, 2, 5));
+        assertEquals(7, labels.idOf(json, 7, 3));
+        assertEquals(-1, labels.idOf(json, 0, 2));
+    }
+
+    @Test
+    public void internReturnsSameInstanceAndStaysBounded() {
+        ByteStringTable names = new ByteStringTable(4, false);
+        ByteBuffer a = direct("Pixel 8");
+        ByteBuffer b = direct("--Pixel 8");
+
+        String first = names.intern(a, 0, 7);
+        assertTrue(first == names.intern(b, 2, 7));
+
+        for (int i = 0; i < 20; i++) {
+            names.intern(direct("device " + i), 0, ("device " + i).length());
+            assertTrue(names.size() <= 4);
+        }
+    }
+}
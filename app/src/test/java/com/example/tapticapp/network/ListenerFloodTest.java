@@ -0,0 +1,126 @@
+package com.example.tapticapp.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.example.tapticapp.config.ConfigSnapshot;
+import com.example.tapticapp.config.TestConfigs;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ * Floods a loopback listener with frames from one looping peer and from
+ * peers with random ids while a well-behaved peer sends emergencies.
+ */
+public class ListenerFloodTest {
+
+    private static final long LISTENER_ID = 1;
+    private static final long GOOD_ID = 2;
+    private static final long LOOPING_ID = 3;
+    private static final int GOOD_EVENTS = 20;
+    private static final long GOOD_INTERVAL_MS = 150;
+    private static final int GOOD_ATTEMPTS = 50;
+
+    private final InetAddress loopback = InetAddress.getLoopbackAddress();
+    private final ConfigSnapshot snapshot = TestConfigs.sharingAll(new String[] { "alarm", "noise" });
+    private final AtomicInteger goodDelivered = new AtomicInteger();
+    private final AtomicInteger floodDelivered = new AtomicInteger();
+
+    @Test
+    public void floodIsThrottledAndGoodPeerGetsThrough() throws Exception {
+        InetSocketAddress listenAddress;
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            probe.bind(new InetSocketAddress(loopback, 0));
+            listenAddress = (InetSocketAddress) probe.getLocalAddress();
+        }
+        BroadcastListener listener = new BroadcastListener(LISTENER_ID, () -> snapshot, () -> null,
+                new PeerRegistry(), (classIndex, label, score, deviceName) -> {
+                    if (deviceName.equals("good"))
+                        goodDelivered.incrementAndGet();
+                    else
+                        floodDelivered.incrementAndGet();
+                });
+        // Acks go nowhere
+        listener.useSimulatedNetwork(listenAddress, 9);
+        listener.start();
+
+        try (DatagramChannel good = DatagramChannel.open(); DatagramChannel flood = DatagramChannel.open()) {
+            ByteBuffer frame = ByteBuffer.allocate(256);
+            awaitListening(listener, good, listenAddress, frame);
+
+            AtomicBoolean flooding = new AtomicBoolean(true);
+            Thread flooder = new Thread(() -> {
+                ByteBuffer out = ByteBuffer.allocate(256);
+                try {
+                    for (int i = 0; flooding.get(); i++) {
+                        // Half from one looping peer, half from rotating ids
+                        long id = i % 2 == 0 ? LOOPING_ID : 1000 + i;
+                        send(flood, listenAddress, out, id, i, "flood", 0);
+                        // Paced so the socket buffer rarely overflows
+                        if (i % 50 == 0)
+                            Thread.sleep(1);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, "flooder");
+
+            long start = System.nanoTime();
+            flooder.start();
+            for (int i = 0; i < GOOD_EVENTS; i++) {
+                Thread.sleep(GOOD_INTERVAL_MS);
+                // Retransmit like the sender does, in case the socket buffer
+                // overflowed; duplicates are dropped by the listener. How
+                // many sends that takes depends on the machine's load.
+                int before = goodDelivered.get();
+                for (int attempt = 0; attempt < GOOD_ATTEMPTS && goodDelivered.get() == before; attempt++) {
+                    send(good, listenAddress, frame, GOOD_ID, 100 + i, "good", WireProtocol.FLAG_EMERGENCY);
+                    Thread.sleep(20);
+                }
+            }
+            Thread.sleep(GOOD_INTERVAL_MS);
+            flooding.set(false);
+            flooder.join();
+            long elapsedNanos = System.nanoTime() - start;
+            Thread.sleep(300);
+
+            assertTrue(listener.getPacketsThrottled() > 0);
+            assertTrue(listener.getPacketsOverBudget() > 0);
+            assertTrue(listener.getFloodReports() >= 1);
+            // Whatever got through stayed within the budgets: the global one
+            // plus the looping peer's reserved allowance
+            double seconds = elapsedNanos / 1e9 + 0.3;
+            double limit = FloodGuard.GLOBAL_BURST + FloodGuard.GLOBAL_RATE * seconds
+                    + FloodGuard.RESERVED_RATE * seconds;
+            assertTrue(floodDelivered.get() <= limit);
+            // The well-behaved peer lived on its allowance throughout; the
+            // probe counts as one
+            assertEquals(GOOD_EVENTS + 1, goodDelivered.get());
+        } finally {
+            listener.stop();
+        }
+    }
+
+    private void awaitListening(BroadcastListener listener, DatagramChannel good, InetSocketAddress address,
+            ByteBuffer frame) throws Exception {
+        for (int i = 0; i < 200 && listener.getPacketsReceived() == 0; i++) {
+            send(good, address, frame, GOOD_ID, 0, "good", 0);
+            Thread.sleep(10);
+        }
+        assertEquals(1, goodDelivered.get());
+    }
+
+    private static void send(DatagramChannel channel, InetSocketAddress to, ByteBuffer out, long deviceId,
+            long sequence, String host, int flags) throws Exception {
+        out.clear();
+        WireProtocol.encodeEvents(out, deviceId, sequence, System.currentTimeMillis(), WireProtocol.encodeHost(host),
+                1, new int[] { 0 }, new float[] { 0.9f }, new int[] { flags });
+        out.flip();
+        channel.send(out, to);
+    }
+}
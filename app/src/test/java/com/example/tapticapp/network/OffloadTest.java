@@ -0,0 +1,183 @@
+package com.example.tapticapp.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * {@link OffloadClient} against an {@link OffloadHub} over loopback, with a
+ * stand-in model that reports the window's peak amplitude.
+ */
+public class OffloadTest {
+
+    private static final long CLIENT_ID = 0xC1;
+    private static final long HUB_ID = 0x4B;
+    private static final int HOP = 800;
+    private static final int WINDOW = 1600;
+    private static final int CLASSES = 8;
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private final PeerRegistry registry = new PeerRegistry();
+    private final List<float[]> results = new ArrayList<>();
+    private volatile long modelDelayMs;
+    private OffloadHub hub;
+    private OffloadClient client;
+
+    @After
+    public void tearDown() {
+        if (client != null)
+            client.stop();
+        if (hub != null)
+            hub.stop();
+    }
+
+    @Test
+    public void hubClassifiesStreamedAudio() throws InterruptedException {
+        connect();
+        for (int i = 0; i < 20; i++) {
+            assertTrue(client.submitHop(tone(0.5f), 0.8));
+            // Let the sender take it, so the queue never fills
+            long sent = i + 1;
+            awaitTrue(() -> client.getHopsSent() == sent);
+        }
+        awaitTrue(() -> client.getResults() + client.getHopsSkipped() == 20);
+
+        assertEquals(20, client.getHopsSent());
+        assertEquals(0, client.getHopsDropped());
+        synchronized (results) {
+            assertEquals(client.getResults(), results.size());
+            float[] last = results.get(results.size() - 1);
+            // Peak survives mu-law within a quantization step of the scores
+            assertEquals(0.5, last[0], 0.02);
+        }
+        // 1 byte per sample up, 1 byte per class down
+        assertEquals(20 * OffloadProtocol.hopMessageSize(HOP), client.getBytesSent());
+        assertTrue(client.getAverageLatencyMs() > 0);
+    }
+
+    @Test
+    public void quietHopsAreGated() throws InterruptedException {
+        connect();
+        client.submitHop(tone(0.5f), 0.8);
+        awaitTrue(() -> client.getHopsSent() == 1);
+        // The first quiet hop still goes out, the ones after it do not
+        client.submitHop(new float[HOP], 0.02);
+        awaitTrue(() -> client.getHopsSent() == 2);
+        for (int i = 0; i < 3; i++) {
+            client.submitHop(new float[HOP], 0.02);
+        }
+        assertEquals(3, client.getHopsGated());
+        assertEquals(0, client.getHopsDropped());
+        awaitTrue(() -> client.getResults() + client.getHopsSkipped() == 2);
+        assertEquals(2, client.getHopsSent());
+        synchronized (results) {
+            assertEquals(3 + client.getResults(), results.size());
+        }
+
+        // The hub's window was shifted by the gated hops
+        client.submitHop(tone(0.25f), 0.5);
+        awaitTrue(() -> client.getResults() + client.getHopsSkipped() == 3);
+        synchronized (results) {
+            assertEquals(0.25, results.get(results.size() - 1)[0], 0.02);
+        }
+    }
+
+    @Test
+    public void fallsBackWhenHubGoes() throws InterruptedException {
+        connect();
+        client.submitHop(tone(0.5f), 0.8);
+        awaitTrue(() -> client.getResults() == 1);
+
+        hub.stop();
+        awaitTrue(() -> !client.isActive());
+        assertFalse(client.submitHop(tone(0.5f), 0.8));
+        assertEquals(1, client.getFallbacks());
+    }
+
+    @Test
+    public void slowHubKeepsLatencyBounded() throws InterruptedException {
+        modelDelayMs = 100;
+        connect();
+        // Ten times faster than the hub can classify
+        for (int i = 0; i < 100; i++) {
+            client.submitHop(tone(0.5f), 0.8);
+            Thread.sleep(10);
+        }
+        awaitTrue(() -> client.getResults() + client.getHopsSkipped() + client.getHopsDropped() == 100);
+
+        assertTrue(client.getResults() < 30);
+        assertTrue(client.getHopsSkipped() + client.getHopsDropped() > 70);
+        // A queue of hops and one window in progress, not a growing backlog
+        assertTrue("max latency " + client.getMaxLatencyMs(), client.getMaxLatencyMs() < 1000);
+        assertTrue(client.isActive());
+    }
+
+    private void connect() throws InterruptedException {
+        hub = new OffloadHub(this::classify, HOP, WINDOW, CLASSES);
+        hub.start(new InetSocketAddress(LOOPBACK, 0));
+        addHub();
+
+        client = new OffloadClient(CLIENT_ID, registry, HOP, WINDOW, CLASSES);
+        client.useHubPort(hub.getPort());
+        client.setResultCallback((scores, level) -> {
+            synchronized (results) {
+                results.add(scores);
+            }
+        });
+        client.start();
+        awaitTrue(client::isActive);
+    }
+
+    private float[] classify(float[] window) {
+        if (modelDelayMs > 0) {
+            try {
+                Thread.sleep(modelDelayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        float peak = 0;
+        for (int i = WINDOW - HOP; i < WINDOW; i++) {
+            peak = Math.max(peak, Math.abs(window[i]));
+        }
+        float[] scores = new float[CLASSES];
+        scores[0] = peak;
+        return scores;
+    }
+
+    private void addHub() {
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        WireProtocol.encodeHeartbeat(buffer, HUB_ID, 0, System.currentTimeMillis(), WireProtocol.encodeHost("hub"),
+                WireProtocol.CAP_RECEIVE_EVENTS | WireProtocol.CAP_INFERENCE_HUB, 60);
+        buffer.flip();
+        WireProtocol.Frame heartbeat = new WireProtocol.Frame();
+        WireProtocol.decode(buffer, heartbeat);
+        registry.recordFrame(heartbeat, "hub", LOOPBACK, 40, 0, System.currentTimeMillis());
+    }
+
+    private static float[] tone(float amplitude) {
+        float[] hop = new float[HOP];
+        for (int i = 0; i < HOP; i++) {
+            hop[i] = (float) (amplitude * Math.sin(2 * Math.PI * 440 * i / 16000.0));
+        }
+        return hop;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline)
+                throw new AssertionError("Timed out");
+            Thread.sleep(5);
+        }
+    }
+}
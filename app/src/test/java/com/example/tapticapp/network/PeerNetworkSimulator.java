@@ -0,0 +1,406 @@
+package com.example.tapticapp.network;
+
+import com.example.tapticapp.config.ConfigSnapshot;
+import com.example.tapticapp.config.TestConfigs;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs N simulated peers on the loopback interface, each with a real
+ * {@link BroadcastSender} and {@link BroadcastListener}, and measures how
+ * events get through.
+ *
+ * Loopback has no broadcast or (usually) multicast, so every sender sends
+ * to a relay socket that stands in for the LAN: it copies each frame to
+ * every other peer's listener port and routes acks to the peer they are
+ * for, dropping each copy with the configured probability. Nothing leaves
+ * 127.0.0.1, so this runs on a box with no network.
+ *
+ * Each event's label is a token that identifies when it was sent, so the
+ * receiving callback can compute end-to-end latency from sendEvent() to
+ * delivery. Run {@link #main} for a configurable benchmark, or see
+ * PeerNetworkSimulatorTest for a short checked scenario.
+ */
+public class PeerNetworkSimulator {
+
+    /**
+     * Scenario parameters.
+     */
+    public static final class Config {
+        public int peers = 4;
+        /** Steady events per second per peer. */
+        public double eventsPerSecond = 20;
+        /** Extra events sent back to back every {@link #burstIntervalMs}. */
+        public int burstSize = 0;
+        public long burstIntervalMs = 1000;
+        /** Probability that the relay drops any one copy of a datagram. */
+        public double lossRate = 0;
+        /** Every n-th event is an emergency; 0 for none. */
+        public int emergencyEvery = 0;
+        public long durationMs = 5000;
+        /** Time after the last event for retransmits and stragglers. */
+        public long drainMs = 2000;
+        public long seed = 1;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d peers, %.0f ev/s each, burst %d every %d ms, loss %.1f%%, emergency 1/%d, %d ms",
+                    peers, eventsPerSecond, burstSize, burstIntervalMs, lossRate * 100, emergencyEvery,
+                    durationMs);
+        }
+    }
+
+    /**
+     * Results of a run.
+     */
+    public static final class Report {
+        public long eventsSent;
+        public long deliveriesExpected;
+        public long deliveries;
+        public long emergenciesSent;
+        public long emergencyDeliveriesExpected;
+        public long emergencyDeliveries;
+        public long emergencyRetransmits;
+        public long senderDrops;
+        public long relayed;
+        public long relayDropped;
+        public long duplicatesDropped;
+        public long datagramsSent;
+        public long packetsReceived;
+        public long p50Micros;
+        public long p90Micros;
+        public long p99Micros;
+        public long maxMicros;
+        public double cpuMicrosPerPacket;
+
+        public double deliveryRatio() {
+            return deliveriesExpected == 0 ? 1 : (double) deliveries / deliveriesExpected;
+        }
+
+        public double emergencyDeliveryRatio() {
+            return emergencyDeliveriesExpected == 0 ? 1 : (double) emergencyDeliveries / emergencyDeliveriesExpected;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "events %d, delivered %d/%d (%.2f%%), emergencies %d delivered %d/%d (%.2f%%) with %d retransmits%n"
+                            + "latency p50 %d us, p90 %d us, p99 %d us, max %d us%n"
+                            + "datagrams sent %d, received %d, relayed %d, relay drops %d, sender drops %d,"
+                            + " duplicates dropped %d%n"
+                            + "cpu %.1f us per packet",
+                    eventsSent, deliveries, deliveriesExpected, deliveryRatio() * 100, emergenciesSent,
+                    emergencyDeliveries, emergencyDeliveriesExpected, emergencyDeliveryRatio() * 100,
+                    emergencyRetransmits, p50Micros, p90Micros, p99Micros, maxMicros, datagramsSent,
+                    packetsReceived, relayed, relayDropped, senderDrops, duplicatesDropped, cpuMicrosPerPacket);
+        }
+    }
+
+    // Labels double as event tokens; one is reused every TOKENS events
+    private static final int TOKENS = 4096;
+    private static final long DISCOVERY_TIMEOUT_MS = 10_000;
+
+    private final Config config;
+    private final String[] labels = new String[TOKENS];
+    private final ConfigSnapshot snapshot;
+    private final InetAddress loopback = InetAddress.getLoopbackAddress();
+
+    private Peer[] peers;
+    private final Map<Long, InetSocketAddress> listenerByDevice = new HashMap<>();
+    private DatagramChannel relay;
+    private Thread relayThread;
+    private final AtomicLong relayed = new AtomicLong();
+    private final AtomicLong relayDropped = new AtomicLong();
+
+    private long[] latencies = new long[1024];
+    private int latencyCount;
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicLong emergencyDeliveries = new AtomicLong();
+
+    private final class Peer {
+        final int index;
+        final DeviceIdentity identity = DeviceIdentity.ephemeral();
+        final PeerRegistry registry = new PeerRegistry();
+        final BroadcastSender sender;
+        final BroadcastListener listener;
+        final AtomicLongArray sentNanos = new AtomicLongArray(TOKENS);
+        final AtomicInteger nextToken = new AtomicInteger();
+        long eventsSent;
+        long emergenciesSent;
+
+        Peer(int index, InetSocketAddress relayAddress, InetSocketAddress listenAddress) {
+            this.index = index;
+            sender = new BroadcastSender(identity, registry, () -> null);
+            sender.useSimulatedNetwork(relayAddress, "sim-" + index);
+            listener = new BroadcastListener(identity.getDeviceId(), () -> snapshot, () -> null, registry,
+                    this::onEvent);
+            listener.useSimulatedNetwork(listenAddress, relayAddress.getPort());
+            listener.setAckCallback(sender::onAck);
+            registry.setDiscoveryListener(peer -> sender.requestFastHeartbeat());
+        }
+
+        void onEvent(int classIndex, String label, double score, String deviceName) {
+            long now = System.nanoTime();
+            Peer from = peers[Integer.parseInt(deviceName.substring(4))];
+            recordLatency(now - from.sentNanos.get(classIndex));
+            deliveries.incrementAndGet();
+            if (isEmergency(classIndex)) {
+                emergencyDeliveries.incrementAndGet();
+            }
+        }
+
+        void sendNext() {
+            int token = nextToken.getAndIncrement() % TOKENS;
+            boolean emergency = isEmergency(token);
+            sentNanos.set(token, System.nanoTime());
+            sender.sendEvent(token, labels[token], 0.9, emergency);
+            eventsSent++;
+            if (emergency)
+                emergenciesSent++;
+        }
+    }
+
+    public PeerNetworkSimulator(Config config) {
+        this.config = config;
+        for (int i = 0; i < TOKENS; i++) {
+            labels[i] = "event " + i;
+        }
+        snapshot = TestConfigs.sharingAll(labels);
+    }
+
+    public Report run() throws Exception {
+        relay = DatagramChannel.open();
+        relay.bind(new InetSocketAddress(loopback, 0));
+        InetSocketAddress relayAddress = (InetSocketAddress) relay.getLocalAddress();
+
+        peers = new Peer[config.peers];
+        for (int i = 0; i < config.peers; i++) {
+            InetSocketAddress listenAddress = new InetSocketAddress(loopback, freePort());
+            peers[i] = new Peer(i, relayAddress, listenAddress);
+            listenerByDevice.put(peers[i].identity.getDeviceId(), listenAddress);
+        }
+
+        Random random = new Random(config.seed);
+        relayThread = new Thread(() -> runRelay(new Random(config.seed + 1)), "sim-relay");
+        relayThread.start();
+        for (Peer peer : peers) {
+            peer.listener.start();
+            peer.sender.start();
+        }
+
+        try {
+            awaitDiscovery();
+            generate(random);
+            Thread.sleep(config.drainMs);
+            return report();
+        } finally {
+            for (Peer peer : peers) {
+                peer.sender.stop();
+                peer.listener.stop();
+            }
+            relay.close();
+            relayThread.join(1000);
+        }
+    }
+
+    /**
+     * Wait until every peer has heard every other one, so emergency events
+     * know whom to expect acks from.
+     */
+    private void awaitDiscovery() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DISCOVERY_TIMEOUT_MS;
+        for (Peer peer : peers) {
+            while (peer.registry.getAliveCount() < config.peers - 1) {
+                if (System.currentTimeMillis() > deadline)
+                    throw new IllegalStateException("Peers did not discover each other");
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private void generate(Random random) throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(config.durationMs);
+        long meanGapNanos = config.eventsPerSecond > 0 ? (long) (1e9 / config.eventsPerSecond) : Long.MAX_VALUE;
+        long[] nextEvent = new long[peers.length];
+        for (int i = 0; i < peers.length; i++) {
+            nextEvent[i] = start + (long) (random.nextDouble() * Math.min(meanGapNanos, 1_000_000_000L));
+        }
+        long burstGap = TimeUnit.MILLISECONDS.toNanos(config.burstIntervalMs);
+        long nextBurst = start + burstGap;
+
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            for (int i = 0; i < peers.length; i++) {
+                // Poisson arrivals
+                while (nextEvent[i] <= now) {
+                    peers[i].sendNext();
+                    nextEvent[i] += (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+                }
+            }
+            if (config.burstSize > 0 && nextBurst <= now) {
+                for (Peer peer : peers) {
+                    for (int j = 0; j < config.burstSize; j++) {
+                        peer.sendNext();
+                    }
+                }
+                nextBurst += burstGap;
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Stand-in for the LAN: fan frames out to every other listener, route
+     * acks to the peer they are for.
+     */
+    private void runRelay(Random random) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(2048);
+        WireProtocol.Frame frame = new WireProtocol.Frame();
+        try {
+            while (true) {
+                buffer.clear();
+                relay.receive(buffer);
+                buffer.flip();
+                if (!WireProtocol.decode(buffer.duplicate(), frame))
+                    continue;
+
+                if (frame.type == WireProtocol.TYPE_ACK) {
+                    InetSocketAddress to = listenerByDevice.get(frame.ackedDeviceId);
+                    if (to != null)
+                        forward(buffer, to, random);
+                    continue;
+                }
+                for (Map.Entry<Long, InetSocketAddress> entry : listenerByDevice.entrySet()) {
+                    if (entry.getKey() != frame.deviceId)
+                        forward(buffer, entry.getValue(), random);
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // Run finished
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void forward(ByteBuffer buffer, InetSocketAddress to, Random random) throws IOException {
+        if (random.nextDouble() < config.lossRate) {
+            relayDropped.incrementAndGet();
+            return;
+        }
+        buffer.rewind();
+        relay.send(buffer, to);
+        relayed.incrementAndGet();
+    }
+
+    private boolean isEmergency(int token) {
+        return config.emergencyEvery > 0 && token % config.emergencyEvery == 0;
+    }
+
+    private synchronized void recordLatency(long nanos) {
+        if (latencyCount == latencies.length)
+            latencies = Arrays.copyOf(latencies, latencyCount * 2);
+        latencies[latencyCount++] = nanos;
+    }
+
+    private Report report() {
+        Report report = new Report();
+        for (Peer peer : peers) {
+            report.eventsSent += peer.eventsSent;
+            report.emergenciesSent += peer.emergenciesSent;
+            report.emergencyRetransmits += peer.sender.getEmergencyRetransmits();
+            report.senderDrops += peer.sender.getEventsDropped();
+            report.datagramsSent += peer.sender.getDatagramsSent();
+            report.packetsReceived += peer.listener.getPacketsReceived();
+            report.duplicatesDropped += peer.listener.getEventsDuplicate();
+        }
+        report.deliveriesExpected = report.eventsSent * (config.peers - 1);
+        report.emergencyDeliveriesExpected = report.emergenciesSent * (config.peers - 1);
+        report.deliveries = deliveries.get();
+        report.emergencyDeliveries = emergencyDeliveries.get();
+        report.relayed = relayed.get();
+        report.relayDropped = relayDropped.get();
+
+        synchronized (this) {
+            long[] sorted = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sorted);
+            report.p50Micros = percentile(sorted, 0.50);
+            report.p90Micros = percentile(sorted, 0.90);
+            report.p99Micros = percentile(sorted, 0.99);
+            report.maxMicros = sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1000;
+        }
+
+        long packets = report.datagramsSent + report.packetsReceived;
+        report.cpuMicrosPerPacket = packets == 0 ? 0 : peerThreadCpuNanos() / 1000.0 / packets;
+        return report;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1000;
+    }
+
+    /**
+     * CPU time of all sender and listener threads (not the relay or the
+     * generator).
+     */
+    private static long peerThreadCpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            String name = thread.getName();
+            if (name.equals("taptic-sender") || name.equals("taptic-listener")) {
+                long cpu = threads.getThreadCpuTime(thread.getId());
+                if (cpu > 0)
+                    total += cpu;
+            }
+        }
+        return total;
+    }
+
+    private int freePort() throws IOException {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            probe.bind(new InetSocketAddress(loopback, 0));
+            return ((InetSocketAddress) probe.getLocalAddress()).getPort();
+        }
+    }
+
+    /**
+     * Usage: PeerNetworkSimulator [peers] [events/s per peer] [loss 0-1]
+     * [burst size] [emergency every n] [duration ms]
+     */
+    public static void main(String[] args) throws Exception {
+        Config config = new Config();
+        if (args.length > 0)
+            config.peers = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            config.eventsPerSecond = Double.parseDouble(args[1]);
+        if (args.length > 2)
+            config.lossRate = Double.parseDouble(args[2]);
+        if (args.length > 3)
+            config.burstSize = Integer.parseInt(args[3]);
+        if (args.length > 4)
+            config.emergencyEvery = Integer.parseInt(args[4]);
+        if (args.length > 5)
+            config.durationMs = Long.parseLong(args[5]);
+        System.out.println(config);
+        System.out.println(new PeerNetworkSimulator(config).run());
+    }
+}
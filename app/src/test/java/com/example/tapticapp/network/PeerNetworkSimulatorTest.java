@@ -0,0 +1,51 @@
+package com.example.tapticapp.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Short runs of {@link PeerNetworkSimulator} over loopback. Only delivery
+ * is asserted, loosely where it depends on the machine: ordinary events
+ * are fire-and-forget, and a loaded machine can overflow a socket buffer.
+ * Run {@link PeerNetworkSimulator#main} for the full report.
+ */
+public class PeerNetworkSimulatorTest {
+
+    @Test
+    public void deliversEverythingWithoutLoss() throws Exception {
+        PeerNetworkSimulator.Config config = new PeerNetworkSimulator.Config();
+        config.peers = 4;
+        config.eventsPerSecond = 50;
+        config.burstSize = 10;
+        config.durationMs = 2000;
+        config.drainMs = 500;
+
+        PeerNetworkSimulator.Report report = new PeerNetworkSimulator(config).run();
+
+        assertTrue(report.eventsSent > 0);
+        assertEquals(0, report.relayDropped);
+        assertTrue(report.toString(), report.deliveryRatio() > 0.9);
+    }
+
+    @Test
+    public void emergenciesSurviveLossExactlyOnce() throws Exception {
+        PeerNetworkSimulator.Config config = new PeerNetworkSimulator.Config();
+        config.peers = 5;
+        config.eventsPerSecond = 20;
+        config.lossRate = 0.1;
+        config.emergencyEvery = 5;
+        config.durationMs = 2000;
+        config.drainMs = 3000;
+
+        PeerNetworkSimulator.Report report = new PeerNetworkSimulator(config).run();
+
+        assertTrue(report.emergenciesSent > 0);
+        assertTrue(report.emergencyRetransmits > 0);
+        // Every emergency reached every peer, and retransmits were deduplicated
+        assertEquals(report.toString(), report.emergencyDeliveriesExpected, report.emergencyDeliveries);
+        // Ordinary events are fire-and-forget
+        assertTrue(report.toString(), report.deliveryRatio() < 1);
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.tapticapp.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Encode/decode throughput of {@link WireProtocol} compared against the
+ * legacy JSON format. Not a unit test; run {@link #main} by hand and read
+ * the printed rates.
+ */
+public class WireProtocolBenchmark {
+
+    private static final int ITERATIONS = 200_000;
+    private static final int WARMUP = 20_000;
+
+    private static final long DEVICE_ID = 0x1234_5678_9ABC_DEF0L;
+    private static final byte[] HOST = WireProtocol.encodeHost("Pixel 8");
+    private static final int[] CLASS_IDS = { 0, 389, 520 };
+    private static final float[] SCORES = { 0.25f, 0.9f, 1.0f };
+    private static final int[] FLAGS = { 0, WireProtocol.FLAG_EMERGENCY, 0 };
+
+    public static void main(String[] args) throws Exception {
+        benchmarkBinary();
+        benchmarkJson();
+    }
+
+    static void benchmarkBinary() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1400);
+        WireProtocol.Frame frame = new WireProtocol.Frame();
+        long checksum = 0;
+        int size = 0;
+
+        for (int i = 0; i < WARMUP; i++) {
+            checksum += binaryOnce(buffer, frame, i);
+        }
+
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long t0 = System.nanoTime();
+            buffer.clear();
+            WireProtocol.encodeEvents(buffer, DEVICE_ID, i, i, HOST, 3, CLASS_IDS, SCORES, FLAGS);
+            buffer.flip();
+            long t1 = System.nanoTime();
+            WireProtocol.decode(buffer, frame);
+            long t2 = System.nanoTime();
+            encodeNanos += t1 - t0;
+            decodeNanos += t2 - t1;
+            checksum += frame.sequence;
+            size = buffer.limit();
+        }
+
+        report("binary", size, encodeNanos, decodeNanos);
+        if (checksum == 0)
+            throw new AssertionError("nothing decoded");
+    }
+
+    static void benchmarkJson() throws Exception {
+        long checksum = 0;
+        int size = 0;
+
+        for (int i = 0; i < WARMUP; i++) {
+            checksum += jsonOnce(i).length;
+        }
+
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long t0 = System.nanoTime();
+            byte[] payload = encodeJson(i);
+            long t1 = System.nanoTime();
+            JSONObject json = new JSONObject(new String(payload, StandardCharsets.UTF_8));
+            JSONArray events = json.optJSONArray("events");
+            long t2 = System.nanoTime();
+            encodeNanos += t1 - t0;
+            decodeNanos += t2 - t1;
+            checksum += events != null ? events.length() : 0;
+            size = payload.length;
+        }
+
+        report("json", size, encodeNanos, decodeNanos);
+        if (checksum == 0)
+            throw new AssertionError("nothing decoded");
+    }
+
+    private static long binaryOnce(ByteBuffer buffer, WireProtocol.Frame frame, int sequence) {
+        buffer.clear();
+        WireProtocol.encodeEvents(buffer, DEVICE_ID, sequence, sequence, HOST, 3, CLASS_IDS, SCORES, FLAGS);
+        buffer.flip();
+        WireProtocol.decode(buffer, frame);
+        return frame.eventCount;
+    }
+
+    private static byte[] jsonOnce(int sequence) throws Exception {
+        byte[] payload = encodeJson(sequence);
+        new JSONObject(new String(payload, StandardCharsets.UTF_8));
+        return payload;
+    }
+
+    /**
+     * Same shape as BroadcastSender's legacy payload.
+     */
+    private static byte[] encodeJson(int sequence) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("type", "Siren");
+        json.put("time", "12:34:56");
+        json.put("host", "Pixel 8");
+        JSONArray events = new JSONArray();
+        events.put("Siren");
+        events.put("Dog");
+        events.put("Speech");
+        json.put("events", events);
+        json.put("seq", sequence);
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void report(String name, int size, long encodeNanos, long decodeNanos) {
+        System.out.printf("%s: %d bytes/frame, encode %.0f ns/frame (%.2f M/s), decode %.0f ns/frame (%.2f M/s)%n",
+                name, size,
+                (double) encodeNanos / ITERATIONS, ITERATIONS * 1000.0 / encodeNanos,
+                (double) decodeNanos / ITERATIONS, ITERATIONS * 1000.0 / decodeNanos);
+    }
+}
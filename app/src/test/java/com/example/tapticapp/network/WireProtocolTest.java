@@ -0,0 +1,100 @@
+package com.example.tapticapp.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+/**
+ * Round-trip checks for {@link WireProtocol}. Throughput is measured by
+ * {@link WireProtocolBenchmark}.
+ */
+public class WireProtocolTest {
+
+    private static final long DEVICE_ID = 0x1234_5678_9ABC_DEF0L;
+    private static final byte[] HOST = WireProtocol.encodeHost("Pixel 8");
+    private static final int[] CLASS_IDS = { 0, 389, 520 };
+    private static final float[] SCORES = { 0.25f, 0.9f, 1.0f };
+    private static final int[] FLAGS = { 0, WireProtocol.FLAG_EMERGENCY, 0 };
+
+    @Test
+    public void roundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(1400);
+        WireProtocol.encodeEvents(buffer, DEVICE_ID, 0xFFFF_FFFEL, 1_700_000_000_123L, HOST, 3, CLASS_IDS,
+                SCORES, FLAGS);
+        buffer.flip();
+
+        assertTrue(WireProtocol.isBinaryFrame(buffer));
+        WireProtocol.Frame frame = new WireProtocol.Frame();
+        assertTrue(WireProtocol.decode(buffer, frame));
+
+        assertEquals(WireProtocol.VERSION, frame.version);
+        assertEquals(WireProtocol.TYPE_EVENTS, frame.type);
+        assertEquals(DEVICE_ID, frame.deviceId);
+        assertEquals(0xFFFF_FFFEL, frame.sequence);
+        assertEquals(1_700_000_000_123L, frame.timestampMs);
+        assertEquals("Pixel 8", frame.hostString());
+        assertEquals(3, frame.eventCount);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(CLASS_IDS[i], frame.classIds[i]);
+            assertEquals(SCORES[i], WireProtocol.dequantizeScore(frame.scores[i]), 0.5 / 255);
+            assertEquals(FLAGS[i], frame.flags[i]);
+        }
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void heartbeatRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(1400);
+        int caps = WireProtocol.CAP_SEND_EVENTS | WireProtocol.CAP_RECEIVE_EVENTS;
+        WireProtocol.encodeHeartbeat(buffer, DEVICE_ID, 77, 5, HOST, caps, 30);
+        buffer.flip();
+
+        WireProtocol.Frame frame = new WireProtocol.Frame();
+        assertTrue(WireProtocol.decode(buffer, frame));
+        assertEquals(WireProtocol.TYPE_HEARTBEAT, frame.type);
+        assertEquals(77, frame.sequence);
+        assertEquals(0, frame.eventCount);
+        assertEquals(caps, frame.capabilities);
+        assertEquals(30, frame.heartbeatIntervalSec);
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void scoresRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(1400);
+        WireProtocol.encodeScores(buffer, DEVICE_ID, 9, 1234, HOST, 2, CLASS_IDS, SCORES);
+        buffer.flip();
+
+        WireProtocol.Frame frame = new WireProtocol.Frame();
+        assertTrue(WireProtocol.decode(buffer, frame));
+        assertEquals(WireProtocol.TYPE_SCORES, frame.type);
+        assertEquals(1234, frame.timestampMs);
+        assertEquals(2, frame.eventCount);
+        assertEquals(CLASS_IDS[1], frame.classIds[1]);
+        assertEquals(SCORES[1], WireProtocol.dequantizeScore(frame.scores[1]), 0.5 / 255);
+        assertEquals(0, frame.flags[1]);
+    }
+
+    @Test
+    public void rejectsTruncatedAndForeignData() {
+        ByteBuffer buffer = ByteBuffer.allocate(1400);
+        WireProtocol.encodeEvents(buffer, DEVICE_ID, 1, 1, HOST, 3, CLASS_IDS, SCORES, FLAGS);
+        buffer.flip();
+        buffer.limit(buffer.limit() - 1);
+        assertFalse(WireProtocol.decode(buffer, new WireProtocol.Frame()));
+
+        ByteBuffer json = ByteBuffer.wrap("{\"type\":\"Siren\"}".getBytes(StandardCharsets.UTF_8));
+        assertFalse(WireProtocol.isBinaryFrame(json));
+        assertFalse(WireProtocol.decode(json, new WireProtocol.Frame()));
+    }
+
+    @Test
+    public void truncatesLongHostNames() {
+        byte[] host = WireProtocol.encodeHost("A very long device model name that keeps going");
+        assertEquals(WireProtocol.MAX_HOST_BYTES, host.length);
+    }
+}